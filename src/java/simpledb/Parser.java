@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -14,12 +16,15 @@ import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.*;
 import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.PreparedPlan;
 import simpledb.optimizer.TableStats;
 import simpledb.storage.IntField;
 import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class Parser {
@@ -60,6 +65,14 @@ public class Parser {
                 processExpression(tid, newWx, lp);
 
             }
+        } else if (wx.getOperator().equals("IN") || wx.getOperator().equals("NOT IN")) {
+            processInExpression(tid, wx, lp);
+        } else if (wx.getOperator().equals("EXISTS")) {
+            processExistsExpression(tid, wx, lp, false);
+        } else if (wx.getOperator().equals("NOT") && wx.nbOperands() == 1
+                && wx.getOperand(0) instanceof ZExpression
+                && ((ZExpression) wx.getOperand(0)).getOperator().equals("EXISTS")) {
+            processExistsExpression(tid, (ZExpression) wx.getOperand(0), lp, true);
         } else if (wx.getOperator().equals("OR")) {
             throw new simpledb.ParsingException(
                     "OR expressions currently unsupported.");
@@ -107,10 +120,7 @@ public class Parser {
                 }
 
                 if (!op2const) { // right op is a nested query
-                    LogicalPlan sublp = parseQueryLogicalPlan(tid,
-                            (ZQuery) ops.get(1));
-                    OpIterator pp = sublp.physicalPlan(tid,
-                            TableStats.getStatsMap(), explain);
+                    OpIterator pp = subqueryPlan(tid, (ZQuery) ops.get(1));
                     lp.addJoin(tab1field, pp, op);
                 } else {
                     tab2field = ((ZConstant) ops.get(1)).getValue();
@@ -137,6 +147,147 @@ public class Parser {
 
     }
 
+    /**
+     * Plan "field IN (subquery)" as a semi-join, and "field NOT IN (subquery)"
+     * as an anti-join, with the single field the subquery selects.
+     */
+    private void processInExpression(TransactionId tid, ZExpression wx, LogicalPlan lp)
+            throws simpledb.ParsingException, IOException, ParseException {
+        if (wx.nbOperands() != 2 || !(wx.getOperand(0) instanceof ZConstant)
+                || ((ZConstant) wx.getOperand(0)).getType() != ZConstant.COLUMNNAME
+                || !(wx.getOperand(1) instanceof ZQuery)) {
+            throw new simpledb.ParsingException(
+                    "Only IN expressions of the form field IN (subquery) are currently supported.");
+        }
+        OpIterator pp = subqueryPlan(tid, (ZQuery) wx.getOperand(1));
+        if (pp.getTupleDesc().numFields() != 1) {
+            throw new simpledb.ParsingException(
+                    "A subquery of an IN expression must select exactly one field.");
+        }
+        lp.addSemiJoin(((ZConstant) wx.getOperand(0)).getValue(), pp,
+                wx.getOperator().equals("NOT IN"));
+    }
+
+    /**
+     * Plan "EXISTS (subquery)" as a semi-join, or "NOT EXISTS (subquery)" as an
+     * anti-join. The subquery must be correlated with the outer query by a
+     * single equality between one of its fields and a field of the outer
+     * query; that predicate is taken out of the subquery, which then selects
+     * its side of the predicate, and becomes the predicate of the join.
+     */
+    private void processExistsExpression(TransactionId tid, ZExpression wx, LogicalPlan lp, boolean anti)
+            throws simpledb.ParsingException, IOException, ParseException {
+        if (wx.nbOperands() != 1 || !(wx.getOperand(0) instanceof ZQuery)) {
+            throw new simpledb.ParsingException("EXISTS must be applied to a subquery.");
+        }
+        ZQuery q = (ZQuery) wx.getOperand(0);
+        if (q.getGroupBy() != null) {
+            throw new simpledb.ParsingException(
+                    "GROUP BY in EXISTS subqueries is currently unsupported.");
+        }
+        // the tables of the subquery, by the name its fields are qualified with
+        Set<String> tables = new HashSet<>();
+        @SuppressWarnings("unchecked")
+        List<ZFromItem> from = q.getFrom();
+        for (ZFromItem fromIt : from)
+            tables.add(fromIt.getAlias() != null ? fromIt.getAlias() : fromIt.getTable());
+
+        List<ZExp> conjuncts = new ArrayList<>();
+        if (q.getWhere() != null)
+            addConjuncts(q.getWhere(), conjuncts);
+        String outerField = null, innerField = null;
+        ZExpression where = null;
+        for (ZExp c : conjuncts) {
+            if (!isCorrelated(c, tables)) {
+                if (where == null)
+                    where = new ZExpression("AND");
+                where.addOperand(c);
+                continue;
+            }
+            ZExpression cx = (ZExpression) c;
+            if (!cx.getOperator().equals("=") || cx.nbOperands() != 2
+                    || !isColumn(cx.getOperand(0)) || !isColumn(cx.getOperand(1))
+                    || isOuterColumn(cx.getOperand(0), tables) == isOuterColumn(cx.getOperand(1), tables)) {
+                throw new simpledb.ParsingException(
+                        "EXISTS subqueries can only be correlated by an equality between a field of the subquery and a field of the outer query.");
+            }
+            if (outerField != null) {
+                throw new simpledb.ParsingException(
+                        "EXISTS subqueries can only be correlated on one field.");
+            }
+            int outer = isOuterColumn(cx.getOperand(0), tables) ? 0 : 1;
+            outerField = ((ZConstant) cx.getOperand(outer)).getValue();
+            innerField = ((ZConstant) cx.getOperand(1 - outer)).getValue();
+        }
+        if (outerField == null) {
+            throw new simpledb.ParsingException(
+                    "Uncorrelated EXISTS subqueries are currently unsupported.");
+        }
+
+        ZQuery sub = new ZQuery();
+        Vector<ZSelectItem> select = new Vector<>();
+        select.add(new ZSelectItem(innerField));
+        sub.addSelect(select);
+        sub.addFrom(q.getFrom());
+        if (where != null)
+            sub.addWhere(where.nbOperands() == 1 ? where.getOperand(0) : where);
+        lp.addSemiJoin(outerField, subqueryPlan(tid, sub), anti);
+    }
+
+    /**
+     * @return the physical plan of a subquery. The LIMIT clause of the
+     * statement applies to the outer query only.
+     */
+    private OpIterator subqueryPlan(TransactionId tid, ZQuery q)
+            throws simpledb.ParsingException, IOException, ParseException {
+        return parseQueryLogicalPlan(tid, q).physicalPlan(tid, TableStats.getStatsMap(), explain);
+    }
+
+    /**
+     * Add the operands of a conjunction to a list, or the expression itself
+     * if it is not an AND.
+     */
+    private static void addConjuncts(ZExp e, List<ZExp> conjuncts) {
+        if (e instanceof ZExpression && ((ZExpression) e).getOperator().equals("AND")) {
+            ZExpression x = (ZExpression) e;
+            for (int i = 0; i < x.nbOperands(); i++)
+                addConjuncts(x.getOperand(i), conjuncts);
+        } else {
+            conjuncts.add(e);
+        }
+    }
+
+    private static boolean isColumn(ZExp e) {
+        return e instanceof ZConstant && ((ZConstant) e).getType() == ZConstant.COLUMNNAME;
+    }
+
+    /**
+     * @return true if the expression is a field qualified with the name of a
+     * table that is not one of the specified tables
+     */
+    private static boolean isOuterColumn(ZExp e, Set<String> tables) {
+        if (!isColumn(e))
+            return false;
+        String[] name = ((ZConstant) e).getValue().split("[.]");
+        return name.length > 1 && !tables.contains(name[0]);
+    }
+
+    /**
+     * @return true if an expression refers to a field of a table that is not
+     * one of the specified tables
+     */
+    private static boolean isCorrelated(ZExp e, Set<String> tables) {
+        if (e instanceof ZExpression) {
+            ZExpression x = (ZExpression) e;
+            for (int i = 0; i < x.nbOperands(); i++) {
+                if (isCorrelated(x.getOperand(i), tables))
+                    return true;
+            }
+            return false;
+        }
+        return isOuterColumn(e, tables);
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
@@ -187,23 +338,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        List<String> groupByFields = new ArrayList<>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             List<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.get(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
             }
 
         }
@@ -212,8 +359,7 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         List<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAgg = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.get(i);
@@ -223,20 +369,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField);
+                hasAgg = true;
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -246,49 +390,238 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && !hasAgg) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        for (String groupByField : groupByFields) {
+            lp.addGroupByField(groupByField);
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             List<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.get(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
-
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
         }
+        lp.setDistinct(q.isDistinct());
         return lp;
     }
 
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    // Zql does not parse LIMIT, so a trailing LIMIT clause is cut off the
+    // statement before it is parsed, and its value set on the plan of the
+    // query
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile("(?i)\\s+limit\\s+(\\d+)(\\s*;?\\s*)$");
+
+    /**
+     * @return the value of the trailing LIMIT clause of a statement, or -1 if
+     * there is none
+     */
+    private static int parseLimit(String s) throws simpledb.ParsingException {
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find())
+            return -1;
+        try {
+            return Integer.parseInt(m.group(1));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT " + m.group(1) + " is too large");
+        }
+    }
+
+    /**
+     * Remove a trailing LIMIT clause from a statement.
+     *
+     * @return the statement without the LIMIT clause
+     */
+    private static String stripLimit(String s) {
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find())
+            return s;
+        return s.substring(0, m.start()) + m.group(2);
+    }
+
+    // Zql does not parse PREPARE, EXECUTE and DEALLOCATE, so they are
+    // recognized before the statement is passed to it
+    private static final Pattern PREPARE_STATEMENT = Pattern.compile("(?is)\\s*prepare\\s+(\\w+)\\s+as\\s+(.*)");
+    private static final Pattern EXECUTE_STATEMENT = Pattern.compile("(?is)\\s*execute\\s+(\\w+)\\s*(?:\\((.*)\\))?\\s*;?\\s*");
+    private static final Pattern DEALLOCATE_STATEMENT = Pattern.compile("(?is)\\s*deallocate\\s+(?:prepare\\s+)?(\\w+)\\s*;?\\s*");
+    // the prepared statements of this session, by lower case name
+    private final Map<String, PreparedPlan> prepared = new HashMap<>();
+
+    /**
+     * @return a prefix for the constants that stand for the parameters of a
+     * statement, which does not occur anywhere in its text, so that no
+     * constant of the statement itself can be taken for a parameter
+     */
+    static String parameterMarker(String s) {
+        String marker = "?param";
+        while (s.contains(marker))
+            marker += "_";
+        return marker;
+    }
+
+    /**
+     * Replace each ? outside a quoted string in a statement with the string
+     * constant of a parameter, the marker followed by its number, numbering
+     * them from 1 in order.
+     *
+     * @return the statement with its parameters marked
+     */
+    static String markParameters(String s, String marker) {
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean quoted = false;
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\'')
+                quoted = !quoted;
+            if (c == '?' && !quoted)
+                sb.append('\'').append(marker).append(++n).append('\'');
+            else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Build the logical plan of a query whose constants may be ? parameters.
+     *
+     * @throws ParsingException if a parameter is not the constant of a filter
+     *                          of the query itself, e.g. it is in a subquery
+     */
+    LogicalPlan generateParameterizedPlan(TransactionId tid, String s)
+            throws IOException, simpledb.ParsingException {
+        String marker = parameterMarker(s);
+        String marked = markParameters(s, marker);
+        LogicalPlan lp = generateLogicalPlan(tid, marked);
+        Set<Integer> found = lp.markParameters(marker);
+        for (int n = 1; marked.contains("'" + marker + n + "'"); n++) {
+            if (!found.contains(n))
+                throw new simpledb.ParsingException("Parameter " + n
+                        + " must be compared with a field of the query");
+        }
+        return lp;
+    }
+
+    /**
+     * Parse the comma separated values of the parameters of an EXECUTE
+     * statement; each is an integer or a quoted string.
+     *
+     * @return the values, without quotes
+     */
+    static List<String> parseParameters(String s) throws simpledb.ParsingException {
+        List<String> values = new ArrayList<>();
+        if (s == null || s.trim().isEmpty())
+            return values;
+        List<String> tokens = new ArrayList<>();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\'')
+                quoted = !quoted;
+            else if (c == ',' && !quoted) {
+                tokens.add(s.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        tokens.add(s.substring(start).trim());
+        for (String t : tokens) {
+            if (t.length() >= 2 && t.startsWith("'") && t.endsWith("'"))
+                values.add(t.substring(1, t.length() - 1));
+            else if (t.matches("-?\\d+"))
+                values.add(t);
+            else
+                throw new simpledb.ParsingException("Invalid parameter value " + t);
+        }
+        return values;
+    }
+
+    /**
+     * Parse a query whose constants may be ? parameters, and keep it under
+     * the specified name to be run by EXECUTE statements.
+     *
+     * @param name the name of the prepared statement
+     * @param s    the text of the query
+     * @return the prepared statement
+     */
+    public PreparedPlan handlePrepareStatement(String name, String s)
+            throws IOException, simpledb.ParsingException {
+        LogicalPlan lp = generateParameterizedPlan(new TransactionId(), s);
+        PreparedPlan plan = new PreparedPlan(lp);
+        prepared.put(name.toLowerCase(), plan);
+        System.out.println("Prepared statement " + name + " with "
+                + plan.numParameters() + " parameters.");
+        return plan;
+    }
+
+    /**
+     * Build the plan of a prepared statement with the specified values of its
+     * parameters.
+     *
+     * @param name   the name of the prepared statement
+     * @param values the comma separated values of the parameters, or null
+     */
+    public Query handleExecuteStatement(String name, String values, TransactionId tId)
+            throws simpledb.ParsingException {
+        PreparedPlan plan = prepared.get(name.toLowerCase());
+        if (plan == null)
+            throw new simpledb.ParsingException("Unknown prepared statement " + name);
+        Query query = plan.bind(tId, parseParameters(values), TableStats.getStatsMap(), explain);
+        printQueryPlan(query.getLogicalPlan(), query.getPhysicalPlan());
+        return query;
+    }
+
+    /**
+     * Remove a prepared statement.
+     *
+     * @param name the name of the prepared statement
+     */
+    public void handleDeallocateStatement(String name) throws simpledb.ParsingException {
+        if (prepared.remove(name.toLowerCase()) == null)
+            throw new simpledb.ParsingException("Unknown prepared statement " + name);
+        System.out.println("Deallocated statement " + name + ".");
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, -1, tId);
+    }
+
+    /**
+     * Build the plan of a query that returns at most limit tuples, or all of
+     * them if limit is -1.
+     */
+    public Query handleQueryStatement(ZQuery s, int limit, TransactionId tId)
+            throws IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit >= 0)
+            lp.setLimit(limit);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
+        printQueryPlan(lp, physicalPlan);
+
+        return query;
+    }
 
+    private void printQueryPlan(LogicalPlan lp, OpIterator physicalPlan) {
         if (physicalPlan != null) {
             Class<?> c;
             try {
@@ -312,13 +645,21 @@ public class Parser {
                 e.printStackTrace();
             }
         }
-
-        return query;
     }
 
     public Query handleInsertStatement(ZInsert s, TransactionId tId)
             throws DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleInsertStatement(s, -1, tId);
+    }
+
+    /**
+     * Build the plan of an insert whose query, if it has one, returns at most
+     * limit tuples, or all of them if limit is -1.
+     */
+    public Query handleInsertStatement(ZInsert s, int limit, TransactionId tId)
+            throws DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
         int tableId;
         try {
             tableId = Database.getCatalog().getTableId(s.getTable()); // will
@@ -383,6 +724,8 @@ public class Parser {
         } else {
             ZQuery zq = s.getQuery();
             LogicalPlan lp = parseQueryLogicalPlan(tId, zq);
+            if (limit >= 0)
+                lp.setLimit(limit);
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
@@ -465,12 +808,16 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                int limit = parseLimit(s);
+                if (limit >= 0)
+                    lp.setLimit(limit);
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
@@ -495,8 +842,43 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0)
+                bytes.write(buf, 0, n);
+            String statement = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+            Matcher m = PREPARE_STATEMENT.matcher(statement);
+            if (m.matches()) {
+                handlePrepareStatement(m.group(1), m.group(2));
+                return;
+            }
+            m = DEALLOCATE_STATEMENT.matcher(statement);
+            if (m.matches()) {
+                handleDeallocateStatement(m.group(1));
+                return;
+            }
+            Matcher execute = EXECUTE_STATEMENT.matcher(statement);
+            ResultCache cache = Database.getResultCache();
+            // a cached result takes no locks, and a result read in a user
+            // transaction may hold its uncommitted writes, so queries of user
+            // transactions neither use nor fill the cache
+            boolean cacheable = ResultCache.isCacheable(statement) && !explain && !inUserTrans;
+            if (cacheable) {
+                ResultCache.Result r = cache.get(statement);
+                if (r != null) {
+                    new Query(new TupleIterator(r.getTupleDesc(), r.getTuples()), null).execute();
+                    System.out.println("Result returned from the result cache.");
+                    return;
+                }
+            }
+            ZStatement s = null;
+            int limit = parseLimit(statement);
+            if (!execute.matches()) {
+                ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                        stripLimit(statement).getBytes(StandardCharsets.UTF_8)));
+                s = p.readStatement();
+            }
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -509,15 +891,21 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
-                        query = handleInsertStatement((ZInsert) s,
+                    if (s == null)
+                        query = handleExecuteStatement(execute.group(1),
+                                execute.group(2), curtrans.getId());
+                    else if (s instanceof ZInsert)
+                        query = handleInsertStatement((ZInsert) s, limit,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
                         query = handleDeleteStatement((ZDelete) s,
                                 curtrans.getId());
-                    else if (s instanceof ZQuery)
-                        query = handleQueryStatement((ZQuery) s,
+                    else if (s instanceof ZQuery) {
+                        query = handleQueryStatement((ZQuery) s, limit,
                                 curtrans.getId());
+                        if (cacheable)
+                            query.setResultCache(cache, statement);
+                    }
                     else {
                         System.out
                                 .println("Can't parse "
@@ -554,7 +942,7 @@ public class Parser {
                 }
             }
 
-        } catch (IOException | DbException e) {
+        } catch (IOException | DbException | TransactionAbortedException e) {
             e.printStackTrace();
         } catch (simpledb.ParsingException e) {
             System.out
@@ -567,11 +955,12 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "order by", "limit", "prepare",
+            "execute", "deallocate" };
 
     public static void main(String[] argv) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 6) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -581,10 +970,11 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-sample rate] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        TableStats.saveStatistics();
         System.out.println("Bye");
     }
 
@@ -593,7 +983,6 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
 
         String queryFile = null;
 
@@ -611,12 +1000,23 @@ public class Parser {
                     }
                     queryFile = argv[i];
 
+                } else if (argv[i].equals("-sample")) {
+                    try {
+                        TableStats.setSampleRate(Double.parseDouble(argv[++i]));
+                    } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                        System.out.println("Expected a sample rate in (0, 1] after -sample\n"
+                                + usage);
+                        System.exit(0);
+                    }
                 } else {
                     System.out.println("Unknown argument " + argv[i] + "\n "
                             + usage);
                 }
             }
         }
+        // reuse the statistics saved next to the catalog for the tables
+        // that have not changed since
+        TableStats.computeStatistics(new File(argv[0] + TableStats.STATS_SUFFIX));
         if (!interactive) {
             try {
                 // curtrans = new Transaction();
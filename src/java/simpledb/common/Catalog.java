@@ -1,6 +1,7 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.index.CoveringIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
@@ -11,6 +12,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -35,6 +37,7 @@ public class Catalog {
 
     private ConcurrentHashMap<String, Integer> lookup;
     private ConcurrentHashMap<Integer, Table> tables;
+    private ConcurrentHashMap<Integer, List<CoveringIndex>> indexes;
 
     /**
      * Constructor.
@@ -43,6 +46,7 @@ public class Catalog {
     public Catalog() {
         this.lookup = new ConcurrentHashMap<>();
         this.tables = new ConcurrentHashMap<>();
+        this.indexes = new ConcurrentHashMap<>();
     }
 
     /**
@@ -124,6 +128,27 @@ public class Catalog {
             return t.pkeyField;
     }
 
+    /**
+     * Add a covering index to the catalog. The index file is added as a table
+     * named after the index, and the index is maintained by the BufferPool as
+     * tuples are inserted into and deleted from its base table.
+     * @param index the index to add; its base table must already be in the catalog
+     */
+    public void addIndex(CoveringIndex index) {
+        addTable(index.getFile(), index.getName());
+        indexes.computeIfAbsent(index.getTableId(), k -> new CopyOnWriteArrayList<>()).add(index);
+    }
+
+    /**
+     * Returns the covering indexes defined on the specified table
+     * @param tableid The id of the base table
+     * @return the indexes of the table; empty if it has none
+     */
+    public List<CoveringIndex> getIndexes(int tableid) {
+        List<CoveringIndex> l = indexes.get(tableid);
+        return l == null ? Collections.emptyList() : l;
+    }
+
     public Iterator<Integer> tableIdIterator() {
         return tables.keySet().iterator();
     }
@@ -140,6 +165,7 @@ public class Catalog {
     public void clear() {
         lookup.clear();
         tables.clear();
+        indexes.clear();
     }
     
     /**
@@ -1,5 +1,6 @@
 package simpledb.common;
 
+import simpledb.execution.ResultCache;
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
 import simpledb.transaction.LockManager;
@@ -25,6 +26,7 @@ public class Database {
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
     private final LockManager _lockmanager;
+    private final ResultCache _resultcache;
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
@@ -33,6 +35,7 @@ public class Database {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
         _lockmanager=new LockManager();
+        _resultcache = new ResultCache();
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -62,6 +65,11 @@ public class Database {
 
     public static LockManager getLockManager(){return _instance.get()._lockmanager;}
 
+    /** Return the query result cache of the static Database instance */
+    public static ResultCache getResultCache() {
+        return _instance.get()._resultcache;
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
      * return it
@@ -76,6 +84,8 @@ public class Database {
             LockManagerF=Database.class.getDeclaredField("_lockmanager");
             LockManagerF.setAccessible(true);
             LockManagerF.set(_instance.get(),new LockManager());
+            // the table versions cached results were checked against start over
+            _instance.get()._resultcache.clear();
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
         }
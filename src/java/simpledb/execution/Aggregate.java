@@ -1,7 +1,6 @@
 package simpledb.execution;
 
 import simpledb.common.DbException;
-import simpledb.common.Type;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
@@ -10,9 +9,11 @@ import java.util.NoSuchElementException;
 
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min) over any number of columns, grouped by zero or more columns, in one
+ * pass over its child. The groups are computed by a {@link HashAggregate},
+ * which spills groups to disk when there are more than fit in its memory
+ * budget.
  */
 public class Aggregate extends Operator {
 
@@ -20,10 +21,6 @@ public class Aggregate extends Operator {
 
     /**
      * Constructor.
-     * <p>
-     * Implementation hint: depending on the type of afield, you will want to
-     * construct an {@link IntegerAggregator} or {@link StringAggregator} to help
-     * you with your implementation of readNext().
      *
      * @param child  The OpIterator that is feeding us tuples.
      * @param afield The column over which we are computing an aggregate.
@@ -32,107 +29,154 @@ public class Aggregate extends Operator {
      * @param aop    The aggregation operator to use
      */
     private OpIterator child;
-    private int afield;
-    private int gfield;
-    private Aggregator.Op aop;
-    private Aggregator agg;
-    private OpIterator aggChild;
+    private final int[] afields;
+    private final int[] gfields;
+    private final Aggregator.Op[] aops;
+    private final HashAggregate hash;
 
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
         // some code goes here
+        this(child, new int[]{afield},
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[]{gfield},
+                new Aggregator.Op[]{aop});
+    }
+
+    /**
+     * Constructor for several aggregates over a group key of several
+     * columns. The output tuples are the group by fields, in order, followed
+     * by the aggregates, in order.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param afields The columns over which we are computing aggregates.
+     * @param gfields The columns over which we are grouping the result, which
+     *                may be empty
+     * @param aops    The aggregation operator to use over each of afields
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        if (afields.length == 0)
+            throw new IllegalArgumentException("need at least one aggregate");
         this.child = child;
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
-        Type gtype=null;
-        if(gfield!=Aggregator.NO_GROUPING){
-            gtype=child.getTupleDesc().getFieldType(gfield);
-        }
-        if (child.getTupleDesc().getFieldType(afield) == Type.INT_TYPE) {
-            agg=new IntegerAggregator(gfield,gtype,afield,aop);
-        } else {
-            agg=new StringAggregator(gfield,gtype,afield,aop);
-        }
-        aggChild=agg.iterator();
+        this.afields = afields.clone();
+        this.gfields = gfields.clone();
+        this.aops = aops.clone();
+        hash = new HashAggregate(child, gfields, afields, aops);
     }
 
     /**
-     * @return If this aggregate is accompanied by a groupby, return the groupby
-     * field index in the <b>INPUT</b> tuples. If not, return
+     * @return If this aggregate is accompanied by a groupby, return the
+     * (first) groupby field index in the <b>INPUT</b> tuples. If not, return
      * {@link Aggregator#NO_GROUPING}
      */
     public int groupField() {
         // some code goes here
-        return gfield;
+        return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
     }
 
     /**
      * @return If this aggregate is accompanied by a group by, return the name
-     * of the groupby field in the <b>OUTPUT</b> tuples. If not, return
+     * of the (first) groupby field in the <b>OUTPUT</b> tuples. If not, return
      * null;
      */
     public String groupFieldName() {
         // some code goes here
-        return gfield == -1 ? null : child.getTupleDesc().getFieldName(gfield);
+        return gfields.length == 0 ? null : child.getTupleDesc().getFieldName(gfields[0]);
     }
 
     /**
-     * @return the aggregate field
+     * @return the groupby field indexes in the <b>INPUT</b> tuples, which
+     * may be empty
+     */
+    public int[] groupFields() {
+        return gfields.clone();
+    }
+
+    /**
+     * @return the (first) aggregate field
      */
     public int aggregateField() {
         // some code goes here
-        return afield;
+        return afields[0];
     }
 
     /**
-     * @return return the name of the aggregate field in the <b>OUTPUT</b>
-     * tuples
+     * @return return the name of the (first) aggregate field in the
+     * <b>OUTPUT</b> tuples
      */
     public String aggregateFieldName() {
         // some code goes here
-        return child.getTupleDesc().getFieldName(afield);
+        return child.getTupleDesc().getFieldName(afields[0]);
     }
 
     /**
-     * @return return the aggregate operator
+     * @return the aggregate field indexes in the <b>INPUT</b> tuples
+     */
+    public int[] aggregateFields() {
+        return afields.clone();
+    }
+
+    /**
+     * @return return the (first) aggregate operator
      */
     public Aggregator.Op aggregateOp() {
         // some code goes here
-        return aop;
+        return aops[0];
+    }
+
+    /**
+     * @return the aggregate operators, one for each aggregate field
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
         return aop.toString();
     }
 
+    /**
+     * Set the memory the groups may use (see {@link HashAggregate#setMemoryBudget}).
+     *
+     * @param bytes the memory budget in bytes
+     */
+    public void setMemoryBudget(long bytes) {
+        hash.setMemoryBudget(bytes);
+    }
+
+    /**
+     * @return the memory budget in bytes
+     */
+    public long getMemoryBudget() {
+        return hash.getMemoryBudget();
+    }
+
     public void open() throws NoSuchElementException, DbException,
             TransactionAbortedException {
         // some code goes here
         super.open();
-        child.open();
-        while (child.hasNext()){
-            agg.mergeTupleIntoGroup(child.next());
-        }
-        aggChild=agg.iterator();
-        aggChild.open();
+        hash.open();
+    }
+
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        return hash.nextBatch();
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate. If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns the next tuple. If there are group by fields, then the first
+     * fields are the fields by which we are grouping, and the following
+     * fields are the results of computing the aggregates. If there is no group
+     * by field, then the result tuple contains one field for each aggregate.
+     * Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if(aggChild.hasNext()) return aggChild.next();
+        if (hash.hasNext()) return hash.next();
         return null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-        aggChild.rewind();
+        hash.rewind();
     }
 
     /**
@@ -148,12 +192,12 @@ public class Aggregate extends Operator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return aggChild.getTupleDesc();
+        return hash.getTupleDesc();
     }
 
     public void close() {
         // some code goes here
-        child.close();
+        hash.close();
         super.close();
     }
 
@@ -167,6 +211,7 @@ public class Aggregate extends Operator {
     public void setChildren(OpIterator[] children) {
         // some code goes here
         child = children[0];
+        hash.setChildren(children);
     }
 
 }
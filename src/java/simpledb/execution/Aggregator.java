@@ -79,6 +79,17 @@ public interface Aggregator extends Serializable {
      */
     void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the selected rows of a batch into the aggregate. The default
+     * implementation merges the rows one Tuple at a time.
+     *
+     * @param batch the batch containing an aggregate field and a group-by field
+     */
+    default void mergeBatchIntoGroup(TupleBatch batch) {
+        for (int i = 0; i < batch.numSelected(); i++)
+            mergeTupleIntoGroup(batch.getTuple(batch.selected(i)));
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see TupleIterator for a possible helper
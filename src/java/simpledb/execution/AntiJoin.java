@@ -0,0 +1,23 @@
+package simpledb.execution;
+
+/**
+ * The AntiJoin operator returns the tuples of child1 whose join field equals
+ * the join field of no tuple of child2. It implements NOT IN and NOT EXISTS
+ * subqueries with the hash set of {@link SemiJoin}, including its spilling.
+ */
+public class AntiJoin extends SemiJoin {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     *
+     * @param p      The predicate to join the children on, which must be EQUALS
+     * @param child1 Iterator for the relation whose tuples are returned
+     * @param child2 Iterator for the relation the tuples of child1 must not
+     *               match
+     */
+    public AntiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        super(p, child1, child2, true);
+    }
+}
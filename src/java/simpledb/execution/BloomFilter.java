@@ -0,0 +1,101 @@
+package simpledb.execution;
+
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+
+/**
+ * BloomFilter is a set of join keys that may report keys it does not hold
+ * (with a probability of about 1% at the default size) but never misses a
+ * key it holds. HashEquiJoin builds one over the keys of its build side, so
+ * that scans of the probe side can drop the tuples that cannot match.
+ * <p>
+ * Keys are added as hashes (see {@link #hash(int)} and {@link #hash(String)}),
+ * so that INT_TYPE and STRING_TYPE keys can be added without creating Field
+ * objects. Once built, a filter may be read by several threads.
+ */
+public class BloomFilter {
+
+    /**
+     * The number of bits per key, which with NUM_HASHES hashes gives a false
+     * positive rate of about 1%
+     */
+    public static final int BITS_PER_KEY = 10;
+    private static final int NUM_HASHES = 7;
+    // the largest filter, in bits (16 MB)
+    private static final int MAX_BITS = 1 << 27;
+
+    private final long[] bits;
+    private final int mask;
+
+    /**
+     * Create an empty filter sized for the specified number of keys.
+     */
+    public BloomFilter(int expectedKeys) {
+        long wanted = Math.max(64L, (long) expectedKeys * BITS_PER_KEY);
+        int size = (int) Math.min(MAX_BITS, Long.highestOneBit(wanted - 1) << 1);
+        bits = new long[size / 64];
+        mask = size - 1;
+    }
+
+    /**
+     * @return the hash of an INT_TYPE key
+     */
+    public static int hash(int key) {
+        // the finalizer of MurmurHash3
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @return the hash of a STRING_TYPE key
+     */
+    public static int hash(String key) {
+        return hash(key.hashCode());
+    }
+
+    /**
+     * @return the hash of a key held in a Field
+     */
+    public static int hash(Field key) {
+        if (key instanceof IntField)
+            return hash(((IntField) key).getValue());
+        return hash(((StringField) key).getValue());
+    }
+
+    /**
+     * Add the key with the specified hash.
+     */
+    public void add(int hash) {
+        int h2 = Integer.rotateLeft(hash, 16) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (hash + i * h2) & mask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if no key with the specified hash was added
+     */
+    public boolean mightContain(int hash) {
+        int h2 = Integer.rotateLeft(hash, 16) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (hash + i * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the size of this filter in bits
+     */
+    public int size() {
+        return mask + 1;
+    }
+}
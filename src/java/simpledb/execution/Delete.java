@@ -11,6 +11,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The delete operator. Delete reads tuples from its child operator and removes
@@ -66,23 +68,28 @@ public class Delete extends Operator {
     /**
      * Deletes tuples as they are read from the child operator. Deletes are
      * processed via the buffer pool (which can be accessed via the
-     * Database.getBufferPool() method.
+     * Database.getBufferPool() method. The child is read a batch at a time,
+     * and the tuples of each batch are deleted together.
      * 
      * @return A 1-field tuple containing the number of deleted records.
      * @see Database#getBufferPool
-     * @see BufferPool#deleteTuple
+     * @see BufferPool#deleteTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
         if(!flag){
-            while (child.hasNext()){
+            List<Tuple> tuples = new ArrayList<>();
+            TupleBatch batch;
+            while ((batch = child.nextBatch()) != null) {
+                tuples.clear();
+                for (int i = 0; i < batch.numSelected(); i++)
+                    tuples.add(batch.getTuple(batch.selected(i)));
                 try {
-                    Tuple tuple=child.next();
-                    Database.getBufferPool().deleteTuple(t,tuple);
+                    Database.getBufferPool().deleteTuples(t, tuples);
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    throw new DbException("failed to delete tuples: " + e.getMessage());
                 }
-                count++;
+                count += tuples.size();
             }
             flag=true;
             IntField field=new IntField(count);
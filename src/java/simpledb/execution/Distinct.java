@@ -0,0 +1,350 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Distinct removes duplicate tuples from its child. The tuples seen so far
+ * are kept in a hash set, and each tuple is returned as soon as it is read
+ * if it is not in the set yet, so Distinct streams its child in order as
+ * long as the distinct tuples fit in memory. When the child has a single
+ * INT_TYPE field, tuples are looked up through an {@link IntHashTable}.
+ * <p>
+ * The number of tuples held in the set is bounded by a memory budget. Once
+ * it is reached, tuples already in the set are still dropped, but new tuples
+ * are written to one of NUM_PARTITIONS spill files by their hash instead of
+ * being returned. After the child is read, each spill file is deduplicated
+ * in turn the same way, spilling again on the next bits of the hash if it
+ * still has too many distinct tuples, as in {@link HashAggregate}.
+ */
+public class Distinct extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+
+    /**
+     * Constructor.
+     *
+     * @param child The OpIterator to remove duplicate tuples from
+     */
+    public Distinct(OpIterator child) {
+        this.child = child;
+        memoryBudget = (long) MAX_TUPLES * child.getTupleDesc().getSize();
+    }
+
+    /**
+     * Returns the TupleDesc of the child.
+     */
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /**
+     * The number of distinct tuples held in memory with the default memory
+     * budget
+     */
+    public final static int MAX_TUPLES = 20000;
+    /**
+     * The number of partitions the tuples that do not fit in memory are
+     * split into
+     */
+    public final static int NUM_PARTITIONS = 32;
+    private final static int PARTITION_BITS = 5;
+    // the deepest level that spills; a spill file at this level is
+    // deduplicated in memory whatever its size, as the hash has no bits left
+    private final static int MAX_LEVEL = 32 / PARTITION_BITS - 1;
+
+    private long memoryBudget;
+
+    /**
+     * Set the memory the set of distinct tuples may use. The budget is
+     * counted as the on-disk size of the tuples held in memory.
+     *
+     * @param bytes the memory budget in bytes
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @return the memory budget in bytes
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    private int maxTuples() {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / getTupleDesc().getSize()));
+    }
+
+    // spill metrics of the current or last run
+    private int spilledPartitions = 0;
+    private long spilledTuples = 0;
+    private long spilledBytes = 0;
+
+    /**
+     * @return the number of spill files written
+     */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    /**
+     * @return the number of tuples written to spill files
+     */
+    public long getSpilledTuples() {
+        return spilledTuples;
+    }
+
+    /**
+     * @return the number of bytes written to spill files
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * @return the partition of a hash at a spill level; each level uses the
+     * next PARTITION_BITS bits of the mixed hash
+     */
+    private static int partition(int hash, int level) {
+        return Integer.rotateLeft(hash * 0x9E3779B9, level * PARTITION_BITS) >>> (32 - PARTITION_BITS);
+    }
+
+    private static final int CAPACITY = TupleBatch.DEFAULT_CAPACITY;
+
+    // the distinct tuples of the current pass: through intSeen if intKey()
+    // holds, and otherwise through seen by the key of getKey for a single
+    // field or a list of them for several
+    private final IntHashTable intSeen = new IntHashTable();
+    private final Set<Object> seen = new HashSet<>();
+    transient private int numSeen = 0;
+
+    /**
+     * @return true if the tuples are looked up through intSeen
+     */
+    private boolean intKey() {
+        TupleDesc td = getTupleDesc();
+        return td.numFields() == 1 && td.getFieldType(0) == Type.INT_TYPE;
+    }
+
+    // the spill files of the current pass, and the spill files left to
+    // deduplicate with the level they are deduplicated at
+    transient private SpillFile[] files;
+    transient private Deque<SpillFile> pending;
+    transient private Deque<Integer> pendingLevels;
+    // the spill file being deduplicated, or null while the child is read
+    transient private SpillFile current;
+    transient private int level;
+    transient private boolean done;
+    // the batch fetchNext hands out rows from
+    transient private TupleBatch rowBatch = null;
+    transient private int rowPos = 0;
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        reset();
+        super.open();
+    }
+
+    private void reset() {
+        deleteSpillFiles();
+        clearSeen();
+        current = null;
+        level = 0;
+        done = false;
+        rowBatch = null;
+        spilledPartitions = 0;
+        spilledTuples = 0;
+        spilledBytes = 0;
+    }
+
+    private void clearSeen() {
+        intSeen.clear();
+        seen.clear();
+        numSeen = 0;
+    }
+
+    private void deleteSpillFiles() {
+        if (files != null) {
+            for (SpillFile f : files) {
+                if (f != null)
+                    f.delete();
+            }
+        }
+        if (pending != null) {
+            for (SpillFile f : pending)
+                f.delete();
+        }
+        if (current != null)
+            current.delete();
+        files = null;
+        current = null;
+        pending = new ArrayDeque<>();
+        pendingLevels = new ArrayDeque<>();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        deleteSpillFiles();
+        clearSeen();
+        rowBatch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        reset();
+    }
+
+    /**
+     * @return the hash key of a row: the key of its field, or a list of the
+     * keys of its fields
+     */
+    private static Object key(TupleBatch in, int row) {
+        int n = in.getTupleDesc().numFields();
+        if (n == 1)
+            return in.getKey(0, row);
+        Object[] key = new Object[n];
+        for (int i = 0; i < n; i++)
+            key[i] = in.getKey(i, row);
+        return Arrays.asList(key);
+    }
+
+    /**
+     * Keep the selected rows of a batch that were not seen before and fit in
+     * memory, spilling the new rows that do not fit.
+     */
+    private void dedup(TupleBatch in) throws DbException {
+        int max = level > MAX_LEVEL ? Integer.MAX_VALUE : maxTuples();
+        int[] sel = in.selection();
+        int kept = 0;
+        int[] ints = intKey() ? in.intColumn(0) : null;
+        for (int i = 0; i < in.numSelected(); i++) {
+            int row = sel[i];
+            boolean isNew;
+            int hash;
+            if (ints != null) {
+                hash = ints[row];
+                isNew = intSeen.get(hash) == IntHashTable.NOT_FOUND;
+                if (isNew && numSeen < max)
+                    intSeen.put(hash, numSeen);
+            } else {
+                Object key = key(in, row);
+                hash = key.hashCode();
+                isNew = !seen.contains(key);
+                if (isNew && numSeen < max)
+                    seen.add(key);
+            }
+            if (!isNew)
+                continue;
+            if (numSeen < max) {
+                numSeen++;
+                sel[kept++] = row;
+            } else {
+                spill(in, row, hash);
+            }
+        }
+        in.setNumSelected(kept);
+    }
+
+    private void spill(TupleBatch in, int row, int hash) throws DbException {
+        if (files == null)
+            files = new SpillFile[NUM_PARTITIONS];
+        int p = partition(hash, level);
+        try {
+            if (files[p] == null) {
+                files[p] = new SpillFile(getTupleDesc());
+                spilledPartitions++;
+            }
+            files[p].add(in, row);
+        } catch (IOException e) {
+            throw new DbException("failed to spill distinct tuples: " + e.getMessage());
+        }
+        spilledTuples++;
+    }
+
+    /**
+     * Set aside the spill files of a pass to be deduplicated at the next level
+     */
+    private void finishPass() {
+        if (files == null)
+            return;
+        for (int p = NUM_PARTITIONS - 1; p >= 0; p--) {
+            if (files[p] != null) {
+                spilledBytes += files[p].bytes();
+                pending.push(files[p]);
+                pendingLevels.push(level + 1);
+            }
+        }
+        files = null;
+    }
+
+    /**
+     * Returns the next batch of tuples that were not returned before.
+     *
+     * @return The next batch of distinct tuples, or null if there are no more
+     * tuples.
+     */
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        try {
+            while (!done) {
+                TupleBatch batch = current == null ? child.nextBatch() : current.nextBatch(CAPACITY);
+                if (batch != null) {
+                    dedup(batch);
+                    if (batch.numSelected() > 0)
+                        return batch;
+                    continue;
+                }
+                // the input of this pass is exhausted, so move on to the next spill file
+                finishPass();
+                if (current != null)
+                    current.delete();
+                current = pending.poll();
+                if (current == null) {
+                    done = true;
+                } else {
+                    level = pendingLevels.poll();
+                    clearSeen();
+                    current.startReading();
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            throw new DbException("failed to read spilled distinct tuples: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the next distinct tuple, or null if there are no more tuples.
+     * Tuples are handed out from the batches of nextBatch.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (rowBatch == null || rowPos == rowBatch.numSelected()) {
+            rowBatch = nextBatch();
+            rowPos = 0;
+            if (rowBatch == null)
+                return null;
+        }
+        return rowBatch.getTuple(rowBatch.selected(rowPos++));
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+
+}
@@ -0,0 +1,246 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Exchange is a gather operator: it runs each of its children on a thread of
+ * a shared worker pool and returns the batches they produce, in the order
+ * they arrive, on the calling thread. Its children are typically copies of
+ * the same pipeline (e.g. Filters over {@link MorselScan}s sharing the
+ * {@link Morsels} of a table), so that the pipeline runs in parallel.
+ * <p>
+ * Each child is opened on its worker, so that work done in open, such as
+ * building a hash table or computing partial aggregates, is done in parallel
+ * too. The workers hand their batches over through a bounded queue, so a
+ * child that runs ahead of the consumer waits rather than filling memory. An
+ * exception thrown by a child is rethrown by nextBatch.
+ */
+public class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator[] children;
+    private final TupleDesc td;
+
+    /**
+     * The number of batches each child may have waiting in the queue
+     */
+    public static final int QUEUE_BATCHES = 2;
+
+    private static final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "Exchange-worker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Constructor.
+     *
+     * @param children the producers to run in parallel; they must all have
+     *                 the same TupleDesc
+     */
+    public Exchange(OpIterator[] children) {
+        if (children.length == 0)
+            throw new IllegalArgumentException("need at least one child");
+        for (OpIterator child : children) {
+            if (!child.getTupleDesc().equals(children[0].getTupleDesc()))
+                throw new IllegalArgumentException("children must have the same TupleDesc");
+        }
+        this.children = children.clone();
+        this.td = children[0].getTupleDesc();
+    }
+
+    /**
+     * @return the number of children run in parallel
+     */
+    public int getParallelism() {
+        return children.length;
+    }
+
+    /**
+     * @return the name of this operator in query plans
+     */
+    public String getName() {
+        return "exchange(" + children.length + ")";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    // marks the end of the batches of a child
+    private static final Object END = new Object();
+
+    // an exception thrown by a child, to be rethrown by the consumer
+    private static class Failure {
+        final Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    transient private BlockingQueue<Object> queue;
+    transient private List<Future<?>> tasks;
+    transient private volatile boolean stopped = true;
+    // the number of children that have not sent END yet
+    transient private int running = 0;
+    // the batch fetchNext hands out rows from
+    transient private TupleBatch rowBatch = null;
+    transient private int rowPos = 0;
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        start();
+        super.open();
+    }
+
+    /**
+     * Start a worker for each child, which opens the child and reads it.
+     */
+    private void start() {
+        queue = new ArrayBlockingQueue<>(QUEUE_BATCHES * children.length);
+        tasks = new ArrayList<>();
+        stopped = false;
+        running = children.length;
+        rowBatch = null;
+        for (OpIterator child : children)
+            tasks.add(workers.submit(() -> produce(child)));
+    }
+
+    private void produce(OpIterator child) {
+        try {
+            child.open();
+            TupleBatch batch;
+            while (!stopped && (batch = child.nextBatch()) != null) {
+                if (batch.numSelected() > 0)
+                    put(batch);
+            }
+            put(END);
+        } catch (Throwable e) {
+            put(new Failure(e));
+        }
+    }
+
+    /**
+     * Queue an item for the consumer, giving up when the exchange is stopped
+     */
+    private void put(Object item) {
+        try {
+            while (!stopped) {
+                if (queue.offer(item, 10, TimeUnit.MILLISECONDS))
+                    return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop the workers and wait until they have returned, so that the
+     * children can be rewound or closed.
+     */
+    private void stop() {
+        if (tasks == null)
+            return;
+        stopped = true;
+        queue.clear();
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // produce() catches everything
+            }
+        }
+        tasks = null;
+        queue = null;
+        running = 0;
+    }
+
+    public void close() {
+        super.close();
+        stop();
+        for (OpIterator child : children)
+            child.close();
+        rowBatch = null;
+    }
+
+    /**
+     * Start over by closing the children and opening them again, as
+     * children that share Morsels must all start over together.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        stop();
+        for (OpIterator child : children)
+            child.close();
+        start();
+    }
+
+    /**
+     * Returns the next batch produced by any of the children.
+     *
+     * @return The next batch, or null if all children are done.
+     */
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        while (running > 0) {
+            Object item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while waiting for a worker");
+            }
+            if (item == END) {
+                running--;
+            } else if (item instanceof Failure) {
+                stop();
+                Throwable cause = ((Failure) item).cause;
+                if (cause instanceof DbException)
+                    throw (DbException) cause;
+                if (cause instanceof TransactionAbortedException)
+                    throw (TransactionAbortedException) cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new DbException("worker failed: " + cause.getMessage());
+            } else {
+                return (TupleBatch) item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the next tuple produced by any of the children, or null if all
+     * children are done. Tuples are handed out from the batches of nextBatch.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (rowBatch == null || rowPos == rowBatch.numSelected()) {
+            rowBatch = nextBatch();
+            rowPos = 0;
+            if (rowBatch == null)
+                return null;
+        }
+        return rowBatch.getTuple(rowBatch.selected(rowPos++));
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return children.clone();
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.children = children.clone();
+    }
+
+}
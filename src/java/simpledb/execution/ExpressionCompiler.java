@@ -0,0 +1,380 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.reflect.Constructor;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ExpressionCompiler turns conjunctions of predicates and join predicates
+ * into classes specialized on the types and positions of the fields they
+ * compare, so that evaluating them is a few inlined comparisons rather than
+ * a Field.compare call with a switch on the operator per predicate.
+ * <p>
+ * The source of each class is generated at plan time and compiled in memory
+ * with the compiler of the JDK (javax.tools). Classes are cached by the shape
+ * of the expression, with the constants passed to the constructor, so the
+ * same filter with other constants is compiled once. If there is no
+ * compiler (e.g. on a JRE), compilation fails or compilation is disabled,
+ * the predicates are interpreted instead.
+ */
+public class ExpressionCompiler {
+
+    /**
+     * The estimated number of tuples a scan must read before the planner
+     * compiles its predicates, as compiling a new class takes milliseconds.
+     */
+    public static final int MIN_COMPILE_TUPLES = 10000;
+
+    private static volatile boolean enabled = true;
+
+    // the constructor of the class compiled for each shape of expression,
+    // or FAILED if it could not be compiled
+    private static final Map<String, Constructor<?>> classes = new ConcurrentHashMap<>();
+    private static final Constructor<?> FAILED = FailedMarker.class.getDeclaredConstructors()[0];
+    private static int nextClass = 0;
+
+    private static class FailedMarker {
+    }
+
+    private ExpressionCompiler() {
+    }
+
+    /**
+     * Enable or disable compilation. While disabled, compile returns
+     * filters that interpret their predicates.
+     */
+    public static void setEnabled(boolean enabled) {
+        ExpressionCompiler.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The base class of compiled filters, which gives them access to the
+     * selection vector of a batch.
+     */
+    public static abstract class CompiledFilter implements TupleFilter {
+
+        public final void filter(TupleBatch batch) {
+            batch.setNumSelected(filterRows(batch, batch.selection(), batch.numSelected()));
+        }
+
+        /**
+         * Moves the rows in sel[0..n) that pass every predicate to the front
+         * of sel, in order.
+         *
+         * @return the number of rows that pass
+         */
+        protected abstract int filterRows(TupleBatch batch, int[] sel, int n);
+    }
+
+    /**
+     * The base class of compiled join predicates.
+     */
+    public static abstract class CompiledJoinPredicate {
+
+        /**
+         * @return true if the rows satisfy the join predicate, as for
+         * {@link JoinPredicate#filter(TupleBatch, int, TupleBatch, int)}
+         */
+        public abstract boolean filter(TupleBatch b1, int row1, TupleBatch b2, int row2);
+    }
+
+    // applies each predicate in turn
+    private static class InterpretedFilter implements TupleFilter {
+        private final Predicate[] predicates;
+
+        InterpretedFilter(Predicate[] predicates) {
+            this.predicates = predicates.clone();
+        }
+
+        public boolean filter(Tuple t) {
+            for (Predicate p : predicates) {
+                if (!p.filter(t))
+                    return false;
+            }
+            return true;
+        }
+
+        public void filter(TupleBatch batch) {
+            for (Predicate p : predicates) {
+                if (batch.numSelected() == 0)
+                    return;
+                p.filter(batch);
+            }
+        }
+    }
+
+    /**
+     * @return a filter that interprets the conjunction of the predicates
+     */
+    public static TupleFilter interpret(Predicate[] predicates) {
+        return new InterpretedFilter(predicates);
+    }
+
+    /**
+     * Compile the conjunction of the predicates over tuples with the
+     * specified schema.
+     *
+     * @return the compiled filter, or one that interprets the predicates if
+     * they cannot be compiled
+     */
+    public static TupleFilter compile(Predicate[] predicates, TupleDesc td) {
+        if (!enabled)
+            return interpret(predicates);
+        StringBuilder shape = new StringBuilder("filter");
+        Object[] constants = new Object[predicates.length];
+        for (int i = 0; i < predicates.length; i++) {
+            Predicate p = predicates[i];
+            Type type = td.getFieldType(p.getField());
+            if (type == Type.INT_TYPE && p.getOperand() instanceof IntField)
+                constants[i] = ((IntField) p.getOperand()).getValue();
+            else if (type == Type.STRING_TYPE && p.getOperand() instanceof StringField)
+                constants[i] = ((StringField) p.getOperand()).getValue();
+            else
+                return interpret(predicates);
+            shape.append(';').append(p.getField()).append(type == Type.INT_TYPE ? 'i' : 's')
+                    .append(p.getOp().name());
+        }
+        Object compiled = instantiate(shape.toString(), constants, name -> filterSource(name, predicates, td));
+        return compiled != null ? (TupleFilter) compiled : interpret(predicates);
+    }
+
+    /**
+     * Compile a join predicate over rows of batches with the specified
+     * schemas.
+     *
+     * @return the compiled predicate, or null if it cannot be compiled
+     */
+    public static CompiledJoinPredicate compile(JoinPredicate p, TupleDesc td1, TupleDesc td2) {
+        if (!enabled)
+            return null;
+        Type type = td1.getFieldType(p.getField1());
+        if (type != td2.getFieldType(p.getField2()))
+            return null;
+        String shape = "join;" + p.getField1() + ";" + p.getField2() + ";" + type + ";" + p.getOperator().name();
+        return (CompiledJoinPredicate) instantiate(shape, new Object[0], name -> joinSource(name, p, type));
+    }
+
+    private interface SourceGenerator {
+        String generate(String className);
+    }
+
+    /**
+     * @return an instance of the class compiled for the shape, constructed
+     * with the constants, or null if it could not be compiled
+     */
+    private static Object instantiate(String shape, Object[] constants, SourceGenerator generator) {
+        Constructor<?> constructor = classes.get(shape);
+        if (constructor == null) {
+            synchronized (ExpressionCompiler.class) {
+                constructor = classes.get(shape);
+                if (constructor == null) {
+                    constructor = compileClass(generator);
+                    classes.put(shape, constructor);
+                }
+            }
+        }
+        if (constructor == FAILED)
+            return null;
+        try {
+            return constructor.newInstance((Object) constants);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static final String PACKAGE = "simpledb.execution.generated";
+
+    /**
+     * @return the constructor taking an Object[] of the class generated by
+     * the generator, or FAILED if it could not be compiled
+     */
+    private static Constructor<?> compileClass(SourceGenerator generator) {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null)
+            return FAILED;
+        String simpleName = "Expr" + nextClass++;
+        String name = PACKAGE + "." + simpleName;
+        String source = generator.generate(simpleName);
+
+        Map<String, ByteArrayOutputStream> output = new HashMap<>();
+        JavaFileObject file = new SimpleJavaFileObject(
+                URI.create("string:///" + name.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        try (StandardJavaFileManager std = javac.getStandardFileManager(null, null, null)) {
+            JavaFileManager files = new ForwardingJavaFileManager<StandardJavaFileManager>(std) {
+                @Override
+                public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                           JavaFileObject.Kind kind, FileObject sibling) {
+                    return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/')
+                            + kind.extension), kind) {
+                        @Override
+                        public OutputStream openOutputStream() {
+                            ByteArrayOutputStream out = new ByteArrayOutputStream();
+                            output.put(className, out);
+                            return out;
+                        }
+                    };
+                }
+            };
+            List<String> options = Arrays.asList("-classpath", classPath(), "-proc:none", "-g:none");
+            Boolean ok = javac.getTask(new StringWriter(), files, new DiagnosticCollector<>(), options,
+                    null, Collections.singletonList(file)).call();
+            if (!ok || !output.containsKey(name))
+                return FAILED;
+            byte[] bytes = output.get(name).toByteArray();
+            Class<?> c = new Loader(ExpressionCompiler.class.getClassLoader()).define(name, bytes);
+            return c.getConstructor(Object[].class);
+        } catch (Exception | LinkageError e) {
+            return FAILED;
+        }
+    }
+
+    // the class path of the generated classes, which refer to simpledb classes
+    private static String classPath() {
+        String path = System.getProperty("java.class.path");
+        try {
+            String own = new File(ExpressionCompiler.class.getProtectionDomain()
+                    .getCodeSource().getLocation().toURI()).getPath();
+            path = own + File.pathSeparator + path;
+        } catch (Exception e) {
+            // use the class path of the JVM only
+        }
+        return path;
+    }
+
+    private static class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * @return the Java operator for an int comparison with the semantics of
+     * IntField.compare
+     */
+    private static String intOperator(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return "==";
+            case NOT_EQUALS:
+                return "!=";
+            case GREATER_THAN:
+                return ">";
+            case GREATER_THAN_OR_EQ:
+                return ">=";
+            case LESS_THAN:
+                return "<";
+            default:
+                return "<=";
+        }
+    }
+
+    /**
+     * @return a comparison of two expressions with the semantics of
+     * Field.compare for fields of the specified type
+     */
+    private static String comparison(String left, Predicate.Op op, String right, Type type) {
+        if (type == Type.INT_TYPE)
+            return left + " " + intOperator(op) + " " + right;
+        if (op == Predicate.Op.LIKE)
+            return left + ".contains(" + right + ")";
+        return left + ".compareTo(" + right + ") " + intOperator(op) + " 0";
+    }
+
+    private static String filterSource(String className, Predicate[] predicates, TupleDesc td) {
+        StringBuilder fields = new StringBuilder();
+        StringBuilder init = new StringBuilder();
+        StringBuilder tupleTest = new StringBuilder();
+        StringBuilder columns = new StringBuilder();
+        StringBuilder rowTest = new StringBuilder();
+        Set<Integer> declared = new HashSet<>();
+        for (int i = 0; i < predicates.length; i++) {
+            Predicate p = predicates[i];
+            int f = p.getField();
+            Type type = td.getFieldType(f);
+            String javaType = type == Type.INT_TYPE ? "int" : "String";
+            fields.append("    private final ").append(javaType).append(" k").append(i).append(";\n");
+            init.append("        k").append(i).append(" = (")
+                    .append(type == Type.INT_TYPE ? "Integer" : "String").append(") k[").append(i).append("];\n");
+            String value = type == Type.INT_TYPE
+                    ? "((IntField) t.getField(" + f + ")).getValue()"
+                    : "((StringField) t.getField(" + f + ")).getValue()";
+            if (i > 0) {
+                tupleTest.append("\n            && ");
+                rowTest.append("\n                    && ");
+            }
+            tupleTest.append(comparison(value, p.getOp(), "k" + i, type));
+            if (declared.add(f)) {
+                columns.append("        final ").append(javaType).append("[] c").append(f).append(" = batch.")
+                        .append(type == Type.INT_TYPE ? "intColumn(" : "stringColumn(").append(f).append(");\n");
+            }
+            rowTest.append(comparison("c" + f + "[r]", p.getOp(), "k" + i, type));
+        }
+        if (predicates.length == 0) {
+            tupleTest.append("true");
+            rowTest.append("true");
+        }
+        return "package " + PACKAGE + ";\n"
+                + "import simpledb.execution.*;\n"
+                + "import simpledb.storage.*;\n"
+                + "public final class " + className + " extends ExpressionCompiler.CompiledFilter {\n"
+                + fields
+                + "    public " + className + "(Object[] k) {\n"
+                + init
+                + "    }\n"
+                + "    public boolean filter(Tuple t) {\n"
+                + "        return " + tupleTest + ";\n"
+                + "    }\n"
+                + "    protected int filterRows(TupleBatch batch, int[] sel, int n) {\n"
+                + columns
+                + "        int kept = 0;\n"
+                + "        for (int i = 0; i < n; i++) {\n"
+                + "            final int r = sel[i];\n"
+                + "            if (" + rowTest + ")\n"
+                + "                sel[kept++] = r;\n"
+                + "        }\n"
+                + "        return kept;\n"
+                + "    }\n"
+                + "}\n";
+    }
+
+    private static String joinSource(String className, JoinPredicate p, Type type) {
+        String column = type == Type.INT_TYPE ? "intColumn(" : "stringColumn(";
+        return "package " + PACKAGE + ";\n"
+                + "import simpledb.execution.*;\n"
+                + "public final class " + className + " extends ExpressionCompiler.CompiledJoinPredicate {\n"
+                + "    public " + className + "(Object[] k) {\n"
+                + "    }\n"
+                + "    public boolean filter(TupleBatch b1, int row1, TupleBatch b2, int row2) {\n"
+                + "        return " + comparison("b1." + column + p.getField1() + ")[row1]", p.getOperator(),
+                "b2." + column + p.getField2() + ")[row2]", type) + ";\n"
+                + "    }\n"
+                + "}\n";
+    }
+}
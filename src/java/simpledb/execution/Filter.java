@@ -25,6 +25,8 @@ public class Filter extends Operator {
      */
     private Predicate p;
     private OpIterator child;
+    // applies the predicate if compilePredicate compiled it
+    private transient TupleFilter compiled;
     public Filter(Predicate p, OpIterator child) {
         // some code goes here
         this.p=p;
@@ -41,6 +43,14 @@ public class Filter extends Operator {
         return child.getTupleDesc();
     }
 
+    /**
+     * Compile the predicate with {@link ExpressionCompiler}, for filters
+     * over enough tuples to be worth it.
+     */
+    public void compilePredicate() {
+        compiled = ExpressionCompiler.compile(new Predicate[]{p}, child.getTupleDesc());
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
@@ -73,7 +83,28 @@ public class Filter extends Operator {
         // some code goes here
         while(child.hasNext()){
             Tuple t=child.next();
-            if(p.filter(t)) return t;
+            if(compiled != null ? compiled.filter(t) : p.filter(t)) return t;
+        }
+        return null;
+    }
+
+    /**
+     * Reads batches from the child and applies the predicate to their
+     * selection vectors, skipping batches in which no row passes.
+     *
+     * @return The next batch with a row that passes the filter, or null if
+     *         there are no more tuples
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            if (compiled != null)
+                compiled.filter(batch);
+            else
+                p.filter(batch);
+            if (batch.numSelected() > 0)
+                return batch;
         }
         return null;
     }
@@ -0,0 +1,603 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * HashAggregate computes any number of aggregates (COUNT, SUM, AVG, MIN, MAX)
+ * over a group key of zero or more fields in one pass over its child.
+ * SUM_COUNT and SC_AVG split an AVG in two, so that partial aggregates
+ * computed in parallel can be combined (see {@link Exchange}).
+ * <p>
+ * Groups are numbered in order of appearance through a hash table, and the
+ * running count, sum, min and max of each group are kept in primitive arrays
+ * indexed by that number, so a row is merged without allocating a Tuple or
+ * Field. When a single INT_TYPE field is grouped on, groups are numbered
+ * through an {@link IntHashTable}.
+ * <p>
+ * The number of groups held in memory is bounded by a memory budget. Once it
+ * is reached, rows of groups already in memory are still merged, but rows of
+ * new groups are written to one of NUM_PARTITIONS spill files by the hash of
+ * their group key. After the child is read, the groups in memory are returned
+ * and each spill file is aggregated in turn the same way, spilling again on
+ * the next bits of the hash if it still has too many groups. Only the group
+ * and aggregate fields of the child are written to spill files.
+ */
+public class HashAggregate extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final int[] gfields;
+    private final int[] afields;
+    private final Aggregator.Op[] aops;
+    // the group fields followed by the aggregate fields of the child, which
+    // are the fields merged and spilled
+    private final TupleDesc inTD;
+    private final int[] inFields;
+    // the field of inTD each aggregate reads, and the field of td it returns
+    private final int[] inPos;
+    private final int[] outPos;
+    private final TupleDesc td;
+
+    /**
+     * Constructor.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param gfields The fields of the child to group by, which may be empty
+     * @param afields The fields of the child to compute aggregates over
+     * @param aops    The aggregate to compute over each of afields; only
+     *                COUNT is supported over STRING_TYPE fields. SUM_COUNT
+     *                returns two fields, the sum and the count. SC_AVG reads
+     *                a sum from its field and a count from the next field,
+     *                as returned by SUM_COUNT, and returns the total sum
+     *                divided by the total count.
+     */
+    public HashAggregate(OpIterator child, int[] gfields, int[] afields, Aggregator.Op[] aops) {
+        if (afields.length != aops.length)
+            throw new IllegalArgumentException("need one aggregate operator for each aggregate field");
+        if (gfields.length + afields.length == 0)
+            throw new IllegalArgumentException("need a group field or an aggregate");
+        TupleDesc childTD = child.getTupleDesc();
+        for (int i = 0; i < aops.length; i++) {
+            boolean ints = childTD.getFieldType(afields[i]) == Type.INT_TYPE;
+            if (aops[i] == Aggregator.Op.SC_AVG)
+                ints = ints && afields[i] + 1 < childTD.numFields()
+                        && childTD.getFieldType(afields[i] + 1) == Type.INT_TYPE;
+            if (aops[i] != Aggregator.Op.COUNT && !ints)
+                throw new IllegalArgumentException("unsupported aggregate " + aops[i] + " over "
+                        + childTD.getFieldType(afields[i]));
+        }
+        this.child = child;
+        this.gfields = gfields.clone();
+        this.afields = afields.clone();
+        this.aops = aops.clone();
+
+        int m = afields.length;
+        List<Integer> in = new ArrayList<>();
+        List<Type> types = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (int gfield : gfields) {
+            in.add(gfield);
+            types.add(childTD.getFieldType(gfield));
+            names.add(childTD.getFieldName(gfield));
+        }
+        inPos = new int[m];
+        outPos = new int[m];
+        for (int j = 0; j < m; j++) {
+            String name = childTD.getFieldName(afields[j]);
+            inPos[j] = in.size();
+            in.add(afields[j]);
+            if (aops[j] == Aggregator.Op.SC_AVG)
+                in.add(afields[j] + 1);
+            outPos[j] = types.size();
+            types.add(Type.INT_TYPE);
+            if (aops[j] == Aggregator.Op.SUM_COUNT) {
+                names.add(Aggregator.Op.SUM + "(" + name + ")");
+                types.add(Type.INT_TYPE);
+                names.add(Aggregator.Op.COUNT + "(" + name + ")");
+            } else if (aops[j] == Aggregator.Op.SC_AVG) {
+                names.add(Aggregator.Op.AVG + "(" + name + ")");
+            } else {
+                names.add(aops[j] + "(" + name + ")");
+            }
+        }
+        inFields = new int[in.size()];
+        Type[] inTypes = new Type[in.size()];
+        String[] inNames = new String[in.size()];
+        for (int i = 0; i < inFields.length; i++) {
+            inFields[i] = in.get(i);
+            inTypes[i] = childTD.getFieldType(inFields[i]);
+            inNames[i] = childTD.getFieldName(inFields[i]);
+        }
+        inTD = new TupleDesc(inTypes, inNames);
+        td = new TupleDesc(types.toArray(new Type[0]), names.toArray(new String[0]));
+        memoryBudget = (long) MAX_GROUPS * inTD.getSize();
+    }
+
+    /**
+     * @return the group fields of the <b>INPUT</b> tuples
+     */
+    public int[] groupFields() {
+        return gfields.clone();
+    }
+
+    /**
+     * @return the aggregate fields of the <b>INPUT</b> tuples
+     */
+    public int[] aggregateFields() {
+        return afields.clone();
+    }
+
+    /**
+     * @return the aggregate operators, one for each aggregate field
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
+    }
+
+    /**
+     * Returns the TupleDesc of this HashAggregate: the group fields, with
+     * their names in the child, followed by an INT_TYPE field for each
+     * aggregate, named "op(field name)", or two for SUM_COUNT.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * The number of groups held in memory with the default memory budget
+     */
+    public final static int MAX_GROUPS = 20000;
+    /**
+     * The number of partitions the rows of groups that do not fit in memory
+     * are split into
+     */
+    public final static int NUM_PARTITIONS = 32;
+    private final static int PARTITION_BITS = 5;
+    // the deepest level that spills; a spill file at this level is aggregated
+    // in memory whatever its number of groups, as the hash has no bits left
+    private final static int MAX_LEVEL = 32 / PARTITION_BITS - 1;
+
+    private long memoryBudget;
+
+    /**
+     * Set the memory the groups may use. The budget is counted as the on-disk
+     * size of the group and aggregate fields of each group held in memory.
+     *
+     * @param bytes the memory budget in bytes
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @return the memory budget in bytes
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    private int maxGroups() {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / inTD.getSize()));
+    }
+
+    // spill metrics of the current or last run
+    private int spilledPartitions = 0;
+    private long spilledTuples = 0;
+    private long spilledBytes = 0;
+
+    /**
+     * @return the number of spill files written
+     */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    /**
+     * @return the number of rows written to spill files
+     */
+    public long getSpilledTuples() {
+        return spilledTuples;
+    }
+
+    /**
+     * @return the number of bytes written to spill files
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * @return the partition of a hash at a spill level; each level uses the
+     * next PARTITION_BITS bits of the mixed hash
+     */
+    private static int partition(int hash, int level) {
+        return Integer.rotateLeft(hash * 0x9E3779B9, level * PARTITION_BITS) >>> (32 - PARTITION_BITS);
+    }
+
+    private static final int INITIAL_GROUPS = 16;
+    private static final int CAPACITY = TupleBatch.DEFAULT_CAPACITY;
+
+    // the number of each group in memory, by its key: through intGroups if
+    // intKey() holds, and otherwise through groups by the key of getKey for a
+    // single group field or a list of them for several
+    private final IntHashTable intGroups = new IntHashTable();
+    private final Map<Object, Integer> groups = new HashMap<>();
+    // the group key and running aggregates of each group in memory, indexed
+    // by its number; keyInts[i] holds group field i if it is INT_TYPE, and
+    // keyStrings[i] otherwise. sums, mins and maxs are null for aggregates
+    // over STRING_TYPE fields, and countSums, the total of the counts read
+    // by SC_AVG, is null for the other aggregates.
+    transient private int numGroups = 0;
+    transient private int[][] keyInts;
+    transient private String[][] keyStrings;
+    transient private long[] counts;
+    transient private long[][] sums;
+    transient private long[][] countSums;
+    transient private int[][] mins;
+    transient private int[][] maxs;
+
+    /**
+     * @return true if the groups are numbered through intGroups
+     */
+    private boolean intKey() {
+        return gfields.length == 1 && inTD.getFieldType(0) == Type.INT_TYPE;
+    }
+
+    // the spill files of the current pass, and the spill files left to
+    // aggregate with the level they are aggregated at
+    transient private SpillFile[] files;
+    transient private Deque<SpillFile> pending;
+    transient private Deque<Integer> pendingLevels;
+    // the next group in memory to return
+    transient private int emitPos = 0;
+    // the batch fetchNext hands out rows from
+    transient private TupleBatch rowBatch = null;
+    transient private int rowPos = 0;
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        spilledPartitions = 0;
+        spilledTuples = 0;
+        spilledBytes = 0;
+        aggregateChild();
+        super.open();
+    }
+
+    private void clearGroups() {
+        intGroups.clear();
+        groups.clear();
+        numGroups = 0;
+        int k = gfields.length, m = afields.length;
+        keyInts = new int[k][];
+        keyStrings = new String[k][];
+        for (int i = 0; i < k; i++) {
+            if (inTD.getFieldType(i) == Type.INT_TYPE)
+                keyInts[i] = new int[INITIAL_GROUPS];
+            else
+                keyStrings[i] = new String[INITIAL_GROUPS];
+        }
+        counts = new long[INITIAL_GROUPS];
+        sums = new long[m][];
+        countSums = new long[m][];
+        mins = new int[m][];
+        maxs = new int[m][];
+        for (int j = 0; j < m; j++) {
+            if (inTD.getFieldType(inPos[j]) == Type.INT_TYPE) {
+                sums[j] = new long[INITIAL_GROUPS];
+                mins[j] = new int[INITIAL_GROUPS];
+                maxs[j] = new int[INITIAL_GROUPS];
+            }
+            if (aops[j] == Aggregator.Op.SC_AVG)
+                countSums[j] = new long[INITIAL_GROUPS];
+        }
+        emitPos = 0;
+    }
+
+    private void deleteSpillFiles() {
+        if (files != null) {
+            for (SpillFile f : files) {
+                if (f != null)
+                    f.delete();
+            }
+        }
+        if (pending != null) {
+            for (SpillFile f : pending)
+                f.delete();
+        }
+        files = null;
+        pending = new ArrayDeque<>();
+        pendingLevels = new ArrayDeque<>();
+    }
+
+    /**
+     * Read the child, aggregating the groups that fit in memory and spilling
+     * the rows of the others.
+     */
+    private void aggregateChild() throws DbException, TransactionAbortedException {
+        deleteSpillFiles();
+        clearGroups();
+        rowBatch = null;
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null)
+            merge(batch.project(inTD, inFields), 0);
+        finishPass(0);
+    }
+
+    /**
+     * Aggregate the rows of a spill file the same way.
+     */
+    private void aggregateFile(SpillFile f, int level) throws DbException {
+        clearGroups();
+        try {
+            f.startReading();
+            TupleBatch batch;
+            while ((batch = f.nextBatch(CAPACITY)) != null)
+                merge(batch, level);
+        } catch (IOException e) {
+            throw new DbException("failed to read spilled groups: " + e.getMessage());
+        } finally {
+            f.delete();
+        }
+        finishPass(level);
+    }
+
+    /**
+     * Set aside the spill files of a pass to be aggregated at the next level
+     */
+    private void finishPass(int level) {
+        if (files == null)
+            return;
+        for (int p = NUM_PARTITIONS - 1; p >= 0; p--) {
+            if (files[p] != null) {
+                spilledBytes += files[p].bytes();
+                pending.push(files[p]);
+                pendingLevels.push(level + 1);
+            }
+        }
+        files = null;
+    }
+
+    /**
+     * Merge the selected rows of a batch whose fields are the group fields
+     * followed by the aggregate fields
+     */
+    private void merge(TupleBatch in, int level) throws DbException {
+        int n = in.numSelected();
+        if (gfields.length == 0) {
+            if (n > 0 && numGroups == 0)
+                addGroup(in, in.selected(0));
+            for (int i = 0; i < n; i++)
+                update(0, in, in.selected(i));
+            return;
+        }
+        int max = level > MAX_LEVEL ? Integer.MAX_VALUE : maxGroups();
+        if (intKey()) {
+            int[] keys = in.intColumn(0);
+            for (int i = 0; i < n; i++) {
+                int row = in.selected(i);
+                int g = intGroups.get(keys[row]);
+                if (g == IntHashTable.NOT_FOUND) {
+                    if (numGroups >= max) {
+                        spill(in, row, keys[row], level);
+                        continue;
+                    }
+                    g = addGroup(in, row);
+                    intGroups.put(keys[row], g);
+                }
+                update(g, in, row);
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                int row = in.selected(i);
+                Object key = key(in, row);
+                Integer g = groups.get(key);
+                if (g == null) {
+                    if (numGroups >= max) {
+                        spill(in, row, key.hashCode(), level);
+                        continue;
+                    }
+                    g = addGroup(in, row);
+                    groups.put(key, g);
+                }
+                update(g, in, row);
+            }
+        }
+    }
+
+    /**
+     * @return the hash key of the group of a row: the key of its group field,
+     * or a list of the keys of its group fields
+     */
+    private Object key(TupleBatch in, int row) {
+        if (gfields.length == 1)
+            return in.getKey(0, row);
+        Object[] key = new Object[gfields.length];
+        for (int i = 0; i < key.length; i++)
+            key[i] = in.getKey(i, row);
+        return Arrays.asList(key);
+    }
+
+    private void spill(TupleBatch in, int row, int hash, int level) throws DbException {
+        if (files == null)
+            files = new SpillFile[NUM_PARTITIONS];
+        int p = partition(hash, level);
+        try {
+            if (files[p] == null) {
+                files[p] = new SpillFile(inTD);
+                spilledPartitions++;
+            }
+            files[p].add(in, row);
+        } catch (IOException e) {
+            throw new DbException("failed to spill groups: " + e.getMessage());
+        }
+        spilledTuples++;
+    }
+
+    /**
+     * @return the number of a new group with the key of a row, growing the
+     * state arrays if needed
+     */
+    private int addGroup(TupleBatch in, int row) {
+        if (numGroups == counts.length) {
+            int n = 2 * counts.length;
+            for (int i = 0; i < gfields.length; i++) {
+                if (keyInts[i] != null)
+                    keyInts[i] = Arrays.copyOf(keyInts[i], n);
+                else
+                    keyStrings[i] = Arrays.copyOf(keyStrings[i], n);
+            }
+            counts = Arrays.copyOf(counts, n);
+            for (int j = 0; j < afields.length; j++) {
+                if (sums[j] != null) {
+                    sums[j] = Arrays.copyOf(sums[j], n);
+                    mins[j] = Arrays.copyOf(mins[j], n);
+                    maxs[j] = Arrays.copyOf(maxs[j], n);
+                }
+                if (countSums[j] != null)
+                    countSums[j] = Arrays.copyOf(countSums[j], n);
+            }
+        }
+        int g = numGroups++;
+        for (int i = 0; i < gfields.length; i++) {
+            if (keyInts[i] != null)
+                keyInts[i][g] = in.getInt(i, row);
+            else
+                keyStrings[i][g] = in.getString(i, row);
+        }
+        for (int j = 0; j < afields.length; j++) {
+            if (sums[j] != null) {
+                mins[j][g] = Integer.MAX_VALUE;
+                maxs[j][g] = Integer.MIN_VALUE;
+            }
+        }
+        return g;
+    }
+
+    private void update(int g, TupleBatch in, int row) {
+        counts[g]++;
+        for (int j = 0; j < afields.length; j++) {
+            if (sums[j] == null)
+                continue;
+            if (countSums[j] != null)
+                countSums[j][g] += in.intColumn(inPos[j] + 1)[row];
+            int val = in.intColumn(inPos[j])[row];
+            sums[j][g] += val;
+            if (val < mins[j][g])
+                mins[j][g] = val;
+            if (val > maxs[j][g])
+                maxs[j][g] = val;
+        }
+    }
+
+    private int aggregateValue(int j, int g) {
+        switch (aops[j]) {
+            case COUNT:
+                return (int) counts[g];
+            case SUM:
+                return (int) sums[j][g];
+            case AVG:
+                return (int) (sums[j][g] / counts[g]);
+            case MIN:
+                return mins[j][g];
+            case MAX:
+                return maxs[j][g];
+            case SC_AVG:
+                return (int) (sums[j][g] / countSums[j][g]);
+        }
+        throw new UnsupportedOperationException("unsupported aggregate operator " + aops[j]);
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        deleteSpillFiles();
+        clearGroups();
+        rowBatch = null;
+    }
+
+    /**
+     * Rewind to the first group. The groups are returned again from memory
+     * if nothing was spilled, and the child is aggregated again otherwise.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (spilledPartitions == 0) {
+            emitPos = 0;
+            rowBatch = null;
+            return;
+        }
+        child.rewind();
+        spilledPartitions = 0;
+        spilledTuples = 0;
+        spilledBytes = 0;
+        aggregateChild();
+    }
+
+    /**
+     * Returns the next batch of groups: the group fields of each group,
+     * followed by its aggregates.
+     *
+     * @return The next batch of groups, or null if there are no more groups.
+     */
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        while (emitPos == numGroups) {
+            if (pending == null || pending.isEmpty())
+                return null;
+            aggregateFile(pending.pop(), pendingLevels.pop());
+        }
+        int n = Math.min(CAPACITY, numGroups - emitPos);
+        TupleBatch out = new TupleBatch(td, n);
+        int k = gfields.length;
+        for (int r = 0; r < n; r++, emitPos++) {
+            int row = out.addEmptyRow();
+            for (int i = 0; i < k; i++) {
+                if (keyInts[i] != null)
+                    out.intColumn(i)[row] = keyInts[i][emitPos];
+                else
+                    out.stringColumn(i)[row] = keyStrings[i][emitPos];
+            }
+            for (int j = 0; j < afields.length; j++) {
+                if (aops[j] == Aggregator.Op.SUM_COUNT) {
+                    out.intColumn(outPos[j])[row] = (int) sums[j][emitPos];
+                    out.intColumn(outPos[j] + 1)[row] = (int) counts[emitPos];
+                } else {
+                    out.intColumn(outPos[j])[row] = aggregateValue(j, emitPos);
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Returns the next group, or null if there are no more groups. Tuples are
+     * handed out from the batches of nextBatch.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (rowBatch == null || rowPos == rowBatch.numSelected()) {
+            rowBatch = nextBatch();
+            rowPos = 0;
+            if (rowBatch == null)
+                return null;
+        }
+        return rowBatch.getTuple(rowBatch.selected(rowPos++));
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+
+}
@@ -2,13 +2,30 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.common.Type;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements an equality join with a hybrid hash
+ * join. The tuples of child1 (the build side) are loaded into an in-memory
+ * hash table that child2 (the probe side) is probed against.
+ * <p>
+ * If the build side does not fit in the memory budget, both sides are split
+ * into NUM_PARTITIONS partitions by the hash of the join key. As many
+ * partitions of the build side as fit stay in memory and are joined while
+ * child2 is read; the other partitions of both sides are written to spill
+ * files, and each pair is joined afterwards. Each child is therefore read once
+ * and its spilled tuples once more, unless a single partition does not fit in
+ * memory, in which case that partition is joined in memory-sized chunks.
+ * <p>
+ * Once the build side has been read, a {@link BloomFilter} of its join keys
+ * is handed to the {@link RuntimeFilter}s added with addRuntimeFilter, so
+ * that scans of the probe side drop tuples that cannot match before they are
+ * copied and passed up to the join.
  */
 public class HashEquiJoin extends Operator {
 
@@ -16,13 +33,11 @@ public class HashEquiJoin extends Operator {
     private final JoinPredicate pred;
     private OpIterator child1, child2;
     private final TupleDesc comboTD;
-    transient private Tuple t1 = null;
-    transient private Tuple t2 = null;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -35,6 +50,7 @@ public class HashEquiJoin extends Operator {
         this.child1 = child1;
         this.child2 = child2;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        memoryBudget = (long) MAP_SIZE * child1.getTupleDesc().getSize();
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -44,7 +60,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -54,112 +70,484 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
-    final Map<Object, List<Tuple>> map = new HashMap<>();
+
+    /**
+     * The number of build tuples held in memory with the default memory budget
+     */
     public final static int MAP_SIZE = 20000;
+    /**
+     * The number of partitions the inputs are split into when the build side
+     * does not fit in memory
+     */
+    public final static int NUM_PARTITIONS = 32;
+    private final static int PARTITION_BITS = 5;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
-        }
-        return cnt > 0;
+    private long memoryBudget;
+
+    /**
+     * Set the memory the hash table may use. The budget is counted as the
+     * on-disk size of the build tuples held in memory.
+     *
+     * @param bytes the memory budget in bytes
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @return the memory budget in bytes
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
 
+    private int maxBuildTuples() {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / child1.getTupleDesc().getSize()));
     }
 
+    // spill metrics of the current or last run
+    private int spilledPartitions = 0;
+    private long spilledBuildTuples = 0;
+    private long spilledProbeTuples = 0;
+    private long spilledBytes = 0;
+
+    /**
+     * @return the number of partitions written to spill files
+     */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    /**
+     * @return the number of tuples of child1 written to spill files
+     */
+    public long getSpilledBuildTuples() {
+        return spilledBuildTuples;
+    }
+
+    /**
+     * @return the number of tuples of child2 written to spill files
+     */
+    public long getSpilledProbeTuples() {
+        return spilledProbeTuples;
+    }
+
+    /**
+     * @return the number of bytes written to spill files
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    // the filters the keys of the build side are passed to
+    private final List<RuntimeFilter> runtimeFilters = new ArrayList<>();
+    // the estimated number of tuples of child1, or -1 if not known
+    private int buildEstimate = -1;
+
+    /**
+     * Set the estimated number of tuples of child1, which the Bloom filter
+     * passed to the runtime filters is sized for. Without an estimate, it is
+     * sized for the tuples that fit in the memory budget.
+     */
+    public void setBuildEstimate(int tuples) {
+        this.buildEstimate = tuples;
+    }
+
+    /**
+     * Pass a Bloom filter of the join keys of child1 to a filter on the join
+     * field of a scan that child2 reads, each time child1 has been read.
+     */
+    public void addRuntimeFilter(RuntimeFilter filter) {
+        runtimeFilters.add(filter);
+    }
+
+    /**
+     * @return the filters the join keys of child1 are passed to
+     */
+    public List<RuntimeFilter> getRuntimeFilters() {
+        return Collections.unmodifiableList(runtimeFilters);
+    }
+
+    private static int partition(int hash) {
+        return (hash * 0x9E3779B9) >>> (32 - PARTITION_BITS);
+    }
+
+    /**
+     * @return the partition of the join key in a row of a batch. The hash of
+     * an int key is the key itself, as for Integer.
+     */
+    private int partition(TupleBatch batch, int field, int row) {
+        if (intKeys)
+            return partition(batch.intColumn(field)[row]);
+        return partition(batch.getKey(field, row).hashCode());
+    }
+
+    // the in-memory hash table, holding the build tuples of the resident
+    // partitions, of a group of spilled partitions, or of a chunk of one
+    private static final int CAPACITY = JoinHashTable.CAPACITY;
+    transient private JoinHashTable table;
+    transient private boolean intKeys;
+
+    private void clearTable() {
+        if (table != null)
+            table.clear();
+    }
+
+    private enum Phase { BUILD, PROBE, SPILLED, DONE }
+
+    transient private Phase phase = Phase.BUILD;
+    // set once the build side has overflowed the memory budget
+    transient private boolean partitioned = false;
+    transient private boolean[] resident;
+    transient private SpillFile[] buildFiles;
+    transient private SpillFile[] probeFiles;
+    // the spilled partitions that remain to be joined, in groups that fit in memory
+    transient private Deque<List<Integer>> groups;
+    transient private List<Integer> group;
+    transient private int groupPos;
+
+    transient private TupleBatch probeBatch = null;
+    transient private int probePos = 0;
+    transient private int probeEntry = -1;
+    // the batch fetchNext hands out rows from
+    transient private TupleBatch rowBatch = null;
+    transient private int rowPos = 0;
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        intKeys = child1.getTupleDesc().getFieldType(pred.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(pred.getField2()) == Type.INT_TYPE;
+        table = new JoinHashTable(child1.getTupleDesc(), pred.getField1(), intKeys);
+        reset();
+        resetMetrics();
         super.open();
     }
 
+    private void reset() {
+        clearTable();
+        deleteSpillFiles();
+        phase = Phase.BUILD;
+        partitioned = false;
+        probeBatch = null;
+        probeEntry = -1;
+        rowBatch = null;
+        for (RuntimeFilter f : runtimeFilters)
+            f.set(null);
+    }
+
+    private void resetMetrics() {
+        spilledPartitions = 0;
+        spilledBuildTuples = 0;
+        spilledProbeTuples = 0;
+        spilledBytes = 0;
+    }
+
+    private void deleteSpillFiles() {
+        for (SpillFile[] files : new SpillFile[][]{buildFiles, probeFiles}) {
+            if (files != null) {
+                for (SpillFile f : files) {
+                    if (f != null)
+                        f.delete();
+                }
+            }
+        }
+        buildFiles = null;
+        probeFiles = null;
+    }
+
     public void close() {
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        reset();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        reset();
+        resetMetrics();
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
-     * Returns the next tuple generated by the join, or null if there are no
-     * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
-     * <p>
-     * Note that the tuples returned from this particular implementation of Join
-     * are simply the concatenation of joining tuples from the left and right
-     * relation. Therefore, there will be two copies of the join attribute in
-     * the results. (Removing such duplicate columns can be done with an
-     * additional projection operator if needed.)
-     * <p>
-     * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
-     * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
-     * @return The next matching tuple.
-     * @see JoinPredicate#filter
+     * Read child1 into the hash table, partitioning it if it overflows the
+     * memory budget.
      */
-    private Tuple processList() {
-        t1 = listIt.next();
+    private void build() throws DbException, TransactionAbortedException, IOException {
+        int max = maxBuildTuples();
+        // the keys are added to the filter for the runtime filters as they
+        // are read, so that it does not grow with the build side
+        BloomFilter bloom = runtimeFilters.isEmpty() ? null
+                : new BloomFilter(buildEstimate >= 0 ? buildEstimate : max);
+        TupleBatch batch;
+        while ((batch = child1.nextBatch()) != null) {
+            for (int i = 0; i < batch.numSelected(); i++) {
+                int row = batch.selected(i);
+                if (bloom != null) {
+                    int[] ints = batch.intColumn(pred.getField1());
+                    bloom.add(ints != null ? BloomFilter.hash(ints[row])
+                            : BloomFilter.hash(batch.getString(pred.getField1(), row)));
+                }
+                if (partitioned) {
+                    int p = partition(batch, pred.getField1(), row);
+                    if (!resident[p]) {
+                        spill(buildFiles, p, batch, row);
+                        spilledBuildTuples++;
+                        continue;
+                    }
+                }
+                table.insert(batch, row);
+                if (table.size() > max)
+                    evict(max);
+            }
+        }
 
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
+        if (partitioned) {
+            // bring back as many spilled partitions as fit
+            for (int p = 0; p < NUM_PARTITIONS; p++) {
+                if (!resident[p] && buildFiles[p] != null && table.size() + buildFiles[p].size() <= max) {
+                    buildFiles[p].startReading();
+                    load(buildFiles[p], Integer.MAX_VALUE);
+                    buildFiles[p].delete();
+                    buildFiles[p] = null;
+                    resident[p] = true;
+                }
+            }
+        }
 
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
+        if (bloom != null) {
+            for (RuntimeFilter f : runtimeFilters)
+                f.set(bloom);
+        }
+    }
 
+    private void spill(SpillFile[] files, int p, TupleBatch batch, int row) throws IOException {
+        if (files[p] == null)
+            files[p] = new SpillFile(batch.getTupleDesc());
+        files[p].add(batch, row);
     }
 
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
+    /**
+     * Move partitions from the hash table to spill files until it holds at
+     * most half of the budget, to leave room for the partitions that stay.
+     */
+    private void evict(int max) throws IOException {
+        if (!partitioned) {
+            partitioned = true;
+            resident = new boolean[NUM_PARTITIONS];
+            Arrays.fill(resident, true);
+            buildFiles = new SpillFile[NUM_PARTITIONS];
+            probeFiles = new SpillFile[NUM_PARTITIONS];
         }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
+        int[] counts = new int[NUM_PARTITIONS];
+        for (int i = 0; i < table.size(); i++)
+            counts[partition(table.batch(i), pred.getField1(), table.row(i))]++;
+        // keep the lowest numbered partitions
+        int kept = 0;
+        for (int p = 0; p < NUM_PARTITIONS; p++) {
+            if (resident[p] && kept + counts[p] > max / 2)
+                resident[p] = false;
+            if (resident[p])
+                kept += counts[p];
+        }
 
-            return processList();
+        JoinHashTable old = table;
+        table = new JoinHashTable(child1.getTupleDesc(), pred.getField1(), intKeys);
+        for (int i = 0; i < old.size(); i++) {
+            TupleBatch batch = old.batch(i);
+            int row = old.row(i);
+            int p = partition(batch, pred.getField1(), row);
+            if (resident[p]) {
+                table.insert(batch, row);
+            } else {
+                spill(buildFiles, p, batch, row);
+                spilledBuildTuples++;
+            }
+        }
+    }
 
+    /**
+     * Load up to max tuples from the read position of a spill file into the
+     * hash table
+     */
+    private void load(SpillFile f, int max) throws IOException {
+        int loaded = 0;
+        TupleBatch batch;
+        while (loaded < max && (batch = f.nextBatch(Math.min(CAPACITY, max - loaded))) != null) {
+            for (int i = 0; i < batch.numSelected(); i++)
+                table.insert(batch, batch.selected(i));
+            loaded += batch.numSelected();
         }
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    /**
+     * @return the next batch to probe the hash table with, either from child2
+     * or from the probe side spill files of the current group
+     */
+    private TupleBatch nextProbeBatch() throws DbException, TransactionAbortedException, IOException {
+        if (phase == Phase.PROBE) {
+            TupleBatch batch;
+            while ((batch = child2.nextBatch()) != null) {
+                if (!partitioned)
+                    return batch;
+                // set aside the tuples of spilled partitions
+                int[] sel = batch.selection();
+                int kept = 0;
+                for (int i = 0; i < batch.numSelected(); i++) {
+                    int row = sel[i];
+                    int p = partition(batch, pred.getField2(), row);
+                    if (resident[p]) {
+                        sel[kept++] = row;
+                    } else if (buildFiles[p] != null) {
+                        spill(probeFiles, p, batch, row);
+                        spilledProbeTuples++;
+                    }
+                }
+                batch.setNumSelected(kept);
+                if (kept > 0)
+                    return batch;
+            }
+            return null;
         }
 
+        while (groupPos < group.size()) {
+            TupleBatch batch = probeFiles[group.get(groupPos)].nextBatch(CAPACITY);
+            if (batch != null)
+                return batch;
+            if (++groupPos < group.size())
+                probeFiles[group.get(groupPos)].startReading();
+        }
         return null;
     }
 
+    /**
+     * Move on once the current probe input is exhausted: from child2 to the
+     * spilled partitions, and from one chunk or group of partitions to the next.
+     *
+     * @return false if the join is done
+     */
+    private boolean advance() throws IOException {
+        if (phase == Phase.PROBE) {
+            if (!partitioned)
+                return false;
+            clearTable();
+            groups = new ArrayDeque<>();
+            List<Integer> current = new ArrayList<>();
+            int size = 0;
+            int max = maxBuildTuples();
+            for (int p = 0; p < NUM_PARTITIONS; p++) {
+                if (buildFiles[p] == null)
+                    continue;
+                spilledPartitions++;
+                spilledBytes += buildFiles[p].bytes();
+                if (probeFiles[p] == null)
+                    continue;
+                spilledBytes += probeFiles[p].bytes();
+                if (!current.isEmpty() && size + buildFiles[p].size() > max) {
+                    groups.add(current);
+                    current = new ArrayList<>();
+                    size = 0;
+                }
+                current.add(p);
+                size += buildFiles[p].size();
+            }
+            if (!current.isEmpty())
+                groups.add(current);
+            phase = Phase.SPILLED;
+            group = null;
+        } else if (group.size() == 1 && buildFiles[group.get(0)].hasMoreToRead()) {
+            // join the next chunk of a partition that does not fit in memory
+            clearTable();
+            load(buildFiles[group.get(0)], maxBuildTuples());
+            groupPos = 0;
+            probeFiles[group.get(0)].startReading();
+            return true;
+        }
+
+        clearTable();
+        group = groups.poll();
+        if (group == null)
+            return false;
+        for (int p : group) {
+            buildFiles[p].startReading();
+            load(buildFiles[p], group.size() == 1 ? maxBuildTuples() : Integer.MAX_VALUE);
+        }
+        groupPos = 0;
+        probeFiles[group.get(0)].startReading();
+        return true;
+    }
+
+    /**
+     * Returns the next batch of joined tuples. Each tuple is the concatenation
+     * of a tuple of child1 and a tuple of child2 with equal join fields, so
+     * there are two copies of the join attribute in the results. (Removing
+     * such duplicate columns can be done with an additional projection
+     * operator if needed.)
+     *
+     * @return The next batch of matching tuples, or null if there are no more
+     * tuples.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        try {
+            if (phase == Phase.BUILD) {
+                build();
+                phase = Phase.PROBE;
+            }
+
+            TupleBatch out = new TupleBatch(comboTD, TupleBatch.DEFAULT_CAPACITY);
+            while (!out.isFull() && phase != Phase.DONE) {
+                if (probeEntry >= 0) {
+                    // emit the next tuple of child1 that matches the current row of child2
+                    out.addJoinedRow(table.batch(probeEntry), table.row(probeEntry),
+                            probeBatch, probeBatch.selected(probePos));
+                    probeEntry = table.next(probeEntry);
+                    if (probeEntry < 0)
+                        probePos++;
+                } else if (probeBatch != null && probePos < probeBatch.numSelected()) {
+                    int head = table.find(probeBatch, pred.getField2(), probeBatch.selected(probePos));
+                    if (head < 0)
+                        probePos++;
+                    else
+                        probeEntry = head;
+                } else {
+                    probeBatch = nextProbeBatch();
+                    probePos = 0;
+                    if (probeBatch == null && !advance()) {
+                        phase = Phase.DONE;
+                        deleteSpillFiles();
+                    }
+                }
+            }
+            return out.numSelected() > 0 ? out : null;
+        } catch (IOException e) {
+            throw new DbException("hash join spill failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Tuples are handed out from the batches of nextBatch.
+     * <p>
+     * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
+     * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (rowBatch == null || rowPos == rowBatch.numSelected()) {
+            rowBatch = nextBatch();
+            rowPos = 0;
+            if (rowBatch == null)
+                return null;
+        }
+        return rowBatch.getTuple(rowBatch.selected(rowPos++));
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child1, this.child2};
@@ -170,5 +558,5 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
 }
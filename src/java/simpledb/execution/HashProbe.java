@@ -0,0 +1,176 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.NoSuchElementException;
+
+/**
+ * HashProbe is one of several parallel pipelines of a hash join: it probes
+ * the hash table of a {@link SharedHashBuild} with the tuples of its own
+ * share of the probe side, such as a {@link MorselScan} sharing the morsels
+ * of a table with the other probes. Under an {@link Exchange}, the probes
+ * together return the same tuples as a HashEquiJoin of the build side and
+ * the whole probe side.
+ */
+public class HashProbe extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private final SharedHashBuild build;
+    private OpIterator child;
+    private final TupleDesc comboTD;
+
+    // the number of times this probe has been opened
+    private int opens = 0;
+    transient private JoinHashTable table;
+    transient private TupleBatch probeBatch = null;
+    transient private int probePos = 0;
+    transient private int probeEntry = -1;
+    // the batch fetchNext hands out rows from
+    transient private TupleBatch rowBatch = null;
+    transient private int rowPos = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param p     the predicate to join on; field1 is a field of the build
+     *              side and field2 a field of child
+     * @param build the build side shared with the other probes
+     * @param child this probe's share of the probe side
+     */
+    public HashProbe(JoinPredicate p, SharedHashBuild build, OpIterator child) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("a hash join needs an equality predicate");
+        if (p.getField1() != build.getField())
+            throw new IllegalArgumentException("the predicate must be on the join field of the build side");
+        this.pred = p;
+        this.build = build;
+        this.child = child;
+        comboTD = TupleDesc.merge(build.getChild().getTupleDesc(), child.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return the build side this probe shares
+     */
+    public SharedHashBuild getBuild() {
+        return build;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return build.getChild().getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * Wait for the hash table of the build side, then open the probe side,
+     * so that the runtime filters of its scans are already set.
+     */
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        table = build.acquire(++opens);
+        child.open();
+        reset();
+        super.open();
+    }
+
+    private void reset() {
+        probeBatch = null;
+        probeEntry = -1;
+        rowBatch = null;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        if (table != null) {
+            build.release();
+            table = null;
+        }
+        reset();
+    }
+
+    /**
+     * Probe the same table with the probe side again. Probes sharing Morsels
+     * must be rewound together by closing and opening them, as an Exchange does.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        reset();
+    }
+
+    /**
+     * Returns the next batch of joined tuples, each the concatenation of a
+     * tuple of the build side and a tuple of child with equal join fields.
+     *
+     * @return The next batch of matching tuples, or null if there are no more
+     * tuples.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch out = new TupleBatch(comboTD, TupleBatch.DEFAULT_CAPACITY);
+        while (!out.isFull()) {
+            if (probeEntry >= 0) {
+                // emit the next build tuple that matches the current row of child
+                out.addJoinedRow(table.batch(probeEntry), table.row(probeEntry),
+                        probeBatch, probeBatch.selected(probePos));
+                probeEntry = table.next(probeEntry);
+                if (probeEntry < 0)
+                    probePos++;
+            } else if (probeBatch != null && probePos < probeBatch.numSelected()) {
+                int head = table.find(probeBatch, pred.getField2(), probeBatch.selected(probePos));
+                if (head < 0)
+                    probePos++;
+                else
+                    probeEntry = head;
+            } else {
+                probeBatch = child.nextBatch();
+                probePos = 0;
+                if (probeBatch == null)
+                    break;
+            }
+        }
+        return out.numSelected() > 0 ? out : null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Tuples are handed out from the batches of nextBatch.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (rowBatch == null || rowPos == rowBatch.numSelected()) {
+            rowBatch = nextBatch();
+            rowPos = 0;
+            if (rowBatch == null)
+                return null;
+        }
+        return rowBatch.getTuple(rowBatch.selected(rowPos++));
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{build.getChild(), child};
+    }
+
+    /**
+     * Only the probe side can be replaced, as the build side is shared.
+     */
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[1];
+    }
+
+}
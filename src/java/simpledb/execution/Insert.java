@@ -8,6 +8,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -75,23 +77,31 @@ public class Insert extends Operator {
      * instances of BufferPool is available via Database.getBufferPool(). Note
      * that insert DOES NOT need check to see if a particular tuple is a
      * duplicate before inserting it.
+     * <p>
+     * The child is read a batch at a time, and the tuples of each batch are
+     * inserted together, so that each page they are stored on is fetched and
+     * marked dirty once per batch.
      *
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
         if (!flag) {
-            while (child.hasNext()){
+            List<Tuple> tuples = new ArrayList<>();
+            TupleBatch batch;
+            while ((batch = child.nextBatch()) != null) {
+                tuples.clear();
+                for (int i = 0; i < batch.numSelected(); i++)
+                    tuples.add(batch.getTuple(batch.selected(i)));
                 try {
-                    Tuple tuple=child.next();
-                    Database.getBufferPool().insertTuple(t,tableId,tuple);
+                    Database.getBufferPool().insertTuples(t, tableId, tuples);
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    throw new DbException("failed to insert tuples: " + e.getMessage());
                 }
-                count++;
+                count += tuples.size();
             }
             flag=true;
             IntField field=new IntField(count);
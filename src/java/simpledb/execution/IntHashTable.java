@@ -0,0 +1,164 @@
+package simpledb.execution;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * IntHashTable maps int keys to non-negative int values, such as the index of
+ * a build tuple or of a group. It uses open addressing with linear probing
+ * over two parallel int arrays, so keys are never boxed and there are no
+ * per-entry objects. A slot whose value is NOT_FOUND is empty.
+ */
+public class IntHashTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The value returned for a key that is not in the table
+     */
+    public static final int NOT_FOUND = -1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+
+    /**
+     * Create an empty table
+     */
+    public IntHashTable() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Create an empty table that holds the given number of keys before it grows
+     *
+     * @param expected the expected number of keys
+     */
+    public IntHashTable(int expected) {
+        allocate(capacityFor(expected));
+    }
+
+    private static int capacityFor(int expected) {
+        // keep the load factor at or below 1/2
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2L * expected)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NOT_FOUND);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Mix the bits of a key (the finalizer of MurmurHash3), so that keys that
+     * differ only in their high bits, or are sequential, spread over the table.
+     */
+    private static int hash(int key) {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @return the slot holding key, or the empty slot where it would be added
+     */
+    private int slot(int key) {
+        int i = hash(key) & mask;
+        while (values[i] != NOT_FOUND && keys[i] != key)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    /**
+     * @return the value of key, or NOT_FOUND if the key is not in the table
+     */
+    public int get(int key) {
+        return values[slot(key)];
+    }
+
+    /**
+     * Set the value of a key.
+     *
+     * @param key the key
+     * @param value the value, which must not be negative
+     * @return the previous value of the key, or NOT_FOUND if it was not in the table
+     */
+    public int put(int key, int value) {
+        if (value < 0)
+            throw new IllegalArgumentException("values must not be negative");
+        int i = slot(key);
+        int prev = values[i];
+        values[i] = value;
+        if (prev == NOT_FOUND) {
+            keys[i] = key;
+            added();
+        }
+        return prev;
+    }
+
+    /**
+     * Add a key with a value if it is not in the table yet.
+     *
+     * @param key the key
+     * @param value the value to add the key with, which must not be negative
+     * @return the value of the key if it was already in the table, or
+     * NOT_FOUND if it was added with value
+     */
+    public int putIfAbsent(int key, int value) {
+        if (value < 0)
+            throw new IllegalArgumentException("values must not be negative");
+        int i = slot(key);
+        int prev = values[i];
+        if (prev == NOT_FOUND) {
+            keys[i] = key;
+            values[i] = value;
+            added();
+        }
+        return prev;
+    }
+
+    private void added() {
+        if (++size * 2 > keys.length)
+            grow();
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(keys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != NOT_FOUND) {
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * @return the number of keys in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove all keys, keeping the arrays allocated
+     */
+    public void clear() {
+        if (size > 0)
+            Arrays.fill(values, NOT_FOUND);
+        size = 0;
+    }
+}
@@ -3,17 +3,14 @@ package simpledb.execution;
 import simpledb.common.Type;
 import simpledb.storage.*;
 
-import java.security.acl.Group;
 import java.util.*;
 
-import static simpledb.execution.Aggregator.Op.MAX;
-import static simpledb.execution.Aggregator.Op.MIN;
-import static simpledb.execution.Aggregator.Op.SUM;
-
 /**
  * Knows how to compute some aggregate over a set of IntFields.
- * 我这种思路算avg的话会有问题，因为本身整数除法会舍掉一部分,一个一个merge的话，再乘以个数与原本的Sum是有出入的
- * 所以不得已再加两个关于Sum的变量
+ * Each group is numbered in order of appearance, and its count, sum, min and
+ * max are kept in parallel int arrays indexed by that number, so that avg can
+ * be computed exactly from the sum and no object is allocated per group.
+ * INT_TYPE group values are numbered through an {@link IntHashTable}.
  */
 public class IntegerAggregator implements Aggregator {
 
@@ -37,15 +34,21 @@ public class IntegerAggregator implements Aggregator {
     private Type gbfieldtype;
     private int afield;
     private Op what;
-    private List<Tuple> result = new ArrayList<>();
-    private int resultCount = 0;
-    private int resultSum = 0;
-    private Map<Field, Tuple> resultGroup = new HashMap<>();
-    private Map<Field, Integer> resultGroupCount = new HashMap<>();
-    private Map<Field, Integer> resultGroupSum = new HashMap<>();
     private TupleDesc tupleDesc;
-    private IntField newField;
-    private Iterable<Tuple> it;
+
+    private static final int INITIAL_GROUPS = 16;
+
+    // the number of each group, by its INT_TYPE or STRING_TYPE group value
+    private final IntHashTable intGroups = new IntHashTable();
+    private final Map<String, Integer> stringGroups = new HashMap<>();
+    // the group value and running aggregates of each group, indexed by its number
+    private int numGroups = 0;
+    private int[] groupInts = new int[INITIAL_GROUPS];
+    private String[] groupStrings = new String[INITIAL_GROUPS];
+    private int[] counts = new int[INITIAL_GROUPS];
+    private int[] sums = new int[INITIAL_GROUPS];
+    private int[] mins = new int[INITIAL_GROUPS];
+    private int[] maxs = new int[INITIAL_GROUPS];
 
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
@@ -64,6 +67,51 @@ public class IntegerAggregator implements Aggregator {
         }
     }
 
+    /**
+     * @return the number of a new group, growing the state arrays if needed
+     */
+    private int addGroup() {
+        if (numGroups == counts.length) {
+            int n = 2 * counts.length;
+            groupInts = Arrays.copyOf(groupInts, n);
+            groupStrings = Arrays.copyOf(groupStrings, n);
+            counts = Arrays.copyOf(counts, n);
+            sums = Arrays.copyOf(sums, n);
+            mins = Arrays.copyOf(mins, n);
+            maxs = Arrays.copyOf(maxs, n);
+        }
+        mins[numGroups] = Integer.MAX_VALUE;
+        maxs[numGroups] = Integer.MIN_VALUE;
+        return numGroups++;
+    }
+
+    private int intGroup(int value) {
+        int g = intGroups.putIfAbsent(value, numGroups);
+        if (g == IntHashTable.NOT_FOUND) {
+            g = addGroup();
+            groupInts[g] = value;
+        }
+        return g;
+    }
+
+    private int stringGroup(String value) {
+        Integer g = stringGroups.get(value);
+        if (g == null) {
+            g = addGroup();
+            groupStrings[g] = value;
+            stringGroups.put(value, g);
+        }
+        return g;
+    }
+
+    private void merge(int g, int val) {
+        counts[g]++;
+        sums[g] += val;
+        if (val < mins[g])
+            mins[g] = val;
+        if (val > maxs[g])
+            maxs[g] = val;
+    }
 
     /**
      * Merge a new tuple into the aggregate, grouping as indicated in the
@@ -73,64 +121,72 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        IntField aggregate = (IntField) tup.getField(afield);
-        Tuple tuple = new Tuple(tupleDesc);
+        int val = ((IntField) tup.getField(afield)).getValue();
+        int g;
+        if (gbfield == Aggregator.NO_GROUPING)
+            g = numGroups == 0 ? addGroup() : 0;
+        else if (gbfieldtype == Type.INT_TYPE)
+            g = intGroup(((IntField) tup.getField(gbfield)).getValue());
+        else
+            g = stringGroup(((StringField) tup.getField(gbfield)).getValue());
+        merge(g, val);
+    }
+
+    /**
+     * Merge the selected rows of a batch, reading the aggregate field and an
+     * INT_TYPE group-by field from their int columns.
+     *
+     * @param batch the batch containing an aggregate field and a group-by field
+     */
+    @Override
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        int[] vals = batch.intColumn(afield);
+        int n = batch.numSelected();
+        if (n == 0)
+            return;
         if (gbfield == Aggregator.NO_GROUPING) {
-            tuple.setField(0, aggregate);
-            tuple = aggregateTuplesGroup(resultCount, resultSum, tuple, tuple, 0);
-            result.clear();
-            result.add(tuple);
-            resultCount++;
-            resultSum += aggregate.getValue();
-        } else {
-            Field group = tup.getField(gbfield);
-            tuple.setField(0, group);
-            tuple.setField(1, aggregate);
-            if (resultGroup.containsKey(group)) {
-                int count = resultGroupCount.get(group);
-                int sum = resultGroupSum.get(group);
-                Tuple tupleOrigin = resultGroup.get(group);
-                tuple = aggregateTuplesGroup(count, sum, tupleOrigin, tuple, 1);
+            if (numGroups == 0)
+                addGroup();
+            int sum = sums[0], min = mins[0], max = maxs[0];
+            for (int i = 0; i < n; i++) {
+                int val = vals[batch.selected(i)];
+                sum += val;
+                min = Math.min(min, val);
+                max = Math.max(max, val);
             }
-            //因为我是取出tuple再修改,第一次Count的时候不会调用,手动修改tuple,这里的tupleOrigin无用，直接赋null
-            if (!resultGroup.containsKey(group) && what == Op.COUNT) {
-                tuple = aggregateTuplesGroup(0, 0, tuple, tuple, 1);
+            counts[0] += n;
+            sums[0] = sum;
+            mins[0] = min;
+            maxs[0] = max;
+        } else if (gbfieldtype == Type.INT_TYPE) {
+            int[] keys = batch.intColumn(gbfield);
+            for (int i = 0; i < n; i++) {
+                int row = batch.selected(i);
+                merge(intGroup(keys[row]), vals[row]);
+            }
+        } else {
+            String[] keys = batch.stringColumn(gbfield);
+            for (int i = 0; i < n; i++) {
+                int row = batch.selected(i);
+                merge(stringGroup(keys[row]), vals[row]);
             }
-            resultGroup.put(group, tuple);
-            resultGroupCount.put(group, resultGroupCount.getOrDefault(group, 0) + 1);
-            resultGroupSum.put(group, resultGroupSum.getOrDefault(group, 0) + aggregate.getValue());
         }
     }
 
-
-    public Tuple aggregateTuplesGroup(int count, int sum, Tuple tupleOrigin, Tuple tuple, int index) {
-        IntField fieldOrigin = (IntField) tupleOrigin.getField(index);
-        IntField field = (IntField) tuple.getField(index);
-        int origin = fieldOrigin.getValue();
-        int val = field.getValue();
+    private int aggregateValue(int g) {
         switch (what) {
             case SUM:
-                newField = new IntField(origin + val);
-                tuple.setField(index, newField);
-                break;
+                return sums[g];
             case MAX:
-                newField = new IntField(Math.max(origin, val));
-                tuple.setField(index, newField);
-                break;
+                return maxs[g];
             case MIN:
-                newField = new IntField(Math.min(origin, val));
-                tuple.setField(index, newField);
-                break;
+                return mins[g];
             case AVG:
-                newField = new IntField((sum+val) / (count + 1));
-                tuple.setField(index, newField);
-                break;
+                return sums[g] / counts[g];
             case COUNT:
-                newField = new IntField(count + 1);
-                tuple.setField(index, newField);
-                break;
+                return counts[g];
         }
-        return tuple;
+        throw new UnsupportedOperationException("unsupported aggregate operator " + what);
     }
 
     /**
@@ -143,13 +199,21 @@ public class IntegerAggregator implements Aggregator {
      */
     public OpIterator iterator() {
         // some code goes here
-        if (gbfield == Aggregator.NO_GROUPING) {
-            it = result;
-        } else {
-            it = resultGroup.values();
+        List<Tuple> tuples = new ArrayList<>();
+        for (int g = 0; g < numGroups; g++) {
+            Tuple tuple = new Tuple(tupleDesc);
+            if (gbfield == Aggregator.NO_GROUPING) {
+                tuple.setField(0, new IntField(aggregateValue(g)));
+            } else {
+                if (gbfieldtype == Type.INT_TYPE)
+                    tuple.setField(0, new IntField(groupInts[g]));
+                else
+                    tuple.setField(0, new StringField(groupStrings[g], Type.STRING_LEN));
+                tuple.setField(1, new IntField(aggregateValue(g)));
+            }
+            tuples.add(tuple);
         }
-        OpIterator iterator = new TupleIterator(tupleDesc, it);
-        return iterator;
+        return new TupleIterator(tupleDesc, tuples);
     }
 
 }
@@ -1,6 +1,5 @@
 package simpledb.execution;
 
-import simpledb.storage.Field;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
@@ -9,7 +8,11 @@ import simpledb.storage.TupleDesc;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation with a block
+ * nested-loop join: it reads a block of tuples of child1 that fits in the
+ * memory budget, and scans child2 once per block, matching each batch of
+ * child2 against the whole block. child2 is therefore scanned
+ * ceil(|child1| / block size) times instead of once per tuple of child1.
  */
 public class Join extends Operator {
 
@@ -29,13 +32,26 @@ public class Join extends Operator {
     private JoinPredicate p;
     private OpIterator child1;
     private OpIterator child2;
-    private Tuple tuple1 = null;
+    // applies the predicate if compilePredicate compiled it
+    private transient ExpressionCompiler.CompiledJoinPredicate compiled;
+    // the current block of child1, and whether child1 has more tuples after it
+    private transient List<TupleBatch> block = new ArrayList<>();
+    private transient boolean outerDone = false;
+    // position of nextBatch in the nested loops over the block and a batch of child2
+    private transient TupleBatch innerBatch = null;
+    private transient int blockPos = 0;
+    private transient int outerPos = 0;
+    private transient int innerPos = 0;
+    // the batch fetchNext hands out rows from
+    private transient TupleBatch rowBatch = null;
+    private transient int rowPos = 0;
 
     public Join(JoinPredicate p, OpIterator child1, OpIterator child2) {
         // some code goes here
         this.p = p;
         this.child1 = child1;
         this.child2 = child2;
+        memoryBudget = (long) BLOCK_SIZE * child1.getTupleDesc().getSize();
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -43,6 +59,21 @@ public class Join extends Operator {
         return p;
     }
 
+    /**
+     * Compile the join predicate with {@link ExpressionCompiler}, as it is
+     * applied to every pair of tuples of the children.
+     */
+    public void compilePredicate() {
+        compiled = ExpressionCompiler.compile(p, child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return true if the join predicate was compiled
+     */
+    public boolean isCompiled() {
+        return compiled != null;
+    }
+
     /**
      * @return the field name of join field1. Should be quantified by
      * alias or table name.
@@ -70,34 +101,110 @@ public class Join extends Operator {
         return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
+    /**
+     * The number of tuples of child1 in a block with the default memory budget
+     */
+    public final static int BLOCK_SIZE = 20000;
+
+    private long memoryBudget;
+    private int innerScans = 0;
+
+    /**
+     * Set the memory the block of child1 may use. The budget is counted as
+     * the on-disk size of the tuples in the block.
+     *
+     * @param bytes the memory budget in bytes
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @return the memory budget in bytes
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return the number of scans of child2 in the current or last run
+     */
+    public int getInnerScans() {
+        return innerScans;
+    }
+
+    private int maxBlockTuples() {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / child1.getTupleDesc().getSize()));
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
         super.open();
         child1.open();
         child2.open();
+        reset();
+        innerScans = 0;
+    }
 
+    private void reset() {
+        block = new ArrayList<>();
+        outerDone = false;
+        innerBatch = null;
+        rowBatch = null;
     }
 
     public void close() {
         // some code goes here
         super.close();
         child1.close();
-        child1.close();
+        child2.close();
+        block = new ArrayList<>();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child1.rewind();
         child2.rewind();
-        tuple1 = null;
+        reset();
+        innerScans = 0;
+    }
+
+    /**
+     * Read the next block of child1, and start a scan of child2 for it.
+     *
+     * @return false if child1 has no more tuples
+     */
+    private boolean nextBlock() throws DbException, TransactionAbortedException {
+        block = new ArrayList<>();
+        if (outerDone)
+            return false;
+        int max = maxBlockTuples();
+        int size = 0;
+        while (size < max) {
+            TupleBatch batch = child1.nextBatch();
+            if (batch == null) {
+                outerDone = true;
+                break;
+            }
+            if (batch.numSelected() > 0) {
+                block.add(batch);
+                size += batch.numSelected();
+            }
+        }
+        if (block.isEmpty())
+            return false;
+        if (innerScans > 0)
+            child2.rewind();
+        innerScans++;
+        return true;
     }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate. Tuples are handed out from the batches
+     * of nextBatch.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -113,33 +220,61 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        while (child1.hasNext() || tuple1 != null) {
-            if (tuple1 == null) {
-                tuple1 = child1.next();
-                child2.rewind();
+        while (rowBatch == null || rowPos == rowBatch.numSelected()) {
+            rowBatch = nextBatch();
+            rowPos = 0;
+            if (rowBatch == null)
+                return null;
+        }
+        return rowBatch.getTuple(rowBatch.selected(rowPos++));
+    }
+
+    /**
+     * Returns the next batch of joined tuples. Each batch of child2 is
+     * matched against every tuple of the current block of child1 before the
+     * next batch of child2 is read.
+     *
+     * @return The next batch of matching tuples, or null if there are no more
+     * tuples.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch out = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+        while (!out.isFull()) {
+            if (innerBatch == null) {
+                if (block.isEmpty() && !nextBlock())
+                    break;
+                innerBatch = child2.nextBatch();
+                if (innerBatch == null) {
+                    // this block is done
+                    block = new ArrayList<>();
+                    continue;
+                }
+                blockPos = 0;
+                outerPos = 0;
+                innerPos = 0;
             }
-            while (child2.hasNext()) {
-                Tuple tuple2 = child2.next();
-                if (p.filter(tuple1, tuple2)) {
-                    int index = 0;
-                    TupleDesc td = getTupleDesc();
-                    Tuple tuple = new Tuple(td);
-                    Iterator<Field> it1 = tuple1.fields();
-                    while (it1.hasNext()) {
-                        Field next = it1.next();
-                        tuple.setField(index++, next);
-                    }
-                    Iterator<Field> it2 = tuple2.fields();
-                    while (it2.hasNext()) {
-                        Field next = it2.next();
-                        tuple.setField(index++, next);
+            while (blockPos < block.size() && !out.isFull()) {
+                TupleBatch outerBatch = block.get(blockPos);
+                int row1 = outerBatch.selected(outerPos);
+                while (innerPos < innerBatch.numSelected() && !out.isFull()) {
+                    int row2 = innerBatch.selected(innerPos++);
+                    if (compiled != null ? compiled.filter(outerBatch, row1, innerBatch, row2)
+                            : p.filter(outerBatch, row1, innerBatch, row2))
+                        out.addJoinedRow(outerBatch, row1, innerBatch, row2);
+                }
+                if (innerPos == innerBatch.numSelected()) {
+                    innerPos = 0;
+                    if (++outerPos == outerBatch.numSelected()) {
+                        outerPos = 0;
+                        blockPos++;
                     }
-                    return tuple;
                 }
             }
-            tuple1 = null;
+            if (blockPos == block.size())
+                innerBatch = null;
         }
-        return null;
+        return out.numSelected() > 0 ? out : null;
     }
 
     @Override
@@ -0,0 +1,103 @@
+package simpledb.execution;
+
+import simpledb.storage.TupleDesc;
+
+import java.util.*;
+
+/**
+ * JoinHashTable is the in-memory hash table of the build side of a hash join.
+ * Build tuple i is row i % CAPACITY of the (i / CAPACITY)th batch of the
+ * store, and the tuples with the same key are chained from the last one
+ * inserted. The last tuple of each key is found through an
+ * {@link IntHashTable} when both join fields are INT_TYPE, and through a
+ * HashMap otherwise.
+ * <p>
+ * Inserting is not thread-safe, but once the table is built it is only read,
+ * so any number of threads may probe it at once.
+ */
+class JoinHashTable {
+
+    static final int CAPACITY = TupleBatch.DEFAULT_CAPACITY;
+
+    private final TupleDesc td;
+    private final int field;
+    private final boolean intKeys;
+    private final List<TupleBatch> store = new ArrayList<>();
+    private final IntHashTable intHeads = new IntHashTable();
+    private final Map<Object, Integer> heads = new HashMap<>();
+    // next[i] is the previous tuple with the same key as tuple i, or -1
+    private int[] next = new int[0];
+    private int numEntries = 0;
+
+    /**
+     * @param td      the TupleDesc of the build tuples
+     * @param field   the join field of the build tuples
+     * @param intKeys true if both join fields are INT_TYPE
+     */
+    JoinHashTable(TupleDesc td, int field, boolean intKeys) {
+        this.td = td;
+        this.field = field;
+        this.intKeys = intKeys;
+    }
+
+    void clear() {
+        store.clear();
+        intHeads.clear();
+        heads.clear();
+        numEntries = 0;
+    }
+
+    /**
+     * @return the number of tuples in the table
+     */
+    int size() {
+        return numEntries;
+    }
+
+    void insert(TupleBatch batch, int row) {
+        if (numEntries % CAPACITY == 0)
+            store.add(new TupleBatch(td, CAPACITY));
+        if (numEntries == next.length)
+            next = Arrays.copyOf(next, Math.max(CAPACITY, 2 * next.length));
+        store.get(numEntries / CAPACITY).addRow(batch, row);
+        if (intKeys) {
+            next[numEntries] = intHeads.put(batch.intColumn(field)[row], numEntries);
+        } else {
+            Integer prev = heads.put(batch.getKey(field, row), numEntries);
+            next[numEntries] = prev == null ? -1 : prev;
+        }
+        numEntries++;
+    }
+
+    /**
+     * @return the batch holding a tuple of the table
+     */
+    TupleBatch batch(int entry) {
+        return store.get(entry / CAPACITY);
+    }
+
+    /**
+     * @return the row of its batch holding a tuple of the table
+     */
+    int row(int entry) {
+        return entry % CAPACITY;
+    }
+
+    /**
+     * @return the last tuple inserted whose key equals the key in a row of a
+     * probe batch, or -1 if there is none
+     */
+    int find(TupleBatch probe, int probeField, int row) {
+        if (intKeys)
+            return intHeads.get(probe.intColumn(probeField)[row]);
+        Integer h = heads.get(probe.getKey(probeField, row));
+        return h == null ? -1 : h;
+    }
+
+    /**
+     * @return the tuple inserted before entry with the same key, or -1
+     */
+    int next(int entry) {
+        return next[entry];
+    }
+}
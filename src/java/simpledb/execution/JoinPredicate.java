@@ -48,6 +48,20 @@ public class JoinPredicate implements Serializable {
         return t1.getField(field1).compare(op, t2.getField(field2));
     }
 
+    /**
+     * Apply the predicate to a row of each of two batches. Integer fields are
+     * compared without creating Field objects.
+     *
+     * @return true if the rows satisfy the predicate.
+     */
+    public boolean filter(TupleBatch b1, int row1, TupleBatch b2, int row2) {
+        int[] col1 = b1.intColumn(field1);
+        int[] col2 = b2.intColumn(field2);
+        if (col1 != null && col2 != null)
+            return Predicate.compare(col1[row1], op, col2[row2]);
+        return b1.getField(field1, row1).compare(op, b2.getField(field2, row2));
+    }
+
     public int getField1() {
         // some code goes here
         return field1;
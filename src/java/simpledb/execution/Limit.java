@@ -0,0 +1,101 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.*;
+
+/**
+ * Limit is an operator that returns at most a given number of tuples of its
+ * child, implementing a relational LIMIT. The child is not read past the
+ * last tuple returned.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final int limit;
+    private int returned = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            the largest number of tuples to return
+     * @param child
+     *            The child operator
+     */
+    public Limit(int limit, OpIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        this.limit = limit;
+        this.child = child;
+    }
+
+    /**
+     * @return the largest number of tuples returned
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        child.open();
+        returned = 0;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        returned = 0;
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (returned < limit && child.hasNext()) {
+            returned++;
+            return child.next();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the next batch of the child, with its selection cut short if
+     * it goes past the limit.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (returned == limit)
+            return null;
+        TupleBatch batch = child.nextBatch();
+        if (batch == null)
+            return null;
+        if (batch.numSelected() > limit - returned)
+            batch.setNumSelected(limit - returned);
+        returned += batch.numSelected();
+        return batch;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+
+}
@@ -0,0 +1,256 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * MorselScan is a sequential scan over the morsels of a HeapFile that it
+ * takes from a {@link Morsels} shared with other MorselScans. Together the
+ * scans read each tuple of the table once, so that running each of them (and
+ * the operators above it) on its own thread under an {@link Exchange} scans
+ * the table in parallel.
+ * <p>
+ * The scan can be given predicates and a list of fields of the table, which
+ * are pushed down to the pages it reads (see {@link HeapPage#scan}): only the
+ * tuples that pass every predicate are returned, with only those fields.
+ */
+public class MorselScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final Morsels morsels;
+    private final String tableAlias;
+    private final Predicate[] predicates;
+    private final int[] fields;
+    private final TupleDesc td;
+    // applies the predicates, compiled by compilePredicates
+    private transient TupleFilter filter;
+    // filters on join keys set by joins this scan is the probe side of
+    private RuntimeFilter[] runtimeFilters = new RuntimeFilter[0];
+
+    /**
+     * Creates a scan over the morsels of a table.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param morsels    the morsels of the table to scan, shared with the
+     *                   other scans of the table
+     * @param tableAlias the alias of this table; the returned tupleDesc has
+     *                   fields with name tableAlias.fieldName, as for SeqScan
+     */
+    public MorselScan(TransactionId tid, Morsels morsels, String tableAlias) {
+        this(tid, morsels, tableAlias, new Predicate[0], null);
+    }
+
+    /**
+     * Creates a scan over the morsels of a table that only returns the
+     * specified fields of the tuples that pass every predicate.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param morsels    the morsels of the table to scan, shared with the
+     *                   other scans of the table
+     * @param tableAlias the alias of this table; the returned tupleDesc has
+     *                   fields with name tableAlias.fieldName, as for SeqScan
+     * @param predicates predicates over the fields of the table
+     * @param fields     the fields of the table to return, in order, or null
+     *                   for all of them
+     */
+    public MorselScan(TransactionId tid, Morsels morsels, String tableAlias,
+                      Predicate[] predicates, int[] fields) {
+        this.tid = tid;
+        this.morsels = morsels;
+        this.tableAlias = tableAlias;
+        this.predicates = predicates.clone();
+        this.fields = fields == null ? null : fields.clone();
+        TupleDesc base = Database.getCatalog().getTupleDesc(morsels.getTableId());
+        int n = fields == null ? base.numFields() : fields.length;
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            int f = fields == null ? i : fields[i];
+            types[i] = base.getFieldType(f);
+            names[i] = tableAlias + "." + base.getFieldName(f);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the name of the table in the catalog
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(morsels.getTableId());
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /**
+     * @return the morsels this scan takes its pages from
+     */
+    public Morsels getMorsels() {
+        return morsels;
+    }
+
+    /**
+     * @return the predicates over the fields of the table that the returned
+     * tuples pass
+     */
+    public Predicate[] getPredicates() {
+        return predicates.clone();
+    }
+
+    /**
+     * @return the fields of the table this scan returns, or null if it
+     * returns all of them
+     */
+    public int[] getFields() {
+        return fields == null ? null : fields.clone();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Compile the predicates of this scan with {@link ExpressionCompiler},
+     * for scans of tables large enough to be worth it.
+     */
+    public void compilePredicates() {
+        filter = ExpressionCompiler.compile(predicates,
+                Database.getCatalog().getTupleDesc(morsels.getTableId()));
+    }
+
+    /**
+     * Drop the tuples that do not pass a filter on a join key, set by a
+     * HashEquiJoin that reads this scan (see {@link RuntimeFilter}).
+     *
+     * @param filter a filter on a field of the table
+     */
+    public void addRuntimeFilter(RuntimeFilter filter) {
+        runtimeFilters = Arrays.copyOf(runtimeFilters, runtimeFilters.length + 1);
+        runtimeFilters[runtimeFilters.length - 1] = filter;
+    }
+
+    /**
+     * @return the filters on join keys this scan applies
+     */
+    public RuntimeFilter[] getRuntimeFilters() {
+        return runtimeFilters.clone();
+    }
+
+    /**
+     * @return true if the predicates of this scan were compiled
+     */
+    public boolean isCompiled() {
+        return filter instanceof ExpressionCompiler.CompiledFilter;
+    }
+
+    // the current page, the end of the current morsel, and the slot of the
+    // current page to continue from (-1 once the page is done)
+    private int page = -1;
+    private int end = -1;
+    private HeapPage current = null;
+    private int slot = -1;
+    private boolean open = false;
+    // the number of times this scan has been opened or rewound
+    private int opens = 0;
+    // the batch next hands out rows from
+    private TupleBatch rowBatch = null;
+    private int rowPos = 0;
+
+    public void open() throws DbException, TransactionAbortedException {
+        morsels.start(++opens);
+        if (filter == null)
+            filter = ExpressionCompiler.interpret(predicates);
+        page = end = -1;
+        current = null;
+        slot = -1;
+        rowBatch = null;
+        open = true;
+    }
+
+    /**
+     * Read the next page, taking the next morsel if needed.
+     *
+     * @return false if every morsel is taken
+     */
+    private boolean nextPage() throws DbException, TransactionAbortedException {
+        if (page + 1 < end) {
+            page++;
+        } else {
+            page = morsels.next();
+            if (page < 0) {
+                end = -1;
+                current = null;
+                return false;
+            }
+            end = morsels.end(page);
+        }
+        current = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(morsels.getTableId(), page), Permissions.READ_ONLY);
+        slot = 0;
+        return true;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        while (rowBatch == null || rowPos == rowBatch.numSelected()) {
+            rowBatch = nextBatch();
+            rowPos = 0;
+            if (rowBatch == null)
+                return false;
+        }
+        return true;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return rowBatch.getTuple(rowBatch.selected(rowPos++));
+    }
+
+    /**
+     * Copies the fields of the next tuples that pass the predicates, from the
+     * morsels this scan takes, into a batch.
+     *
+     * @return the next batch of tuples, or null if every morsel is taken
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!open)
+            throw new IllegalStateException("scan is not open");
+        TupleBatch batch = new TupleBatch(td, TupleBatch.DEFAULT_CAPACITY);
+        while (!batch.isFull()) {
+            if (slot < 0 && !nextPage())
+                break;
+            slot = current.scan(slot, filter, runtimeFilters, fields, batch);
+        }
+        return batch.numSelected() == 0 ? null : batch;
+    }
+
+    /**
+     * Start over. As the morsels are shared, every scan of the table must be
+     * rewound before they are read again (see {@link Morsels#start}).
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        open();
+    }
+
+    public void close() {
+        open = false;
+        current = null;
+        rowBatch = null;
+    }
+}
@@ -0,0 +1,89 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.storage.HeapFile;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Morsels hands out the pages of a HeapFile in ranges of consecutive pages
+ * (morsels) to the {@link MorselScan}s that share it, so that each page is
+ * read by exactly one of them. A scan that finishes its morsel early takes
+ * the next one, so the scans stay busy until the whole file is read.
+ */
+public class Morsels implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of pages in a morsel by default
+     */
+    public static final int DEFAULT_MORSEL_PAGES = 16;
+
+    private final int tableid;
+    private final int morselPages;
+    private final AtomicInteger nextPage = new AtomicInteger();
+    private volatile int numPages = 0;
+    // the number of times the pages have been handed out from the start
+    private int round = 0;
+
+    /**
+     * @param tableid     the HeapFile to hand out the pages of
+     * @param morselPages the number of pages in a morsel
+     */
+    public Morsels(int tableid, int morselPages) {
+        if (morselPages <= 0)
+            throw new IllegalArgumentException("a morsel must have at least one page");
+        this.tableid = tableid;
+        this.morselPages = morselPages;
+    }
+
+    public Morsels(int tableid) {
+        this(tableid, DEFAULT_MORSEL_PAGES);
+    }
+
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the number of pages in a morsel
+     */
+    public int getMorselPages() {
+        return morselPages;
+    }
+
+    /**
+     * Called by a scan when it is opened for the nth time. The first scan
+     * opened for the nth time starts handing out the pages of the file from
+     * the first page again, and the other scans join it. All of the scans
+     * must therefore be opened the same number of times, and a round must
+     * be over before a scan is opened again.
+     *
+     * @param n the number of times the calling scan has been opened
+     */
+    public synchronized void start(int n) {
+        if (n <= round)
+            return;
+        round = n;
+        numPages = ((HeapFile) Database.getCatalog().getDatabaseFile(tableid)).numPages();
+        nextPage.set(0);
+    }
+
+    /**
+     * @return the first page of the next morsel, which ends at
+     * {@link #end}, or -1 if every page has been handed out
+     */
+    public int next() {
+        int first = nextPage.getAndAdd(morselPages);
+        return first < numPages ? first : -1;
+    }
+
+    /**
+     * @return the page after the last page of the morsel that starts at first
+     */
+    public int end(int first) {
+        return Math.min(numPages, first + morselPages);
+    }
+}
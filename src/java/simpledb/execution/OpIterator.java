@@ -39,6 +39,29 @@ public interface OpIterator extends Serializable{
    */
   Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Returns the next batch of tuples, for operators that are run
+   * batch-at-a-time. An iterator should be consumed either with next() or
+   * with nextBatch() between open() and close(), not both. The default
+   * implementation collects the batch from next(), so any OpIterator can feed
+   * an operator that runs on batches.
+   *
+   * @return the next batch, with at least one selected row, or null if there
+   *         are no more tuples.
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  default TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+      TupleBatch batch = null;
+      while (hasNext()) {
+          if (batch == null)
+              batch = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+          batch.addTuple(next());
+          if (batch.isFull())
+              break;
+      }
+      return batch;
+  }
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
@@ -2,29 +2,36 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
-import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY on one or more
+ * fields.
+ * <p>
+ * The child is sorted with an external merge sort. Tuples are read into memory
+ * until the memory budget is full, sorted, and written to a spill file as a
+ * sorted run. If the whole child fits in memory no run is written. Otherwise
+ * the runs are merged with a tournament tree: at most MAX_FAN_IN runs at a
+ * time are merged into longer runs, and the final merge streams its output
+ * without writing it back to disk.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
-    private final int orderByField;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
     private final String orderByFieldName;
-    private Iterator<Tuple> it;
-    private final boolean asc;
+    private final RowComparator comparator;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -33,64 +40,299 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields. Tuples are
+     * ordered by the first field, ties by the second, and so on.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one sort order for each of at least one field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = asc.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.comparator = new RowComparator(orderByFields, ascs);
+        memoryBudget = (long) RUN_SIZE * td.getSize();
     }
-    
+
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascs[0];
     }
-    
+
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
-    
+
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
-    
+
+    /**
+     * @return the fields to which the sort is applied, most significant first
+     */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * @return for each sort field, true if the sort order is ascending
+     */
+    public boolean[] getAscending() {
+        return ascs.clone();
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    /**
+     * The number of tuples sorted in memory with the default memory budget
+     */
+    public final static int RUN_SIZE = 20000;
+    /**
+     * The largest number of runs merged at once
+     */
+    public final static int MAX_FAN_IN = 64;
+
+    private long memoryBudget;
+
+    /**
+     * Set the memory the sort may use. The budget is counted as the on-disk
+     * size of the tuples held in memory.
+     *
+     * @param bytes the memory budget in bytes
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @return the memory budget in bytes
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    private int maxRunTuples() {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / td.getSize()));
+    }
+
+    // spill metrics of the current or last run
+    private int spilledRuns = 0;
+    private int mergePasses = 0;
+    private long spilledBytes = 0;
+
+    /**
+     * @return the number of sorted runs written to spill files, including the
+     * runs written by intermediate merges
+     */
+    public int getSpilledRuns() {
+        return spilledRuns;
+    }
+
+    /**
+     * @return the number of merges of runs into longer runs, not counting the
+     * final merge
+     */
+    public int getMergePasses() {
+        return mergePasses;
+    }
+
+    /**
+     * @return the number of bytes written to spill files
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    // the tuples sorted in memory: tuple i is row i % CAPACITY of store[i / CAPACITY],
+    // and order lists them in sorted order
+    private static final int CAPACITY = TupleBatch.DEFAULT_CAPACITY;
+    private final List<TupleBatch> store = new ArrayList<>();
+    private int numEntries = 0;
+    transient private int[] order;
+    transient private int orderPos;
+
+    // the sorted runs, and the merge that produces the output when there are any
+    transient private List<SpillFile> runs = new ArrayList<>();
+    transient private Merger merger;
+    // the batch fetchNext hands out rows from
+    transient private TupleBatch rowBatch = null;
+    transient private int rowPos = 0;
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        reset();
+        spilledRuns = 0;
+        mergePasses = 0;
+        spilledBytes = 0;
+        try {
+            sort();
+        } catch (IOException e) {
+            reset();
+            throw new DbException("sort spill failed: " + e.getMessage());
+        }
         super.open();
     }
 
+    private void reset() {
+        store.clear();
+        numEntries = 0;
+        order = null;
+        orderPos = 0;
+        if (runs != null) {
+            for (SpillFile run : runs)
+                run.delete();
+        }
+        runs = new ArrayList<>();
+        merger = null;
+        rowBatch = null;
+    }
+
+    /**
+     * Read the child into memory-sized sorted runs, and merge the runs until
+     * at most MAX_FAN_IN are left.
+     */
+    private void sort() throws DbException, TransactionAbortedException, IOException {
+        int max = maxRunTuples();
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            for (int i = 0; i < batch.numSelected(); i++) {
+                if (numEntries == max)
+                    writeRun();
+                if (numEntries % CAPACITY == 0)
+                    store.add(new TupleBatch(td, CAPACITY));
+                store.get(numEntries / CAPACITY).addRow(batch, batch.selected(i));
+                numEntries++;
+            }
+        }
+        if (runs.isEmpty()) {
+            sortStore();
+            return;
+        }
+
+        if (numEntries > 0)
+            writeRun();
+        while (runs.size() > MAX_FAN_IN) {
+            List<SpillFile> merged = new ArrayList<>(runs.subList(0, MAX_FAN_IN));
+            runs.subList(0, MAX_FAN_IN).clear();
+            SpillFile run = new SpillFile(td);
+            Merger m = new Merger(merged);
+            while (!m.exhausted()) {
+                run.add(m.batch(), m.row());
+                m.advance();
+            }
+            for (SpillFile f : merged)
+                f.delete();
+            runs.add(run);
+            mergePasses++;
+            spilledRuns++;
+            spilledBytes += run.bytes();
+        }
+        merger = new Merger(runs);
+    }
+
+    private void sortStore() {
+        Integer[] entries = new Integer[numEntries];
+        for (int i = 0; i < numEntries; i++)
+            entries[i] = i;
+        Arrays.sort(entries, (a, b) -> comparator.compare(
+                store.get(a / CAPACITY), a % CAPACITY, store.get(b / CAPACITY), b % CAPACITY));
+        order = new int[numEntries];
+        for (int i = 0; i < numEntries; i++)
+            order[i] = entries[i];
+        orderPos = 0;
+    }
+
+    private void writeRun() throws IOException {
+        sortStore();
+        SpillFile run = new SpillFile(td);
+        for (int e : order)
+            run.add(store.get(e / CAPACITY), e % CAPACITY);
+        runs.add(run);
+        spilledRuns++;
+        spilledBytes += run.bytes();
+        store.clear();
+        numEntries = 0;
+        order = null;
+    }
+
     public void close() {
         super.close();
-        it = null;
+        child.close();
+        reset();
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException {
+        rowBatch = null;
+        orderPos = 0;
+        if (!runs.isEmpty()) {
+            try {
+                merger = new Merger(runs);
+            } catch (IOException e) {
+                throw new DbException("sort spill failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the next batch of tuples in the ordering, either from the
+     * tuples sorted in memory or from the merge of the sorted runs.
+     *
+     * @return The next batch of sorted tuples, or null if there are no more
+     * tuples.
+     */
+    @Override
+    public TupleBatch nextBatch() throws DbException {
+        TupleBatch out = new TupleBatch(td, TupleBatch.DEFAULT_CAPACITY);
+        if (merger == null) {
+            while (!out.isFull() && order != null && orderPos < order.length) {
+                int e = order[orderPos++];
+                out.addRow(store.get(e / CAPACITY), e % CAPACITY);
+            }
+        } else {
+            try {
+                while (!out.isFull() && !merger.exhausted()) {
+                    out.addRow(merger.batch(), merger.row());
+                    merger.advance();
+                }
+            } catch (IOException e) {
+                throw new DbException("sort spill failed: " + e.getMessage());
+            }
+        }
+        return out.numSelected() > 0 ? out : null;
     }
 
     /**
      * Operator.fetchNext implementation. Returns tuples from the child operator
      * in order
-     * 
+     *
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
-            return null;
+    protected Tuple fetchNext() throws DbException {
+        while (rowBatch == null || rowPos == rowBatch.numSelected()) {
+            rowBatch = nextBatch();
+            rowPos = 0;
+            if (rowBatch == null)
+                return null;
+        }
+        return rowBatch.getTuple(rowBatch.selected(rowPos++));
     }
 
     @Override
@@ -103,26 +345,89 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
-}
+    /**
+     * Merges sorted runs with a tournament tree of losers. Leaf i of the tree
+     * is run i, each internal node holds the run that lost the comparison
+     * there, and tree[0] holds the overall winner, whose current row is the
+     * smallest. After the winner moves to its next row only the path from its
+     * leaf to the root is replayed, so each row costs log2(k) comparisons.
+     */
+    private class Merger {
+        private final SpillFile[] files;
+        private final TupleBatch[] batches;
+        private final int[] positions;
+        private final int[] tree;
+        private final int k;
 
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
+        Merger(List<SpillFile> runs) throws IOException {
+            k = runs.size();
+            files = runs.toArray(new SpillFile[0]);
+            batches = new TupleBatch[k];
+            positions = new int[k];
+            for (int i = 0; i < k; i++) {
+                files[i].startReading();
+                batches[i] = files[i].nextBatch(CAPACITY);
+            }
+            tree = new int[Math.max(1, k)];
+            tree[0] = k == 1 ? 0 : build(1);
+        }
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
+        private int build(int node) {
+            if (node >= k)
+                return node - k;
+            int a = build(2 * node);
+            int b = build(2 * node + 1);
+            if (less(b, a)) {
+                tree[node] = a;
+                return b;
+            }
+            tree[node] = b;
+            return a;
+        }
+
+        /**
+         * @return true if the current row of run a sorts before that of run b;
+         * exhausted runs sort after all rows
+         */
+        private boolean less(int a, int b) {
+            if (batches[a] == null)
+                return false;
+            if (batches[b] == null)
+                return true;
+            return comparator.compare(batches[a], batches[a].selected(positions[a]),
+                    batches[b], batches[b].selected(positions[b])) < 0;
+        }
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        boolean exhausted() {
+            return k == 0 || batches[tree[0]] == null;
+        }
+
+        TupleBatch batch() {
+            return batches[tree[0]];
+        }
+
+        int row() {
+            return batches[tree[0]].selected(positions[tree[0]]);
+        }
+
+        /**
+         * Move the winning run to its next row and replay its path to the root
+         */
+        void advance() throws IOException {
+            int s = tree[0];
+            if (++positions[s] == batches[s].numSelected()) {
+                batches[s] = files[s].nextBatch(CAPACITY);
+                positions[s] = 0;
+            }
+            for (int t = (s + k) >> 1; t > 0; t >>= 1) {
+                if (less(tree[t], s)) {
+                    int loser = s;
+                    s = tree[t];
+                    tree[t] = loser;
+                }
+            }
+            tree[0] = s;
+        }
     }
-    
+
 }
@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.common.Type;
 import simpledb.storage.Field;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 
 import java.io.Serializable;
@@ -108,6 +109,84 @@ public class Predicate implements Serializable {
         return t.getField(field).compare(op,operand);
     }
 
+    /**
+     * Applies the predicate to the selected rows of a batch, removing the rows
+     * that do not pass from the selection vector of the batch. Integer columns
+     * are compared directly on the column array.
+     *
+     * @param batch The batch to filter
+     */
+    public void filter(TupleBatch batch) {
+        int[] sel = batch.selection();
+        int n = batch.numSelected();
+        int kept = 0;
+        int[] col = batch.intColumn(field);
+        if (col != null && operand instanceof IntField) {
+            int v = ((IntField) operand).getValue();
+            switch (op) {
+                case EQUALS:
+                case LIKE:
+                    for (int i = 0; i < n; i++) {
+                        if (col[sel[i]] == v) sel[kept++] = sel[i];
+                    }
+                    break;
+                case NOT_EQUALS:
+                    for (int i = 0; i < n; i++) {
+                        if (col[sel[i]] != v) sel[kept++] = sel[i];
+                    }
+                    break;
+                case GREATER_THAN:
+                    for (int i = 0; i < n; i++) {
+                        if (col[sel[i]] > v) sel[kept++] = sel[i];
+                    }
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) {
+                        if (col[sel[i]] >= v) sel[kept++] = sel[i];
+                    }
+                    break;
+                case LESS_THAN:
+                    for (int i = 0; i < n; i++) {
+                        if (col[sel[i]] < v) sel[kept++] = sel[i];
+                    }
+                    break;
+                case LESS_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) {
+                        if (col[sel[i]] <= v) sel[kept++] = sel[i];
+                    }
+                    break;
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                if (batch.getField(field, sel[i]).compare(op, operand)) sel[kept++] = sel[i];
+            }
+        }
+        batch.setNumSelected(kept);
+    }
+
+    /**
+     * Compares two int values with the specified operator, with the same
+     * semantics as IntField.compare.
+     */
+    public static boolean compare(int value, Op op, int operand) {
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return value == operand;
+            case NOT_EQUALS:
+                return value != operand;
+            case GREATER_THAN:
+                return value > operand;
+            case GREATER_THAN_OR_EQ:
+                return value >= operand;
+            case LESS_THAN:
+                return value < operand;
+            case LESS_THAN_OR_EQ:
+                return value <= operand;
+        }
+        return false;
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
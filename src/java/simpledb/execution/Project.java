@@ -17,6 +17,7 @@ public class Project extends Operator {
     private OpIterator child;
     private final TupleDesc td;
     private final List<Integer> outFieldIds;
+    private final int[] outFields;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -42,6 +43,9 @@ public class Project extends Operator {
             fieldAr[i] = childtd.getFieldName(fieldList.get(i));
         }
         td = new TupleDesc(types, fieldAr);
+        outFields = new int[fieldList.size()];
+        for (int i = 0; i < outFields.length; i++)
+            outFields[i] = fieldList.get(i);
     }
 
     public TupleDesc getTupleDesc() {
@@ -81,6 +85,18 @@ public class Project extends Operator {
         return newTuple;
     }
 
+    /**
+     * Projects a batch of the child by picking its columns, without copying
+     * any rows.
+     *
+     * @return The next batch, or null if there are no more tuples
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = child.nextBatch();
+        return batch == null ? null : batch.project(td, outFields);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child};
@@ -27,6 +27,16 @@ public class Query implements Serializable {
     transient private LogicalPlan logicalPlan;
     final TransactionId tid;
     transient private boolean started = false;
+    // the plan is run batch-at-a-time; rows are handed out from the current batch
+    transient private TupleBatch batch = null;
+    transient private int batchPos = 0;
+    // the result cache the result is offered to once it is read completely,
+    // the statement it is cached under, and the tuples read so far
+    transient private ResultCache resultCache = null;
+    transient private String sql = null;
+    transient private ResultCache.Snapshot snapshot = null;
+    transient private List<Tuple> result = null;
+    transient private boolean exhausted = false;
 
     public TransactionId getTransactionId() {
         return this.tid;
@@ -48,6 +58,19 @@ public class Query implements Serializable {
         return this.op;
     }
 
+    /**
+     * Offer the result of this query to a result cache when it has been read
+     * completely. Results larger than the memory budget of the cache are not
+     * collected.
+     *
+     * @param cache the result cache
+     * @param sql   the statement the result is cached under
+     */
+    public void setResultCache(ResultCache cache, String sql) {
+        this.resultCache = cache;
+        this.sql = sql;
+    }
+
     public Query(TransactionId t) {
         tid = t;
     }
@@ -59,7 +82,14 @@ public class Query implements Serializable {
 
     public void start() throws DbException,
             TransactionAbortedException {
+        // the versions are taken before the plan reads any tuple, so that a
+        // modification made while it runs keeps the result out of the cache
+        snapshot = resultCache == null ? null : ResultCache.snapshot(op);
+        result = snapshot == null ? null : new ArrayList<>();
+        exhausted = false;
         op.open();
+        batch = null;
+        batchPos = 0;
 
         started = true;
     }
@@ -70,7 +100,12 @@ public class Query implements Serializable {
 
     /** @return true if there are more tuples remaining. */
     public boolean hasNext() throws DbException, TransactionAbortedException {
-        return op.hasNext();
+        if (batch == null || batchPos == batch.numSelected()) {
+            batch = op.nextBatch();
+            batchPos = 0;
+            exhausted = batch == null;
+        }
+        return batch != null;
     }
 
     /**
@@ -90,12 +125,25 @@ public class Query implements Serializable {
         if (!started)
             throw new DbException("Database not started.");
 
-        return op.next();
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = batch.getTuple(batch.selected(batchPos++));
+        if (result != null) {
+            result.add(t);
+            if (ResultCache.sizeOf(getOutputTupleDesc(), result.size()) > resultCache.getMaxBytes())
+                result = null;
+        }
+        return t;
     }
 
     /** Close the iterator */
     public void close() {
+        if (result != null && exhausted)
+            resultCache.put(sql, getOutputTupleDesc(), result, snapshot);
+        result = null;
+        snapshot = null;
         op.close();
+        batch = null;
         started = false;
     }
 
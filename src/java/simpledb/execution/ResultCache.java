@@ -0,0 +1,337 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeScan;
+import simpledb.index.IndexOnlyScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.*;
+
+/**
+ * ResultCache keeps the results of SELECT statements, so that a statement
+ * that is sent again is answered without being parsed, optimized or run.
+ * Results are looked up by their normalized statement text (see
+ * {@link #normalize}) and are only returned while none of the tables the
+ * query reads has been modified since it ran, which is checked through the
+ * modification counters of {@link BufferPool#getTableVersion}.
+ * <p>
+ * A result is only cached if no running transaction had modified one of its
+ * tables while it was computed, so a cached result never holds uncommitted
+ * data. Results are evicted in least recently used order once the estimated
+ * size of the cached tuples exceeds the memory budget.
+ */
+public class ResultCache {
+
+    /**
+     * The default memory budget of the cache, in bytes
+     */
+    public static final long DEFAULT_MAX_BYTES = 16L << 20;
+    // the estimated size of a Tuple and its Fields beyond their on-disk size
+    private static final int TUPLE_OVERHEAD = 64;
+
+    /**
+     * A cached result: the schema and tuples of a query, and the version of
+     * each table it reads at the time it ran.
+     */
+    public static class Result {
+        private final TupleDesc td;
+        private final List<Tuple> tuples;
+        private final Snapshot snapshot;
+        private final long bytes;
+
+        private Result(TupleDesc td, List<Tuple> tuples, Snapshot snapshot, long bytes) {
+            this.td = td;
+            this.tuples = Collections.unmodifiableList(tuples);
+            this.snapshot = snapshot;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the schema of the result
+         */
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        /**
+         * @return the tuples of the result
+         */
+        public List<Tuple> getTuples() {
+            return tuples;
+        }
+    }
+
+    /**
+     * The versions of the tables a query reads, taken before it runs with
+     * {@link #snapshot}. The file of each table is kept too, so that a table
+     * replaced in the catalog is not mistaken for the one the query read.
+     */
+    public static class Snapshot {
+        private final int[] tableIds;
+        private final long[] versions;
+        private final DbFile[] files;
+
+        private Snapshot(int[] tableIds) {
+            this.tableIds = tableIds;
+            this.versions = new long[tableIds.length];
+            this.files = new DbFile[tableIds.length];
+            for (int i = 0; i < tableIds.length; i++) {
+                versions[i] = Database.getBufferPool().getTableVersion(tableIds[i]);
+                files[i] = Database.getCatalog().getDatabaseFile(tableIds[i]);
+            }
+        }
+
+        /**
+         * @return true if none of the tables has been modified or replaced
+         */
+        boolean isCurrent() {
+            for (int i = 0; i < tableIds.length; i++) {
+                if (Database.getBufferPool().getTableVersion(tableIds[i]) != versions[i])
+                    return false;
+                try {
+                    if (Database.getCatalog().getDatabaseFile(tableIds[i]) != files[i])
+                        return false;
+                } catch (NoSuchElementException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return true if a running transaction has modified one of the tables
+         */
+        boolean hasUncommittedWrites() {
+            for (int tableId : tableIds) {
+                if (Database.getBufferPool().hasUncommittedWrites(tableId))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    // the cached results by normalized statement, in least recently used order
+    private final LinkedHashMap<String, Result> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Normalize the text of a statement, so that statements that only differ
+     * in white space or a trailing semicolon have the same key. Quoted
+     * strings are kept as they are.
+     *
+     * @return the normalized statement
+     */
+    public static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        boolean quoted = false;
+        boolean space = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (!quoted && Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+                continue;
+            }
+            if (space) {
+                sb.append(' ');
+                space = false;
+            }
+            if (c == '\'')
+                quoted = !quoted;
+            sb.append(c);
+        }
+        int end = sb.length();
+        while (end > 0 && (sb.charAt(end - 1) == ';' || sb.charAt(end - 1) == ' '))
+            end--;
+        sb.setLength(end);
+        return sb.toString();
+    }
+
+    /**
+     * @return true if the statement is a SELECT, whose result may be cached
+     */
+    public static boolean isCacheable(String sql) {
+        String s = normalize(sql);
+        return s.regionMatches(true, 0, "select ", 0, 7);
+    }
+
+    /**
+     * Take the versions of the tables a plan reads.
+     *
+     * @return the versions of the tables, or null if the plan reads from an
+     * operator whose tables are not known, so that its result cannot be cached
+     */
+    public static Snapshot snapshot(OpIterator plan) {
+        Set<Integer> tables = new TreeSet<>();
+        if (!addTables(plan, tables))
+            return null;
+        int[] ids = new int[tables.size()];
+        int i = 0;
+        for (int id : tables)
+            ids[i++] = id;
+        return new Snapshot(ids);
+    }
+
+    /**
+     * Add the tables the scans of a plan read to a set.
+     *
+     * @return false if the plan has a leaf that is not a known scan
+     */
+    private static boolean addTables(OpIterator plan, Set<Integer> tables) {
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (child != null && !addTables(child, tables))
+                    return false;
+            }
+            return true;
+        }
+        String name;
+        if (plan instanceof SeqScan) {
+            tables.add(((SeqScan) plan).getTableId());
+            return true;
+        } else if (plan instanceof MorselScan) {
+            name = ((MorselScan) plan).getTableName();
+        } else if (plan instanceof IndexOnlyScan) {
+            name = ((IndexOnlyScan) plan).getTableName();
+        } else if (plan instanceof BTreeScan) {
+            name = ((BTreeScan) plan).getTableName();
+        } else {
+            return false;
+        }
+        tables.add(Database.getCatalog().getTableId(name));
+        return true;
+    }
+
+    /**
+     * Look up the result of a statement.
+     *
+     * @param sql the text of the statement
+     * @return the cached result, or null if the statement is not cached or
+     * one of its tables has changed since it ran
+     */
+    public synchronized Result get(String sql) {
+        String key = normalize(sql);
+        Result e = entries.get(key);
+        if (e != null && !e.snapshot.isCurrent()) {
+            remove(key);
+            e = null;
+        }
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e;
+    }
+
+    /**
+     * @return the estimated memory used by the specified tuples
+     */
+    public static long sizeOf(TupleDesc td, int numTuples) {
+        return (long) numTuples * (td.getSize() + TUPLE_OVERHEAD);
+    }
+
+    /**
+     * Cache the result of a statement, unless one of its tables was modified
+     * since the snapshot was taken or by a transaction that is still running,
+     * or the result is larger than the memory budget.
+     *
+     * @param sql      the text of the statement
+     * @param td       the schema of the result
+     * @param tuples   the tuples of the result
+     * @param snapshot the versions of the tables taken before the query ran
+     * @return true if the result was cached
+     */
+    public synchronized boolean put(String sql, TupleDesc td, List<Tuple> tuples, Snapshot snapshot) {
+        String key = normalize(sql);
+        long size = sizeOf(td, tuples.size()) + 2L * key.length();
+        if (size > maxBytes || !snapshot.isCurrent() || snapshot.hasUncommittedWrites())
+            return false;
+        remove(key);
+        entries.put(key, new Result(td, new ArrayList<>(tuples), snapshot, size));
+        bytes += size;
+        evict();
+        return true;
+    }
+
+    private void remove(String key) {
+        Result e = entries.remove(key);
+        if (e != null)
+            bytes -= e.bytes;
+    }
+
+    private void evict() {
+        Iterator<Result> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().bytes;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Set the memory budget of the cache, evicting results if needed.
+     *
+     * @param bytes the memory budget in bytes
+     */
+    public synchronized void setMaxBytes(long bytes) {
+        this.maxBytes = bytes;
+        evict();
+    }
+
+    /**
+     * @return the memory budget of the cache in bytes
+     */
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Remove all results from the cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return the number of cached results
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the estimated memory used by the cached results, in bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of lookups that returned a cached result
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that did not return a cached result
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of results evicted to stay within the memory budget
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
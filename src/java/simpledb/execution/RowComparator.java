@@ -0,0 +1,28 @@
+package simpledb.execution;
+
+/**
+ * Compares rows of tuple batches on a list of fields
+ */
+class RowComparator implements java.io.Serializable {
+    private static final long serialVersionUID = 1L;
+    final int[] fields;
+    final boolean[] asc;
+
+    public RowComparator(int[] fields, boolean[] asc) {
+        this.fields = fields;
+        this.asc = asc;
+    }
+
+    public int compare(TupleBatch b1, int r1, TupleBatch b2, int r2) {
+        for (int i = 0; i < fields.length; i++) {
+            int f = fields[i];
+            int[] ints1 = b1.intColumn(f);
+            int c = ints1 != null
+                    ? Integer.compare(ints1[r1], b2.intColumn(f)[r2])
+                    : b1.getString(f, r1).compareTo(b2.getString(f, r2));
+            if (c != 0)
+                return asc[i] ? c : -c;
+        }
+        return 0;
+    }
+}
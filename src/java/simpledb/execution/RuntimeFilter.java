@@ -0,0 +1,69 @@
+package simpledb.execution;
+
+import simpledb.storage.Tuple;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RuntimeFilter passes a filter on a join key from a HashEquiJoin to the
+ * scans of its probe side (sideways information passing). The join sets a
+ * {@link BloomFilter} of the keys of its build side once the build side has
+ * been read, and the scans then drop the tuples whose key is not in it before
+ * copying them. Until the filter is set, every tuple passes, so a scan that
+ * runs ahead of the build returns tuples the join discards itself.
+ */
+public class RuntimeFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int field;
+    private transient volatile BloomFilter bloom;
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param field the field of the tuples of the scan that holds the key
+     */
+    public RuntimeFilter(int field) {
+        this.field = field;
+    }
+
+    /**
+     * @return the field of the tuples of the scan that holds the key
+     */
+    public int getField() {
+        return field;
+    }
+
+    /**
+     * Set the keys that may match, or null to let every tuple pass.
+     */
+    public void set(BloomFilter bloom) {
+        this.bloom = bloom;
+    }
+
+    /**
+     * @return the keys that may match, or null if they are not known yet
+     */
+    public BloomFilter get() {
+        return bloom;
+    }
+
+    /**
+     * @return false if the key of the tuple cannot match
+     */
+    public boolean filter(Tuple t) {
+        BloomFilter b = bloom;
+        if (b == null || b.mightContain(BloomFilter.hash(t.getField(field))))
+            return true;
+        dropped.increment();
+        return false;
+    }
+
+    /**
+     * @return the number of tuples this filter has dropped
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+}
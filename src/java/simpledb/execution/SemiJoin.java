@@ -0,0 +1,454 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The SemiJoin operator returns the tuples of child1 whose join field equals
+ * the join field of at least one tuple of child2, each once, however many
+ * tuples of child2 it matches. It implements IN and EXISTS subqueries; see
+ * {@link AntiJoin} for NOT IN and NOT EXISTS.
+ * <p>
+ * Only the distinct join keys of child2 are loaded into an in-memory hash
+ * set, and child1 is then streamed past it. If the keys do not fit in the
+ * memory budget, both sides are split into NUM_PARTITIONS partitions by the
+ * hash of the join key, written to spill files, and each pair of partitions
+ * is joined afterwards (a Grace hash join). The keys of a single partition
+ * are loaded whole, whatever their number.
+ */
+public class SemiJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private final boolean anti;
+    private OpIterator child1, child2;
+    // the schema of the join keys of child2
+    private final TupleDesc keyTD;
+
+    /**
+     * Constructor.
+     *
+     * @param p      The predicate to join the children on, which must be EQUALS
+     * @param child1 Iterator for the relation whose tuples are returned
+     * @param child2 Iterator for the relation the tuples of child1 are
+     *               matched against
+     */
+    public SemiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, false);
+    }
+
+    SemiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, boolean anti) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("unsupported semi-join predicate " + p.getOperator());
+        if (child1.getTupleDesc().getFieldType(p.getField1()) != child2.getTupleDesc().getFieldType(p.getField2()))
+            throw new IllegalArgumentException("join fields have different types");
+        this.pred = p;
+        this.anti = anti;
+        this.child1 = child1;
+        this.child2 = child2;
+        TupleDesc td2 = child2.getTupleDesc();
+        keyTD = new TupleDesc(new Type[]{td2.getFieldType(p.getField2())},
+                new String[]{td2.getFieldName(p.getField2())});
+        memoryBudget = (long) MAX_KEYS * keyTD.getSize();
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * @return true if the tuples of child1 that match no tuple of child2 are
+     * returned instead of those that match
+     */
+    public boolean isAnti() {
+        return anti;
+    }
+
+    /**
+     * Returns the TupleDesc of child1.
+     */
+    public TupleDesc getTupleDesc() {
+        return child1.getTupleDesc();
+    }
+
+    /**
+     * The number of join keys held in memory with the default memory budget
+     */
+    public final static int MAX_KEYS = 100000;
+    /**
+     * The number of partitions the inputs are split into when the join keys
+     * of child2 do not fit in memory
+     */
+    public final static int NUM_PARTITIONS = 32;
+    private final static int PARTITION_BITS = 5;
+
+    private long memoryBudget;
+
+    /**
+     * Set the memory the join keys may use. The budget is counted as the
+     * on-disk size of the keys held in memory.
+     *
+     * @param bytes the memory budget in bytes
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @return the memory budget in bytes
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    private int maxKeys() {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / keyTD.getSize()));
+    }
+
+    // spill metrics of the current or last run
+    private int spilledPartitions = 0;
+    private long spilledBuildTuples = 0;
+    private long spilledProbeTuples = 0;
+    private long spilledBytes = 0;
+
+    /**
+     * @return the number of partitions written to spill files
+     */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    /**
+     * @return the number of join keys of child2 written to spill files
+     */
+    public long getSpilledBuildTuples() {
+        return spilledBuildTuples;
+    }
+
+    /**
+     * @return the number of tuples of child1 written to spill files
+     */
+    public long getSpilledProbeTuples() {
+        return spilledProbeTuples;
+    }
+
+    /**
+     * @return the number of bytes written to spill files
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    private static int partition(int hash) {
+        return (hash * 0x9E3779B9) >>> (32 - PARTITION_BITS);
+    }
+
+    private static final int CAPACITY = TupleBatch.DEFAULT_CAPACITY;
+
+    // the join keys in memory, through intKeys if the join fields are
+    // INT_TYPE and through keys otherwise; keyStore holds the same keys, so
+    // that they can be spilled if they overflow the memory budget
+    private final IntHashTable intKeys = new IntHashTable();
+    private final Set<Object> keys = new HashSet<>();
+    private final List<TupleBatch> keyStore = new ArrayList<>();
+    transient private int numKeys = 0;
+
+    private boolean intJoin() {
+        return keyTD.getFieldType(0) == Type.INT_TYPE;
+    }
+
+    private void clearKeys() {
+        intKeys.clear();
+        keys.clear();
+        keyStore.clear();
+        numKeys = 0;
+    }
+
+    /**
+     * Add the key of a row of a batch to the set if it is not in it yet.
+     */
+    private void addKey(TupleBatch batch, int field, int row) {
+        boolean added;
+        if (intJoin())
+            added = intKeys.putIfAbsent(batch.intColumn(field)[row], numKeys) == IntHashTable.NOT_FOUND;
+        else
+            added = keys.add(batch.getKey(field, row));
+        if (!added)
+            return;
+        if (numKeys % CAPACITY == 0)
+            keyStore.add(new TupleBatch(keyTD, CAPACITY));
+        TupleBatch store = keyStore.get(numKeys / CAPACITY);
+        int r = store.addEmptyRow();
+        if (intJoin())
+            store.intColumn(0)[r] = batch.intColumn(field)[row];
+        else
+            store.stringColumn(0)[r] = batch.getString(field, row);
+        numKeys++;
+    }
+
+    private boolean containsKey(TupleBatch batch, int field, int row) {
+        if (intJoin())
+            return intKeys.get(batch.intColumn(field)[row]) != IntHashTable.NOT_FOUND;
+        return keys.contains(batch.getKey(field, row));
+    }
+
+    private int partition(TupleBatch batch, int field, int row) {
+        if (intJoin())
+            return partition(batch.intColumn(field)[row]);
+        return partition(batch.getKey(field, row).hashCode());
+    }
+
+    private enum Phase { BUILD, PROBE, SPILLED, DONE }
+
+    transient private Phase phase = Phase.BUILD;
+    // set once the keys of child2 have overflowed the memory budget
+    transient private boolean partitioned = false;
+    transient private SpillFile[] buildFiles;
+    transient private SpillFile[] probeFiles;
+    // the spilled partition being joined
+    transient private int partition;
+    // the batch fetchNext hands out rows from
+    transient private TupleBatch rowBatch = null;
+    transient private int rowPos = 0;
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        reset();
+        resetMetrics();
+        super.open();
+    }
+
+    private void reset() {
+        clearKeys();
+        deleteSpillFiles();
+        phase = Phase.BUILD;
+        partitioned = false;
+        rowBatch = null;
+    }
+
+    private void resetMetrics() {
+        spilledPartitions = 0;
+        spilledBuildTuples = 0;
+        spilledProbeTuples = 0;
+        spilledBytes = 0;
+    }
+
+    private void deleteSpillFiles() {
+        for (SpillFile[] files : new SpillFile[][]{buildFiles, probeFiles}) {
+            if (files != null) {
+                for (SpillFile f : files) {
+                    if (f != null)
+                        f.delete();
+                }
+            }
+        }
+        buildFiles = null;
+        probeFiles = null;
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        reset();
+        resetMetrics();
+    }
+
+    private void spill(SpillFile[] files, int p, TupleBatch batch, int row) throws IOException {
+        if (files[p] == null)
+            files[p] = new SpillFile(batch.getTupleDesc());
+        files[p].add(batch, row);
+    }
+
+    /**
+     * Read the join keys of child2 into the set, or into spill files once
+     * they overflow the memory budget.
+     */
+    private void build() throws DbException, TransactionAbortedException, IOException {
+        int max = maxKeys();
+        int[] key = new int[]{pred.getField2()};
+        TupleBatch batch;
+        while ((batch = child2.nextBatch()) != null) {
+            if (partitioned) {
+                TupleBatch keyBatch = batch.project(keyTD, key);
+                for (int i = 0; i < keyBatch.numSelected(); i++) {
+                    int row = keyBatch.selected(i);
+                    spill(buildFiles, partition(keyBatch, 0, row), keyBatch, row);
+                    spilledBuildTuples++;
+                }
+                continue;
+            }
+            for (int i = 0; i < batch.numSelected(); i++)
+                addKey(batch, pred.getField2(), batch.selected(i));
+            if (numKeys > max) {
+                // move the keys read so far to spill files, and spill the rest as they are read
+                partitioned = true;
+                buildFiles = new SpillFile[NUM_PARTITIONS];
+                probeFiles = new SpillFile[NUM_PARTITIONS];
+                for (TupleBatch store : keyStore) {
+                    for (int row = 0; row < store.numRows(); row++)
+                        spill(buildFiles, partition(store, 0, row), store, row);
+                }
+                spilledBuildTuples += numKeys;
+                clearKeys();
+            }
+        }
+    }
+
+    /**
+     * Keep the selected rows of a batch of child1 that match (or, for an
+     * anti-join, do not match) the keys in memory.
+     */
+    private void probe(TupleBatch batch) {
+        int[] sel = batch.selection();
+        int kept = 0;
+        for (int i = 0; i < batch.numSelected(); i++) {
+            int row = sel[i];
+            if (containsKey(batch, pred.getField1(), row) != anti)
+                sel[kept++] = row;
+        }
+        batch.setNumSelected(kept);
+    }
+
+    /**
+     * Write child1 to the probe side spill files, by partition.
+     */
+    private void partitionProbeSide() throws DbException, TransactionAbortedException, IOException {
+        TupleBatch batch;
+        while ((batch = child1.nextBatch()) != null) {
+            for (int i = 0; i < batch.numSelected(); i++) {
+                int row = batch.selected(i);
+                spill(probeFiles, partition(batch, pred.getField1(), row), batch, row);
+                spilledProbeTuples++;
+            }
+        }
+        for (int p = 0; p < NUM_PARTITIONS; p++) {
+            if (buildFiles[p] != null || probeFiles[p] != null)
+                spilledPartitions++;
+            for (SpillFile f : new SpillFile[]{buildFiles[p], probeFiles[p]}) {
+                if (f != null)
+                    spilledBytes += f.bytes();
+            }
+        }
+        partition = -1;
+    }
+
+    /**
+     * Move on to the next spilled partition with tuples of child1, loading
+     * its keys into the set.
+     *
+     * @return false if there are no partitions left
+     */
+    private boolean nextPartition() throws IOException {
+        clearKeys();
+        if (partition >= 0) {
+            probeFiles[partition].delete();
+            probeFiles[partition] = null;
+        }
+        do {
+            partition++;
+        } while (partition < NUM_PARTITIONS && probeFiles[partition] == null);
+        if (partition == NUM_PARTITIONS)
+            return false;
+        SpillFile keyFile = buildFiles[partition];
+        if (keyFile != null) {
+            keyFile.startReading();
+            TupleBatch batch;
+            while ((batch = keyFile.nextBatch(CAPACITY)) != null) {
+                for (int i = 0; i < batch.numSelected(); i++)
+                    addKey(batch, 0, batch.selected(i));
+            }
+            keyFile.delete();
+            buildFiles[partition] = null;
+        }
+        probeFiles[partition].startReading();
+        return true;
+    }
+
+    /**
+     * Returns the next batch of tuples of child1 that match (or, for an
+     * anti-join, do not match) a tuple of child2.
+     *
+     * @return The next batch of tuples, or null if there are no more tuples.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        try {
+            if (phase == Phase.BUILD) {
+                build();
+                phase = Phase.PROBE;
+                if (partitioned) {
+                    partitionProbeSide();
+                    phase = Phase.SPILLED;
+                    if (!nextPartition())
+                        phase = Phase.DONE;
+                }
+            }
+            while (phase != Phase.DONE) {
+                TupleBatch batch = phase == Phase.PROBE ? child1.nextBatch()
+                        : probeFiles[partition].nextBatch(CAPACITY);
+                if (batch != null) {
+                    probe(batch);
+                    if (batch.numSelected() > 0)
+                        return batch;
+                } else if (phase == Phase.PROBE || !nextPartition()) {
+                    phase = Phase.DONE;
+                    clearKeys();
+                    deleteSpillFiles();
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            throw new DbException("semi-join spill failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the next tuple of child1 that matches (or, for an anti-join,
+     * does not match) a tuple of child2, or null if there are no more
+     * tuples. Tuples are handed out from the batches of nextBatch.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (rowBatch == null || rowPos == rowBatch.numSelected()) {
+            rowBatch = nextBatch();
+            rowPos = 0;
+            if (rowBatch == null)
+                return null;
+        }
+        return rowBatch.getTuple(rowBatch.selected(rowPos++));
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
@@ -7,6 +7,8 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -16,6 +18,11 @@ import java.util.*;
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
+ * <p>
+ * A scan of a HeapFile can be given predicates and a list of fields of the
+ * table, which are pushed down to the pages it reads: it then only returns
+ * the tuples that pass every predicate, with only those fields, and does not
+ * need a Filter or Project above it (see {@link HeapPage#scan}).
  */
 public class SeqScan implements OpIterator {
 
@@ -41,12 +48,16 @@ public class SeqScan implements OpIterator {
     private int tableid;
     private String tableAlias;
     private DbFileIterator it;
+    private TupleDesc td;
+    // reads the pages of the table when predicates or fields are pushed down
+    private MorselScan pushdown;
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
         // some code goes here
         this.tid=tid;
         this.tableid=tableid;
         this.tableAlias=tableAlias;
         it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        td = aliasTupleDesc();
     }
 
     /**
@@ -55,7 +66,14 @@ public class SeqScan implements OpIterator {
      *       be the actual name of the table in the catalog of the database
      * */
     public String getTableName() {
-        return null;
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return tableid;
     }
 
     /**
@@ -84,6 +102,77 @@ public class SeqScan implements OpIterator {
         this.tableid=tableid;
         this.tableAlias=tableAlias;
         it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        td = aliasTupleDesc();
+        pushdown = null;
+    }
+
+    /**
+     * Creates a sequential scan over the specified HeapFile that only returns
+     * the specified fields of the tuples that pass every predicate.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param tableid    the table to scan, which must be a HeapFile.
+     * @param tableAlias the alias of this table, as for the other constructor.
+     * @param predicates predicates over the fields of the table
+     * @param fields     the fields of the table to return, in order, or null
+     *                   for all of them
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias,
+                   Predicate[] predicates, int[] fields) {
+        this(tid, tableid, tableAlias);
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile))
+            throw new IllegalArgumentException("only scans of a HeapFile can be pushed down to");
+        pushdown = new MorselScan(tid, new Morsels(tableid), tableAlias, predicates, fields);
+        td = pushdown.getTupleDesc();
+    }
+
+    /**
+     * @return the predicates over the fields of the table that the returned
+     * tuples pass
+     */
+    public Predicate[] getPredicates() {
+        return pushdown == null ? new Predicate[0] : pushdown.getPredicates();
+    }
+
+    /**
+     * @return the fields of the table this scan returns, or null if it
+     * returns all of them
+     */
+    public int[] getFields() {
+        return pushdown == null ? null : pushdown.getFields();
+    }
+
+    /**
+     * Compile the predicates pushed down into this scan with
+     * {@link ExpressionCompiler}, for scans of tables large enough to be
+     * worth it.
+     */
+    public void compilePredicates() {
+        if (pushdown != null)
+            pushdown.compilePredicates();
+    }
+
+    /**
+     * Drop the tuples that do not pass a filter on a join key, set by a
+     * HashEquiJoin that reads this scan (see {@link RuntimeFilter}). Only
+     * scans of a HeapFile take runtime filters.
+     *
+     * @param filter a filter on a field of the table
+     */
+    public void addRuntimeFilter(RuntimeFilter filter) {
+        if (pushdown == null) {
+            if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile))
+                throw new IllegalArgumentException("only scans of a HeapFile take runtime filters");
+            pushdown = new MorselScan(tid, new Morsels(tableid), tableAlias, new Predicate[0], null);
+        }
+        pushdown.addRuntimeFilter(filter);
+    }
+
+    /**
+     * @return the filters on join keys this scan applies
+     */
+    public RuntimeFilter[] getRuntimeFilters() {
+        return pushdown == null ? new RuntimeFilter[0] : pushdown.getRuntimeFilters();
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -92,7 +181,10 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        it.open();
+        if (pushdown != null)
+            pushdown.open();
+        else
+            it.open();
     }
 
     /**
@@ -107,6 +199,10 @@ public class SeqScan implements OpIterator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
+        return td;
+    }
+
+    private TupleDesc aliasTupleDesc() {
         TupleDesc tupleDescOriginal = Database.getCatalog().getDatabaseFile(tableid).getTupleDesc();
         Iterator<TupleDesc.TDItem> it=tupleDescOriginal.iterator();
         Type[] typeAr=new Type[tupleDescOriginal.numFields()];
@@ -124,25 +220,51 @@ public class SeqScan implements OpIterator {
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
         // some code goes here
+        if (pushdown != null)
+            return pushdown.hasNext();
         return it.hasNext();
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
+        if (pushdown != null)
+            return pushdown.next();
         Tuple tuple=it.next();
-        tuple.resetTupleDesc(getTupleDesc());
+        tuple.resetTupleDesc(td);
         return tuple;
     }
 
+    /**
+     * Copies the next tuples of the table into a batch.
+     *
+     * @return the next batch of tuples, or null if the scan is finished
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (pushdown != null)
+            return pushdown.nextBatch();
+        if (!it.hasNext())
+            return null;
+        TupleBatch batch = new TupleBatch(td, TupleBatch.DEFAULT_CAPACITY);
+        while (!batch.isFull() && it.hasNext())
+            batch.addTuple(it.next());
+        return batch;
+    }
+
     public void close() {
         // some code goes here
-        it.close();
+        if (pushdown != null)
+            pushdown.close();
+        else
+            it.close();
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
-        it.rewind();
+        if (pushdown != null)
+            pushdown.rewind();
+        else
+            it.rewind();
     }
 }
@@ -0,0 +1,148 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * SharedHashBuild is the build side of a hash join whose probe side runs as
+ * several pipelines in parallel, each a {@link HashProbe} on a worker of an
+ * {@link Exchange}. The build side is read once into a hash table that the
+ * probes share: the first probe opened reads it, and the others wait until
+ * it has been read. If the build side is itself a parallel scan, it is read
+ * in parallel too.
+ * <p>
+ * Unlike HashEquiJoin, the shared table is never partitioned, so it holds
+ * the whole build side. The planner only uses it when the estimated build
+ * side fits the memory budget of a HashEquiJoin.
+ * <p>
+ * Once the build side has been read, a {@link BloomFilter} of its join keys
+ * is handed to the {@link RuntimeFilter}s added with addRuntimeFilter, before
+ * any of the probes reads its probe side.
+ */
+public class SharedHashBuild implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final OpIterator child;
+    private final int field;
+    private final boolean intKeys;
+    private final List<RuntimeFilter> runtimeFilters = new ArrayList<>();
+    // the estimated number of tuples of child, or -1 if not known
+    private int buildEstimate = -1;
+
+    private transient JoinHashTable table;
+    // the number of times the table has been built
+    private int round = 0;
+    // the probes that have the table open
+    private int users = 0;
+
+    /**
+     * @param child     the build side
+     * @param field     the join field of child
+     * @param probeType the type of the join field of the probe side
+     */
+    public SharedHashBuild(OpIterator child, int field, Type probeType) {
+        this.child = child;
+        this.field = field;
+        this.intKeys = child.getTupleDesc().getFieldType(field) == Type.INT_TYPE
+                && probeType == Type.INT_TYPE;
+    }
+
+    /**
+     * @return the build side
+     */
+    public OpIterator getChild() {
+        return child;
+    }
+
+    /**
+     * @return the join field of the build side
+     */
+    public int getField() {
+        return field;
+    }
+
+    /**
+     * Set the estimated number of tuples of the build side, which the Bloom
+     * filter passed to the runtime filters is sized for.
+     */
+    public void setBuildEstimate(int tuples) {
+        this.buildEstimate = tuples;
+    }
+
+    /**
+     * Pass a Bloom filter of the join keys of the build side to a filter on
+     * the join field of a scan that the probes read, each time the build
+     * side has been read.
+     */
+    public void addRuntimeFilter(RuntimeFilter filter) {
+        runtimeFilters.add(filter);
+    }
+
+    /**
+     * @return the filters the join keys of the build side are passed to
+     */
+    public List<RuntimeFilter> getRuntimeFilters() {
+        return Collections.unmodifiableList(runtimeFilters);
+    }
+
+    /**
+     * Called by a probe when it is opened for the nth time. The first probe
+     * opened for the nth time reads the build side, and the other probes wait
+     * until it is done. As with {@link Morsels}, all of the probes must be
+     * opened the same number of times, and closed before any is opened again.
+     *
+     * @param n the number of times the calling probe has been opened
+     * @return the hash table of the build side
+     */
+    synchronized JoinHashTable acquire(int n) throws DbException, TransactionAbortedException {
+        users++;
+        if (n > round) {
+            round = n;
+            table = null;
+            for (RuntimeFilter f : runtimeFilters)
+                f.set(null);
+            JoinHashTable built = new JoinHashTable(child.getTupleDesc(), field, intKeys);
+            BloomFilter bloom = runtimeFilters.isEmpty() ? null
+                    : new BloomFilter(buildEstimate >= 0 ? buildEstimate : HashEquiJoin.MAP_SIZE);
+            child.open();
+            try {
+                TupleBatch batch;
+                while ((batch = child.nextBatch()) != null) {
+                    for (int i = 0; i < batch.numSelected(); i++) {
+                        int row = batch.selected(i);
+                        if (bloom != null) {
+                            int[] ints = batch.intColumn(field);
+                            bloom.add(ints != null ? BloomFilter.hash(ints[row])
+                                    : BloomFilter.hash(batch.getString(field, row)));
+                        }
+                        built.insert(batch, row);
+                    }
+                }
+            } finally {
+                child.close();
+            }
+            table = built;
+            if (bloom != null) {
+                for (RuntimeFilter f : runtimeFilters)
+                    f.set(bloom);
+            }
+        }
+        if (table == null)
+            throw new DbException("the build side of the hash join could not be read");
+        return table;
+    }
+
+    /**
+     * Called by a probe when it is closed; the table is dropped once every
+     * probe is done with it.
+     */
+    synchronized void release() {
+        if (users > 0 && --users == 0)
+            table = null;
+    }
+}
@@ -0,0 +1,421 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.DbException;
+import simpledb.index.BTreeScan;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins two children on an equality or inequality
+ * predicate by reading both in ascending order of their join fields. A child
+ * that is not already in that order (see {@link #isSortedOn}) is sorted with
+ * an {@link OrderBy}, which spills to disk if it does not fit in memory.
+ * <p>
+ * For EQUALS, the tuples of child2 with the same key are buffered one group at
+ * a time and joined with each tuple of child1 with that key. For LESS_THAN,
+ * LESS_THAN_OR_EQ, GREATER_THAN and GREATER_THAN_OR_EQ, the sorted child2 is
+ * read into memory a chunk at a time, as much of it as fits in the memory
+ * budget, and all of child1 is merged with each chunk. The tuples of a chunk
+ * that match a tuple of child1 are a suffix or a prefix of it whose boundary
+ * only moves forward as child1 is read, so no predicate is evaluated on a
+ * pair that does not match. The sorted child1 is read once per chunk.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on.
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator must
+     *            be EQUALS, LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN or
+     *            GREATER_THAN_OR_EQ
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("sort-merge join does not support " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        memoryBudget = (long) CHUNK_SIZE * child2.getTupleDesc().getSize();
+    }
+
+    /**
+     * The number of tuples of child2 a range join holds in memory with the
+     * default memory budget
+     */
+    public final static int CHUNK_SIZE = 20000;
+
+    private long memoryBudget;
+    private int chunks = 0;
+
+    /**
+     * Set the memory the tuples of child2 held by a range join may use. The
+     * budget is counted as the on-disk size of the tuples.
+     *
+     * @param bytes the memory budget in bytes
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @return the memory budget in bytes
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return the number of chunks of child2 a range join read in the
+     * current or last run
+     */
+    public int getChunks() {
+        return chunks;
+    }
+
+    private int maxChunkTuples() {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / child2.getTupleDesc().getSize()));
+    }
+
+    /**
+     * @return true if a sort-merge join can evaluate a predicate with operator op
+     */
+    public static boolean supports(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether an iterator returns its tuples in ascending order of a field:
+     * an ascending OrderBy or TopN on that field, a BTreeScan on its key
+     * field, or a Filter or Limit over such an iterator.
+     *
+     * @param op the iterator
+     * @param field the index of the field in the tuples of op
+     * @return true if op is known to be sorted on field
+     */
+    public static boolean isSortedOn(OpIterator op, int field) {
+        if (op instanceof Filter || op instanceof Limit)
+            return isSortedOn(((Operator) op).getChildren()[0], field);
+        if (op instanceof OrderBy)
+            return ((OrderBy) op).getOrderByField() == field && ((OrderBy) op).isASC();
+        if (op instanceof TopN)
+            return ((TopN) op).getOrderByField() == field && ((TopN) op).getAscending()[0];
+        if (op instanceof BTreeScan)
+            return ((BTreeScan) op).getKeyField() == field;
+        return false;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    private static final int CAPACITY = TupleBatch.DEFAULT_CAPACITY;
+
+    /**
+     * Reads the batches of a sorted input a row at a time
+     */
+    private static class Cursor implements java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+        final OpIterator op;
+        TupleBatch batch = null;
+        int pos = 0;
+        boolean done = false;
+
+        Cursor(OpIterator op) {
+            this.op = op;
+        }
+
+        /**
+         * @return true if there is a current row, reading the next batch if needed
+         */
+        boolean load() throws DbException, TransactionAbortedException {
+            while (!done && (batch == null || pos == batch.numSelected())) {
+                batch = op.nextBatch();
+                pos = 0;
+                if (batch == null)
+                    done = true;
+            }
+            return !done;
+        }
+
+        int row() {
+            return batch.selected(pos);
+        }
+    }
+
+    // the sorted inputs
+    transient private OpIterator sorted1, sorted2;
+    transient private Cursor left, right;
+
+    // rows of child2: for EQUALS, the current group of equal keys; otherwise
+    // the current chunk of child2. Row i is row i % CAPACITY of store[i / CAPACITY].
+    private final List<TupleBatch> store = new ArrayList<>();
+    transient private int numStored = 0;
+    transient private boolean materialized = false;
+    // the rows of store that match the current row of child1 are [from, to),
+    // and pos is the next one to emit; for EQUALS, matching is set while the
+    // current row of child1 has the key of the group
+    transient private int from = 0, to = 0, pos = 0;
+    transient private boolean matching = false;
+    // the batch fetchNext hands out rows from
+    transient private TupleBatch rowBatch = null;
+    transient private int rowPos = 0;
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        sorted1 = isSortedOn(child1, pred.getField1()) ? child1 : new OrderBy(pred.getField1(), true, child1);
+        sorted2 = isSortedOn(child2, pred.getField2()) ? child2 : new OrderBy(pred.getField2(), true, child2);
+        sorted1.open();
+        sorted2.open();
+        reset();
+        super.open();
+    }
+
+    private void reset() {
+        left = new Cursor(sorted1);
+        right = new Cursor(sorted2);
+        store.clear();
+        numStored = 0;
+        materialized = false;
+        from = to = pos = 0;
+        matching = false;
+        rowBatch = null;
+        chunks = 0;
+    }
+
+    public void close() {
+        super.close();
+        if (sorted2 != null)
+            sorted2.close();
+        if (sorted1 != null)
+            sorted1.close();
+        store.clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        sorted1.rewind();
+        sorted2.rewind();
+        reset();
+    }
+
+    private TupleBatch storedBatch(int i) {
+        return store.get(i / CAPACITY);
+    }
+
+    private void storeRow(TupleBatch batch, int row) {
+        if (numStored % CAPACITY == 0)
+            store.add(new TupleBatch(child2.getTupleDesc(), CAPACITY));
+        store.get(numStored / CAPACITY).addRow(batch, row);
+        numStored++;
+    }
+
+    /**
+     * @return the comparison of the join key of the current row of child1
+     * with the join key of row i of store
+     */
+    private int compareToStored(int i) {
+        return compareKeys(left.batch, left.row(), pred.getField1(), storedBatch(i), i % CAPACITY, pred.getField2());
+    }
+
+    private static int compareKeys(TupleBatch b1, int r1, int f1, TupleBatch b2, int r2, int f2) {
+        int[] ints1 = b1.intColumn(f1);
+        if (ints1 != null)
+            return Integer.compare(ints1[r1], b2.intColumn(f2)[r2]);
+        return b1.getString(f1, r1).compareTo(b2.getString(f2, r2));
+    }
+
+    /**
+     * Returns the next batch of joined tuples. Each tuple is the
+     * concatenation of a tuple of child1 and a tuple of child2 that satisfy
+     * the predicate.
+     *
+     * @return The next batch of matching tuples, or null if there are no more
+     * tuples.
+     */
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch out = new TupleBatch(comboTD, TupleBatch.DEFAULT_CAPACITY);
+        if (pred.getOperator() == Predicate.Op.EQUALS)
+            mergeEquals(out);
+        else
+            mergeRange(out);
+        return out.numSelected() > 0 ? out : null;
+    }
+
+    private void mergeEquals(TupleBatch out) throws DbException, TransactionAbortedException {
+        while (!out.isFull()) {
+            if (matching) {
+                out.addJoinedRow(left.batch, left.row(), storedBatch(pos), pos % CAPACITY);
+                if (++pos == numStored) {
+                    pos = 0;
+                    left.pos++;
+                    matching = left.load() && compareToStored(0) == 0;
+                }
+                continue;
+            }
+            if (!left.load())
+                return;
+            if (numStored > 0 && compareToStored(0) == 0) {
+                // another row of child1 with the key of the buffered group
+                matching = true;
+                pos = 0;
+                continue;
+            }
+            if (!right.load())
+                return;
+            int c = compareKeys(left.batch, left.row(), pred.getField1(), right.batch, right.row(), pred.getField2());
+            if (c < 0) {
+                left.pos++;
+            } else if (c > 0) {
+                right.pos++;
+            } else {
+                // buffer the rows of child2 with this key
+                store.clear();
+                numStored = 0;
+                do {
+                    storeRow(right.batch, right.row());
+                    right.pos++;
+                } while (right.load() && compareKeys(storedBatch(0), 0, pred.getField2(),
+                        right.batch, right.row(), pred.getField2()) == 0);
+                matching = true;
+                pos = 0;
+            }
+        }
+    }
+
+    /**
+     * Read the next chunk of child2 into store.
+     *
+     * @return false if child2 has no more tuples
+     */
+    private boolean nextChunk() throws DbException, TransactionAbortedException {
+        store.clear();
+        numStored = 0;
+        int max = maxChunkTuples();
+        while (numStored < max && right.load()) {
+            storeRow(right.batch, right.row());
+            right.pos++;
+        }
+        // the boundary starts at the first row of the chunk
+        from = to = pos = 0;
+        matching = false;
+        if (numStored == 0)
+            return false;
+        chunks++;
+        return true;
+    }
+
+    private void mergeRange(TupleBatch out) throws DbException, TransactionAbortedException {
+        if (!materialized) {
+            materialized = true;
+            if (!nextChunk())
+                return;
+        }
+        Predicate.Op op = pred.getOperator();
+        while (!out.isFull()) {
+            if (matching) {
+                if (pos < to) {
+                    out.addJoinedRow(left.batch, left.row(), storedBatch(pos), pos % CAPACITY);
+                    pos++;
+                    continue;
+                }
+                matching = false;
+                left.pos++;
+            }
+            if (numStored == 0)
+                return;
+            if (!left.load()) {
+                // child1 has been merged with this chunk, so start it over
+                // for the next one
+                if (!nextChunk())
+                    return;
+                sorted1.rewind();
+                left = new Cursor(sorted1);
+                continue;
+            }
+            // move the boundary to the first row of child2 whose key is greater
+            // than the key of child1, or at least as great for
+            // LESS_THAN_OR_EQ and GREATER_THAN
+            boolean stopAtEqual = op == Predicate.Op.LESS_THAN_OR_EQ || op == Predicate.Op.GREATER_THAN;
+            int bound = op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ ? from : to;
+            while (bound < numStored) {
+                int c = compareToStored(bound);
+                if (stopAtEqual ? c <= 0 : c < 0)
+                    break;
+                bound++;
+            }
+            if (op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ) {
+                from = bound;
+                to = numStored;
+            } else {
+                from = 0;
+                to = bound;
+            }
+            pos = from;
+            matching = true;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Tuples are handed out from the batches of nextBatch.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (rowBatch == null || rowPos == rowBatch.numSelected()) {
+            rowBatch = nextBatch();
+            rowPos = 0;
+            if (rowBatch == null)
+                return null;
+        }
+        return rowBatch.getTuple(rowBatch.selected(rowPos++));
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
@@ -0,0 +1,121 @@
+package simpledb.execution;
+
+import simpledb.storage.TupleDesc;
+
+import java.io.*;
+
+/**
+ * SpillFile is a temporary file that operators write rows to when their input
+ * does not fit in memory, and read back later in batches. Rows are appended
+ * until the first call to {@link #startReading}, after which the file can be
+ * read any number of times. The file is removed by {@link #delete}, which the
+ * operator that created it calls when it is closed.
+ */
+public class SpillFile {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private DataInputStream in = null;
+    private int size = 0;
+    private int read = 0;
+
+    /**
+     * Create an empty spill file.
+     *
+     * @param td the schema of the rows in the file
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("spill", ".tmp");
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    /**
+     * @return the schema of the rows in this file
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Append a row of a batch to the file.
+     */
+    public void add(TupleBatch batch, int row) throws IOException {
+        if (out == null)
+            throw new IllegalStateException("spill file is being read");
+        batch.writeRow(row, out);
+        size++;
+    }
+
+    /**
+     * @return the number of rows in the file
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes written to the file
+     */
+    public long bytes() {
+        return out != null ? out.size() : file.length();
+    }
+
+    /**
+     * Finish writing, if needed, and start reading the file from the first row.
+     */
+    public void startReading() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        if (in != null)
+            in.close();
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        read = 0;
+    }
+
+    /**
+     * @return true if there are rows left to read
+     */
+    public boolean hasMoreToRead() {
+        return in != null && read < size;
+    }
+
+    /**
+     * Read the next rows of the file into a batch.
+     *
+     * @param max the maximum number of rows to read
+     * @return a batch with at most max rows, or null if all rows have been read
+     */
+    public TupleBatch nextBatch(int max) throws IOException {
+        if (!hasMoreToRead())
+            return null;
+        int n = Math.min(max, size - read);
+        TupleBatch batch = new TupleBatch(td, n);
+        for (int i = 0; i < n; i++)
+            batch.readRow(in);
+        read += n;
+        return batch;
+    }
+
+    /**
+     * Close the file and remove it from disk.
+     */
+    public void delete() {
+        try {
+            if (out != null)
+                out.close();
+            if (in != null)
+                in.close();
+        } catch (IOException e) {
+            // the file is removed anyway
+        }
+        out = null;
+        in = null;
+        file.delete();
+    }
+}
@@ -3,13 +3,13 @@ package simpledb.execution;
 import simpledb.common.Type;
 import simpledb.storage.*;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
+ * As in {@link IntegerAggregator}, each group is numbered in order of
+ * appearance and its count is kept in an int array indexed by that number, so
+ * no Tuple is allocated per merged row.
  */
 public class StringAggregator implements Aggregator {
 
@@ -27,16 +27,23 @@ public class StringAggregator implements Aggregator {
     private Type gbfieldtype;
     private int afield;
     private Op what;
-    private List<Tuple> result = new ArrayList<>();
-    private int resultCount = 0;
-    private Map<Field, Tuple> resultGroup = new HashMap<>();
-    private Map<Field, Integer> resultGroupCount = new HashMap<>();
     private TupleDesc tupleDesc;
-    private IntField newField;
-    private Iterable<Tuple> it;
+
+    private static final int INITIAL_GROUPS = 16;
+
+    // the number of each group, by its INT_TYPE or STRING_TYPE group value
+    private final IntHashTable intGroups = new IntHashTable();
+    private final Map<String, Integer> stringGroups = new HashMap<>();
+    // the group value and count of each group, indexed by its number
+    private int numGroups = 0;
+    private int[] groupInts = new int[INITIAL_GROUPS];
+    private String[] groupStrings = new String[INITIAL_GROUPS];
+    private int[] counts = new int[INITIAL_GROUPS];
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
+        if (what != Op.COUNT)
+            throw new IllegalArgumentException("only COUNT is supported over strings");
         this.gbfield = gbfield;
         this.gbfieldtype = gbfieldtype;
         this.afield = afield;
@@ -44,47 +51,86 @@ public class StringAggregator implements Aggregator {
         if (gbfield == Aggregator.NO_GROUPING) {
             Type[] types = new Type[]{Type.INT_TYPE};
             String[] strs=new String[]{"aggName("+what.toString()+")"};
-            tupleDesc = new TupleDesc(types);
+            tupleDesc = new TupleDesc(types, strs);
         } else {
             Type[] typesGroup = new Type[]{gbfieldtype, Type.INT_TYPE};
             String[] strs=new String[]{"groupName","aggName("+what.toString()+")"};
-            tupleDesc = new TupleDesc(typesGroup);
+            tupleDesc = new TupleDesc(typesGroup, strs);
         }
     }
 
+    /**
+     * @return the number of a new group, growing the state arrays if needed
+     */
+    private int addGroup() {
+        if (numGroups == counts.length) {
+            int n = 2 * counts.length;
+            groupInts = Arrays.copyOf(groupInts, n);
+            groupStrings = Arrays.copyOf(groupStrings, n);
+            counts = Arrays.copyOf(counts, n);
+        }
+        return numGroups++;
+    }
+
+    private int intGroup(int value) {
+        int g = intGroups.putIfAbsent(value, numGroups);
+        if (g == IntHashTable.NOT_FOUND) {
+            g = addGroup();
+            groupInts[g] = value;
+        }
+        return g;
+    }
+
+    private int stringGroup(String value) {
+        Integer g = stringGroups.get(value);
+        if (g == null) {
+            g = addGroup();
+            groupStrings[g] = value;
+            stringGroups.put(value, g);
+        }
+        return g;
+    }
+
     /**
      * Merge a new tuple into the aggregate, grouping as indicated in the constructor
      * @param tup the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        StringField aggregate = (StringField) tup.getField(afield);
-        Tuple tuple = new Tuple(tupleDesc);
-        if (gbfield == Aggregator.NO_GROUPING) {
-            Tuple tupleOrigin=result.isEmpty()?null:result.get(0);
-            tuple = aggregateTuplesGroup(resultCount, tupleOrigin, tuple,0);
-            result.clear();
-            result.add(tuple);
-            resultCount++;
-        } else {
-            Field group = tup.getField(gbfield);
-            tuple.setField(0, group);
-            int count = resultGroupCount.getOrDefault(group,0);
-            Tuple tupleOrigin = resultGroup.getOrDefault(group,null);
-            tuple = aggregateTuplesGroup(count, tupleOrigin, tuple,1);
-            resultGroup.put(group, tuple);
-            resultGroupCount.put(group, resultGroupCount.getOrDefault(group, 0) + 1);
-        }
+        int g;
+        if (gbfield == Aggregator.NO_GROUPING)
+            g = numGroups == 0 ? addGroup() : 0;
+        else if (gbfieldtype == Type.INT_TYPE)
+            g = intGroup(((IntField) tup.getField(gbfield)).getValue());
+        else
+            g = stringGroup(((StringField) tup.getField(gbfield)).getValue());
+        counts[g]++;
     }
 
-    public Tuple aggregateTuplesGroup(int count, Tuple tupleOrigin, Tuple tuple,int index) {
-        switch (what) {
-            case COUNT:
-                newField = new IntField(count+1);
-                tuple.setField(index, newField);
-                break;
+    /**
+     * Merge the selected rows of a batch, reading the group-by field from its
+     * column; the aggregate field is not read, as only COUNT is supported.
+     *
+     * @param batch the batch containing an aggregate field and a group-by field
+     */
+    @Override
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        int n = batch.numSelected();
+        if (n == 0)
+            return;
+        if (gbfield == Aggregator.NO_GROUPING) {
+            if (numGroups == 0)
+                addGroup();
+            counts[0] += n;
+        } else if (gbfieldtype == Type.INT_TYPE) {
+            int[] keys = batch.intColumn(gbfield);
+            for (int i = 0; i < n; i++)
+                counts[intGroup(keys[batch.selected(i)])]++;
+        } else {
+            String[] keys = batch.stringColumn(gbfield);
+            for (int i = 0; i < n; i++)
+                counts[stringGroup(keys[batch.selected(i)])]++;
         }
-        return tuple;
     }
 
     /**
@@ -97,13 +143,21 @@ public class StringAggregator implements Aggregator {
      */
     public OpIterator iterator() {
         // some code goes here
-        if (gbfield == Aggregator.NO_GROUPING) {
-            it = result;
-        } else {
-            it = resultGroup.values();
+        List<Tuple> tuples = new ArrayList<>();
+        for (int g = 0; g < numGroups; g++) {
+            Tuple tuple = new Tuple(tupleDesc);
+            if (gbfield == Aggregator.NO_GROUPING) {
+                tuple.setField(0, new IntField(counts[g]));
+            } else {
+                if (gbfieldtype == Type.INT_TYPE)
+                    tuple.setField(0, new IntField(groupInts[g]));
+                else
+                    tuple.setField(0, new StringField(groupStrings[g], Type.STRING_LEN));
+                tuple.setField(1, new IntField(counts[g]));
+            }
+            tuples.add(tuple);
         }
-        OpIterator iterator=new TupleIterator(tupleDesc,it);
-        return iterator;
+        return new TupleIterator(tupleDesc, tuples);
     }
 
 }
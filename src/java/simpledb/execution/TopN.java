@@ -0,0 +1,243 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY ... LIMIT n. It returns the
+ * first n tuples of its child in the order of one or more fields, without
+ * sorting the whole child: the best n tuples seen so far are kept in a
+ * bounded heap whose root is the worst of them, and each tuple of the child
+ * either replaces the root or is dropped. This takes O(n) memory and
+ * O(rows log n) time.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final TupleDesc td;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
+    private final int limit;
+    private final RowComparator comparator;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param limit
+     *            the number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one sort order for each of at least one field");
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = asc.clone();
+        this.limit = limit;
+        this.comparator = new RowComparator(orderByFields, ascs);
+    }
+
+    public int getOrderByField() {
+        return orderByFields[0];
+    }
+
+    /**
+     * @return the fields to which the sort is applied, most significant first
+     */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * @return for each sort field, true if the sort order is ascending
+     */
+    public boolean[] getAscending() {
+        return ascs.clone();
+    }
+
+    /**
+     * @return the largest number of tuples returned
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    // the tuples kept: tuple i is row i % CAPACITY of store[i / CAPACITY].
+    // heap[0..size) is a heap of tuple numbers whose root is the worst tuple kept.
+    private static final int CAPACITY = TupleBatch.DEFAULT_CAPACITY;
+    private final List<TupleBatch> store = new ArrayList<>();
+    transient private int[] heap;
+    transient private int size;
+    // after the child is read, the tuples kept in order
+    transient private int[] order;
+    transient private int orderPos;
+    // the batch fetchNext hands out rows from
+    transient private TupleBatch rowBatch = null;
+    transient private int rowPos = 0;
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        store.clear();
+        heap = new int[Math.min(limit, CAPACITY)];
+        size = 0;
+        rowBatch = null;
+
+        TupleBatch batch;
+        while (limit > 0 && (batch = child.nextBatch()) != null) {
+            for (int i = 0; i < batch.numSelected(); i++)
+                offer(batch, batch.selected(i));
+        }
+        sortHeap();
+        super.open();
+    }
+
+    private TupleBatch batchOf(int e) {
+        return store.get(e / CAPACITY);
+    }
+
+    /**
+     * @return the comparison of tuples a and b, where the worse tuple is greater
+     */
+    private int compare(int a, int b) {
+        return comparator.compare(batchOf(a), a % CAPACITY, batchOf(b), b % CAPACITY);
+    }
+
+    private void offer(TupleBatch batch, int row) {
+        if (size < limit) {
+            if (size % CAPACITY == 0)
+                store.add(new TupleBatch(td, Math.min(CAPACITY, limit - size)));
+            if (size == heap.length)
+                heap = Arrays.copyOf(heap, Math.min(limit, 2 * heap.length));
+            store.get(size / CAPACITY).addRow(batch, row);
+            heap[size] = size;
+            siftUp(size++);
+            return;
+        }
+        // replace the worst tuple kept if the new one is better
+        int root = heap[0];
+        if (comparator.compare(batch, row, batchOf(root), root % CAPACITY) < 0) {
+            batchOf(root).setRow(root % CAPACITY, batch, row);
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int i) {
+        int e = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (compare(heap[parent], e) >= 0)
+                break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = e;
+    }
+
+    private void siftDown(int i) {
+        int e = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && compare(heap[child + 1], heap[child]) > 0)
+                child++;
+            if (compare(heap[child], e) <= 0)
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = e;
+    }
+
+    /**
+     * Order the tuples kept by repeatedly moving the root of the heap to its end
+     */
+    private void sortHeap() {
+        int n = size;
+        while (size > 1) {
+            int worst = heap[0];
+            heap[0] = heap[--size];
+            siftDown(0);
+            heap[size] = worst;
+        }
+        size = n;
+        order = Arrays.copyOf(heap, n);
+        orderPos = 0;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        store.clear();
+        heap = null;
+        order = null;
+        rowBatch = null;
+    }
+
+    public void rewind() {
+        orderPos = 0;
+        rowBatch = null;
+    }
+
+    /**
+     * Returns the next batch of the tuples kept, in order.
+     *
+     * @return The next batch of tuples, or null if there are no more tuples.
+     */
+    @Override
+    public TupleBatch nextBatch() {
+        if (order == null || orderPos == order.length)
+            return null;
+        TupleBatch out = new TupleBatch(td, TupleBatch.DEFAULT_CAPACITY);
+        while (!out.isFull() && orderPos < order.length) {
+            int e = order[orderPos++];
+            out.addRow(batchOf(e), e % CAPACITY);
+        }
+        return out;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the tuples kept in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() {
+        while (rowBatch == null || rowPos == rowBatch.numSelected()) {
+            rowBatch = nextBatch();
+            rowPos = 0;
+            if (rowBatch == null)
+                return null;
+        }
+        return rowBatch.getTuple(rowBatch.selected(rowPos++));
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -0,0 +1,324 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * TupleBatch holds a batch of rows in column-oriented form, for operators that
+ * run batch-at-a-time (see {@link OpIterator#nextBatch}). Integer columns are
+ * stored in primitive int arrays and string columns in String arrays, so
+ * operators can work on a column in a tight loop without a Tuple or Field
+ * object per row.
+ * <p>
+ * A batch has a selection vector that lists the rows which are part of the
+ * batch, in order. Filters drop rows by shrinking the selection vector
+ * instead of copying the remaining rows, so consumers must only look at the
+ * selected rows: row {@code selected(i)} for {@code i < numSelected()}.
+ * <p>
+ * Batches are handed from an operator to its parent and are not reused by the
+ * producer, but they may share column arrays with the batch they were derived
+ * from (see {@link #project}).
+ */
+public class TupleBatch {
+
+    /**
+     * The number of rows operators put in a batch.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    // ints[i] holds column i if it is an INT_TYPE column, strings[i] otherwise
+    private final int[][] ints;
+    private final String[][] strings;
+    private final RecordId[] rids;
+    private int numRows = 0;
+    private int[] selection;
+    private int numSelected = 0;
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td       the schema of the rows in the batch
+     * @param capacity the maximum number of rows in the batch
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = new int[td.numFields()][];
+        this.strings = new String[td.numFields()][];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints[i] = new int[capacity];
+            else
+                strings[i] = new String[capacity];
+        }
+        this.rids = new RecordId[capacity];
+        this.selection = new int[capacity];
+    }
+
+    private TupleBatch(TupleDesc td, int capacity, int[][] ints, String[][] strings, RecordId[] rids,
+                       int numRows, int[] selection, int numSelected) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = ints;
+        this.strings = strings;
+        this.rids = rids;
+        this.numRows = numRows;
+        this.selection = selection;
+        this.numSelected = numSelected;
+    }
+
+    /**
+     * @return the schema of the rows in this batch
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the maximum number of rows in this batch
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of rows stored in this batch, selected or not
+     */
+    public int numRows() {
+        return numRows;
+    }
+
+    /**
+     * @return true if no more rows can be added to this batch
+     */
+    public boolean isFull() {
+        return numRows == capacity;
+    }
+
+    /**
+     * @return the number of selected rows
+     */
+    public int numSelected() {
+        return numSelected;
+    }
+
+    /**
+     * @param i the position in the selection vector, less than numSelected()
+     * @return the row index of the ith selected row
+     */
+    public int selected(int i) {
+        return selection[i];
+    }
+
+    /**
+     * @return the selection vector, for operators that filter in place; only
+     * the first numSelected() entries are valid
+     */
+    int[] selection() {
+        return selection;
+    }
+
+    /**
+     * Shrink the selection vector after the operator compacted it in place
+     */
+    void setNumSelected(int numSelected) {
+        this.numSelected = numSelected;
+    }
+
+    /**
+     * @return the array holding an INT_TYPE column, indexed by row
+     */
+    public int[] intColumn(int field) {
+        return ints[field];
+    }
+
+    /**
+     * @return the array holding a STRING_TYPE column, indexed by row
+     */
+    public String[] stringColumn(int field) {
+        return strings[field];
+    }
+
+    public int getInt(int field, int row) {
+        return ints[field][row];
+    }
+
+    public String getString(int field, int row) {
+        return strings[field][row];
+    }
+
+    /**
+     * @return the value of a field of a row, as a Field object
+     */
+    public Field getField(int field, int row) {
+        if (ints[field] != null)
+            return new IntField(ints[field][row]);
+        return new StringField(strings[field][row], Type.STRING_LEN);
+    }
+
+    /**
+     * @return the value of a field of a row as a hash key: an Integer for
+     * INT_TYPE columns and a String otherwise
+     */
+    public Object getKey(int field, int row) {
+        if (ints[field] != null)
+            return ints[field][row];
+        return strings[field][row];
+    }
+
+    /**
+     * @return the RecordId of a row, or null if the row is not stored on disk
+     */
+    public RecordId getRecordId(int row) {
+        return rids[row];
+    }
+
+    /**
+     * Materialize a row as a Tuple with this batch's schema.
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++)
+            t.setField(i, getField(i, row));
+        t.setRecordId(rids[row]);
+        return t;
+    }
+
+    private int addRow() {
+        if (numRows == capacity)
+            throw new IllegalStateException("batch is full");
+        selection[numSelected++] = numRows;
+        return numRows++;
+    }
+
+    /**
+     * Append a selected row whose fields are then set through the column
+     * arrays, for operators that compute their output fields.
+     *
+     * @return the index of the new row
+     */
+    public int addEmptyRow() {
+        return addRow();
+    }
+
+    /**
+     * Append a tuple to this batch as a selected row.
+     */
+    public void addTuple(Tuple t) {
+        int row = addRow();
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null)
+                ints[i][row] = ((IntField) t.getField(i)).getValue();
+            else
+                strings[i][row] = ((StringField) t.getField(i)).getValue();
+        }
+        rids[row] = t.getRecordId();
+    }
+
+    /**
+     * Append the specified fields of a tuple to this batch as a selected row,
+     * for scans that only return some of the fields of their table.
+     *
+     * @param fields the field of the tuple for each field of this batch
+     */
+    public void addTuple(Tuple t, int[] fields) {
+        int row = addRow();
+        for (int i = 0; i < fields.length; i++) {
+            if (ints[i] != null)
+                ints[i][row] = ((IntField) t.getField(fields[i])).getValue();
+            else
+                strings[i][row] = ((StringField) t.getField(fields[i])).getValue();
+        }
+        rids[row] = t.getRecordId();
+    }
+
+    /**
+     * Append a row of another batch with the same schema.
+     */
+    public void addRow(TupleBatch src, int srcRow) {
+        int row = addRow();
+        copyFields(src, srcRow, row, 0);
+        rids[row] = src.rids[srcRow];
+    }
+
+    /**
+     * Overwrite a row of this batch with a row of another batch with the
+     * same schema.
+     */
+    public void setRow(int row, TupleBatch src, int srcRow) {
+        copyFields(src, srcRow, row, 0);
+        rids[row] = src.rids[srcRow];
+    }
+
+    /**
+     * Append the concatenation of a row of the left batch and a row of the
+     * right batch, for joins. This batch's schema must be the merge of the
+     * schemas of the two batches.
+     */
+    public void addJoinedRow(TupleBatch left, int leftRow, TupleBatch right, int rightRow) {
+        int row = addRow();
+        copyFields(left, leftRow, row, 0);
+        copyFields(right, rightRow, row, left.ints.length);
+    }
+
+    private void copyFields(TupleBatch src, int srcRow, int row, int offset) {
+        for (int i = 0; i < src.ints.length; i++) {
+            if (src.ints[i] != null)
+                ints[offset + i][row] = src.ints[i][srcRow];
+            else
+                strings[offset + i][row] = src.strings[i][srcRow];
+        }
+    }
+
+    /**
+     * Write the fields of a row to a stream, to be read back by readRow. The
+     * RecordId of the row is not written.
+     */
+    public void writeRow(int row, DataOutput out) throws IOException {
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null)
+                out.writeInt(ints[i][row]);
+            else
+                out.writeUTF(strings[i][row]);
+        }
+    }
+
+    /**
+     * Append a row written by writeRow as a selected row.
+     */
+    public void readRow(DataInput in) throws IOException {
+        int row = addRow();
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null)
+                ints[i][row] = in.readInt();
+            else
+                strings[i][row] = in.readUTF();
+        }
+    }
+
+    /**
+     * Return a batch with the specified columns of this batch. The new batch
+     * shares the column arrays and a copy of the selection vector with this
+     * batch, so no rows are copied.
+     *
+     * @param td     the schema of the new batch
+     * @param fields the column of this batch for each field of the new batch
+     */
+    public TupleBatch project(TupleDesc td, int[] fields) {
+        int[][] newInts = new int[fields.length][];
+        String[][] newStrings = new String[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            newInts[i] = ints[fields[i]];
+            newStrings[i] = strings[fields[i]];
+        }
+        return new TupleBatch(td, capacity, newInts, newStrings, rids, numRows,
+                Arrays.copyOf(selection, selection.length), numSelected);
+    }
+}
@@ -0,0 +1,22 @@
+package simpledb.execution;
+
+import simpledb.storage.Tuple;
+
+/**
+ * TupleFilter applies a conjunction of predicates to tuples or to the rows
+ * of a batch. It is either interpreted, applying each {@link Predicate} in
+ * turn, or compiled into a class by {@link ExpressionCompiler}.
+ */
+public interface TupleFilter {
+
+    /**
+     * @return true if the tuple passes every predicate
+     */
+    boolean filter(Tuple t);
+
+    /**
+     * Removes the rows that do not pass every predicate from the selection
+     * vector of a batch.
+     */
+    void filter(TupleBatch batch);
+}
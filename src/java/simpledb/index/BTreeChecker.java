@@ -99,6 +99,12 @@ public class BTreeChecker {
             BTreeEntry prev = null;
             Iterator<BTreeEntry> it = ipage.iterator();
 
+            if (!it.hasNext()) { // a compact page left with a single child.
+                assert(ipage.isCompact());
+                return checkSubTree(bt, tid, dirtypages, ipage.getChildId(0), lowerBound, upperBound, ipage.getId(),
+                        checkOccupancy, depth + 1);
+            }
+
             prev = it.next();
             { // init acc and prev.
                 acc = checkSubTree(bt, tid, dirtypages, prev.getLeftChild(), lowerBound, prev.getKey(), ipage.getId(),
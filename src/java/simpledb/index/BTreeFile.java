@@ -31,7 +31,28 @@ public class BTreeFile implements DbFile {
     private final int keyField;
 
     /**
-     * Constructs a B+ tree file backed by the specified file.
+     * Number of leaf pages a range scan asks the BufferPool to read ahead of it
+     */
+    public static final int DEFAULT_PREFETCH_LEAVES = 4;
+
+    // the page format used when this file is created
+    private final int newFileFormat;
+    // the page format of the file on disk, -1 until it has been read or written
+    private volatile int pageFormat = -1;
+
+    // in-memory copy of the free slots of the header pages, rebuilt from them when it
+    // is not valid. A set bit is only a hint and is checked against the header page.
+    private final BitSet freePages = new BitSet();
+    // the ids of the header pages, in the order they are linked from the root pointer page
+    private final List<BTreePageId> headerIds = new ArrayList<>();
+    private volatile boolean freePageMapValid = false;
+    // number of pages added to the file at a time when it has no empty pages
+    private volatile int extensionBatchSize = 1;
+
+    /**
+     * Constructs a B+ tree file backed by the specified file. If the file does
+     * not exist yet, it is created with the compact page format when the key is
+     * a string and with the fixed-width page format otherwise.
      *
      * @param f   - the file that stores the on-disk backing store for this B+ tree
      *            file.
@@ -39,10 +60,27 @@ public class BTreeFile implements DbFile {
      * @param td  - the tuple descriptor of tuples in the file
      */
     public BTreeFile(File f, int key, TupleDesc td) {
+        this(f, key, td, td.getFieldType(key) == Type.STRING_TYPE ?
+                BTreePage.FORMAT_COMPACT : BTreePage.FORMAT_FIXED_WIDTH);
+    }
+
+    /**
+     * Constructs a B+ tree file backed by the specified file.
+     *
+     * @param f      - the file that stores the on-disk backing store for this B+ tree
+     *               file.
+     * @param key    - the field which index is keyed on
+     * @param td     - the tuple descriptor of tuples in the file
+     * @param format - the page format to create the file with, either
+     *               BTreePage.FORMAT_FIXED_WIDTH or BTreePage.FORMAT_COMPACT. An existing
+     *               file keeps the format recorded in its root pointer page.
+     */
+    public BTreeFile(File f, int key, TupleDesc td, int format) {
         this.f = f;
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
+        this.newFileFormat = format;
     }
 
     /**
@@ -74,6 +112,27 @@ public class BTreeFile implements DbFile {
         return td;
     }
 
+    /**
+     * Returns the page format of this file, as recorded in its root pointer page.
+     * Files written before the format was versioned use BTreePage.FORMAT_FIXED_WIDTH.
+     */
+    public int getPageFormat() {
+        if (pageFormat < 0) {
+            synchronized (this) {
+                if (pageFormat < 0 && f.length() >= BTreeRootPtrPage.getPageSize()) {
+                    byte[] rootPtrBuf = new byte[BTreeRootPtrPage.getPageSize()];
+                    try (RandomAccessFile rf = new RandomAccessFile(f, "r")) {
+                        rf.readFully(rootPtrBuf);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    pageFormat = BTreeRootPtrPage.readFormat(rootPtrBuf);
+                }
+            }
+        }
+        return pageFormat < 0 ? newFileFormat : pageFormat;
+    }
+
     /**
      * Read a page from the file on disk. This should not be called directly
      * but should be called from the BufferPool via getPage()
@@ -84,6 +143,11 @@ public class BTreeFile implements DbFile {
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
 
+        // the header pages may have changed without this file knowing, e.g. when the
+        // changes of an aborted transaction are discarded
+        if (id.pgcateg() == BTreePageId.ROOT_PTR || id.pgcateg() == BTreePageId.HEADER)
+            freePageMapValid = false;
+
         try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
                 byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
@@ -114,7 +178,7 @@ public class BTreeFile implements DbFile {
                 }
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
+                    return new BTreeInternalPage(id, pageBuf, keyField, getPageFormat());
                 } else if (id.pgcateg() == BTreePageId.LEAF) {
                     return new BTreeLeafPage(id, pageBuf, keyField);
                 } else { // id.pgcateg() == BTreePageId.HEADER
@@ -142,6 +206,7 @@ public class BTreeFile implements DbFile {
         if (id.pgcateg() == BTreePageId.ROOT_PTR) {
             rf.write(data);
             rf.close();
+            pageFormat = ((BTreeRootPtrPage) page).getFormat();
         } else {
             rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
             rf.write(data);
@@ -235,6 +300,8 @@ public class BTreeFile implements DbFile {
             if (key.compare(Op.GREATER_THAN_OR_EQ, f))
                 return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
         }
+        //compact页面在合并失败时可能只剩下一个孩子
+        if (entry == null) return findLeafPage(tid, dirtypages, internalPage.getChildId(0), perm, f);
         return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
     }
 
@@ -294,7 +361,8 @@ public class BTreeFile implements DbFile {
             num--;
         }
 
-        Field middleKey = it.next().getField(page.keyField);
+        Field middleKey = separatorKey(it.next().getField(page.keyField),
+                newPage.iterator().next().getField(page.keyField));
 
         BTreePageId temp = page.getRightSiblingId();
         if (temp != null) {
@@ -357,17 +425,16 @@ public class BTreeFile implements DbFile {
         BTreeEntry middleEntry = null;
         Field middleKey = null;
         Iterator<BTreeEntry> it = page.reverseIterator();
-        int num = page.getNumEntries() / 2;
-        while (num >= 0 && it.hasNext()) {
+        //按剩余空间平衡两个页面：定长页面时等价于移动一半的entry，compact页面时按字节数平衡
+        while (it.hasNext()) {
             BTreeEntry entry = it.next();
             page.deleteKeyAndRightChild(entry);
-            if (num == 0) {
+            if (newPage.getNumEmptySlots() <= page.getNumEmptySlots()) {
                 middleEntry = entry;
                 middleKey = entry.getKey();
                 break;
             }
             newPage.insertEntry(entry);
-            num--;
         }
 
         //  更新左右叶面的孩子指针，因为前面有大量的entry插入和移除
@@ -429,7 +496,7 @@ public class BTreeFile implements DbFile {
                     Permissions.READ_WRITE);
         }
         // split the parent if needed
-        if (parent.getNumEmptySlots() == 0) {
+        if (!parent.hasSpaceFor(field)) {
             parent = splitInternalPage(tid, dirtypages, parent, field);
         }
 
@@ -481,9 +548,55 @@ public class BTreeFile implements DbFile {
         }
         if (e != null) {
             updateParentPointer(tid, dirtypages, pid, e.getRightChild());
+        } else if (page.getChildId(0) != null) {
+            updateParentPointer(tid, dirtypages, pid, page.getChildId(0));
         }
     }
 
+    /**
+     * Choose the key to copy up into the parent when two leaf pages are separated. Any key
+     * k with leftMax <= k <= rightMin is valid; on compact pages with string keys the
+     * shortest prefix of rightMin that is still at least leftMax is used (suffix truncation),
+     * otherwise the keys are kept as they are.
+     *
+     * @param leftMax  - the largest key on the left page
+     * @param rightMin - the smallest key on the right page
+     * @param useRight - which of the two keys to use when the key is not truncated
+     * @return the separator key
+     */
+    private Field separatorKey(Field leftMax, Field rightMin, boolean useRight) {
+        if (getPageFormat() != BTreePage.FORMAT_COMPACT || rightMin.getType() != Type.STRING_TYPE) {
+            return useRight ? rightMin : leftMax;
+        }
+        String right = ((StringField) rightMin).getValue();
+        for (int len = 0; len < right.length(); len++) {
+            StringField candidate = new StringField(right.substring(0, len), Type.STRING_LEN);
+            if (candidate.compare(Op.GREATER_THAN_OR_EQ, leftMax)) {
+                return candidate;
+            }
+        }
+        return rightMin;
+    }
+
+    private Field separatorKey(Field leftMax, Field rightMin) {
+        return separatorKey(leftMax, rightMin, false);
+    }
+
+    /**
+     * @return the id of the left-most child of an internal page, which may have no keys
+     */
+    private BTreePageId firstChildId(BTreeInternalPage page) {
+        return page.getChildId(0);
+    }
+
+    /**
+     * @return the id of the right-most child of an internal page, which may have no keys
+     */
+    private BTreePageId lastChildId(BTreeInternalPage page) {
+        Iterator<BTreeEntry> it = page.reverseIterator();
+        return it.hasNext() ? it.next().getRightChild() : page.getChildId(0);
+    }
+
     /**
      * Method to encapsulate the process of locking/fetching a page.  First the method checks the local
      * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.
@@ -629,7 +742,7 @@ public class BTreeFile implements DbFile {
             // steal some tuples from it
             if (leftSibling.getNumEmptySlots() >= maxEmptySlots) {
                 mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
-            } else {
+            } else if (parent.canReplaceKey(leftEntry.getKey())) {
                 stealFromLeafPage(page, leftSibling, parent, leftEntry, false);
             }
         } else if (rightSiblingId != null) {
@@ -638,7 +751,7 @@ public class BTreeFile implements DbFile {
             // steal some tuples from it
             if (rightSibling.getNumEmptySlots() >= maxEmptySlots) {
                 mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
-            } else {
+            } else if (parent.canReplaceKey(rightEntry.getKey())) {
                 stealFromLeafPage(page, rightSibling, parent, rightEntry, true);
             }
         }
@@ -677,7 +790,8 @@ public class BTreeFile implements DbFile {
                 curTuples++;
             }
             Tuple mid = sibling.iterator().next();
-            entry.setKey(mid.getField(parent.keyField));
+            entry.setKey(separatorKey(page.reverseIterator().next().getField(parent.keyField),
+                    mid.getField(parent.keyField), true));
             parent.updateEntry(entry);
             return;
         }
@@ -690,7 +804,8 @@ public class BTreeFile implements DbFile {
             curTuples++;
         }
         Tuple mid = page.iterator().next();
-        entry.setKey(mid.getField(parent.keyField));
+        entry.setKey(separatorKey(sibling.reverseIterator().next().getField(parent.keyField),
+                mid.getField(parent.keyField), true));
         parent.updateEntry(entry);
     }
 
@@ -725,23 +840,34 @@ public class BTreeFile implements DbFile {
             BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
             // if the left sibling is at minimum occupancy, merge with it. Otherwise
             // steal some entries from it
-            if (leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+            if (page.isCompact() ? leftSibling.canMergeWith(page, leftEntry.getKey())
+                    : leftSibling.getNumEmptySlots() >= maxEmptySlots) {
                 mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
-            } else {
+            } else if (canStealInternal(page, parent, leftEntry)) {
                 stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
             }
         } else if (rightSiblingId != null) {
             BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
             // if the right sibling is at minimum occupancy, merge with it. Otherwise
             // steal some entries from it
-            if (rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+            if (page.isCompact() ? page.canMergeWith(rightSibling, rightEntry.getKey())
+                    : rightSibling.getNumEmptySlots() >= maxEmptySlots) {
                 mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
-            } else {
+            } else if (canStealInternal(page, parent, rightEntry)) {
                 stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
             }
         }
     }
 
+    /**
+     * On compact pages keys have variable length, so entries can only be rotated through
+     * the parent if the pulled down key fits into the page and any key fits into the parent.
+     * Otherwise the page is left below minimum occupancy.
+     */
+    private boolean canStealInternal(BTreeInternalPage page, BTreeInternalPage parent, BTreeEntry parentEntry) {
+        return page.hasSpaceFor(parentEntry.getKey()) && parent.canReplaceKey(parentEntry.getKey());
+    }
+
     /**
      * Steal entries from the left sibling and copy them to the given page so that both pages are at least
      * half full. Keys can be thought of as rotating through the parent entry, so the original key in the
@@ -773,25 +899,25 @@ public class BTreeFile implements DbFile {
         Iterator<BTreeEntry> it = leftSibling.reverseIterator();
 
         //先处理parentEntry和leftSibling的倒数第一个节点，注意左右孩子指针的更新
-        BTreeEntry right = page.iterator().next();
         BTreeEntry left = it.next();
         leftSibling.deleteKeyAndRightChild(left);
-        BTreeEntry entry = new BTreeEntry(parentEntry.getKey(), left.getRightChild(), right.getLeftChild());
+        BTreeEntry entry = new BTreeEntry(parentEntry.getKey(), left.getRightChild(), firstChildId(page));
         page.insertEntry(entry);
         curEntries += 1;
-        if(curEntries>=targetEntries){
+        if(curEntries>=targetEntries || !page.hasSpaceFor(left.getKey())){
             parentEntry.setKey(left.getKey());
         }else{
             page.insertEntry(left);
             curEntries+=1;
-            while (it.hasNext() && curEntries < targetEntries) {
-                BTreeEntry e = it.next();
+            //compact页面的key是变长的，移动前要检查空间
+            BTreeEntry e = it.next();
+            while (it.hasNext() && curEntries < targetEntries && page.hasSpaceFor(e.getKey())) {
                 //先删除后插入
                 leftSibling.deleteKeyAndRightChild(e);
                 page.insertEntry(e);
                 curEntries++;
+                e = it.next();
             }
-            BTreeEntry e = it.next();
             leftSibling.deleteKeyAndRightChild(e);
             parentEntry.setKey(e.getKey());
         }
@@ -830,25 +956,26 @@ public class BTreeFile implements DbFile {
         Iterator<BTreeEntry> it = rightSibling.iterator();
         BTreeEntry right = it.next();
         rightSibling.deleteKeyAndLeftChild(right);
-        BTreeEntry left = page.reverseIterator().next();
-        BTreeEntry entry = new BTreeEntry(parentEntry.getKey(), left.getRightChild(), right.getLeftChild());
+        BTreeEntry entry = new BTreeEntry(parentEntry.getKey(), lastChildId(page), right.getLeftChild());
         //注意这里要先插入entry再插入right，如果先插入right，recordId会被更新
         page.insertEntry(entry);
         curEntries += 1;
 
-        if(curEntries>=targetEntries){
+        if(curEntries>=targetEntries || !page.hasSpaceFor(right.getKey())){
             parentEntry.setKey(right.getKey());
         }else{
             page.insertEntry(right);
             curEntries+=1;
-            while (it.hasNext() && curEntries < targetEntries) {
-                BTreeEntry e = it.next();
-                rightSibling.deleteKeyAndRightChild(e);
-                page.insertEntry(e);
+            //compact页面的key是变长的，移动前要检查空间
+            BTreeEntry next = it.next();
+            while (it.hasNext() && curEntries < targetEntries && page.hasSpaceFor(next.getKey())) {
+                //右兄弟的entry移走后，它的右孩子成为右兄弟的第一个孩子，所以删除的是左孩子
+                rightSibling.deleteKeyAndLeftChild(next);
+                page.insertEntry(next);
                 curEntries++;
+                next = it.next();
             }
-            BTreeEntry next = it.next();
-            rightSibling.deleteKeyAndRightChild(next);
+            rightSibling.deleteKeyAndLeftChild(next);
             parentEntry.setKey(next.getKey());
         }
         parent.updateEntry(parentEntry);
@@ -932,9 +1059,7 @@ public class BTreeFile implements DbFile {
         // Delete the entry in the parent corresponding to the two pages that are merging -
         // deleteParentEntry() will be useful here
         //先复制parent entry的key值并设置指针，插入左页面
-        BTreeEntry lastLeftEntry = leftPage.reverseIterator().next();
-        BTreeEntry firstRightEntry = rightPage.iterator().next();
-        BTreeEntry entry = new BTreeEntry(parentEntry.getKey(), lastLeftEntry.getRightChild(), firstRightEntry.getLeftChild());
+        BTreeEntry entry = new BTreeEntry(parentEntry.getKey(), lastChildId(leftPage), firstChildId(rightPage));
         leftPage.insertEntry(entry);
 
         //开始将右边的entry转移到左边
@@ -983,6 +1108,11 @@ public class BTreeFile implements DbFile {
             // page will become the new root
             BTreePageId rootPtrId = parent.getParentId();
             if (rootPtrId.pgcateg() != BTreePageId.ROOT_PTR) {
+                if (parent.isCompact()) {
+                    // a compact page which could not be merged may run out of keys, it still has one child
+                    handleMinOccupancyPage(tid, dirtypages, parent);
+                    return;
+                }
                 throw new DbException("attempting to delete a non-root node");
             }
             BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
@@ -1043,11 +1173,12 @@ public class BTreeFile implements DbFile {
                 // create the root pointer page and the root page
                 BufferedOutputStream bw = new BufferedOutputStream(
                         new FileOutputStream(f, true));
-                byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+                byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData(newFileFormat);
                 byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
                 bw.write(emptyRootPtrData);
                 bw.write(emptyLeafData);
                 bw.close();
+                pageFormat = newFileFormat;
             }
         }
 
@@ -1055,9 +1186,73 @@ public class BTreeFile implements DbFile {
         return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
     }
 
+    /**
+     * Make sure the in-memory free page map reflects the header pages of this file,
+     * reading all of them if the map has not been built yet or has been invalidated.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @throws DbException
+     * @throws IOException
+     * @throws TransactionAbortedException
+     */
+    private void loadFreePageMap(TransactionId tid, Map<PageId, Page> dirtypages)
+            throws DbException, IOException, TransactionAbortedException {
+        if (freePageMapValid)
+            return;
+
+        // get a read lock on the root pointer page and use it to locate the first header page
+        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+        BTreePageId headerId = rootPtr.getHeaderId();
+        BitSet free = new BitSet();
+        List<BTreePageId> ids = new ArrayList<>();
+        while (headerId != null) {
+            BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+            int firstPageNo = ids.size() * BTreeHeaderPage.getNumSlots();
+            for (int i = 0; i < BTreeHeaderPage.getNumSlots(); i++) {
+                if (!headerPage.isSlotUsed(i))
+                    free.set(firstPageNo + i);
+            }
+            ids.add(headerId);
+            headerId = headerPage.getNextPageId();
+        }
+
+        synchronized (freePages) {
+            freePages.clear();
+            freePages.or(free);
+            headerIds.clear();
+            headerIds.addAll(ids);
+            freePageMapValid = true;
+        }
+    }
+
+    /**
+     * Returns the number of pages this file grows by when it has no empty pages
+     */
+    public int getExtensionBatchSize() {
+        return extensionBatchSize;
+    }
+
+    /**
+     * Set the number of pages this file grows by when it has no empty pages. The
+     * pages that are not needed right away are marked as empty in the header pages,
+     * so that later splits reuse them instead of extending the file again.
+     *
+     * @param pages - the number of pages to add at a time, at least 1
+     */
+    public void setExtensionBatchSize(int pages) {
+        if (pages < 1)
+            throw new IllegalArgumentException("extension batch size must be at least 1");
+        extensionBatchSize = pages;
+    }
+
     /**
      * Get the page number of the first empty page in this BTreeFile.
      * Creates a new page if none of the existing pages are empty.
+     * <p>
+     * Empty pages are looked up in an in-memory copy of the header pages, so only
+     * the header page holding the chosen slot is read. The header page remains the
+     * authority: a slot that turns out to be in use there is skipped.
      *
      * @param tid        - the transaction id
      * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -1068,46 +1263,74 @@ public class BTreeFile implements DbFile {
      */
     public int getEmptyPageNo(TransactionId tid, Map<PageId, Page> dirtypages)
             throws DbException, IOException, TransactionAbortedException {
-        // get a read lock on the root pointer page and use it to locate the first header page
-        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-        BTreePageId headerId = rootPtr.getHeaderId();
-        int emptyPageNo = 0;
+        return allocatePageNo(tid, dirtypages, extensionBatchSize);
+    }
 
-        if (headerId != null) {
-            BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-            int headerPageCount = 0;
-            // try to find a header page with an empty slot
-            while (headerPage != null && headerPage.getEmptySlot() == -1) {
-                headerId = headerPage.getNextPageId();
-                if (headerId != null) {
-                    headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-                    headerPageCount++;
-                } else {
-                    headerPage = null;
-                }
+    /**
+     * Take the first empty page of this BTreeFile, or grow the file by the specified
+     * number of pages if there is none.
+     *
+     * @see #getEmptyPageNo(TransactionId, Map)
+     */
+    private int allocatePageNo(TransactionId tid, Map<PageId, Page> dirtypages, int batch)
+            throws DbException, IOException, TransactionAbortedException {
+        loadFreePageMap(tid, dirtypages);
+
+        while (true) {
+            int emptyPageNo;
+            BTreePageId headerId;
+            synchronized (freePages) {
+                emptyPageNo = freePages.nextSetBit(0);
+                if (emptyPageNo < 0)
+                    break;
+                freePages.clear(emptyPageNo);
+                int headerIndex = emptyPageNo / BTreeHeaderPage.getNumSlots();
+                if (headerIndex >= headerIds.size())
+                    continue;
+                headerId = headerIds.get(headerIndex);
             }
 
-            // if headerPage is not null, it must have an empty slot
-            if (headerPage != null) {
+            BTreeHeaderPage headerPage;
+            try {
                 headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-                int emptySlot = headerPage.getEmptySlot();
+            } catch (TransactionAbortedException e) {
+                synchronized (freePages) {
+                    freePages.set(emptyPageNo);
+                }
+                throw e;
+            }
+            int emptySlot = emptyPageNo % BTreeHeaderPage.getNumSlots();
+            if (!headerPage.isSlotUsed(emptySlot)) {
                 headerPage.markSlotUsed(emptySlot, true);
-                emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+                return emptyPageNo;
             }
+            // otherwise the map was out of date, e.g. because the page was freed by a
+            // transaction that did not complete
         }
 
-        // at this point if headerId is null, either there are no header pages
-        // or there are no free slots
-        if (headerId == null) {
-            synchronized (this) {
-                // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
-                byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+        // there are no free slots, so extend the file
+        int emptyPageNo;
+        synchronized (this) {
+            // create the new pages
+            BufferedOutputStream bw = new BufferedOutputStream(
+                    new FileOutputStream(f, true));
+            byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+            for (int i = 0; i < batch; i++)
                 bw.write(emptyData);
-                bw.close();
-                emptyPageNo = numPages();
-            }
+            bw.close();
+            emptyPageNo = numPages() - batch + 1;
+        }
+
+        // record the pages that are not needed yet as empty; header pages needed
+        // to cover them are taken from the new pages as well
+        Deque<Integer> spare = new ArrayDeque<>();
+        for (int i = 1; i < batch; i++)
+            spare.add(emptyPageNo + i);
+        while (!spare.isEmpty()) {
+            int pageNo = spare.pollLast();
+            BTreeHeaderPage headerPage = getHeaderPage(tid, dirtypages, pageNo, spare);
+            if (headerPage != null)
+                markPageEmpty(headerPage, pageNo);
         }
 
         return emptyPageNo;
@@ -1130,8 +1353,17 @@ public class BTreeFile implements DbFile {
      */
     private Page getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int pgcateg)
             throws DbException, IOException, TransactionAbortedException {
-        // create the new page
-        int emptyPageNo = getEmptyPageNo(tid, dirtypages);
+        return getEmptyPage(tid, dirtypages, getEmptyPageNo(tid, dirtypages), pgcateg);
+    }
+
+    /**
+     * Wipe the specified page on disk and in the cache and return a clean copy locked
+     * with read-write permission
+     *
+     * @see #getEmptyPage(TransactionId, Map, int)
+     */
+    private Page getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int emptyPageNo, int pgcateg)
+            throws DbException, IOException, TransactionAbortedException {
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
         // write empty page to disk
@@ -1147,6 +1379,92 @@ public class BTreeFile implements DbFile {
         return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
     }
 
+    /**
+     * Find the header page holding the slot of the specified page, creating header
+     * pages as needed, and return it locked with read-write permission.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param pageNo     - the page number whose slot is needed
+     * @param spare      - page numbers to use for new header pages before looking for empty pages;
+     *                   may be null
+     * @return the header page, or null if pageNo itself was taken from spare for a new header page
+     * @throws DbException
+     * @throws IOException
+     * @throws TransactionAbortedException
+     */
+    private BTreeHeaderPage getHeaderPage(TransactionId tid, Map<PageId, Page> dirtypages, int pageNo,
+                                          Deque<Integer> spare)
+            throws DbException, IOException, TransactionAbortedException {
+        int headerIndex = pageNo / BTreeHeaderPage.getNumSlots();
+
+        // add header pages until there is one with a slot corresponding to pageNo
+        while (true) {
+            loadFreePageMap(tid, dirtypages);
+            BTreePageId headerId = null;
+            BTreePageId prevId = null;
+            synchronized (freePages) {
+                if (headerIndex < headerIds.size())
+                    headerId = headerIds.get(headerIndex);
+                else if (!headerIds.isEmpty())
+                    prevId = headerIds.get(headerIds.size() - 1);
+            }
+            if (headerId != null)
+                return (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+
+            // lock the page pointing to the new header page, and start over if
+            // another transaction added a header page in the meantime
+            BTreeRootPtrPage rootPtr = null;
+            BTreeHeaderPage prevPage = null;
+            if (prevId == null) {
+                rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+                if (rootPtr.getHeaderId() != null) {
+                    freePageMapValid = false;
+                    continue;
+                }
+            } else {
+                prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
+                if (prevPage.getNextPageId() != null) {
+                    freePageMapValid = false;
+                    continue;
+                }
+            }
+
+            int newPageNo;
+            if (spare != null)
+                newPageNo = spare.isEmpty() ? pageNo : spare.pollFirst();
+            else
+                newPageNo = allocatePageNo(tid, dirtypages, 1);
+            BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, newPageNo, BTreePageId.HEADER);
+            headerId = headerPage.getId();
+            headerPage.init();
+            if (rootPtr != null) {
+                rootPtr.setHeaderId(headerId);
+            } else {
+                headerPage.setPrevPageId(prevId);
+                prevPage.setNextPageId(headerId);
+            }
+            synchronized (freePages) {
+                // reading the new page invalidated the map, but it is up to date again
+                headerIds.add(headerId);
+                freePageMapValid = true;
+            }
+            if (newPageNo == pageNo)
+                return null;
+        }
+    }
+
+    /**
+     * Mark the slot of the specified page empty in its header page and in the
+     * free page map
+     */
+    private void markPageEmpty(BTreeHeaderPage headerPage, int pageNo) {
+        headerPage.markSlotUsed(pageNo % BTreeHeaderPage.getNumSlots(), false);
+        synchronized (freePages) {
+            freePages.set(pageNo);
+        }
+    }
+
     /**
      * Mark a page in this BTreeFile as empty. Find the corresponding header page
      * (create it if needed), and mark the corresponding slot in the header page as empty.
@@ -1182,54 +1500,10 @@ public class BTreeFile implements DbFile {
 //			}
 //		}
 
-        // otherwise, get a read lock on the root pointer page and use it to locate
-        // the first header page
-        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-        BTreePageId headerId = rootPtr.getHeaderId();
-        BTreePageId prevId = null;
-        int headerPageCount = 0;
-
-        // if there are no header pages, create the first header page and update
-        // the header pointer in the BTreeRootPtrPage
-        if (headerId == null) {
-            rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-
-            BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-            headerId = headerPage.getId();
-            headerPage.init();
-            rootPtr.setHeaderId(headerId);
-        }
-
-        // iterate through all the existing header pages to find the one containing the slot
-        // corresponding to emptyPageNo
-        while (headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-            BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-            prevId = headerId;
-            headerId = headerPage.getNextPageId();
-            headerPageCount++;
-        }
-
-        // at this point headerId should either be null or set with
-        // the headerPage containing the slot corresponding to emptyPageNo.
-        // Add header pages until we have one with a slot corresponding to emptyPageNo
-        while ((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-            BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
-
-            BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-            headerId = headerPage.getId();
-            headerPage.init();
-            headerPage.setPrevPageId(prevId);
-            prevPage.setNextPageId(headerId);
-
-            headerPageCount++;
-            prevId = headerId;
-        }
-
-        // now headerId should be set with the headerPage containing the slot corresponding to
-        // emptyPageNo
-        BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-        int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
-        headerPage.markSlotUsed(emptySlot, false);
+        // otherwise, find the header page containing the slot corresponding to
+        // emptyPageNo, creating header pages if there are not enough of them
+        BTreeHeaderPage headerPage = getHeaderPage(tid, dirtypages, emptyPageNo, null);
+        markPageEmpty(headerPage, emptyPageNo);
     }
 
     /**
@@ -1243,7 +1517,57 @@ public class BTreeFile implements DbFile {
      * @return an iterator for the filtered tuples
      */
     public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
-        return new BTreeSearchIterator(this, tid, ipred);
+        Field field = ipred.getField();
+        switch (ipred.getOp()) {
+            case EQUALS:
+                return rangeIterator(tid, field, true, field, true);
+            case GREATER_THAN:
+                return rangeIterator(tid, field, false, null, false);
+            case GREATER_THAN_OR_EQ:
+                return rangeIterator(tid, field, true, null, false);
+            case LESS_THAN:
+                return rangeIterator(tid, null, false, field, false);
+            case LESS_THAN_OR_EQ:
+                return rangeIterator(tid, null, false, field, true);
+            default:
+                return new BTreeSearchIterator(this, tid, ipred);
+        }
+    }
+
+    /**
+     * Get the tuples whose key lies between the given bounds, in sorted order. The scan
+     * seeks directly to the leaf page containing the lower bound, stops as soon as it
+     * passes the upper bound, and prefetches DEFAULT_PREFETCH_LEAVES leaf pages ahead of it.
+     * This method will acquire a read lock on the pages it reads, and may block until the
+     * lock can be acquired.
+     *
+     * @param tid            - the transaction id
+     * @param lower          - the lower bound on the key, or null to start at the smallest key
+     * @param lowerInclusive - whether tuples with a key equal to lower are returned
+     * @param upper          - the upper bound on the key, or null to scan to the largest key
+     * @param upperInclusive - whether tuples with a key equal to upper are returned
+     * @return an iterator for the tuples in the range
+     */
+    public DbFileIterator rangeIterator(TransactionId tid, Field lower, boolean lowerInclusive,
+                                       Field upper, boolean upperInclusive) {
+        return rangeIterator(tid, lower, lowerInclusive, upper, upperInclusive, DEFAULT_PREFETCH_LEAVES);
+    }
+
+    /**
+     * Get the tuples whose key lies between the given bounds, in sorted order.
+     *
+     * @param tid            - the transaction id
+     * @param lower          - the lower bound on the key, or null to start at the smallest key
+     * @param lowerInclusive - whether tuples with a key equal to lower are returned
+     * @param upper          - the upper bound on the key, or null to scan to the largest key
+     * @param upperInclusive - whether tuples with a key equal to upper are returned
+     * @param prefetchLeaves - the number of leaf pages to read ahead of the scan, 0 to disable
+     * @return an iterator for the tuples in the range
+     * @see #rangeIterator(TransactionId, Field, boolean, Field, boolean)
+     */
+    public DbFileIterator rangeIterator(TransactionId tid, Field lower, boolean lowerInclusive,
+                                       Field upper, boolean upperInclusive, int prefetchLeaves) {
+        return new BTreeRangeIterator(this, tid, lower, lowerInclusive, upper, upperInclusive, prefetchLeaves);
     }
 
     /**
@@ -1340,6 +1664,179 @@ class BTreeFileIterator extends AbstractDbFileIterator {
     }
 }
 
+/**
+ * Helper class that implements the DbFileIterator for tuples in a key range
+ * of a B+ Tree File
+ */
+class BTreeRangeIterator extends AbstractDbFileIterator {
+
+    Iterator<Tuple> it = null;
+    BTreeLeafPage curp = null;
+
+    final TransactionId tid;
+    final BTreeFile f;
+    final Field lower;
+    final boolean lowerInclusive;
+    final Field upper;
+    final boolean upperInclusive;
+    final int prefetchLeaves;
+
+    // leaves already handed to the BufferPool for prefetching, under prefetchParent
+    final Set<PageId> prefetched = new HashSet<>();
+    BTreePageId prefetchParent = null;
+
+    /**
+     * Constructor for this iterator
+     *
+     * @param f              - the BTreeFile containing the tuples
+     * @param tid            - the transaction id
+     * @param lower          - the lower bound on the key, or null if unbounded
+     * @param lowerInclusive - whether the lower bound is inclusive
+     * @param upper          - the upper bound on the key, or null if unbounded
+     * @param upperInclusive - whether the upper bound is inclusive
+     * @param prefetchLeaves - the number of leaf pages to read ahead
+     */
+    public BTreeRangeIterator(BTreeFile f, TransactionId tid, Field lower, boolean lowerInclusive,
+                              Field upper, boolean upperInclusive, int prefetchLeaves) {
+        this.f = f;
+        this.tid = tid;
+        this.lower = lower;
+        this.lowerInclusive = lowerInclusive;
+        this.upper = upper;
+        this.upperInclusive = upperInclusive;
+        this.prefetchLeaves = prefetchLeaves;
+    }
+
+    /**
+     * Open this iterator by seeking to the left-most leaf page which may contain the lower bound
+     */
+    public void open() throws DbException, TransactionAbortedException {
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+        BTreePageId root = rootPtr.getRootId();
+        curp = f.findLeafPage(tid, root, lower);
+        it = curp.iterator();
+        prefetch();
+    }
+
+    private boolean aboveLower(Field key) {
+        return lower == null || key.compare(lowerInclusive ? Op.GREATER_THAN_OR_EQ : Op.GREATER_THAN, lower);
+    }
+
+    private boolean belowUpper(Field key) {
+        return upper == null || key.compare(upperInclusive ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN, upper);
+    }
+
+    /**
+     * Ask the BufferPool to read the next leaves to the right of the current one. Their ids
+     * come from the parent page if this transaction already holds a lock on it (findLeafPage
+     * locks the path to the first leaf), and leaves whose keys are all above the upper bound
+     * are left out. Otherwise only the right sibling is prefetched, so that the scan never
+     * locks more pages than it did without prefetching.
+     */
+    private void prefetch() throws DbException, TransactionAbortedException {
+        BTreePageId parentId = curp.getParentId();
+        if (prefetchLeaves <= 0) {
+            return;
+        }
+        if (parentId.pgcateg() != BTreePageId.INTERNAL || !Database.getBufferPool().holdsLock(tid, parentId)) {
+            BTreePageId nextp = curp.getRightSiblingId();
+            Iterator<Tuple> last = curp.reverseIterator();
+            if (upper != null && last.hasNext() && !belowUpper(last.next().getField(f.keyField()))) {
+                return;
+            }
+            if (nextp != null && prefetched.add(nextp)) {
+                Database.getBufferPool().prefetchPages(Collections.singletonList(nextp));
+            }
+            return;
+        }
+        if (!parentId.equals(prefetchParent)) {
+            prefetchParent = parentId;
+            prefetched.clear();
+        }
+        BTreeInternalPage parent = (BTreeInternalPage) Database.getBufferPool().getPage(
+                tid, parentId, Permissions.READ_ONLY);
+        List<PageId> pids = new ArrayList<>();
+        boolean found = false;
+        int ahead = 0;
+        Iterator<BTreeEntry> entries = parent.iterator();
+        while (entries.hasNext() && ahead < prefetchLeaves) {
+            BTreeEntry e = entries.next();
+            if (!found) {
+                found = e.getLeftChild().equals(curp.getId());
+                if (!found) {
+                    continue;
+                }
+            }
+            // every key in the right child is at least e.getKey()
+            if (upper != null && e.getKey().compare(Op.GREATER_THAN, upper)) {
+                break;
+            }
+            ahead++;
+            if (prefetched.add(e.getRightChild())) {
+                pids.add(e.getRightChild());
+            }
+        }
+        Database.getBufferPool().prefetchPages(pids);
+    }
+
+    /**
+     * Read the next tuple in the range, following right sibling pointers until a key
+     * above the upper bound is found.
+     *
+     * @return the next tuple in the range, or null if none exists
+     */
+    @Override
+    protected Tuple readNext() throws TransactionAbortedException, DbException {
+        while (it != null) {
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                Field key = t.getField(f.keyField());
+                if (!belowUpper(key)) {
+                    // tuples are sorted, so the rest of the file is out of range
+                    it = null;
+                    curp = null;
+                    return null;
+                }
+                if (aboveLower(key)) {
+                    return t;
+                }
+            }
+
+            BTreePageId nextp = curp.getRightSiblingId();
+            if (nextp == null) {
+                it = null;
+                curp = null;
+            } else {
+                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+                        nextp, Permissions.READ_ONLY);
+                it = curp.iterator();
+                prefetch();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * rewind this iterator back to the beginning of the range
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * close the iterator
+     */
+    public void close() {
+        super.close();
+        it = null;
+        curp = null;
+        prefetched.clear();
+        prefetchParent = null;
+    }
+}
+
 /**
  * Helper class that implements the DbFileIterator for search tuples on a
  * B+ Tree File
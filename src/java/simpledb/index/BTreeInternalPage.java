@@ -2,6 +2,8 @@ package simpledb.index;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import simpledb.common.Catalog;
 import simpledb.common.Database;
@@ -13,6 +15,7 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
@@ -33,6 +36,14 @@ public class BTreeInternalPage extends BTreePage {
 	
 	private int childCategory; // either leaf or internal
 
+	// page format version, see BTreePage#FORMAT_COMPACT
+	private final int format;
+
+	// compact format: parent pointer, child category, number of entries, prefix length, first child pointer
+	private final static int COMPACT_HEADER_SIZE = INDEX_SIZE + 1 + 2 + 1 + INDEX_SIZE;
+	// compact format: one slot directory entry is a key offset and a child pointer
+	private final static int COMPACT_SLOT_SIZE = 2 + INDEX_SIZE;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -48,7 +59,8 @@ public class BTreeInternalPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        // compact pages hold variable-length keys, so they are only kept half full by bytes on a best effort basis
+        assert !checkOccupancy || depth <= 0 || isCompact() || (getNumEntries() >= getMaxEntries() / 2);
 	}
 	
 	/**
@@ -76,8 +88,39 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
+		this(id, data, key, FORMAT_FIXED_WIDTH);
+	}
+
+	/**
+	 * Create a BTreeInternalPage from a set of bytes of data read from disk,
+	 * using the given page format.
+	 * <p>
+	 * The FORMAT_COMPACT layout is the parent pointer, the child page category,
+	 * a 2-byte number of entries, the key prefix (1 length byte followed by the
+	 * prefix bytes), the first child pointer, and a slot directory with one
+	 * (2-byte key offset, child pointer) pair per entry. Keys are stored in a heap
+	 * growing down from the end of the page. The prefix is the longest common
+	 * prefix of the smallest and largest key on the page, and each string key only
+	 * stores its remaining suffix, so the number of entries depends on the keys
+	 * and not only on the key type.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param key - the field which the index is keyed on
+	 * @param format - the page format, either FORMAT_FIXED_WIDTH or FORMAT_COMPACT
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int key, int format) throws IOException {
 		super(id, key);
+		this.format = format;
 		this.numSlots = getMaxEntries() + 1;
+		if (isCompact()) {
+			header = new byte[getHeaderSize()];
+			keys = new Field[numSlots];
+			children = new int[numSlots];
+			readCompactPageData(data);
+			setBeforeImage();
+			return;
+		}
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -125,6 +168,10 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
+		if (isCompact()) {
+			// bounded by the smallest possible entry, a key with an empty suffix
+			return (BufferPool.getPageSize() - COMPACT_HEADER_SIZE) / getMinCompactEntrySize();
+		}
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
@@ -154,7 +201,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyField,format);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -241,6 +288,9 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
+		if (isCompact()) {
+			return getCompactPageData();
+		}
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -342,6 +392,216 @@ public class BTreeInternalPage extends BTreePage {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Parse the FORMAT_COMPACT layout described in the constructor. Entries are
+	 * placed in slots 1..n; slot 0 holds the first child pointer if there is one.
+	 */
+	private void readCompactPageData(byte[] data) {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		parent = buf.getInt();
+		childCategory = buf.get();
+		int numEntries = buf.getShort() & 0xFFFF;
+		byte[] prefix = new byte[buf.get() & 0xFF];
+		buf.get(prefix);
+		int firstChild = buf.getInt();
+		if (firstChild != 0) {
+			children[0] = firstChild;
+			markSlotUsed(0, true);
+		}
+		for (int i = 1; i <= numEntries; i++) {
+			int offset = buf.getShort() & 0xFFFF;
+			children[i] = buf.getInt();
+			keys[i] = readCompactKey(data, offset, prefix);
+			markSlotUsed(i, true);
+		}
+	}
+
+	private Field readCompactKey(byte[] data, int offset, byte[] prefix) {
+		if (td.getFieldType(keyField) == Type.INT_TYPE) {
+			return new IntField(ByteBuffer.wrap(data, offset, INDEX_SIZE).getInt());
+		}
+		int suffixLen = data[offset] & 0xFF;
+		byte[] bs = new byte[prefix.length + suffixLen];
+		System.arraycopy(prefix, 0, bs, 0, prefix.length);
+		System.arraycopy(data, offset + 1, bs, prefix.length, suffixLen);
+		return new StringField(new String(bs, StandardCharsets.ISO_8859_1), Type.STRING_LEN);
+	}
+
+	/**
+	 * One byte per character, the same encoding StringField.serialize uses, so that
+	 * the stored key length is the string length.
+	 */
+	private static byte[] toBytes(String s) {
+		byte[] bs = new byte[s.length()];
+		for (int i = 0; i < bs.length; i++)
+			bs[i] = (byte) s.charAt(i);
+		return bs;
+	}
+
+	/**
+	 * Serialize this page using the FORMAT_COMPACT layout described in the constructor.
+	 */
+	private byte[] getCompactPageData() {
+		byte[] data = new byte[BufferPool.getPageSize()];
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		KeySpace space = new KeySpace();
+		for (int i = 1; i < numSlots; i++)
+			if (isSlotUsed(i))
+				space.add(keys[i]);
+		int prefixLen = space.prefixLength();
+
+		buf.putInt(parent);
+		buf.put((byte) childCategory);
+		buf.putShort((short) space.numKeys);
+		buf.put((byte) prefixLen);
+		if (prefixLen > 0)
+			buf.put(toBytes(((StringField) space.min).getValue().substring(0, prefixLen)));
+		buf.putInt(isSlotUsed(0) ? children[0] : 0);
+
+		// the slot directory grows from the front, the key heap from the back
+		int heapStart = data.length;
+		for (int i = 1; i < numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			heapStart -= compactKeySize(keys[i], prefixLen);
+			buf.putShort((short) heapStart);
+			buf.putInt(children[i]);
+			if (keys[i].getType() == Type.INT_TYPE) {
+				ByteBuffer.wrap(data, heapStart, INDEX_SIZE).putInt(((IntField) keys[i]).getValue());
+			} else {
+				byte[] suffix = toBytes(((StringField) keys[i]).getValue().substring(prefixLen));
+				data[heapStart] = (byte) suffix.length;
+				System.arraycopy(suffix, 0, data, heapStart + 1, suffix.length);
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * @return the number of heap bytes the key occupies on a compact page with the given prefix length
+	 */
+	private static int compactKeySize(Field key, int prefixLen) {
+		if (key.getType() == Type.INT_TYPE)
+			return INDEX_SIZE;
+		return 1 + ((StringField) key).getValue().length() - prefixLen;
+	}
+
+	private int getMinCompactEntrySize() {
+		return COMPACT_SLOT_SIZE + (td.getFieldType(keyField) == Type.INT_TYPE ? INDEX_SIZE : 1);
+	}
+
+	/**
+	 * Accumulates the keys of a (possibly hypothetical) compact page to compute how
+	 * many bytes it would need. The prefix shared by all keys is the common prefix of
+	 * the smallest and largest one, so it is enough to track those and the total key length.
+	 */
+	private class KeySpace {
+		int numKeys = 0;
+		int totalKeyLen = 0;
+		Field min = null;
+		Field max = null;
+
+		void add(Field key) {
+			numKeys++;
+			if (key.getType() == Type.STRING_TYPE)
+				totalKeyLen += ((StringField) key).getValue().length();
+			if (min == null || key.compare(Op.LESS_THAN, min))
+				min = key;
+			if (max == null || key.compare(Op.GREATER_THAN, max))
+				max = key;
+		}
+
+		int prefixLength() {
+			if (min == null || min.getType() != Type.STRING_TYPE)
+				return 0;
+			String a = ((StringField) min).getValue();
+			String b = ((StringField) max).getValue();
+			int n = Math.min(a.length(), b.length());
+			int i = 0;
+			while (i < n && a.charAt(i) == b.charAt(i))
+				i++;
+			return i;
+		}
+
+		int bytes() {
+			if (min == null || min.getType() == Type.INT_TYPE)
+				return COMPACT_HEADER_SIZE + numKeys * (COMPACT_SLOT_SIZE + INDEX_SIZE);
+			int prefixLen = prefixLength();
+			return COMPACT_HEADER_SIZE + prefixLen + numKeys * (COMPACT_SLOT_SIZE + 1)
+					+ totalKeyLen - numKeys * prefixLen;
+		}
+
+		boolean fits() {
+			return numKeys <= getMaxEntries() && bytes() <= BufferPool.getPageSize();
+		}
+	}
+
+	/**
+	 * @return the space taken by the keys on this page, leaving out the key in slot skipSlot
+	 */
+	private KeySpace keySpace(int skipSlot) {
+		KeySpace space = new KeySpace();
+		for (int i = 1; i < numSlots; i++)
+			if (i != skipSlot && isSlotUsed(i))
+				space.add(keys[i]);
+		return space;
+	}
+
+	/**
+	 * @return true if this page uses the FORMAT_COMPACT layout
+	 */
+	public boolean isCompact() {
+		return format == FORMAT_COMPACT;
+	}
+
+	/**
+	 * Returns true if an entry with the given key can be inserted into this page without
+	 * splitting it. On a FORMAT_FIXED_WIDTH page this is any empty slot; on a compact page
+	 * the key must fit in the remaining space, including the growth of the other keys if
+	 * it shortens the shared prefix.
+	 * @param key - the key of the entry to insert
+	 */
+	public boolean hasSpaceFor(Field key) {
+		if (!isCompact())
+			return getNumEmptySlots() > 0;
+		KeySpace space = keySpace(-1);
+		space.add(key);
+		return space.fits();
+	}
+
+	/**
+	 * Returns true if all entries of the right sibling plus the separator pulled down from
+	 * the parent fit into this page, so that the two pages can be merged.
+	 * @param right - the right sibling of this page
+	 * @param separator - the key in the parent separating this page and its right sibling
+	 */
+	public boolean canMergeWith(BTreeInternalPage right, Field separator) {
+		if (!isCompact())
+			return getNumEntries() + right.getNumEntries() + 1 <= getMaxEntries();
+		KeySpace space = keySpace(-1);
+		space.add(separator);
+		for (int i = 1; i < right.numSlots; i++)
+			if (right.isSlotUsed(i))
+				space.add(right.keys[i]);
+		return space.fits();
+	}
+
+	/**
+	 * Returns true if the given key on this page can be replaced by any other key
+	 * of the key type. This is a conservative check used before redistributing entries
+	 * between two children, when the new separator is not known yet.
+	 * @param oldKey - the key which will be replaced
+	 */
+	public boolean canReplaceKey(Field oldKey) {
+		if (!isCompact() || oldKey.getType() == Type.INT_TYPE)
+			return true;
+		KeySpace space = keySpace(-1);
+		// the new key may remove the shared prefix and be as long as possible
+		int bytes = COMPACT_HEADER_SIZE + space.numKeys * (COMPACT_SLOT_SIZE + 1) + space.totalKeyLen
+				- ((StringField) oldKey).getValue().length() + Type.STRING_LEN;
+		return bytes <= BufferPool.getPageSize();
+	}
+
 	/**
 	 * Delete the specified entry (key + 1 child pointer) from the page. The recordId
 	 * is used to find the specified entry, so it must not be null. After deletion, the 
@@ -418,6 +678,12 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		if (isCompact()) {
+			KeySpace space = keySpace(rid.getTupleNumber());
+			space.add(e.getKey());
+			if (!space.fits())
+				throw new DbException("not enough space on page to update entry with key " + e.getKey());
+		}
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -465,6 +731,9 @@ public class BTreeInternalPage extends BTreePage {
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
+		if (isCompact() && !hasSpaceFor(e.getKey()))
+			throw new DbException("called insertEntry on page with no space left for key " + e.getKey());
+
 		// if this is the first entry, add it and return
 		if(getNumEmptySlots() == getMaxEntries()) {
 			children[0] = e.getLeftChild().getPageNumber();
@@ -571,13 +840,23 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		int cnt = 0;
+		for(int i=1; i<numSlots; i++)
+			if(isSlotUsed(i))
+				cnt++;
+		return cnt;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. On a compact page this is
+	 * an estimate of how many more entries fit, assuming the smallest entry size.
 	 */
 	public int getNumEmptySlots() {
+		if (isCompact()) {
+			KeySpace space = keySpace(-1);
+			int freeBytes = BufferPool.getPageSize() - space.bytes();
+			return Math.max(0, Math.min(getMaxEntries() - space.numKeys, freeBytes / getMinCompactEntrySize()));
+		}
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -770,8 +1049,14 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null)
+					continue;
+				// the left child is stored in the previous used slot, which need not be entry - 1
+				int prev = entry - 1;
+				while(prev > 0 && !p.isSlotUsed(prev))
+					prev--;
+				BTreePageId childId = p.getChildId(prev);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
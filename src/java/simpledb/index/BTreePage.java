@@ -23,6 +23,16 @@ public abstract class BTreePage implements Page {
 	//4个字节
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
+	/**
+	 * Page format versions. FORMAT_FIXED_WIDTH is the original layout in which every key
+	 * occupies Type.getLen() bytes. FORMAT_COMPACT stores internal page keys with
+	 * variable length behind a slot directory, truncated by the prefix shared by the
+	 * page's fence keys.
+	 * The version of a file is recorded in its BTreeRootPtrPage.
+	 */
+	public final static int FORMAT_FIXED_WIDTH = 0;
+	public final static int FORMAT_COMPACT = 1;
+
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
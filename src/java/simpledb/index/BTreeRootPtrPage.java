@@ -16,6 +16,8 @@ import java.io.*;
 public class BTreeRootPtrPage implements Page {
 	// size of this page
 	public final static int PAGE_SIZE = 9;
+	// offset of the root category byte, which also carries the format version
+	private final static int INDEX_CATEGORY_OFFSET = 4;
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
@@ -25,6 +27,7 @@ public class BTreeRootPtrPage implements Page {
     private int root;
 	private int rootCategory;
 	private int header;
+	private int format;
 
 	private byte[] oldData;
 
@@ -35,7 +38,10 @@ public class BTreeRootPtrPage implements Page {
 	 * The format of an BTreeRootPtrPage is an integer for the page number
 	 * of the root node, followed by a byte to encode the category of the root page
 	 * (either leaf or internal), followed by an integer for the page number
-	 * of the first header page
+	 * of the first header page.
+	 * The upper four bits of the category byte hold the page format version of
+	 * the file (see {@link BTreePage#FORMAT_COMPACT}); files written before the
+	 * format was versioned have zero there and use the fixed-width format.
 	 */
 	public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
 		this.pid = id;
@@ -43,7 +49,9 @@ public class BTreeRootPtrPage implements Page {
 
 		// read in the root pointer
 		root = dis.readInt();
-		rootCategory = dis.readByte();
+		int categoryByte = dis.readByte() & 0xFF;
+		rootCategory = categoryByte & 0x0F;
+		format = categoryByte >>> 4;
 
 		// read in the header pointer
 		header = dis.readInt();
@@ -94,7 +102,7 @@ public class BTreeRootPtrPage implements Page {
 
 		// write out the category of the root page (leaf or internal)
 		try{
-			dos.writeByte((byte) rootCategory);
+			dos.writeByte((byte) ((format << 4) | rootCategory));
 		}catch(IOException e){
 			e.printStackTrace();
 		}
@@ -128,6 +136,29 @@ public class BTreeRootPtrPage implements Page {
         return new byte[PAGE_SIZE]; //all 0
 	}
 
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * BTreeRootPtrPage of a file using the given page format.
+	 *
+	 * @param format - the page format version of the file
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData(int format) {
+		byte[] data = createEmptyPageData();
+		data[INDEX_CATEGORY_OFFSET] = (byte) (format << 4);
+		return data;
+	}
+
+	/**
+	 * Read the page format version from the raw data of a root pointer page
+	 * without parsing the whole page.
+	 * @param data - the raw data of a root pointer page
+	 * @return the page format version
+	 */
+	public static int readFormat(byte[] data) {
+		return (data[INDEX_CATEGORY_OFFSET] & 0xFF) >>> 4;
+	}
+
 	public void markDirty(boolean dirty, TransactionId tid){
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
@@ -216,6 +247,14 @@ public class BTreeRootPtrPage implements Page {
 		}
 	}
 
+	/**
+	 * Get the page format version of this B+ tree file
+	 * @return the page format version
+	 */
+	public int getFormat() {
+		return format;
+	}
+
 	/**
 	 * Get the page size of root pointer pages
 	 * @return the page size
@@ -5,6 +5,7 @@ import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.IndexPredicate;
 import simpledb.execution.OpIterator;
+import simpledb.execution.RuntimeFilter;
 import simpledb.storage.DbFileIterator;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -28,6 +29,7 @@ public class BTreeScan implements OpIterator {
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
+	private int keyField;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -71,6 +73,15 @@ public class BTreeScan implements OpIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the index of the field the tuples are returned in ascending
+	 *         order of
+	 */
+	public int getKeyField()
+	{
+		return this.keyField;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -87,6 +98,7 @@ public class BTreeScan implements OpIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
+		this.keyField = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).keyField();
 		if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
@@ -110,11 +122,34 @@ public class BTreeScan implements OpIterator {
 		this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
 	}
 
+	// filters on join keys set by joins this scan is the probe side of
+	private final List<RuntimeFilter> runtimeFilters = new ArrayList<>();
+	// the next tuple that passes the runtime filters, if already read
+	private transient Tuple nextTuple = null;
+
+	/**
+	 * Drop the tuples that do not pass a filter on a join key, set by a
+	 * HashEquiJoin that reads this scan (see {@link RuntimeFilter}).
+	 *
+	 * @param filter a filter on a field of the table
+	 */
+	public void addRuntimeFilter(RuntimeFilter filter) {
+		runtimeFilters.add(filter);
+	}
+
+	/**
+	 * @return the filters on join keys this scan applies
+	 */
+	public List<RuntimeFilter> getRuntimeFilters() {
+		return Collections.unmodifiableList(runtimeFilters);
+	}
+
 	public void open() throws DbException, TransactionAbortedException {
 		if (isOpen)
 			throw new DbException("double open on one OpIterator.");
 
 		it.open();
+		nextTuple = null;
 		isOpen = true;
 	}
 
@@ -134,15 +169,25 @@ public class BTreeScan implements OpIterator {
 	public boolean hasNext() throws TransactionAbortedException, DbException {
 		if (!isOpen)
 			throw new IllegalStateException("iterator is closed");
-		return it.hasNext();
+		next:
+		while (nextTuple == null && it.hasNext()) {
+			Tuple t = it.next();
+			for (RuntimeFilter f : runtimeFilters) {
+				if (!f.filter(t))
+					continue next;
+			}
+			nextTuple = t;
+		}
+		return nextTuple != null;
 	}
 
 	public Tuple next() throws NoSuchElementException,
 	TransactionAbortedException, DbException {
-		if (!isOpen)
-			throw new IllegalStateException("iterator is closed");
-
-		return it.next();
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Tuple t = nextTuple;
+		nextTuple = null;
+		return t;
 	}
 
 	public void close() {
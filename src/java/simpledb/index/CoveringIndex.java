@@ -0,0 +1,179 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * CoveringIndex is a secondary B+ tree index over a base table. Besides the
+ * key field, it stores a copy of a list of INCLUDE fields in its leaf tuples,
+ * so that queries which only reference the key and the included fields can be
+ * answered from the index alone (see {@link IndexOnlyScan}).
+ * <p>
+ * The index file holds tuples with the key field first, followed by the
+ * included fields in the order they were given. Field names are the same as
+ * in the base table. Once registered with
+ * {@link simpledb.common.Catalog#addIndex}, the BufferPool keeps the index up
+ * to date as tuples are inserted into and deleted from the base table.
+ */
+public class CoveringIndex {
+
+	private final String name;
+	private final int tableid;
+	// baseFields[i] is the field of the base table stored in field i of the index
+	private final int[] baseFields;
+	private final BTreeFile file;
+
+	/**
+	 * Creates a covering index over the specified table.
+	 *
+	 * @param name the name of the index
+	 * @param tableid the id of the base table
+	 * @param keyField the name of the field the index is keyed on
+	 * @param includeFields the names of the fields stored alongside the key; may be empty
+	 * @param f the file that stores the index
+	 * @throws NoSuchElementException if one of the fields is not in the base table
+	 */
+	public CoveringIndex(String name, int tableid, String keyField, String[] includeFields, File f) {
+		this.name = name;
+		this.tableid = tableid;
+		TupleDesc baseTd = Database.getCatalog().getTupleDesc(tableid);
+		this.baseFields = new int[includeFields.length + 1];
+		Type[] types = new Type[baseFields.length];
+		String[] names = new String[baseFields.length];
+		for (int i = 0; i < baseFields.length; i++) {
+			String fieldName = i == 0 ? keyField : includeFields[i - 1];
+			baseFields[i] = baseTd.fieldNameToIndex(fieldName);
+			types[i] = baseTd.getFieldType(baseFields[i]);
+			names[i] = fieldName;
+		}
+		this.file = new BTreeFile(f, 0, new TupleDesc(types, names));
+	}
+
+	/**
+	 * @return the name of this index
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the id of the base table this index is defined on
+	 */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * @return the B+ tree file that stores this index
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the name of the key field of this index
+	 */
+	public String getKeyField() {
+		return file.getTupleDesc().getFieldName(0);
+	}
+
+	/**
+	 * @param fieldName the name of a field of the base table
+	 * @return true if the index stores the specified field
+	 */
+	public boolean covers(String fieldName) {
+		TupleDesc td = file.getTupleDesc();
+		for (int i = 0; i < td.numFields(); i++) {
+			if (td.getFieldName(i).equals(fieldName))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param fieldNames the names of fields of the base table
+	 * @return true if the index stores all of the specified fields
+	 */
+	public boolean covers(Collection<String> fieldNames) {
+		for (String fieldName : fieldNames) {
+			if (!covers(fieldName))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Build the index tuple for a tuple of the base table
+	 */
+	private Tuple project(Tuple t) {
+		Tuple indexTuple = new Tuple(file.getTupleDesc());
+		for (int i = 0; i < baseFields.length; i++)
+			indexTuple.setField(i, t.getField(baseFields[i]));
+		return indexTuple;
+	}
+
+	/**
+	 * Add the entry for a tuple that was inserted into the base table.
+	 *
+	 * @param tid the transaction inserting the tuple
+	 * @param t the tuple of the base table
+	 */
+	public void insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Database.getBufferPool().insertTuple(tid, file.getId(), project(t));
+	}
+
+	/**
+	 * Remove the entry for a tuple that was deleted from the base table.
+	 * Entries with equal key and included fields are interchangeable, so
+	 * any one of them is removed.
+	 *
+	 * @param tid the transaction deleting the tuple
+	 * @param t the tuple of the base table
+	 * @throws DbException if the index has no entry for the tuple
+	 */
+	public void deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Tuple entry = project(t);
+		Field key = entry.getField(0);
+		DbFileIterator it = file.rangeIterator(tid, key, true, key, true);
+		it.open();
+		Tuple match = null;
+		while (match == null && it.hasNext()) {
+			Tuple candidate = it.next();
+			boolean equal = true;
+			for (int i = 1; i < baseFields.length && equal; i++)
+				equal = candidate.getField(i).equals(entry.getField(i));
+			if (equal)
+				match = candidate;
+		}
+		it.close();
+		if (match == null)
+			throw new DbException("no entry in index " + name + " for tuple " + t);
+		Database.getBufferPool().deleteTuple(tid, match);
+	}
+
+	/**
+	 * Add entries for all tuples currently in the base table. All modified
+	 * index pages are held by the transaction until it commits, so large
+	 * tables should be indexed before they are loaded.
+	 *
+	 * @param tid the transaction building the index
+	 */
+	public void build(TransactionId tid)
+			throws DbException, IOException, TransactionAbortedException {
+		DbFileIterator it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+		it.open();
+		while (it.hasNext())
+			insertTuple(tid, it.next());
+		it.close();
+	}
+}
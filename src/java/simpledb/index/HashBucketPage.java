@@ -0,0 +1,227 @@
+package simpledb.index;
+
+import simpledb.common.Catalog;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashBucketPage stores the tuples of one bucket of a HashFile. Buckets that
+ * outgrow a page but cannot be split, because all of their tuples share the
+ * same hash value, are continued on overflow pages linked through the next
+ * pointer. Pages on the free list of the file are linked the same way.
+ *
+ * @see HashFile
+ */
+public class HashBucketPage extends HashPage {
+
+	private final TupleDesc td;
+	private final byte[] header;
+	private final Tuple[] tuples;
+	private final int numSlots;
+
+	private int localDepth;
+	private int next; // overflow page or 0
+
+	/**
+	 * Create a HashBucketPage from a set of bytes of data read from disk.
+	 * The format is the local depth and the next pointer as 4 byte integers,
+	 * a set of header bytes indicating the slots of the page that are in use,
+	 * and some number of tuple slots. The number of tuples is equal to: <p>
+	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (tuple size * 8 + 1))
+	 * <p> where tuple size is the size of tuples in this database table,
+	 * which can be determined via {@link Catalog#getTupleDesc}.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+		super(id);
+		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.numSlots = getMaxTuples();
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		localDepth = dis.readInt();
+		next = dis.readInt();
+
+		header = new byte[getHeaderSize()];
+		dis.readFully(header);
+
+		tuples = new Tuple[numSlots];
+		try {
+			for (int i = 0; i < numSlots; i++)
+				tuples[i] = readNextTuple(dis, i);
+		} catch (java.text.ParseException e) {
+			throw new IOException(e);
+		}
+		dis.close();
+		setBeforeImage();
+	}
+
+	/**
+	 * Retrieve the maximum number of tuples this page can hold.
+	 */
+	public int getMaxTuples() {
+		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		// extraBits are: local depth and next pointer
+		int extraBits = 2 * INDEX_SIZE * 8;
+		return (BufferPool.getPageSize() * 8 - extraBits) / bitsPerTupleIncludingHeader;
+	}
+
+	/**
+	 * Computes the number of bytes in the header of a page with tuples of this size
+	 */
+	private int getHeaderSize() {
+		return (numSlots + 7) / 8;
+	}
+
+	private Tuple readNextTuple(DataInputStream dis, int slotId) throws IOException, java.text.ParseException {
+		if (!isSlotUsed(slotId)) {
+			dis.skipBytes(td.getSize());
+			return null;
+		}
+		Tuple t = new Tuple(td);
+		t.setRecordId(new RecordId(pid, slotId));
+		for (int j = 0; j < td.numFields(); j++)
+			t.setField(j, td.getFieldType(j).parse(dis));
+		return t;
+	}
+
+	public HashBucketPage getBeforeImage() {
+		try {
+			return new HashBucketPage(pid, getBeforeImageData());
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Passing it to the HashBucketPage constructor produces an identical page.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(localDepth);
+			dos.writeInt(next);
+			dos.write(header);
+			for (int i = 0; i < numSlots; i++) {
+				if (!isSlotUsed(i)) {
+					dos.write(new byte[td.getSize()]);
+					continue;
+				}
+				for (int j = 0; j < td.numFields(); j++)
+					tuples[i].getField(j).serialize(dos);
+			}
+			dos.write(new byte[len - 2 * INDEX_SIZE - header.length - numSlots * td.getSize()]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @return the number of low hash bits shared by all tuples in this bucket
+	 */
+	public int getLocalDepth() {
+		return localDepth;
+	}
+
+	public void setLocalDepth(int localDepth) {
+		this.localDepth = localDepth;
+	}
+
+	/**
+	 * @return the page number of the next page in the overflow chain or free list, or 0
+	 */
+	public int getNextPageNo() {
+		return next;
+	}
+
+	public void setNextPageNo(int pageNo) {
+		this.next = pageNo;
+	}
+
+	/**
+	 * Delete the specified tuple from the page; the tuple is updated to reflect
+	 * that it is no longer stored on any page.
+	 * @throws DbException if this tuple is not on this page, or tuple slot is
+	 *         already empty.
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !pid.equals(rid.getPageId()))
+			throw new DbException("tried to delete tuple on invalid page or table");
+		if (!isSlotUsed(rid.getTupleNumber()))
+			throw new DbException("tried to delete null tuple.");
+		markSlotUsed(rid.getTupleNumber(), false);
+		tuples[rid.getTupleNumber()] = null;
+		t.setRecordId(null);
+	}
+
+	/**
+	 * Adds the specified tuple to the first empty slot of the page; the tuple
+	 * is updated to reflect that it is now stored on this page.
+	 * @throws DbException if the page is full or the tupledesc is mismatched.
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!t.getTupleDesc().equals(td))
+			throw new DbException("type mismatch, in insertTuple");
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				markSlotUsed(i, true);
+				t.setRecordId(new RecordId(pid, i));
+				tuples[i] = t;
+				return;
+			}
+		}
+		throw new DbException("called insertTuple on page with no empty slots.");
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		int cnt = 0;
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i))
+				cnt++;
+		}
+		return cnt;
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		return (header[i / 8] & (1 << (i % 8))) != 0;
+	}
+
+	private void markSlotUsed(int i, boolean value) {
+		if (value)
+			header[i / 8] |= (byte) (1 << (i % 8));
+		else
+			header[i / 8] &= (byte) ~(1 << (i % 8));
+	}
+
+	/**
+	 * @return an iterator over the tuples on this page; removing tuples from
+	 *         the page while iterating is allowed
+	 */
+	public Iterator<Tuple> iterator() {
+		List<Tuple> l = new ArrayList<>();
+		for (int i = 0; i < numSlots; i++) {
+			if (isSlotUsed(i))
+				l.add(tuples[i]);
+		}
+		return l.iterator();
+	}
+}
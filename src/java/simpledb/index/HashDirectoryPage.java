@@ -0,0 +1,78 @@
+package simpledb.index;
+
+import simpledb.storage.BufferPool;
+
+import java.io.*;
+
+/**
+ * HashDirectoryPage holds a slice of the directory of a HashFile: for each
+ * value of the low hash bits, the page number of the bucket holding tuples
+ * with that hash.
+ *
+ * @see HashFile
+ */
+public class HashDirectoryPage extends HashPage {
+
+	private final int[] buckets;
+
+	/**
+	 * Create a HashDirectoryPage from a set of bytes of data read from disk.
+	 * The page is an array of bucket page numbers as 4 byte integers.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public HashDirectoryPage(HashPageId id, byte[] data) throws IOException {
+		super(id);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		buckets = new int[getNumEntries()];
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = dis.readInt();
+		dis.close();
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the number of directory entries on a page
+	 */
+	public static int getNumEntries() {
+		return BufferPool.getPageSize() / INDEX_SIZE;
+	}
+
+	public HashDirectoryPage getBeforeImage() {
+		try {
+			return new HashDirectoryPage(pid, getBeforeImageData());
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public byte[] getPageData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			for (int b : buckets)
+				dos.writeInt(b);
+			dos.write(new byte[BufferPool.getPageSize() - buckets.length * INDEX_SIZE]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @param i - the index of the entry on this page
+	 * @return the page number of the bucket
+	 */
+	public int getBucket(int i) {
+		return buckets[i];
+	}
+
+	public void setBucket(int i, int pageNo) {
+		buckets[i] = pageNo;
+	}
+}
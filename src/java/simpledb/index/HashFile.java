@@ -0,0 +1,644 @@
+package simpledb.index;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.common.*;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * HashFile is an implementation of a DbFile that stores tuples in an
+ * extendible hash table on their key field. It answers equality lookups with
+ * a probe of a single bucket page, after the header and directory pages,
+ * which are few and stay in the buffer pool.
+ * <p>
+ * Page 0 of the file is a HashHeaderPage that records the global depth of the
+ * directory and the page numbers of the HashDirectoryPages. The directory maps
+ * the low global depth bits of the hash of a key to a HashBucketPage. When a
+ * bucket is full it is split on one more hash bit, doubling the directory if
+ * needed. Tuples with identical hashes cannot be split apart, so they continue
+ * on overflow pages instead. Buckets are not merged when tuples are deleted.
+ * <p>
+ * All pages are accessed through the BufferPool, so they are locked, and the
+ * pages changed by a split are logged through the LogFile when the
+ * transaction commits, just like the pages of a HeapFile or BTreeFile. The file
+ * must be added to the Catalog before it is used.
+ *
+ * @see HashHeaderPage
+ * @see HashDirectoryPage
+ * @see HashBucketPage
+ */
+public class HashFile implements DbFile {
+
+    private final File f;
+    private final TupleDesc td;
+    private final int tableid;
+    private final int keyField;
+
+    /**
+     * Constructs a hash file backed by the specified file. The file is
+     * initialized with a single empty bucket when it is first used.
+     *
+     * @param f   - the file that stores the on-disk backing store for this hash file
+     * @param key - the field which the hash index is keyed on
+     * @param td  - the tuple descriptor of tuples in the file
+     */
+    public HashFile(File f, int key, TupleDesc td) {
+        this.f = f;
+        this.tableid = f.getAbsoluteFile().hashCode();
+        this.keyField = key;
+        this.td = td;
+    }
+
+    /**
+     * Returns the File backing this HashFile on disk.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this HashFile, the hash code of the
+     * absolute file name of the underlying file.
+     */
+    public int getId() {
+        return tableid;
+    }
+
+    /**
+     * Returns the TupleDesc of the table stored in this DbFile.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Returns the index of the field that this hash index is keyed on
+     */
+    public int keyField() {
+        return keyField;
+    }
+
+    /**
+     * Returns the number of pages in this HashFile.
+     */
+    public int numPages() {
+        return (int) (f.length() / BufferPool.getPageSize());
+    }
+
+    /**
+     * Read a page from the file on disk. This should not be called directly
+     * but should be called from the BufferPool via getPage()
+     *
+     * @param pid - the id of the page to read from disk
+     * @return the page constructed from the contents on disk
+     */
+    public Page readPage(PageId pid) {
+        HashPageId id = (HashPageId) pid;
+        byte[] pageBuf = new byte[BufferPool.getPageSize()];
+        try (RandomAccessFile rf = new RandomAccessFile(f, "r")) {
+            long offset = (long) id.getPageNumber() * BufferPool.getPageSize();
+            if (offset + pageBuf.length > rf.length())
+                throw new IllegalArgumentException("Read past end of table");
+            rf.seek(offset);
+            rf.readFully(pageBuf);
+            Debug.log(1, "HashFile.readPage: read page %d", id.getPageNumber());
+            switch (id.pgcateg()) {
+                case HashPageId.HEADER:
+                    return new HashHeaderPage(id, pageBuf);
+                case HashPageId.DIRECTORY:
+                    return new HashDirectoryPage(id, pageBuf);
+                default:
+                    return new HashBucketPage(id, pageBuf);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Write a page to disk.  This should not be called directly but should
+     * be called from the BufferPool when pages are flushed to disk
+     *
+     * @param page - the page to write to disk
+     */
+    public void writePage(Page page) throws IOException {
+        try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+            rf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+            rf.write(page.getPageData());
+        }
+    }
+
+    /**
+     * Spread the hash code of a key over all bits, since the directory is
+     * indexed by the low bits of the hash
+     */
+    static int hash(Field key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * The largest global depth of the directory, limited by the number of
+     * directory pages the header page can point to
+     */
+    private static int maxGlobalDepth() {
+        long entries = (long) HashHeaderPage.getMaxDirPages() * HashDirectoryPage.getNumEntries();
+        return Math.min(30, 63 - Long.numberOfLeadingZeros(entries));
+    }
+
+    /**
+     * Method to encapsulate the process of locking/fetching a page.  First the method checks the local
+     * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.
+     * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since
+     * presumably they will soon be dirtied by this transaction.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param pid        - the id of the requested page
+     * @param perm       - the requested permissions on the page
+     * @return the requested page
+     */
+    Page getPage(TransactionId tid, Map<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        if (dirtypages.containsKey(pid)) {
+            return dirtypages.get(pid);
+        } else {
+            Page p = Database.getBufferPool().getPage(tid, pid, perm);
+            if (perm == Permissions.READ_WRITE) {
+                dirtypages.put(pid, p);
+            }
+            return p;
+        }
+    }
+
+    /**
+     * Get the header page of this file, creating the file with an empty
+     * directory and bucket if it does not exist yet
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param perm       - the requested permissions on the header page
+     */
+    HashHeaderPage getHeaderPage(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm)
+            throws DbException, IOException, TransactionAbortedException {
+        synchronized (this) {
+            if (f.length() == 0) {
+                // page 0 is the header, page 1 the directory and page 2 the only bucket
+                HashHeaderPage header = new HashHeaderPage(headerId(), HashPage.createEmptyPageData());
+                header.addDirPage(1);
+                HashDirectoryPage dir = new HashDirectoryPage(
+                        new HashPageId(tableid, 1, HashPageId.DIRECTORY), HashPage.createEmptyPageData());
+                dir.setBucket(0, 2);
+                try (BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true))) {
+                    bw.write(header.getPageData());
+                    bw.write(dir.getPageData());
+                    bw.write(HashPage.createEmptyPageData());
+                }
+            }
+        }
+        return (HashHeaderPage) getPage(tid, dirtypages, headerId(), perm);
+    }
+
+    private HashPageId headerId() {
+        return new HashPageId(tableid, 0, HashPageId.HEADER);
+    }
+
+    private HashPageId bucketId(int pageNo) {
+        return new HashPageId(tableid, pageNo, HashPageId.BUCKET);
+    }
+
+    /**
+     * Look up the page number of the bucket for the specified directory entry
+     */
+    private int getBucketNo(TransactionId tid, Map<PageId, Page> dirtypages, HashHeaderPage header, int index)
+            throws DbException, TransactionAbortedException {
+        int perPage = HashDirectoryPage.getNumEntries();
+        HashPageId dirId = new HashPageId(tableid, header.getDirPage(index / perPage), HashPageId.DIRECTORY);
+        HashDirectoryPage dir = (HashDirectoryPage) getPage(tid, dirtypages, dirId, Permissions.READ_ONLY);
+        return dir.getBucket(index % perPage);
+    }
+
+    /**
+     * Point the specified directory entry at a bucket
+     */
+    private void setBucketNo(TransactionId tid, Map<PageId, Page> dirtypages, HashHeaderPage header, int index,
+                             int pageNo) throws DbException, TransactionAbortedException {
+        int perPage = HashDirectoryPage.getNumEntries();
+        HashPageId dirId = new HashPageId(tableid, header.getDirPage(index / perPage), HashPageId.DIRECTORY);
+        HashDirectoryPage dir = (HashDirectoryPage) getPage(tid, dirtypages, dirId, Permissions.READ_WRITE);
+        dir.setBucket(index % perPage, pageNo);
+    }
+
+    /**
+     * Insert a tuple into the first page of the bucket for its hash that has
+     * an empty slot.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param header     - the header page
+     * @param hash       - the hash of the key of the tuple
+     * @param t          - the tuple to insert
+     * @param locked     - if not null, collects the pages locked that the transaction may release
+     *                   again: the directory page read, unless the transaction modified it, and the
+     *                   bucket pages it held no lock on before
+     * @return null if the tuple was inserted, or the first page of the bucket if all its pages are full
+     */
+    private HashBucketPage insertIntoBucket(TransactionId tid, Map<PageId, Page> dirtypages, HashHeaderPage header,
+                                            int hash, Tuple t, List<PageId> locked)
+            throws DbException, TransactionAbortedException {
+        int index = hash & ((1 << header.getGlobalDepth()) - 1);
+        int perPage = HashDirectoryPage.getNumEntries();
+        HashPageId dirId = new HashPageId(tableid, header.getDirPage(index / perPage), HashPageId.DIRECTORY);
+        HashDirectoryPage dir = (HashDirectoryPage) getPage(tid, dirtypages, dirId, Permissions.READ_ONLY);
+        if (locked != null && dir.isDirty() != tid)
+            locked.add(dirId);
+
+        HashPageId pid = bucketId(dir.getBucket(index % perPage));
+        HashBucketPage bucket = null;
+        while (true) {
+            if (locked != null && !Database.getBufferPool().holdsLock(tid, pid))
+                locked.add(pid);
+            HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+            if (bucket == null)
+                bucket = page;
+            if (page.getNumEmptySlots() > 0) {
+                page.insertTuple(t);
+                return null;
+            }
+            if (page.getNextPageNo() == 0)
+                return bucket;
+            pid = bucketId(page.getNextPageNo());
+        }
+    }
+
+    /**
+     * @return true if a bucket holds a key with a hash other than the specified one, so that
+     * splitting the bucket makes room for a key with that hash
+     */
+    private boolean isSplittable(TransactionId tid, Map<PageId, Page> dirtypages, HashBucketPage bucket, int hash)
+            throws DbException, TransactionAbortedException {
+        HashBucketPage page = bucket;
+        while (true) {
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                if (hash(it.next().getField(keyField)) != hash)
+                    return true;
+            }
+            if (page.getNextPageNo() == 0)
+                return false;
+            page = (HashBucketPage) getPage(tid, dirtypages, bucketId(page.getNextPageNo()), Permissions.READ_WRITE);
+        }
+    }
+
+    /**
+     * Insert a tuple into this HashFile, splitting its bucket if it is full.
+     * <p>
+     * An insert that finds room in its bucket only reads the header page, so
+     * inserts into different buckets run concurrently. Splitting or chaining
+     * a bucket needs the header read-write, but two inserters that upgraded
+     * their read locks on it would wait for each other. An insert into a full
+     * bucket therefore releases the pages it read and did not modify, and
+     * starts over with the header locked read-write before any bucket.
+     *
+     * @param tid - the transaction id
+     * @param t   - the tuple to insert
+     * @return a list of all pages that were dirtied by this operation
+     */
+    public List<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Map<PageId, Page> dirtypages = new HashMap<>();
+        int hash = hash(t.getField(keyField));
+
+        List<PageId> locked = new ArrayList<>();
+        HashHeaderPage header = getHeaderPage(tid, dirtypages, Permissions.READ_ONLY);
+        HashBucketPage bucket = insertIntoBucket(tid, dirtypages, header, hash, t, locked);
+        if (bucket == null)
+            return new ArrayList<>(dirtypages.values());
+
+        if (header.isDirty() != tid)
+            locked.add(header.getId());
+        for (PageId pid : locked) {
+            dirtypages.remove(pid);
+            Database.getBufferPool().unsafeReleasePage(tid, pid);
+        }
+        header = getHeaderPage(tid, dirtypages, Permissions.READ_WRITE);
+        while ((bucket = insertIntoBucket(tid, dirtypages, header, hash, t, null)) != null) {
+            if (isSplittable(tid, dirtypages, bucket, hash) && (bucket.getLocalDepth() < header.getGlobalDepth()
+                    || header.getGlobalDepth() < maxGlobalDepth())) {
+                // try again after the split
+                splitBucket(tid, dirtypages, header, bucket, hash);
+            } else {
+                insertIntoChain(tid, dirtypages, header, bucket, t, null);
+                break;
+            }
+        }
+
+        return new ArrayList<>(dirtypages.values());
+    }
+
+    /**
+     * Split a bucket on one more bit of the hash, doubling the directory if the
+     * bucket already uses all bits of the directory.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param header     - the header page, locked with read-write permission
+     * @param bucket     - the first page of the bucket to split
+     * @param hash       - the hash of any key in the bucket
+     */
+    private void splitBucket(TransactionId tid, Map<PageId, Page> dirtypages, HashHeaderPage header,
+                             HashBucketPage bucket, int hash)
+            throws DbException, IOException, TransactionAbortedException {
+        int localDepth = bucket.getLocalDepth();
+        if (localDepth == header.getGlobalDepth())
+            doubleDirectory(tid, dirtypages, header);
+
+        HashBucketPage newBucket = (HashBucketPage) getEmptyPage(tid, dirtypages, header, HashPageId.BUCKET);
+        bucket.setLocalDepth(localDepth + 1);
+        newBucket.setLocalDepth(localDepth + 1);
+
+        // the entries pointing at the bucket are those that agree with hash in the low
+        // localDepth bits; the ones with bit localDepth set now point at the new bucket
+        int first = (hash & ((1 << localDepth) - 1)) | (1 << localDepth);
+        for (int i = first; i < (1 << header.getGlobalDepth()); i += 1 << (localDepth + 1))
+            setBucketNo(tid, dirtypages, header, i, newBucket.getId().getPageNumber());
+
+        // take all tuples out of the bucket, keeping its overflow pages for reuse
+        List<Tuple> tuples = new ArrayList<>();
+        Deque<HashBucketPage> spare = new ArrayDeque<>();
+        HashBucketPage page = bucket;
+        while (true) {
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                page.deleteTuple(t);
+                tuples.add(t);
+            }
+            int next = page.getNextPageNo();
+            page.setNextPageNo(0);
+            if (page != bucket)
+                spare.add(page);
+            if (next == 0)
+                break;
+            page = (HashBucketPage) getPage(tid, dirtypages, bucketId(next), Permissions.READ_WRITE);
+        }
+
+        for (Tuple t : tuples) {
+            boolean high = ((hash(t.getField(keyField)) >>> localDepth) & 1) == 1;
+            insertIntoChain(tid, dirtypages, header, high ? newBucket : bucket, t, spare);
+        }
+        for (HashBucketPage p : spare)
+            freePage(header, p);
+    }
+
+    /**
+     * Double the directory, adding directory pages as needed. Each new entry
+     * points at the same bucket as the entry that agrees with it in all but the
+     * new highest bit.
+     */
+    private void doubleDirectory(TransactionId tid, Map<PageId, Page> dirtypages, HashHeaderPage header)
+            throws DbException, IOException, TransactionAbortedException {
+        int size = 1 << header.getGlobalDepth();
+        while ((long) header.getNumDirPages() * HashDirectoryPage.getNumEntries() < 2L * size) {
+            Page dir = getEmptyPage(tid, dirtypages, header, HashPageId.DIRECTORY);
+            header.addDirPage(dir.getId().getPageNumber());
+        }
+        for (int i = 0; i < size; i++)
+            setBucketNo(tid, dirtypages, header, size + i, getBucketNo(tid, dirtypages, header, i));
+        header.setGlobalDepth(header.getGlobalDepth() + 1);
+    }
+
+    /**
+     * Insert a tuple into the first page of a bucket with an empty slot, adding
+     * an overflow page at the end of the bucket if all of its pages are full.
+     *
+     * @param spare - pages to use as overflow pages before allocating new ones; may be null
+     */
+    private void insertIntoChain(TransactionId tid, Map<PageId, Page> dirtypages, HashHeaderPage header,
+                                 HashBucketPage bucket, Tuple t, Deque<HashBucketPage> spare)
+            throws DbException, IOException, TransactionAbortedException {
+        HashBucketPage page = bucket;
+        while (page.getNumEmptySlots() == 0) {
+            if (page.getNextPageNo() == 0) {
+                HashBucketPage overflow = spare != null && !spare.isEmpty() ? spare.poll()
+                        : (HashBucketPage) getEmptyPage(tid, dirtypages, header, HashPageId.BUCKET);
+                overflow.setLocalDepth(bucket.getLocalDepth());
+                page.setNextPageNo(overflow.getId().getPageNumber());
+                page = overflow;
+            } else {
+                page = (HashBucketPage) getPage(tid, dirtypages, bucketId(page.getNextPageNo()), Permissions.READ_WRITE);
+            }
+        }
+        page.insertTuple(t);
+    }
+
+    /**
+     * Get a new page, from the free list if possible and otherwise by extending
+     * the file. The page is wiped on disk and in the cache and returned locked
+     * with read-write permission.
+     *
+     * @param header  - the header page, locked with read-write permission
+     * @param pgcateg - the category of the new page, either DIRECTORY or BUCKET
+     */
+    private Page getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, HashHeaderPage header, int pgcateg)
+            throws DbException, IOException, TransactionAbortedException {
+        int pageNo = header.getFreeListHead();
+        if (pageNo != 0) {
+            HashBucketPage free = (HashBucketPage) getPage(tid, dirtypages, bucketId(pageNo), Permissions.READ_WRITE);
+            header.setFreeListHead(free.getNextPageNo());
+            Database.getBufferPool().discardPage(free.getId());
+            dirtypages.remove(free.getId());
+        } else {
+            synchronized (this) {
+                try (BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true))) {
+                    bw.write(HashPage.createEmptyPageData());
+                }
+                pageNo = numPages() - 1;
+            }
+        }
+
+        HashPageId newPageId = new HashPageId(tableid, pageNo, pgcateg);
+        try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+            rf.seek((long) pageNo * BufferPool.getPageSize());
+            rf.write(HashPage.createEmptyPageData());
+        }
+
+        // make sure the page is not in the buffer pool or in the local cache
+        Database.getBufferPool().discardPage(newPageId);
+        dirtypages.remove(newPageId);
+
+        return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
+    }
+
+    /**
+     * Put an empty bucket page on the free list
+     */
+    private void freePage(HashHeaderPage header, HashBucketPage page) {
+        page.setLocalDepth(0);
+        page.setNextPageNo(header.getFreeListHead());
+        header.setFreeListHead(page.getId().getPageNumber());
+    }
+
+    /**
+     * Delete a tuple from this HashFile. Buckets are never merged, and empty
+     * overflow pages stay in their bucket to be reused by later inserts.
+     *
+     * @param tid - the transaction id
+     * @param t   - the tuple to delete
+     * @return a list of all pages that were dirtied by this operation
+     */
+    public List<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !(rid.getPageId() instanceof HashPageId) || rid.getPageId().getTableId() != tableid)
+            throw new DbException("tuple is not stored in this file");
+        Map<PageId, Page> dirtypages = new HashMap<>();
+        HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, (HashPageId) rid.getPageId(),
+                Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        return new ArrayList<>(dirtypages.values());
+    }
+
+    /**
+     * Get an iterator over the tuples matching an index predicate. EQUALS
+     * predicates are answered from a single bucket; any other operator scans
+     * the whole file, since a hash index does not keep keys in order.
+     *
+     * @param tid   - the transaction id
+     * @param ipred - the index predicate value to filter on
+     * @return an iterator for the filtered tuples
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+        return new HashFileIterator(this, tid, ipred);
+    }
+
+    /**
+     * Get an iterator for all tuples in this hash file, in no particular order
+     *
+     * @param tid - the transaction id
+     * @return an iterator for all the tuples in this file
+     */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new HashFileIterator(this, tid, null);
+    }
+
+    /**
+     * Return the page numbers of all buckets, each once, for a full scan
+     */
+    List<Integer> allBuckets(TransactionId tid, HashHeaderPage header)
+            throws DbException, TransactionAbortedException {
+        Map<PageId, Page> readOnly = new HashMap<>();
+        Set<Integer> buckets = new LinkedHashSet<>();
+        for (int i = 0; i < (1 << header.getGlobalDepth()); i++)
+            buckets.add(getBucketNo(tid, readOnly, header, i));
+        return new ArrayList<>(buckets);
+    }
+
+    /**
+     * Return the page number of the bucket holding the tuples with the specified key
+     */
+    int bucketFor(TransactionId tid, HashHeaderPage header, Field key)
+            throws DbException, TransactionAbortedException {
+        int index = hash(key) & ((1 << header.getGlobalDepth()) - 1);
+        return getBucketNo(tid, new HashMap<>(), header, index);
+    }
+}
+
+/**
+ * Helper class that implements the Java Iterator for tuples of a HashFile,
+ * either of all buckets or of the single bucket an EQUALS predicate maps to
+ */
+class HashFileIterator extends AbstractDbFileIterator {
+
+    private final HashFile f;
+    private final TransactionId tid;
+    private final IndexPredicate ipred;
+    private Iterator<Integer> buckets = null;
+    private int nextPage = 0;
+    private Iterator<Tuple> it = null;
+
+    /**
+     * Constructor for this iterator
+     *
+     * @param f     - the HashFile containing the tuples
+     * @param tid   - the transaction id
+     * @param ipred - the predicate to filter on, or null for all tuples
+     */
+    public HashFileIterator(HashFile f, TransactionId tid, IndexPredicate ipred) {
+        this.f = f;
+        this.tid = tid;
+        this.ipred = ipred;
+    }
+
+    /**
+     * Open this iterator by finding the buckets to read
+     */
+    public void open() throws DbException, TransactionAbortedException {
+        HashHeaderPage header;
+        try {
+            header = f.getHeaderPage(tid, new HashMap<>(), Permissions.READ_ONLY);
+        } catch (IOException e) {
+            throw new DbException(e.getMessage());
+        }
+        if (ipred != null && ipred.getOp() == Op.EQUALS)
+            buckets = Collections.singletonList(f.bucketFor(tid, header, ipred.getField())).iterator();
+        else
+            buckets = f.allBuckets(tid, header).iterator();
+        nextPage = 0;
+        it = null;
+    }
+
+    /**
+     * Read the next tuple, following the overflow pages of each bucket
+     *
+     * @return the next tuple, or null if none exists
+     */
+    @Override
+    protected Tuple readNext() throws TransactionAbortedException, DbException {
+        if (buckets == null)
+            return null;
+        while (true) {
+            while (it != null && it.hasNext()) {
+                Tuple t = it.next();
+                if (ipred == null || t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField()))
+                    return t;
+            }
+            if (nextPage == 0) {
+                if (!buckets.hasNext())
+                    return null;
+                nextPage = buckets.next();
+            }
+            HashBucketPage page = (HashBucketPage) Database.getBufferPool().getPage(tid,
+                    new HashPageId(f.getId(), nextPage, HashPageId.BUCKET), Permissions.READ_ONLY);
+            it = page.iterator();
+            nextPage = page.getNextPageNo();
+        }
+    }
+
+    /**
+     * rewind this iterator back to the beginning of the tuples
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * close the iterator
+     */
+    public void close() {
+        super.close();
+        buckets = null;
+        it = null;
+    }
+}
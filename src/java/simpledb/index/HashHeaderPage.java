@@ -0,0 +1,126 @@
+package simpledb.index;
+
+import simpledb.storage.BufferPool;
+
+import java.io.*;
+
+/**
+ * HashHeaderPage is the first page of a HashFile. It records the global
+ * depth of the extendible hashing directory, the page numbers of the
+ * directory pages and the head of the list of free pages.
+ *
+ * @see HashFile
+ */
+public class HashHeaderPage extends HashPage {
+
+	private int globalDepth;
+	private int freeListHead; // a free bucket page or 0
+	private int numDirPages;
+	private final int[] dirPages;
+
+	/**
+	 * Create a HashHeaderPage from a set of bytes of data read from disk.
+	 * The format is the global depth, the head of the free list, the number
+	 * of directory pages and the page numbers of the directory pages, all as
+	 * 4 byte integers.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public HashHeaderPage(HashPageId id, byte[] data) throws IOException {
+		super(id);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		globalDepth = dis.readInt();
+		freeListHead = dis.readInt();
+		numDirPages = dis.readInt();
+		dirPages = new int[getMaxDirPages()];
+		for (int i = 0; i < dirPages.length; i++)
+			dirPages[i] = dis.readInt();
+		dis.close();
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the maximum number of directory pages a header page can point to
+	 */
+	public static int getMaxDirPages() {
+		return BufferPool.getPageSize() / INDEX_SIZE - 3;
+	}
+
+	public HashHeaderPage getBeforeImage() {
+		try {
+			return new HashHeaderPage(pid, getBeforeImageData());
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public byte[] getPageData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(globalDepth);
+			dos.writeInt(freeListHead);
+			dos.writeInt(numDirPages);
+			for (int p : dirPages)
+				dos.writeInt(p);
+			dos.write(new byte[BufferPool.getPageSize() - (dirPages.length + 3) * INDEX_SIZE]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @return the number of hash bits used to index the directory
+	 */
+	public int getGlobalDepth() {
+		return globalDepth;
+	}
+
+	public void setGlobalDepth(int globalDepth) {
+		this.globalDepth = globalDepth;
+	}
+
+	/**
+	 * @return the page number of the first free page, or 0 if there are none
+	 */
+	public int getFreeListHead() {
+		return freeListHead;
+	}
+
+	public void setFreeListHead(int pageNo) {
+		this.freeListHead = pageNo;
+	}
+
+	/**
+	 * @return the number of directory pages
+	 */
+	public int getNumDirPages() {
+		return numDirPages;
+	}
+
+	/**
+	 * @param i - the index of the directory page
+	 * @return the page number of the i-th directory page
+	 */
+	public int getDirPage(int i) {
+		if (i >= numDirPages)
+			throw new IndexOutOfBoundsException("no directory page " + i);
+		return dirPages[i];
+	}
+
+	/**
+	 * Append a directory page
+	 * @param pageNo - the page number of the new directory page
+	 */
+	public void addDirPage(int pageNo) {
+		if (numDirPages == dirPages.length)
+			throw new IllegalStateException("header page is full");
+		dirPages[numDirPages++] = pageNo;
+	}
+}
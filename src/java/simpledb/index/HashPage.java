@@ -0,0 +1,79 @@
+package simpledb.index;
+
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Page;
+import simpledb.transaction.TransactionId;
+
+/**
+ * HashPage is the common superclass of the pages of a HashFile. It keeps
+ * track of the dirty state and the before image of the page.
+ *
+ * @see HashFile
+ */
+public abstract class HashPage implements Page {
+	protected volatile boolean dirty = false;
+	protected volatile TransactionId dirtier = null;
+
+	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+	protected final HashPageId pid;
+	protected byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	public HashPage(HashPageId id) {
+		this.pid = id;
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashPage. Passing the result to the constructor of any HashPage
+	 * creates a page with no entries in it.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; //all 0
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction
+	 * that did the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized (oldDataLock) {
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the contents of this page as of the last call to setBeforeImage
+	 */
+	protected byte[] getBeforeImageData() {
+		synchronized (oldDataLock) {
+			return oldData;
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package simpledb.index;
+
+import simpledb.storage.PageId;
+
+import java.util.Objects;
+
+/**
+ * Unique identifier for the pages of a HashFile. Like a BTreePageId, it
+ * records the category of the page so that the page can be read back with
+ * the right page class.
+ */
+public class HashPageId implements PageId {
+
+	public final static int HEADER = 0;
+	public final static int DIRECTORY = 1;
+	public final static int BUCKET = 2;
+
+	private final int tableId;
+	private final int pgNo;
+	private final int pgcateg;
+
+	static public String categToString(int categ) {
+		switch (categ) {
+			case HEADER:
+				return "HEADER";
+			case DIRECTORY:
+				return "DIRECTORY";
+			case BUCKET:
+				return "BUCKET";
+			default:
+				throw new IllegalArgumentException("categ");
+		}
+	}
+
+	/**
+	 * Constructor. Create a page id structure for a specific page of a
+	 * specific table.
+	 *
+	 * @param tableId The table that is being referenced
+	 * @param pgNo The page number in that table.
+	 * @param pgcateg The category of the page, one of HEADER, DIRECTORY or BUCKET
+	 */
+	public HashPageId(int tableId, int pgNo, int pgcateg) {
+		this.tableId = tableId;
+		this.pgNo = pgNo;
+		this.pgcateg = pgcateg;
+	}
+
+	public int getTableId() {
+		return tableId;
+	}
+
+	public int getPageNumber() {
+		return pgNo;
+	}
+
+	/**
+	 * @return the category of this page
+	 */
+	public int pgcateg() {
+		return pgcateg;
+	}
+
+	public int hashCode() {
+		return Objects.hash(tableId, pgNo, pgcateg);
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof HashPageId))
+			return false;
+		HashPageId p = (HashPageId) o;
+		return tableId == p.tableId && pgNo == p.pgNo && pgcateg == p.pgcateg;
+	}
+
+	public String toString() {
+		return "(tableId: " + tableId +
+				", pgNo: " + pgNo +
+				", pgcateg: " + categToString(pgcateg) +
+				")";
+	}
+
+	public int[] serialize() {
+		int[] data = new int[3];
+
+		data[0] = tableId;
+		data[1] = pgNo;
+		data[2] = pgcateg;
+
+		return data;
+	}
+}
@@ -0,0 +1,140 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexOpIterator;
+import simpledb.execution.IndexPredicate;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * IndexOnlyScan is an access method that answers a query from a
+ * {@link CoveringIndex} without reading the base table. It returns the key
+ * and the included fields of the index, in key order.
+ */
+public class IndexOnlyScan implements IndexOpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final TransactionId tid;
+	private final CoveringIndex index;
+	private final TupleDesc myTd;
+	private final String alias;
+	private IndexPredicate ipred;
+	private transient DbFileIterator it;
+
+	/**
+	 * Creates an index-only scan over the specified covering index.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the covering index to scan.
+	 * @param tableAlias
+	 *            the alias of the base table; the returned tupleDesc has fields
+	 *            with name tableAlias.fieldName
+	 * @param ipred
+	 *            The predicate on the key of the index to match. If null, the
+	 *            scan will return all entries of the index.
+	 */
+	public IndexOnlyScan(TransactionId tid, CoveringIndex index, String tableAlias, IndexPredicate ipred) {
+		this.tid = tid;
+		this.index = index;
+		this.alias = tableAlias;
+		this.ipred = ipred;
+		TupleDesc td = index.getFile().getTupleDesc();
+		String[] newNames = new String[td.numFields()];
+		Type[] newTypes = new Type[td.numFields()];
+		for (int i = 0; i < td.numFields(); i++) {
+			newNames[i] = tableAlias + "." + td.getFieldName(i);
+			newTypes[i] = td.getFieldType(i);
+		}
+		this.myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	/**
+	 * @return the name of the base table in the catalog
+	 */
+	public String getTableName() {
+		return Database.getCatalog().getTableName(index.getTableId());
+	}
+
+	/**
+	 * @return the alias of the base table this operator scans
+	 */
+	public String getAlias() {
+		return alias;
+	}
+
+	/**
+	 * @return the covering index this operator scans
+	 */
+	public CoveringIndex getIndex() {
+		return index;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		BTreeFile f = index.getFile();
+		it = ipred == null ? f.iterator(tid) : f.indexIterator(tid, ipred);
+		it.open();
+		isOpen = true;
+	}
+
+	public void open(IndexPredicate ipred)
+			throws NoSuchElementException, DbException, TransactionAbortedException {
+		this.ipred = ipred;
+		open();
+	}
+
+	/**
+	 * Returns the TupleDesc of the index, with field names prefixed with the
+	 * alias of the base table.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+
+		Tuple t = it.next();
+		t.resetTupleDesc(myTd);
+		return t;
+	}
+
+	public void close() {
+		if (it != null)
+			it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void rewind(IndexPredicate ipred)
+			throws DbException, TransactionAbortedException {
+		close();
+		open(ipred);
+	}
+}
@@ -0,0 +1,297 @@
+package simpledb.optimizer;
+
+import simpledb.execution.Predicate;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A histogram over a single integer-based field that is built in a single
+ * pass, without knowing the range of the values in advance.
+ * <p>
+ * The histogram has a fixed number of buckets of equal width, and the width
+ * is a power of two. Bucket k holds the values in [k * width, (k + 1) *
+ * width), and the histogram keeps the buckets first ... first + buckets - 1.
+ * A value outside of them moves the window of buckets, or if the values no
+ * longer fit in it, doubles the width, merging pairs of buckets, until they
+ * do. As the buckets are aligned on multiples of their width, two histograms
+ * can be merged without losing precision, and a histogram over a small
+ * range of values has a bucket for each value.
+ * <p>
+ * Values are added with a weight, so that a histogram of a sample of a table
+ * can stand for the whole table, and they can be removed again, so that the
+ * histogram can be maintained as tuples are inserted and deleted. The
+ * minimum and maximum only grow, as removing a value does not tell whether
+ * it was the last one at the bounds.
+ */
+public class AdaptiveIntHistogram {
+
+    private final int buckets;
+    private long width = 1;
+    // the index of the first bucket kept
+    private long first = 0;
+    private double[] counts;
+    private double total = 0;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+
+    /**
+     * Create a new, empty AdaptiveIntHistogram.
+     *
+     * @param buckets The number of buckets to split the values into, rounded
+     *                up to an even number
+     */
+    public AdaptiveIntHistogram(int buckets) {
+        if (buckets < 1)
+            throw new IllegalArgumentException("need at least one bucket");
+        this.buckets = buckets + (buckets % 2);
+        this.counts = new double[this.buckets];
+    }
+
+    /**
+     * @return true if no value was ever added
+     */
+    private boolean isEmpty() {
+        return min > max;
+    }
+
+    /**
+     * Add a value to the histogram.
+     *
+     * @param v Value to add to the histogram
+     */
+    public void addValue(int v) {
+        addValue(v, 1.0);
+    }
+
+    /**
+     * Add a value to the histogram with the specified weight.
+     *
+     * @param v      Value to add to the histogram
+     * @param weight The number of tuples the value stands for
+     */
+    public void addValue(int v, double weight) {
+        fit(Math.min(v, min), Math.max(v, max));
+        counts[(int) (Math.floorDiv(v, width) - first)] += weight;
+        total += weight;
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+    }
+
+    /**
+     * Remove a value that was added to the histogram.
+     *
+     * @param v      Value to remove from the histogram
+     * @param weight The number of tuples the value stands for
+     */
+    public void removeValue(int v, double weight) {
+        if (v < min || v > max)
+            return;
+        int b = (int) (Math.floorDiv(v, width) - first);
+        double removed = Math.min(weight, counts[b]);
+        counts[b] -= removed;
+        total -= removed;
+    }
+
+    /**
+     * Add the values of another histogram to this one.
+     *
+     * @param other The histogram to merge into this one
+     */
+    public void merge(AdaptiveIntHistogram other) {
+        if (other.isEmpty())
+            return;
+        fit(Math.min(other.min, min), Math.max(other.max, max));
+        while (width < other.width)
+            rebucket(width * 2, Math.floorDiv(Math.min(other.min, min), width * 2));
+        for (int b = 0; b < other.buckets; b++) {
+            if (other.counts[b] != 0)
+                counts[(int) (Math.floorDiv((other.first + b) * other.width, width) - first)] += other.counts[b];
+        }
+        total += other.total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Make sure the buckets cover [lo, hi], widening them if needed.
+     */
+    private void fit(int lo, int hi) {
+        if (isEmpty()) {
+            first = Math.floorDiv(lo, width);
+        }
+        long w = width;
+        while (Math.floorDiv(hi, w) - Math.floorDiv(lo, w) >= buckets)
+            w *= 2;
+        long f = Math.floorDiv(lo, w);
+        if (w != width || f < first || Math.floorDiv(hi, w) >= first + buckets)
+            rebucket(w, f);
+    }
+
+    /**
+     * Move the counts to buckets of the specified width, a multiple of the
+     * current one, starting at bucket newFirst.
+     */
+    private void rebucket(long newWidth, long newFirst) {
+        double[] moved = new double[buckets];
+        for (int b = 0; b < buckets; b++) {
+            if (counts[b] != 0)
+                moved[(int) (Math.floorDiv((first + b) * width, newWidth) - newFirst)] += counts[b];
+        }
+        counts = moved;
+        width = newWidth;
+        first = newFirst;
+    }
+
+    /**
+     * @return the number of tuples in the histogram
+     */
+    public double getCount() {
+        return total;
+    }
+
+    /**
+     * @return the smallest value added, or Integer.MAX_VALUE if none was
+     */
+    public int getMin() {
+        return min;
+    }
+
+    /**
+     * @return the largest value added, or Integer.MIN_VALUE if none was
+     */
+    public int getMax() {
+        return max;
+    }
+
+    // the fraction of the tuples with a value below v
+    private double fractionBelow(int v) {
+        if (v <= min)
+            return 0;
+        if (v > max)
+            return 1;
+        int b = (int) (Math.floorDiv(v, width) - first);
+        double below = 0;
+        for (int i = 0; i < b; i++)
+            below += counts[i];
+        long lo = bucketLow(b), hi = bucketHigh(b);
+        below += counts[b] * (v - lo) / (hi - lo + 1);
+        return below / total;
+    }
+
+    // the fraction of the tuples with the value v
+    private double fractionEqual(int v) {
+        if (v < min || v > max)
+            return 0;
+        int b = (int) (Math.floorDiv(v, width) - first);
+        return counts[b] / (bucketHigh(b) - bucketLow(b) + 1) / total;
+    }
+
+    // the bounds of the values of bucket b that lie within [min, max]
+    private long bucketLow(int b) {
+        return Math.max(min, (first + b) * width);
+    }
+
+    private long bucketHigh(int b) {
+        return Math.min(max, (first + b + 1) * width - 1);
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on this
+     * table, assuming the values of each bucket are spread evenly over it.
+     *
+     * @param op Operator
+     * @param v  Value
+     * @return Predicted selectivity of this particular operator and value
+     */
+    public double estimateSelectivity(Predicate.Op op, int v) {
+        if (total <= 0)
+            return 0;
+        double s;
+        switch (op) {
+            case LIKE:
+            case EQUALS:
+                s = fractionEqual(v);
+                break;
+            case NOT_EQUALS:
+                s = 1 - fractionEqual(v);
+                break;
+            case LESS_THAN:
+                s = fractionBelow(v);
+                break;
+            case LESS_THAN_OR_EQ:
+                s = fractionBelow(v) + fractionEqual(v);
+                break;
+            case GREATER_THAN:
+                s = 1 - fractionBelow(v) - fractionEqual(v);
+                break;
+            case GREATER_THAN_OR_EQ:
+                s = 1 - fractionBelow(v);
+                break;
+            default:
+                return -1.0;
+        }
+        return Math.max(0, Math.min(1, s));
+    }
+
+    /**
+     * @return the probability that two tuples of the histogram have the
+     * same value, assuming the values of each bucket are spread evenly
+     * over it
+     */
+    public double avgSelectivity() {
+        if (total <= 0)
+            return 1.0;
+        double s = 0;
+        for (int b = 0; b < buckets; b++) {
+            if (counts[b] > 0) {
+                double fraction = counts[b] / total;
+                s += fraction * fraction / (bucketHigh(b) - bucketLow(b) + 1);
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Write the histogram to a stream, to be read back by {@link #read}.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(buckets);
+        out.writeLong(width);
+        out.writeLong(first);
+        out.writeDouble(total);
+        out.writeInt(min);
+        out.writeInt(max);
+        for (double c : counts)
+            out.writeDouble(c);
+    }
+
+    /**
+     * Read a histogram written by {@link #write}.
+     */
+    public static AdaptiveIntHistogram read(DataInputStream in) throws IOException {
+        AdaptiveIntHistogram h = new AdaptiveIntHistogram(in.readInt());
+        h.width = in.readLong();
+        h.first = in.readLong();
+        h.total = in.readDouble();
+        h.min = in.readInt();
+        h.max = in.readInt();
+        for (int b = 0; b < h.buckets; b++)
+            h.counts[b] = in.readDouble();
+        return h;
+    }
+
+    /**
+     * @return A string describing this histogram, for debugging purposes
+     */
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (int b = 0; b < buckets; b++) {
+            if (counts[b] != 0)
+                s.append((first + b) * width).append(": ").append(counts[b]).append(", ");
+        }
+        return "ntups: " + total + " buckets: " + buckets + " width: " + width + " max:" + max + " min:" + min
+                + " histogram: {" + s + "}";
+    }
+}
@@ -35,10 +35,10 @@ public class IntHistogram {
 
     public IntHistogram(int buckets, int min, int max) {
         // some code goes here
-        this.buckets = (max-min+1 < buckets) ? (max-min+1) : buckets;
+        this.buckets = ((long) max - min + 1 < buckets) ? (max - min + 1) : buckets;
         this.min = min;
         this.max = max;
-        width = (double) (max - min) / (double) this.buckets;
+        width = ((double) max - min) / (double) this.buckets;
         histogram = new int[buckets];
     }
 
@@ -49,7 +49,7 @@ public class IntHistogram {
      */
     public void addValue(int v) {
         // some code goes here
-        int index = (int) Math.floor(((double) (v - min) / (double) (max - min)) * (buckets - 1));
+        int index = (int) Math.floor((((double) v - min) / ((double) max - min)) * (buckets - 1));
         histogram[index]++;
         ntups++;
     }
@@ -65,9 +65,9 @@ public class IntHistogram {
      * @return Predicted selectivity of this particular operator and value
      */
     public double estimateSelectivity(Predicate.Op op, int v) {
-        int index = (int) Math.floor((double) (v - min) / (double) (max - min) * (buckets - 1));
-        int bleft = min + (int) (index * width);
-        int bright = min + (int) ((index + 1) * width);
+        int index = (int) Math.floor(((double) v - min) / ((double) max - min) * (buckets - 1));
+        long bleft = min + (long) (index * width);
+        long bright = min + (long) ((index + 1) * width);
         double leftPercentage = 0.00;
         double rightPercentage = 0.00;
         for (int i = 0; i < buckets; i++) {
@@ -50,6 +50,33 @@ public class JoinOptimizer {
      */
     public static OpIterator instantiateJoin(LogicalJoinNode lj,
                                              OpIterator plan1, OpIterator plan2) throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, -1, -1, 0, 0);
+    }
+
+    /**
+     * Return best iterator for computing a given logical join, choosing
+     * between a sort-merge join and a block nested-loop join for a range
+     * predicate by their estimated costs over the provided subplans.
+     * 
+     * @param lj
+     *            The join being considered
+     * @param plan1
+     *            The left join node's child
+     * @param plan2
+     *            The right join node's child
+     * @param card1
+     *            Estimated cardinality of plan1, or -1 if unknown, in which
+     *            case a range join is a sort-merge join
+     * @param card2
+     *            Estimated cardinality of plan2
+     * @param cost1
+     *            Estimated cost of plan1
+     * @param cost2
+     *            Estimated cost of plan2
+     */
+    public static OpIterator instantiateJoin(LogicalJoinNode lj,
+                                             OpIterator plan1, OpIterator plan2,
+                                             int card1, int card2, double cost1, double cost2) throws ParsingException {
 
         int t1id = 0, t2id = 0;
         OpIterator j;
@@ -74,7 +101,23 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
+        if (lj instanceof LogicalSubplanJoinNode
+                && ((LogicalSubplanJoinNode) lj).kind != LogicalSubplanJoinNode.Kind.JOIN) {
+            // each tuple of plan1 is returned at most once, however many tuples of the subplan it matches
+            try {
+                if (((LogicalSubplanJoinNode) lj).kind == LogicalSubplanJoinNode.Kind.ANTI)
+                    return new AntiJoin(p, plan1, plan2);
+                return new SemiJoin(p, plan1, plan2);
+            } catch (IllegalArgumentException e) {
+                throw new ParsingException(e);
+            }
+        }
+
+        if (lj.p == Predicate.Op.EQUALS && SortMergeJoin.isSortedOn(plan1, t1id)
+                && SortMergeJoin.isSortedOn(plan2, t2id)) {
+            // both inputs already come in key order, so merge them
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
 
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
@@ -86,6 +129,10 @@ public class JoinOptimizer {
             } catch (Exception e) {
                 j = new Join(p, plan1, plan2);
             }
+        } else if (SortMergeJoin.supports(lj.p) && (card1 < 0
+                || sortMergeCost(card1, card2, cost1, cost2, SortMergeJoin.isSortedOn(plan1, t1id),
+                SortMergeJoin.isSortedOn(plan2, t2id)) <= nestedLoopCost(card1, card2, cost1, cost2))) {
+            j = new SortMergeJoin(p, plan1, plan2);
         } else {
             j = new Join(p, plan1, plan2);
         }
@@ -123,18 +170,73 @@ public class JoinOptimizer {
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
         if (j instanceof LogicalSubplanJoinNode) {
-            // A LogicalSubplanJoinNode represents a subquery.
-            // You do not need to implement proper support for these for Lab 3.
+            // A LogicalSubplanJoinNode represents a subquery. A semi-join or
+            // anti-join reads the subquery once into a hash set of its keys and
+            // probes it once per tuple of the table.
             return card1 + cost1 + cost2;
         } else {
             // Insert your code here.
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
-            return cost1+card1*cost2+card1*card2;
+            // cost each predicate with the operator instantiateJoin builds
+            // for it
+            if (j.p == Predicate.Op.EQUALS)
+                return hashJoinCost(card1, card2, cost1, cost2);
+            if (SortMergeJoin.supports(j.p)) {
+                // instantiateJoin builds whichever of the two costs less
+                return Math.min(sortMergeCost(card1, card2, cost1, cost2, false, false),
+                        nestedLoopCost(card1, card2, cost1, cost2));
+            }
+            return nestedLoopCost(card1, card2, cost1, cost2);
         }
     }
 
+    /**
+     * The fraction of the pairs of tuples that a range predicate is
+     * estimated to match
+     */
+    static final double RANGE_SELECTIVITY = 0.3;
+
+    /**
+     * @return the estimated cost of a hybrid hash join, which reads each
+     * child once and hashes every tuple, and writes out and reads back the
+     * share of both children whose partitions do not fit in memory
+     */
+    private static double hashJoinCost(int card1, int card2, double cost1, double cost2) {
+        double spilled = card1 <= HashEquiJoin.MAP_SIZE ? 0 : 1 - HashEquiJoin.MAP_SIZE / (double) card1;
+        return cost1 + cost2 + (1 + 2 * spilled) * ((double) card1 + card2);
+    }
+
+    /**
+     * @return the estimated cost of a block nested-loop join, which scans
+     * child2 once per block of child1 and applies the predicate to every pair
+     */
+    private static double nestedLoopCost(int card1, int card2, double cost1, double cost2) {
+        double blocks = Math.ceil(card1 / (double) Join.BLOCK_SIZE);
+        return cost1 + Math.max(1, blocks) * cost2 + (double) card1 * card2;
+    }
+
+    /**
+     * @return the estimated cost of a sort-merge range join, which sorts the
+     * children that are not sorted yet, merges the sorted child1 with each
+     * chunk of child2 that fits in memory, and only touches the pairs that
+     * match
+     */
+    private static double sortMergeCost(int card1, int card2, double cost1, double cost2,
+                                        boolean sorted1, boolean sorted2) {
+        double chunks = Math.max(1, Math.ceil(card2 / (double) SortMergeJoin.CHUNK_SIZE));
+        return cost1 + cost2 + (sorted1 ? 0 : sortCost(card1)) + (sorted2 ? 0 : sortCost(card2))
+                + chunks * card1 + card2 + RANGE_SELECTIVITY * card1 * card2;
+    }
+
+    /**
+     * @return the estimated number of comparisons to sort card tuples
+     */
+    private static double sortCost(int card) {
+        return card <= 1 ? 0 : card * (Math.log(card) / Math.log(2));
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -181,7 +283,7 @@ public class JoinOptimizer {
             if(t1pkey) card = card2;
             else if(t2pkey) card = card1;
             else card = Math.max(card1, card2);
-        }else card = (int)(0.3*card1*card2);
+        }else card = (int)(RANGE_SELECTIVITY*card1*card2);
         return card <= 0 ? 1 : card;
     }
 
@@ -241,6 +343,8 @@ public class JoinOptimizer {
 
         // some code goes here
         //Replace the following
+        if (joins.isEmpty())
+            return joins;
         PlanCache pc=new PlanCache();
         Set<LogicalJoinNode> set=new HashSet<>(joins);
         for(int i=1;i<=joins.size();i++){
@@ -307,12 +411,14 @@ public class JoinOptimizer {
 
         if (this.p.getTableId(j.t1Alias) == null)
             throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
+        // a join with a subquery has no second table
+        boolean isSubplanJoin = j instanceof LogicalSubplanJoinNode;
+        if (!isSubplanJoin && this.p.getTableId(j.t2Alias) == null)
             throw new ParsingException("Unknown table " + j.t2Alias);
 
         String table1Name = Database.getCatalog().getTableName(
                 this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
+        String table2Name = isSubplanJoin ? null : Database.getCatalog().getTableName(
                 this.p.getTableId(j.t2Alias));
         String table1Alias = j.t1Alias;
         String table2Alias = j.t2Alias;
@@ -391,7 +497,7 @@ public class JoinOptimizer {
 
         LogicalJoinNode j2 = j.swapInnerOuter();
         double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
+        if (cost2 < cost1 && !isSubplanJoin) {
             boolean tmp;
             j = j2;
             cost1 = cost2;
@@ -434,7 +540,7 @@ public class JoinOptimizer {
      * @param field
      *            The pure name of the field
      */
-    private boolean isPkey(String tableAlias, String field) {
+    boolean isPkey(String tableAlias, String field) {
         int tid1 = p.getTableId(tableAlias);
         String pkey1 = Database.getCatalog().getPrimaryKey(tid1);
 
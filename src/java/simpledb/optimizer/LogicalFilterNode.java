@@ -17,6 +17,10 @@ public class LogicalFilterNode {
     
     /* The constant on the right side of the filter */
     public final String c;
+
+    /** The number of the parameter of a prepared statement the filter compares with, counting
+        from 1, or 0 if it compares with the constant c */
+    public final int parameter;
     
     /** The field from t which is in the filter. The pure name, without alias or tablename*/
     public final String fieldPureName;
@@ -24,9 +28,20 @@ public class LogicalFilterNode {
     public final String fieldQuantifiedName;
     
     public LogicalFilterNode(String table, String field, Predicate.Op pred, String constant) {
+        this(table, field, pred, constant, 0);
+    }
+
+    /** Create a filter that compares with the specified parameter of a prepared statement,
+        which is shown as "?n" */
+    public LogicalFilterNode(String table, String field, Predicate.Op pred, int parameter) {
+        this(table, field, pred, "?" + parameter, parameter);
+    }
+
+    private LogicalFilterNode(String table, String field, Predicate.Op pred, String constant, int parameter) {
         tableAlias = table;
         p = pred;
         c = constant;
+        this.parameter = parameter;
         String[] tmps = field.split("[.]");
         if (tmps.length>1)
             fieldPureName = tmps[tmps.length-1];
@@ -34,4 +49,9 @@ public class LogicalFilterNode {
             fieldPureName=field;
         this.fieldQuantifiedName = tableAlias+"."+fieldPureName;
     }
+
+    /** @return true if the filter compares with a parameter of a prepared statement */
+    public boolean isParameter() {
+        return parameter > 0;
+    }
 }
@@ -4,6 +4,8 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.CoveringIndex;
+import simpledb.index.IndexOnlyScan;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -15,9 +17,9 @@ import java.io.File;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and the group by fields and
+ * aggregates of the query, which are all computed by a single
+ * {@link Aggregate}.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -32,13 +34,19 @@ public class LogicalPlan {
     private final Map<String,Integer> tableMap;
 
     private final List<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private final List<String> groupByFields = new ArrayList<>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private final List<String> aggOps = new ArrayList<>();
+    private final List<String> aggFields = new ArrayList<>();
+    private boolean hasOrderBy = false;
+    private final List<String> oByFields = new ArrayList<>();
+    private final List<Boolean> oByAscs = new ArrayList<>();
+    private int limit = -1;
+    private boolean distinct = false;
     private String query;
+    //the order to build the joins in, or null to order them with JoinOptimizer
+    private List<LogicalJoinNode> joinOrder = null;
+
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -159,6 +167,30 @@ public class LogicalPlan {
         joins.add(lj);
     }
 
+    /** Add a semi-join or anti-join between a field and a subquery, which keeps the
+     *  tuples whose field equals (or, for an anti-join, does not equal) the first field
+     *  of some tuple of the subquery, each once.  This is how IN, NOT IN, EXISTS and
+     *  NOT EXISTS subqueries are planned.
+     *  @param joinField1 The name of the join field; this can be a fully qualified name
+     *  or an unqualified unique field name
+     *  @param subplan the subquery to match against -- the join field of the subquery
+     *    is the first field in the result set of the query
+     *  @param anti true to keep the tuples that match no tuple of the subquery
+     *  @throws ParsingException if the field is ambiguous, or is not in one of the
+     *      tables added via {@link #addScan}
+     */
+    public void addSemiJoin(String joinField1, OpIterator subplan, boolean anti) throws ParsingException {
+        joinField1 = disambiguateName(joinField1);
+
+        String table1 = joinField1.split("[.]")[0];
+        String pureField = joinField1.split("[.]")[1];
+
+        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1, pureField, subplan,
+                Predicate.Op.EQUALS, anti ? LogicalSubplanJoinNode.Kind.ANTI : LogicalSubplanJoinNode.Kind.SEMI);
+        System.out.println("Added " + (anti ? "anti" : "semi") + "-join on " + joinField1);
+        joins.add(lj);
+    }
+
     /** Add a scan to the plan. One scan node needs to be added for each alias of a table
         accessed by the plan.
         @param table the id of the table accessed by the plan (can be resolved to a DbFile using {@link Catalog#getDatabaseFile}
@@ -189,36 +221,125 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield the field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
+        addAggregate(op, afield);
+        if (gfield != null)
+            addGroupByField(gfield);
+    }
+
+    /** Add an aggregate to the query.  All of the aggregates of the query
+        are computed in one pass over the same groups.  Adding an aggregate
+        that was already added has no effect.
+        @param op the aggregation operator
+        @param afield the field to aggregate over, or * for COUNT(*)
+     * @throws ParsingException 
+    */
+    public void addAggregate(String op, String afield) throws ParsingException {
         afield=disambiguateName(afield);
-        if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+        if (afield.equals("*"))
+            afield="null.*";
+        if (aggregateIndex(op, afield) < 0) {
+            aggOps.add(op);
+            aggFields.add(afield);
+        }
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a field to the GROUP BY list of the query.  Calling this again
+        adds a field to the group key.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupByField(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.add(gfield);
+    }
+
+    /** Return the position of an aggregate among the aggregates of the query, or -1 */
+    private int aggregateIndex(String op, String afield) {
+        for (int i = 0; i < aggOps.size(); i++)
+            if (aggOps.get(i).equals(op) && aggFields.get(i).equals(afield))
+                return i;
+        return -1;
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  Calling this again
+        adds a field that orders the tuples the earlier fields consider equal.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.add(field);
+        oByAscs.add(asc);
         hasOrderBy = true;
     }
 
+    /** Return at most the specified number of tuples.  Combined with ORDER BY, the plan keeps
+        only the first tuples in order instead of sorting the whole input.
+        @param limit the largest number of tuples to return
+    */
+    public void setLimit(int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("LIMIT must not be negative");
+        this.limit = limit;
+    }
+
+    /** @return the largest number of tuples to return, or -1 if there is no LIMIT */
+    public int getLimit() {
+        return limit;
+    }
+
+    /** Remove duplicate tuples from the output (SELECT DISTINCT).  Duplicates are removed
+        before the output is sorted or limited, so ORDER BY may only name fields of the
+        select list.
+        @param distinct true to remove duplicate tuples
+    */
+    public void setDistinct(boolean distinct) {
+        this.distinct = distinct;
+    }
+
+    /** @return true if duplicate tuples are removed from the output */
+    public boolean isDistinct() {
+        return distinct;
+    }
+
+    /** The smallest number of pages of a table for each worker scanning it in parallel */
+    public static final int PARALLEL_PAGES = 64;
+
+    private static int maxParallelism = Runtime.getRuntime().availableProcessors();
+
+    /** Set the largest number of workers a table is scanned with; 1 turns parallel scans off.
+        Defaults to the number of processors.
+    */
+    public static void setMaxParallelism(int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("need at least one worker");
+        maxParallelism = workers;
+    }
+
+    /** @return the largest number of workers a table is scanned with */
+    public static int getMaxParallelism() {
+        return maxParallelism;
+    }
+
+    /** Return the number of workers to scan a table with: one for each PARALLEL_PAGES pages,
+     *  up to the maximum parallelism.  Only heap files are scanned in parallel.
+     */
+    static int degreeOfParallelism(DbFile file) {
+        if (!(file instanceof HeapFile))
+            return 1;
+        return Math.max(1, Math.min(maxParallelism, ((HeapFile) file).numPages() / PARALLEL_PAGES));
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -274,6 +395,218 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Return the pure names of the fields of the table with the specified alias that are
+     *  referenced anywhere in this plan, or null if the plan references all of the fields
+     *  of its tables (e.g., with SELECT *).
+     *  @param withFilters whether to include the fields only referenced by filters
+     */
+    private Set<String> referencedFields(String alias, boolean withFilters) {
+        List<String> names = new ArrayList<>();
+        for (LogicalSelectListNode si : selectList)
+            if (si.aggOp == null || !si.fname.equals("null.*"))
+                names.add(si.fname);
+        if (hasAgg) {
+            for (String aggField : aggFields)
+                if (!aggField.equals("null.*"))
+                    names.add(aggField);
+            names.addAll(groupByFields);
+        }
+        if (hasOrderBy)
+            names.addAll(oByFields);
+
+        Set<String> fields = new HashSet<>();
+        for (String name : names) {
+            String[] parts = name.split("[.]");
+            if (parts.length != 2 || parts[1].equals("*"))
+                return null;
+            if (parts[0].equals(alias))
+                fields.add(parts[1]);
+        }
+        for (LogicalFilterNode lf : filters) {
+            if (withFilters && lf.tableAlias.equals(alias))
+                fields.add(lf.fieldPureName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            if (lj.t1Alias.equals(alias))
+                fields.add(lj.f1PureName);
+            if (!(lj instanceof LogicalSubplanJoinNode) && lj.t2Alias.equals(alias))
+                fields.add(lj.f2PureName);
+        }
+        return fields;
+    }
+
+    /** Return the fields of the table with the specified alias that a scan with its filters
+     *  pushed down must return, in the order of the table, or null if it must return all of them.
+     */
+    private int[] scanFields(LogicalScanNode table) {
+        Set<String> names = referencedFields(table.alias, false);
+        if (names == null)
+            return null;
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        List<Integer> fields = new ArrayList<>();
+        for (int i = 0; i < td.numFields(); i++)
+            if (names.contains(td.getFieldName(i)))
+                fields.add(i);
+        //COUNT(*) still needs a field to count
+        if (fields.isEmpty())
+            fields.add(0);
+        int[] result = new int[fields.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = fields.get(i);
+        return result;
+    }
+
+    /** Choose a covering index that stores every field of the specified table that is
+     *  referenced by this plan.  Indexes keyed on a filtered field are preferred, then
+     *  the index with the fewest fields.
+     *  @return the chosen index, or null if no index of the table covers the plan
+     */
+    private CoveringIndex chooseCoveringIndex(LogicalScanNode table) {
+        List<CoveringIndex> indexes = Database.getCatalog().getIndexes(table.t);
+        if (indexes.isEmpty())
+            return null;
+        Set<String> fields = referencedFields(table.alias, true);
+        if (fields == null)
+            return null;
+
+        CoveringIndex best = null;
+        boolean bestFiltered = false;
+        for (CoveringIndex index : indexes) {
+            if (!index.covers(fields))
+                continue;
+            boolean filtered = keyPredicate(index, table.alias) != null;
+            if (best == null || (filtered && !bestFiltered)
+                    || (filtered == bestFiltered && index.getFile().getTupleDesc().numFields()
+                        < best.getFile().getTupleDesc().numFields())) {
+                best = index;
+                bestFiltered = filtered;
+            }
+        }
+        return best;
+    }
+
+    /** Return a predicate on the key of the index built from the first filter of
+     *  the table with the specified alias that the index can evaluate, or null if
+     *  there is none.  The filter itself is still applied above the scan.
+     */
+    private IndexPredicate keyPredicate(CoveringIndex index, String alias) {
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(alias) || !lf.fieldPureName.equals(index.getKeyField()))
+                continue;
+            if (lf.p == Predicate.Op.NOT_EQUALS || lf.p == Predicate.Op.LIKE)
+                continue;
+            Field f;
+            if (index.getFile().getTupleDesc().getFieldType(0) == Type.INT_TYPE) {
+                //a constant that is not an integer is reported when the filter is planned
+                if (!lf.c.matches("-?\\d+"))
+                    continue;
+                f = new IntField(Integer.parseInt(lf.c));
+            } else
+                f = new StringField(lf.c, Type.STRING_LEN);
+            return new IndexPredicate(lf.p, f);
+        }
+        return null;
+    }
+
+    /** Turn each filter whose constant is the specified marker followed by a number n into
+     *  a filter on the n-th parameter of a prepared statement.
+     *  @param marker the prefix of the constants that stand for parameters, which no other
+     *    constant of the query may start with
+     *  @return the numbers of the parameters found
+     */
+    public Set<Integer> markParameters(String marker) {
+        Set<Integer> found = new HashSet<>();
+        for (ListIterator<LogicalFilterNode> it = filters.listIterator(); it.hasNext(); ) {
+            LogicalFilterNode lf = it.next();
+            String n = lf.c.startsWith(marker) ? lf.c.substring(marker.length()) : "";
+            if (n.isEmpty() || !n.chars().allMatch(Character::isDigit))
+                continue;
+            it.set(new LogicalFilterNode(lf.tableAlias, lf.fieldPureName, lf.p, Integer.parseInt(n)));
+            found.add(Integer.parseInt(n));
+        }
+        return found;
+    }
+
+    /** @return the number of parameters of the filters of this plan, that is the largest
+        number of a parameter */
+    public int numParameters() {
+        int n = 0;
+        for (LogicalFilterNode lf : filters)
+            n = Math.max(n, lf.parameter);
+        return n;
+    }
+
+    /** @return true if the plan joins the result of a subquery */
+    public boolean hasSubqueries() {
+        for (LogicalJoinNode lj : joins) {
+            if (lj instanceof LogicalSubplanJoinNode)
+                return true;
+        }
+        return false;
+    }
+
+    /** Return a copy of this plan in which each parameter n of a filter is replaced by the
+     *  n-th of the specified values.  The copy can be converted into a physical plan once,
+     *  while this plan is left as it is to be bound again.
+     *  @param values the values of the parameters, in order
+     *  @throws ParsingException if there are not as many values as parameters, or a value
+     *    compared with an integer field is not an integer
+     *  @return the plan with its parameters bound
+     */
+    public LogicalPlan bind(List<String> values) throws ParsingException {
+        if (values.size() != numParameters())
+            throw new ParsingException("Expected " + numParameters() + " parameters but got " + values.size());
+        LogicalPlan lp = new LogicalPlan();
+        lp.joins.addAll(joins);
+        lp.tables.addAll(tables);
+        lp.tableMap.putAll(tableMap);
+        lp.selectList.addAll(selectList);
+        lp.groupByFields.addAll(groupByFields);
+        lp.hasAgg = hasAgg;
+        lp.aggOps.addAll(aggOps);
+        lp.aggFields.addAll(aggFields);
+        lp.hasOrderBy = hasOrderBy;
+        lp.oByFields.addAll(oByFields);
+        lp.oByAscs.addAll(oByAscs);
+        lp.limit = limit;
+        lp.distinct = distinct;
+        lp.query = query;
+        lp.joinOrder = joinOrder;
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.isParameter()) {
+                lp.filters.add(lf);
+                continue;
+            }
+            String value = values.get(lf.parameter - 1);
+            TupleDesc td = Database.getCatalog().getTupleDesc(tableMap.get(lf.tableAlias));
+            if (td.getFieldType(td.fieldNameToIndex(lf.fieldPureName)) == Type.INT_TYPE) {
+                try {
+                    Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    throw new ParsingException("Parameter " + lf.c + " of " + lf.fieldQuantifiedName
+                            + " must be an integer, not " + value);
+                }
+            }
+            lp.filters.add(new LogicalFilterNode(lf.tableAlias, lf.fieldPureName, lf.p, value));
+        }
+        return lp;
+    }
+
+    /** Build the joins of the plan in the specified order instead of ordering them with
+     *  {@link JoinOptimizer#orderJoins}, such as the order found for an earlier binding of
+     *  a prepared statement.
+     *  @param order the joins of this plan in the order to build them, or null to order them
+     */
+    public void setJoinOrder(List<LogicalJoinNode> order) {
+        this.joinOrder = order;
+    }
+
+    /** @return the joins of the plan; once {@link #physicalPlan} has been called, in the
+        order they were built */
+    public List<LogicalJoinNode> getJoins() {
+        return joins;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -288,16 +621,27 @@ public class LogicalPlan {
      *  @return A OpIterator representing this plan.
      */ 
     public OpIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain) throws ParsingException {
+        for (LogicalFilterNode lf : filters) {
+            if (lf.isParameter())
+                throw new ParsingException("Parameter " + lf.c + " is not bound");
+        }
         Iterator<LogicalScanNode> tableIt = tables.iterator();
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
+        //the filters over the fields of each table read by a SeqScan of a HeapFile,
+        //which are pushed down into the scan of the table
+        Map<String,List<Predicate>> tableFilters = new HashMap<>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            OpIterator ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                CoveringIndex index = chooseCoveringIndex(table);
+                if (index != null)
+                    ss = new IndexOnlyScan(t, index, table.alias, keyPredicate(index, table.alias));
+                else
+                    ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -324,9 +668,14 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c));
-            else
+            if (ftyp == Type.INT_TYPE) {
+                try {
+                    f = new IntField(Integer.parseInt(lf.c));
+                } catch (NumberFormatException e) {
+                    throw new ParsingException("Constant " + lf.c + " of " + lf.fieldQuantifiedName
+                            + " must be an integer");
+                }
+            } else
                 f = new StringField(lf.c, Type.STRING_LEN);
 
             Predicate p = null;
@@ -335,19 +684,70 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
-
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            if (pushesDown(subplan)) {
+                tableFilters.computeIfAbsent(lf.tableAlias, k -> new ArrayList<>()).add(p);
+            } else {
+                Filter filter = new Filter(p, subplan);
+                if (worthCompiling(s))
+                    filter.compilePredicate();
+                subplanMap.put(lf.tableAlias, filter);
+            }
+
+            // an index-only scan does not have the fields of the base table, so look the field up there
+            TupleDesc baseTd = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias));
+            double sel = s.estimateSelectivity(baseTd.fieldNameToIndex(lf.fieldPureName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
+        //push the filters of each table read by a SeqScan, and the fields the rest of the plan
+        //needs, down into the scan; large tables are scanned with several workers, each taking
+        //morsels of pages from the table until it has been read
+        for (LogicalScanNode table : tables) {
+            if (!pushesDown(subplanMap.get(table.alias)))
+                continue;
+            Predicate[] preds = tableFilters.getOrDefault(table.alias, Collections.emptyList())
+                    .toArray(new Predicate[0]);
+            int[] fields = scanFields(table);
+            boolean compile = preds.length > 0
+                    && worthCompiling(statsMap.get(Database.getCatalog().getTableName(table.t)));
+            int dop = degreeOfParallelism(Database.getCatalog().getDatabaseFile(table.t));
+            if (dop < 2) {
+                SeqScan scan = new SeqScan(t, table.t, table.alias, preds, fields);
+                if (compile)
+                    scan.compilePredicates();
+                subplanMap.put(table.alias, scan);
+                continue;
+            }
+            Morsels morsels = new Morsels(table.t);
+            OpIterator[] pipelines = new OpIterator[dop];
+            for (int i = 0; i < dop; i++) {
+                MorselScan scan = new MorselScan(t, morsels, table.alias, preds, fields);
+                if (compile)
+                    scan.compilePredicates();
+                pipelines[i] = scan;
+            }
+            subplanMap.put(table.alias, new Exchange(pipelines));
+        }
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
-        joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        if (joinOrder != null)
+            joins = joinOrder;
+        else
+            joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+
+        //the estimated cardinality and cost of each subplan, to choose the operator of each join by
+        Map<String,Integer> cardMap = new HashMap<>();
+        Map<String,Double> costMap = new HashMap<>();
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            cardMap.put(table.alias, s.estimateTableCardinality(filterSelectivities.get(table.alias)));
+            costMap.put(table.alias, s.estimateScanCost());
+        }
 
         for (LogicalJoinNode lj : joins) {
             OpIterator plan1;
@@ -380,8 +780,33 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
 
+            int card1 = cardMap.get(t1name);
+            int card2 = isSubqueryJoin ? 0 : cardMap.get(t2name);
+            double cost1 = costMap.get(t1name);
+            double cost2 = isSubqueryJoin ? 0 : costMap.get(t2name);
+            //a subplan that has not been joined yet is a base table, which may be keyed on the join field
+            boolean pkey1 = t1name.equals(lj.t1Alias) && jo.isPkey(lj.t1Alias, lj.f1PureName);
+            boolean pkey2 = !isSubqueryJoin && t2name.equals(lj.t2Alias) && jo.isPkey(lj.t2Alias, lj.f2PureName);
+
             OpIterator j;
-            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2, card1, card2, cost1, cost2);
+            cardMap.put(t1name, jo.estimateJoinCardinality(lj, card1, card2, pkey1, pkey2, statsMap));
+            costMap.put(t1name, jo.estimateJoinCost(lj, card1, card2, cost1, cost2));
+            //a nested-loop join applies its predicate to every pair of tuples
+            if (j instanceof Join)
+                ((Join) j).compilePredicate();
+            else if (j instanceof HashEquiJoin && !isSubqueryJoin) {
+                HashEquiJoin hj = (HashEquiJoin) j;
+                if (plan2 instanceof Exchange && fitsInMemory(hj, card1)) {
+                    //probe the hash table of plan1 on each pipeline of the parallel plan2
+                    j = parallelProbe(hj, (Exchange) plan2, card1);
+                } else {
+                    hj.setBuildEstimate(card1);
+                    RuntimeFilter filter = addRuntimeFilter(hj.getJoinPredicate(), plan1, plan2);
+                    if (filter != null)
+                        hj.addRuntimeFilter(filter);
+                }
+            }
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -413,28 +838,31 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.get(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                //the aggregates follow the group by fields in the output of the Aggregate
+                outFields.add(groupByFields.size() + aggregateIndex(si.aggOp, si.fname));
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
 //                    id = 
-                    td.fieldNameToIndex(si.fname);
+                    if (!si.fname.equals("null.*"))
+                        td.fieldNameToIndex(si.fname);
                 } catch (NoSuchElementException e) {
                     throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
                 }
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int group = groupByFields.indexOf(si.fname);
+                    if (group < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(group);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -460,24 +888,184 @@ public class LogicalPlan {
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
+            int[] gfields = new int[groupByFields.size()];
+            int[] afields = new int[aggFields.size()];
+            Aggregator.Op[] ops = new Aggregator.Op[aggOps.size()];
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                for (int i = 0; i < afields.length; i++) {
+                    ops[i] = getAggOp(aggOps.get(i));
+                    if (aggFields.get(i).equals("null.*")) {
+                        if (ops[i] != Aggregator.Op.COUNT)
+                            throw new ParsingException("Only COUNT can be computed over *");
+                        //every tuple counts, so any field will do
+                        afields[i] = 0;
+                    } else {
+                        afields[i] = td.fieldNameToIndex(aggFields.get(i));
+                    }
+                }
+                if (node instanceof Exchange)
+                    aggNode = parallelAggregate((Exchange) node, afields, gfields, ops);
+                else
+                    aggNode = new Aggregate(node, afields, gfields, ops);
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
             node = aggNode;
         }
 
+        if (distinct) {
+            //project first, so that tuples that only differ in fields outside the select list are duplicates
+            node = new Distinct(new Project(outFields, outTypes, node));
+        }
+
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] fields = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                try {
+                    fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Cannot order by " + oByFields.get(i)
+                            + (distinct ? ", which is not in the SELECT DISTINCT list" : ""));
+                }
+                ascs[i] = oByAscs.get(i);
+            }
+            if (limit >= 0)
+                node = new TopN(fields, ascs, limit, node);
+            else
+                node = new OrderBy(fields, ascs, node);
+        } else if (limit >= 0) {
+            node = new Limit(limit, node);
         }
 
+        if (distinct)
+            return node;
         return new Project(outFields, outTypes, node);
     }
 
+    /** @return true if a table with the specified statistics is large enough for compiling
+     *  the predicates applied to each of its tuples to pay off
+     */
+    private static boolean worthCompiling(TableStats stats) {
+        return stats != null
+                && stats.estimateTableCardinality(1.0) >= ExpressionCompiler.MIN_COMPILE_TUPLES;
+    }
+
+    /** Let the scan of the probe side of a hash join drop the tuples whose join key is not
+     *  among the keys of the build side, if the probe side is a scan of a HeapFile, possibly
+     *  a parallel one (see {@link RuntimeFilter}).
+     *  @return the filter added to the scan, for the join to set, or null if there is none
+     */
+    private static RuntimeFilter addRuntimeFilter(JoinPredicate p, OpIterator build, OpIterator probe) {
+        Type type = build.getTupleDesc().getFieldType(p.getField1());
+        if (type != probe.getTupleDesc().getFieldType(p.getField2()))
+            return null;
+        if (probe instanceof SeqScan && pushesDown(probe)) {
+            SeqScan scan = (SeqScan) probe;
+            RuntimeFilter filter = new RuntimeFilter(tableField(scan.getFields(), p.getField2()));
+            scan.addRuntimeFilter(filter);
+            return filter;
+        } else if (probe instanceof Exchange) {
+            OpIterator[] scans = ((Exchange) probe).getChildren();
+            for (OpIterator scan : scans)
+                if (!(scan instanceof MorselScan))
+                    return null;
+            //the scans return the same fields of the table
+            RuntimeFilter filter = new RuntimeFilter(
+                    tableField(((MorselScan) scans[0]).getFields(), p.getField2()));
+            for (OpIterator scan : scans)
+                ((MorselScan) scan).addRuntimeFilter(filter);
+            return filter;
+        }
+        return null;
+    }
+
+    /** @return true if a hash join is expected to hold the whole build side in memory, which
+     *  a build side shared by parallel probes must do
+     */
+    private static boolean fitsInMemory(HashEquiJoin join, int card1) {
+        long size = join.getChildren()[0].getTupleDesc().getSize();
+        return (long) card1 * size <= join.getMemoryBudget();
+    }
+
+    /** Run a hash join on the pipelines of its parallel probe side: the build side is read
+     *  once into a table shared by a HashProbe on each pipeline, and the probes run on the
+     *  workers of an Exchange, so that the plan above the join, such as another join or
+     *  partial aggregates, runs in parallel as well.
+     *  @return an Exchange with the same output as the join
+     */
+    private static Exchange parallelProbe(HashEquiJoin join, Exchange probe, int card1) {
+        JoinPredicate p = join.getJoinPredicate();
+        OpIterator[] children = join.getChildren();
+        SharedHashBuild build = new SharedHashBuild(children[0], p.getField1(),
+                probe.getTupleDesc().getFieldType(p.getField2()));
+        build.setBuildEstimate(card1);
+        RuntimeFilter filter = addRuntimeFilter(p, children[0], probe);
+        if (filter != null)
+            build.addRuntimeFilter(filter);
+        OpIterator[] pipelines = probe.getChildren();
+        OpIterator[] probes = new OpIterator[pipelines.length];
+        for (int i = 0; i < pipelines.length; i++)
+            probes[i] = new HashProbe(p, build, pipelines[i]);
+        return new Exchange(probes);
+    }
+
+    /** @return the field of the table for a field of a scan that returns the specified fields
+     *  of the table, or all of them if fields is null
+     */
+    private static int tableField(int[] fields, int field) {
+        return fields == null ? field : fields[field];
+    }
+
+    /** @return true if the specified subplan is a SeqScan that filters and fields can be
+     *  pushed down into, i.e., a scan of a HeapFile
+     */
+    private static boolean pushesDown(OpIterator subplan) {
+        return subplan instanceof SeqScan && Database.getCatalog()
+                .getDatabaseFile(((SeqScan) subplan).getTableId()) instanceof HeapFile;
+    }
+
+    /** Aggregate the output of each pipeline of a parallel scan on its worker, and combine the
+     *  partial aggregates of each group: counts and sums are added up, the min of the mins and
+     *  the max of the maxes are taken, and an average is computed from the partial sums and counts.
+     *  @return an Aggregate with the same output as one over the whole scan
+     */
+    private static Aggregate parallelAggregate(Exchange scan, int[] afields, int[] gfields, Aggregator.Op[] ops) {
+        Aggregator.Op[] partialOps = new Aggregator.Op[ops.length];
+        Aggregator.Op[] finalOps = new Aggregator.Op[ops.length];
+        int[] finalAfields = new int[ops.length];
+        int[] finalGfields = new int[gfields.length];
+        for (int i = 0; i < gfields.length; i++)
+            finalGfields[i] = i;
+        int pos = gfields.length;
+        for (int i = 0; i < ops.length; i++) {
+            finalAfields[i] = pos;
+            switch (ops[i]) {
+                case AVG:
+                    partialOps[i] = Aggregator.Op.SUM_COUNT;
+                    finalOps[i] = Aggregator.Op.SC_AVG;
+                    pos += 2;
+                    break;
+                case COUNT:
+                    partialOps[i] = Aggregator.Op.COUNT;
+                    finalOps[i] = Aggregator.Op.SUM;
+                    pos++;
+                    break;
+                default:
+                    partialOps[i] = ops[i];
+                    finalOps[i] = ops[i];
+                    pos++;
+            }
+        }
+        OpIterator[] pipelines = scan.getChildren();
+        OpIterator[] partials = new OpIterator[pipelines.length];
+        for (int i = 0; i < pipelines.length; i++)
+            partials[i] = new HashAggregate(pipelines[i], gfields, afields, partialOps);
+        return new Aggregate(new Exchange(partials), finalAfields, finalGfields, finalOps);
+    }
+
     public static void main(String[] argv) {
         // construct a 3-column table schema
         Type[] types = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
@@ -8,11 +8,28 @@ import simpledb.execution.Predicate;
  * {@link LogicalJoinNode}; t2 and f2 should always be null
  */
 public class LogicalSubplanJoinNode extends LogicalJoinNode {
-    
+
+    /** How the tuples of the table are matched against the subplan */
+    public enum Kind {
+        /** return each tuple of the table with each tuple of the subplan it matches */
+        JOIN,
+        /** return the tuples of the table that match a tuple of the subplan (IN, EXISTS) */
+        SEMI,
+        /** return the tuples of the table that match no tuple of the subplan (NOT IN, NOT EXISTS) */
+        ANTI
+    }
+
     /** The subplan (used on the inner) of the join */
     final OpIterator subPlan;
-    
+
+    /** How the tuples of the table are matched against the subplan */
+    final Kind kind;
+
     public LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, Predicate.Op pred) {
+        this(table1, joinField1, sp, pred, Kind.JOIN);
+    }
+
+    public LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, Predicate.Op pred, Kind kind) {
         t1Alias = table1;
         String[] tmps = joinField1.split("[.]");
         if (tmps.length>1)
@@ -22,10 +39,11 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         f1QuantifiedName=t1Alias+"."+f1PureName;
         subPlan = sp;
         p = pred;
+        this.kind = kind;
     }
     
     @Override public int hashCode() {
-        return t1Alias.hashCode() + f1PureName.hashCode() + subPlan.hashCode();
+        return t1Alias.hashCode() + f1PureName.hashCode() + subPlan.hashCode() + kind.hashCode();
     }
     
     @Override public boolean equals(Object o) {
@@ -33,11 +51,12 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         if (!(o instanceof LogicalSubplanJoinNode))
             return false;
         
-        return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan));
+        return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan)
+                && ((LogicalSubplanJoinNode)o).kind == kind);
     }
     
     public LogicalSubplanJoinNode swapInnerOuter() {
-        return new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p);
+        return new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p, kind);
     }
 
 }
@@ -29,11 +29,63 @@ public class OperatorCardinality {
         } else if (o instanceof Join) {
             return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
-            return updateHashEquiJoinCardinality((HashEquiJoin) o,
-                    tableAliasToId, tableStats);
+            HashEquiJoin j = (HashEquiJoin) o;
+            return updateEquiJoinCardinality(j, j.getJoinPredicate(), j.getJoinField1Name(),
+                    j.getJoinField2Name(), tableAliasToId, tableStats);
+        } else if (o instanceof HashProbe) {
+            HashProbe j = (HashProbe) o;
+            return updateEquiJoinCardinality(j, j.getJoinPredicate(), j.getJoinField1Name(),
+                    j.getJoinField2Name(), tableAliasToId, tableStats);
+        } else if (o instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) o;
+            return updateEquiJoinCardinality(j, j.getJoinPredicate(), j.getJoinField1Name(),
+                    j.getJoinField2Name(), tableAliasToId, tableStats);
+        } else if (o instanceof SemiJoin) {
+            // each tuple of child1 is returned at most once; the subquery
+            // gets its own estimates
+            OpIterator[] children = o.getChildren();
+            if (children[1] instanceof Operator)
+                updateOperatorCardinality((Operator) children[1], tableAliasToId, tableStats);
+            int card = 1;
+            boolean hasJoinPK = false;
+            if (children[0] instanceof Operator) {
+                hasJoinPK = updateOperatorCardinality((Operator) children[0],
+                        tableAliasToId, tableStats);
+                card = ((Operator) children[0]).getEstimatedCardinality();
+            } else if (children[0] instanceof SeqScan) {
+                card = scanCardinality((SeqScan) children[0], tableStats);
+            }
+            o.setEstimatedCardinality(Math.max(1, card));
+            return hasJoinPK;
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
+        } else if (o instanceof Exchange) {
+            // the children each return a share of the output
+            int card = 0;
+            boolean hasJoinPK = false;
+            for (OpIterator child : o.getChildren()) {
+                if (child instanceof HashProbe) {
+                    // the probes share a build side, and their probe sides
+                    // share the tuples of one table
+                    hasJoinPK = updateOperatorCardinality((Operator) child,
+                            tableAliasToId, tableStats);
+                    card = ((Operator) child).getEstimatedCardinality();
+                    break;
+                } else if (child instanceof Operator) {
+                    hasJoinPK = updateOperatorCardinality((Operator) child,
+                            tableAliasToId, tableStats);
+                    card += ((Operator) child).getEstimatedCardinality();
+                } else if (child instanceof MorselScan) {
+                    // the scans share the tuples of one table
+                    MorselScan s = (MorselScan) child;
+                    card = scanCardinality(s.getTableName(), s.getPredicates(),
+                            tableStats);
+                    break;
+                }
+            }
+            o.setEstimatedCardinality(Math.max(1, card));
+            return hasJoinPK;
         } else {
             OpIterator[] children = o.getChildren();
             int childC = 1;
@@ -44,16 +96,38 @@ public class OperatorCardinality {
                             (Operator) children[0], tableAliasToId, tableStats);
                     childC = ((Operator) children[0]).getEstimatedCardinality();
                 } else if (children[0] instanceof SeqScan) {
-                    childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
-                            .estimateTableCardinality(1.0);
+                    childC = scanCardinality((SeqScan) children[0], tableStats);
                 }
             }
+            if (o instanceof TopN)
+                childC = Math.min(childC, ((TopN) o).getLimit());
+            else if (o instanceof Limit)
+                childC = Math.min(childC, ((Limit) o).getLimit());
             o.setEstimatedCardinality(childC);
             return hasJoinPK;
         }
     }
 
+    /**
+     * @return the estimated number of tuples a scan of a table returns, with
+     *         the specified predicates over the fields of the table pushed
+     *         down into it
+     */
+    private static int scanCardinality(String tableName, Predicate[] predicates,
+            Map<String, TableStats> tableStats) {
+        TableStats stats = tableStats.get(tableName);
+        double selectivity = 1.0;
+        for (Predicate p : predicates)
+            selectivity *= stats.estimateSelectivity(p.getField(), p.getOp(),
+                    p.getOperand());
+        return stats.estimateTableCardinality(selectivity);
+    }
+
+    private static int scanCardinality(SeqScan s,
+            Map<String, TableStats> tableStats) {
+        return scanCardinality(s.getTableName(), s.getPredicates(), tableStats);
+    }
+
     private static boolean updateFilterCardinality(Filter f,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -80,9 +154,8 @@ public class OperatorCardinality {
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
             } else if (child instanceof SeqScan) {
-                f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
-                        .estimateTableCardinality(1.0) * selectivity) + 1);
+                f.setEstimatedCardinality((int) (scanCardinality(
+                        (SeqScan) child, tableStats) * selectivity) + 1);
                 return false;
             }
         }
@@ -123,8 +196,10 @@ public class OperatorCardinality {
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
         } else if (child1 instanceof SeqScan) {
-            child1Card = tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0);
+            child1Card = scanCardinality((SeqScan) child1, tableStats);
+        } else if (child1 instanceof MorselScan) {
+            MorselScan s = (MorselScan) child1;
+            child1Card = scanCardinality(s.getTableName(), s.getPredicates(), tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -135,8 +210,10 @@ public class OperatorCardinality {
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
         } else if (child2 instanceof SeqScan) {
-            child2Card = tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0);
+            child2Card = scanCardinality((SeqScan) child2, tableStats);
+        } else if (child2 instanceof MorselScan) {
+            MorselScan s = (MorselScan) child2;
+            child2Card = scanCardinality(s.getTableName(), s.getPredicates(), tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -146,9 +223,10 @@ public class OperatorCardinality {
         return child1HasJoinPK || child2HasJoinPK;
     }
 
-    private static boolean updateHashEquiJoinCardinality(HashEquiJoin j,
-                                                         Map<String, Integer> tableAliasToId,
-                                                         Map<String, TableStats> tableStats) {
+    private static boolean updateEquiJoinCardinality(Operator j, JoinPredicate p,
+                                                     String joinField1Name, String joinField2Name,
+                                                     Map<String, Integer> tableAliasToId,
+                                                     Map<String, TableStats> tableStats) {
 
         OpIterator[] children = j.getChildren();
         OpIterator child1 = children[0];
@@ -156,10 +234,10 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = joinField1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = joinField2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -178,8 +256,7 @@ public class OperatorCardinality {
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
         } else if (child1 instanceof SeqScan) {
-            child1Card = tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0);
+            child1Card = scanCardinality((SeqScan) child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -190,12 +267,11 @@ public class OperatorCardinality {
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
         } else if (child2 instanceof SeqScan) {
-            child2Card = tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0);
+            child2Card = scanCardinality((SeqScan) child2, tableStats);
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(
+                p.getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
@@ -220,28 +296,31 @@ public class OperatorCardinality {
         }
 
         if (child instanceof SeqScan) {
-            childCard = tableStats.get(((SeqScan) child).getTableName())
-                    .estimateTableCardinality(1.0);
+            childCard = scanCardinality((SeqScan) child, tableStats);
         }
 
-        String[] tmp = a.groupFieldName().split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
+        // the number of groups is at most the product of the number of
+        // distinct values of the group by fields
+        double groups = 1.0;
+        for (int gfield : a.groupFields()) {
+            String[] tmp = child.getTupleDesc().getFieldName(gfield).split("[.]");
+            String tableAlias = tmp[0];
+            String pureFieldName = tmp[1];
+            Integer tableId = tableAliasToId.get(tableAlias);
 
-        double groupFieldAvgSelectivity = 1.0;
-        if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
+            if (tableId == null) {
+                a.setEstimatedCardinality(childCard);
+                return hasJoinPK;
+            }
+            double groupFieldAvgSelectivity = tableStats.get(
                     Database.getCatalog().getTableName(tableId))
                     .avgSelectivity(
                             Database.getCatalog().getTupleDesc(tableId)
                                     .fieldNameToIndex(pureFieldName),
                             Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
-            return hasJoinPK;
+            groups *= 1.0 / groupFieldAvgSelectivity;
         }
-        a.setEstimatedCardinality(childCard);
+        a.setEstimatedCardinality((int) (Math.min(childCard, groups)));
         return hasJoinPK;
     }
 }
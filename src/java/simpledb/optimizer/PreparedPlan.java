@@ -0,0 +1,124 @@
+package simpledb.optimizer;
+
+import simpledb.ParsingException;
+import simpledb.common.Database;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Query;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * A PreparedPlan is a query that has been parsed once, with parameters in
+ * place of some of the constants of its filters (see
+ * {@link LogicalFilterNode#parameter}), and that is run many times with
+ * different values for them.
+ * <p>
+ * The join order chosen by {@link JoinOptimizer#orderJoins} the first time
+ * the query runs is kept and reused by later executions, so they only bind
+ * the parameters and build the operators of the plan. The order is chosen
+ * again when the number of tuples of one of the tables has changed by more
+ * than a factor of STATS_CHANGE_FACTOR since it was chosen, as the order may
+ * no longer be a good one.
+ */
+public class PreparedPlan {
+
+    /**
+     * The factor by which the number of tuples of a table must change
+     * before the joins are ordered again
+     */
+    public static final double STATS_CHANGE_FACTOR = 2.0;
+
+    private final LogicalPlan template;
+    // the join order of the last plan, and the number of tuples of each table
+    // when it was chosen, by table name
+    private List<LogicalJoinNode> joinOrder = null;
+    private final Map<String, Integer> plannedTuples = new HashMap<>();
+    private int plans = 0;
+    private int executions = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param template the logical plan of the query, with parameters
+     * @throws ParsingException if the query has a subquery, whose plan would be
+     *                          built for a single transaction
+     */
+    public PreparedPlan(LogicalPlan template) throws ParsingException {
+        if (template.hasSubqueries())
+            throw new ParsingException("Subqueries are not supported in prepared statements");
+        this.template = template;
+    }
+
+    /**
+     * @return the number of parameters of the query
+     */
+    public int numParameters() {
+        return template.numParameters();
+    }
+
+    /**
+     * Bind the parameters of the query and build its physical plan, reusing
+     * the join order of the last execution unless the statistics of its
+     * tables have changed too much.
+     *
+     * @param tid            the transaction the plan runs in
+     * @param values         the values of the parameters, in order
+     * @param baseTableStats the statistics of the tables, by table name
+     * @param explain        whether to print the plan chosen for the joins
+     * @return the query, with its logical and physical plan
+     * @throws ParsingException if the values cannot be bound or the plan is
+     *                          no longer valid
+     */
+    public synchronized Query bind(TransactionId tid, List<String> values,
+                                   Map<String, TableStats> baseTableStats, boolean explain) throws ParsingException {
+        LogicalPlan lp = template.bind(values);
+        boolean replan = joinOrder == null || statsChanged(baseTableStats);
+        if (!replan)
+            lp.setJoinOrder(joinOrder);
+        OpIterator physicalPlan = lp.physicalPlan(tid, baseTableStats, explain);
+        if (replan) {
+            joinOrder = new ArrayList<>(lp.getJoins());
+            plannedTuples.clear();
+            for (int tableId : template.getTableAliasToIdMapping().values()) {
+                String name = Database.getCatalog().getTableName(tableId);
+                TableStats s = baseTableStats.get(name);
+                plannedTuples.put(name, s == null ? 0 : s.totalTuples());
+            }
+            plans++;
+        }
+        executions++;
+        Query query = new Query(physicalPlan, tid);
+        query.setLogicalPlan(lp);
+        return query;
+    }
+
+    /**
+     * @return true if the number of tuples of a table has changed by more than
+     * STATS_CHANGE_FACTOR since the join order was chosen
+     */
+    private boolean statsChanged(Map<String, TableStats> baseTableStats) {
+        for (Map.Entry<String, Integer> e : plannedTuples.entrySet()) {
+            TableStats s = baseTableStats.get(e.getKey());
+            double before = Math.max(1, e.getValue());
+            double now = Math.max(1, s == null ? 0 : s.totalTuples());
+            if (now > before * STATS_CHANGE_FACTOR || before > now * STATS_CHANGE_FACTOR)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of times the joins of the query were ordered
+     */
+    public synchronized int getPlanCount() {
+        return plans;
+    }
+
+    /**
+     * @return the number of times the query was bound
+     */
+    public synchronized int getExecutionCount() {
+        return executions;
+    }
+}
@@ -4,7 +4,9 @@ import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.Iterator;
 
+import simpledb.common.Database;
 import simpledb.execution.*;
+import simpledb.index.IndexOnlyScan;
 import simpledb.storage.TupleDesc;
 import simpledb.storage.TupleDesc.TDItem;
 
@@ -12,11 +14,19 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String MERGE_JOIN = "⨝(merge)";
+    static final String SEMI_JOIN = "⋉";
+    static final String ANTI_JOIN = "▷";
+    static final String DISTINCT = "δ";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_ONLY_SCAN = "index only scan";
+    static final String MORSEL_SCAN = "morsel scan";
     static final String ORDERBY = "o";
+    static final String TOPN = "top";
+    static final String LIMIT = "limit";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
 
@@ -29,7 +39,8 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof HashProbe
+                || o instanceof SortMergeJoin || o instanceof SemiJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -67,24 +78,66 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof IndexOnlyScan
+                || queryPlan instanceof MorselScan) {
+            String tableName, alias, scan;
+            Predicate[] predicates = new Predicate[0];
+            RuntimeFilter[] runtimeFilters = new RuntimeFilter[0];
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                scan = SCAN;
+                predicates = s.getPredicates();
+                runtimeFilters = s.getRuntimeFilters();
+            } else if (queryPlan instanceof MorselScan) {
+                MorselScan s = (MorselScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                scan = MORSEL_SCAN;
+                predicates = s.getPredicates();
+                runtimeFilters = s.getRuntimeFilters();
+            } else {
+                IndexOnlyScan s = (IndexOnlyScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                scan = INDEX_ONLY_SCAN + "[" + s.getIndex().getName() + "]";
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+                    .format("%1$s(%2$s)", scan, tableName + alias);
+            if (predicates.length > 0) {
+                // the predicates pushed down into the scan
+                TupleDesc td = Database.getCatalog().getTupleDesc(
+                        Database.getCatalog().getTableId(tableName));
+                StringBuilder sb = new StringBuilder();
+                for (Predicate p : predicates) {
+                    sb.append(sb.length() == 0 ? "[" : ",");
+                    sb.append(td.getFieldName(p.getField())).append(p.getOp())
+                            .append(p.getOperand());
+                }
+                thisNode.text += sb.append("]");
+            }
+            if (runtimeFilters.length > 0) {
+                // the join keys filtered with the Bloom filters of hash joins
+                TupleDesc td = Database.getCatalog().getTupleDesc(
+                        Database.getCatalog().getTableId(tableName));
+                StringBuilder sb = new StringBuilder();
+                for (RuntimeFilter f : runtimeFilters)
+                    sb.append(sb.length() == 0 ? "[bloom:" : ",").append(td.getFieldName(f.getField()));
+                thisNode.text += sb.append("]");
+            }
+            if (scan.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scan.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scan.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
@@ -138,18 +191,32 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
-                String field1 = td.getFieldName(jp.getField1());
-                String field2 = td.getFieldName(jp.getField2()
-                        + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+            } else if (plan instanceof HashEquiJoin || plan instanceof HashProbe
+                    || plan instanceof SortMergeJoin || plan instanceof SemiJoin) {
+                String name;
+                JoinPredicate jp;
+                if (plan instanceof HashEquiJoin) {
+                    name = HASH_JOIN;
+                    jp = ((HashEquiJoin) plan).getJoinPredicate();
+                } else if (plan instanceof HashProbe) {
+                    // the first of the probes sharing a build side
+                    name = HASH_JOIN;
+                    jp = ((HashProbe) plan).getJoinPredicate();
+                } else if (plan instanceof SortMergeJoin) {
+                    name = MERGE_JOIN;
+                    jp = ((SortMergeJoin) plan).getJoinPredicate();
+                } else {
+                    name = ((SemiJoin) plan).isAnti() ? ANTI_JOIN : SEMI_JOIN;
+                    jp = ((SemiJoin) plan).getJoinPredicate();
+                }
+                // a semi-join returns the fields of its first child only
+                String field1 = children[0].getTupleDesc().getFieldName(jp.getField1());
+                String field2 = children[1].getTupleDesc().getFieldName(jp.getField2());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", name, field1
+                        + jp.getOperator() + field2,plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
+                if (name.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = name.length() / 2;
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + 3 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
@@ -158,7 +225,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
+                        - name.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -167,21 +234,44 @@ public class QueryPlanVisualizer {
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
             }
-            else if (plan instanceof Aggregate) {
-                Aggregate a = (Aggregate) plan;
+            else if (plan instanceof Aggregate || plan instanceof HashAggregate) {
+                // a HashAggregate computes the partial aggregates of a parallel pipeline
+                Operator a = plan;
                 int upBarShift = parentUpperBarStartShift;
                 String alignTxt;
                 TupleDesc td = a.getTupleDesc();
-                int gfield = a.groupField();
+                TupleDesc childTd = children[0].getTupleDesc();
+                int[] gfields, afields;
+                Aggregator.Op[] aops;
+                if (plan instanceof Aggregate) {
+                    gfields = ((Aggregate) plan).groupFields();
+                    afields = ((Aggregate) plan).aggregateFields();
+                    aops = ((Aggregate) plan).aggregateOps();
+                } else {
+                    gfields = ((HashAggregate) plan).groupFields();
+                    afields = ((HashAggregate) plan).aggregateFields();
+                    aops = ((HashAggregate) plan).aggregateOps();
+                }
+                StringBuilder aggs = new StringBuilder();
+                for (int i = 0; i < afields.length; i++) {
+                    if (i > 0)
+                        aggs.append(", ");
+                    aggs.append(String.format("%1$s(%2$s)", aops[i], childTd.getFieldName(afields[i])));
+                }
 
-                if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                if (gfields.length == 0) {
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(0);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    StringBuilder groups = new StringBuilder();
+                    for (int i = 0; i < gfields.length; i++) {
+                        if (i > 0)
+                            groups.append(",");
+                        groups.append(childTd.getFieldName(gfields[i]));
+                    }
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, groups, aggs, a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -240,6 +330,40 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof TopN || plan instanceof Limit || plan instanceof Distinct) {
+                String name;
+                if (plan instanceof Distinct) {
+                    name = DISTINCT;
+                    thisNode.text = String.format("%1$s,card:%2$d", DISTINCT,
+                            plan.getEstimatedCardinality());
+                } else if (plan instanceof TopN) {
+                    TopN t = (TopN) plan;
+                    name = TOPN;
+                    thisNode.text = String.format(
+                            "%1$s(%2$s, %3$d),card:%4$d",
+                            TOPN,
+                            children[0].getTupleDesc().getFieldName(
+                                    t.getOrderByField()), t.getLimit(), t.getEstimatedCardinality());
+                } else {
+                    Limit l = (Limit) plan;
+                    name = LIMIT;
+                    thisNode.text = String.format("%1$s(%2$d),card:%3$d",
+                            LIMIT, l.getLimit(), l.getEstimatedCardinality());
+                }
+                int upBarShift = parentUpperBarStartShift;
+                if (name.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = name.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - name.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Project) {
                 Project p = (Project) plan;
                 StringBuilder fields = new StringBuilder();
@@ -263,15 +387,10 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
             }
-            else if (plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
-                String name="Exchange";
-                int card=0;
-                try {
-                    name = (String) plan.getClass().getMethod("getName").invoke(plan);
-                    card = (Integer) plan.getClass().getMethod("getEstimatedCardinality").invoke(plan);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                } 
+            else if (plan instanceof Exchange) {
+                //only the first of the parallel pipelines is drawn
+                String name = ((Exchange) plan).getName();
+                int card = plan.getEstimatedCardinality();
 
                 thisNode.text = String.format("%1$s,card:%2$d", name,card);
                 int upBarShift = parentUpperBarStartShift;
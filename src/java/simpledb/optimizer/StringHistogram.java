@@ -2,24 +2,32 @@ package simpledb.optimizer;
 
 import simpledb.execution.Predicate;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 /**
  * A class to represent a fixed-width histogram over a single String-based
  * field.
  */
 public class StringHistogram {
-    final IntHistogram hist;
+    final AdaptiveIntHistogram hist;
 
     /**
      * Create a new StringHistogram with a specified number of buckets.
      * <p>
-     * Our implementation is written in terms of an IntHistogram by converting
-     * each String to an integer.
+     * Our implementation is written in terms of an AdaptiveIntHistogram by
+     * converting each String to an integer.
      * 
      * @param buckets
      *            the number of buckets
      */
     public StringHistogram(int buckets) {
-        hist = new IntHistogram(buckets, minVal(), maxVal());
+        hist = new AdaptiveIntHistogram(buckets);
+    }
+
+    private StringHistogram(AdaptiveIntHistogram hist) {
+        this.hist = hist;
     }
 
     /**
@@ -67,6 +75,24 @@ public class StringHistogram {
         hist.addValue(val);
     }
 
+    /** Add a new value to the histogram, with the specified weight */
+    public void addValue(String s, double weight) {
+        hist.addValue(stringToInt(s), weight);
+    }
+
+    /**
+     * Remove a value that was added to the histogram, with the specified
+     * weight
+     */
+    public void removeValue(String s, double weight) {
+        hist.removeValue(stringToInt(s), weight);
+    }
+
+    /** Add the values of another StringHistogram */
+    public void merge(StringHistogram other) {
+        hist.merge(other.hist);
+    }
+
     /**
      * Estimate the selectivity (as a double between 0 and 1) of the specified
      * predicate over the specified string
@@ -91,4 +117,14 @@ public class StringHistogram {
     public double avgSelectivity() {
         return hist.avgSelectivity();
     }
+
+    /** Write the histogram to a stream, to be read back by {@link #read} */
+    public void write(DataOutputStream out) throws IOException {
+        hist.write(out);
+    }
+
+    /** Read a histogram written by {@link #write} */
+    public static StringHistogram read(DataInputStream in) throws IOException {
+        return new StringHistogram(AdaptiveIntHistogram.read(in));
+    }
 }
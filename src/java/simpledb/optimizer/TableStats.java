@@ -1,24 +1,33 @@
 package simpledb.optimizer;
 
 import simpledb.common.Database;
-import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
-import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
 import simpledb.storage.*;
-import simpledb.transaction.Transaction;
-import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
-import javax.xml.crypto.Data;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.*;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
  * query.
  * <p>
+ * The statistics of a table are computed in a single pass over a sample of
+ * its pages (see {@link #setSampleRate}), with a histogram per field that
+ * adapts to the range of the values it is given (see
+ * {@link AdaptiveIntHistogram}). The statistics in the shared map are then
+ * kept up to date as tuples are inserted into and deleted from the table
+ * through the buffer pool, and computed again in the background once the
+ * tuples inserted or deleted exceed REFRESH_FRACTION of the table. The
+ * statistics of the tables of a catalog can be saved in a file next to it,
+ * so that they are only computed again for the tables that changed (see
+ * {@link #computeStatistics(File)}).
+ * <p>
  * This class is not needed in implementing lab1 and lab2.
  */
 public class TableStats {
@@ -27,6 +36,42 @@ public class TableStats {
 
     static final int IOCOSTPERPAGE = 1000;
 
+    /**
+     * The suffix of the name of the file the statistics of the tables of a
+     * catalog are saved in, next to the catalog file
+     */
+    public static final String STATS_SUFFIX = ".stats";
+
+    /**
+     * The fraction of the tuples of a table that must be inserted or deleted
+     * before its statistics are computed again
+     */
+    public static final double REFRESH_FRACTION = 0.2;
+
+    /**
+     * The number of tuples that must be inserted into or deleted from a table
+     * before its statistics are computed again, however small it is
+     */
+    public static final int MIN_REFRESH_MODIFICATIONS = 1000;
+
+    /**
+     * The smallest number of pages of a table that are sampled
+     */
+    public static final int MIN_SAMPLE_PAGES = 16;
+
+    private static final int MAGIC = 0x54535431;
+
+    private static volatile double sampleRate = 1.0;
+    // the file the statistics of the tables are saved in, if any
+    private static volatile File statsFile = null;
+
+    private static final ExecutorService refresher = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "TableStats-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
     }
@@ -51,16 +96,181 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * Set the fraction of the pages of a table sampled to compute its
+     * statistics. At least MIN_SAMPLE_PAGES pages are read, and with a rate
+     * of 1 every page is.
+     *
+     * @param rate the fraction of the pages to read, in (0, 1]
+     */
+    public static void setSampleRate(double rate) {
+        if (!(rate > 0 && rate <= 1))
+            throw new IllegalArgumentException("sample rate must be in (0, 1]: " + rate);
+        sampleRate = rate;
+    }
+
+    /**
+     * @return the fraction of the pages of a table sampled to compute its
+     * statistics
+     */
+    public static double getSampleRate() {
+        return sampleRate;
+    }
+
     public static void computeStatistics() {
+        computeStatistics(null);
+    }
+
+    /**
+     * Compute the statistics of each table of the catalog, reusing those
+     * saved in the specified file for the tables whose file has not changed
+     * since, and save them in it.
+     *
+     * @param file the file the statistics are saved in, or null to compute
+     *             them all and not save them
+     */
+    public static void computeStatistics(File file) {
+        statsFile = file;
+        Map<String, TableStats> saved = file == null ? Collections.emptyMap() : loadStatistics(file);
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
 
         System.out.println("Computing table stats.");
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            String name = Database.getCatalog().getTableName(tableid);
+            TableStats s = saved.get(name);
+            if (s == null)
+                s = new TableStats(tableid, IOCOSTPERPAGE);
+            setTableStats(name, s);
         }
         System.out.println("Done.");
+        saveStatistics();
+    }
+
+    /**
+     * Save the statistics of the tables in the file given to
+     * {@link #computeStatistics(File)}, if any, with the size and
+     * modification time of the file of each table, so that they are only
+     * used again while the table is unchanged.
+     */
+    public static synchronized void saveStatistics() {
+        File file = statsFile;
+        if (file == null)
+            return;
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            List<Map.Entry<String, TableStats>> entries = new ArrayList<>();
+            for (Map.Entry<String, TableStats> e : statsMap.entrySet()) {
+                if (tableFile(e.getValue().file) != null)
+                    entries.add(e);
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, TableStats> e : entries) {
+                out.writeUTF(e.getKey());
+                e.getValue().write(out);
+            }
+        } catch (IOException e) {
+            // the statistics are computed again at the next start
+            e.printStackTrace();
+            temp.delete();
+            return;
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Read the statistics saved by {@link #saveStatistics}, keeping those of
+     * the tables of the catalog whose file and fields have not changed since.
+     *
+     * @return the statistics that are still valid, by table name
+     */
+    static Map<String, TableStats> loadStatistics(File file) {
+        Map<String, TableStats> result = new HashMap<>();
+        if (!file.exists())
+            return result;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                return result;
+            int tables = in.readInt();
+            for (int i = 0; i < tables; i++) {
+                String name = in.readUTF();
+                TableStats s = read(in, name);
+                if (s != null)
+                    result.put(name, s);
+            }
+        } catch (IOException e) {
+            // a damaged file is ignored, and the statistics computed again
+            System.out.println("Ignoring table statistics in " + file + ": " + e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Record tuples inserted into a table through the buffer pool in the
+     * statistics of the table, if it has some.
+     *
+     * @param tableId the table
+     * @param tuples  the tuples inserted
+     */
+    public static void tuplesInserted(int tableId, List<Tuple> tuples) {
+        TableStats stats = statsOf(tableId);
+        if (stats != null)
+            stats.addTuples(tuples);
+    }
+
+    /**
+     * Record tuples deleted from a table through the buffer pool in the
+     * statistics of the table, if it has some.
+     *
+     * @param tableId the table
+     * @param tuples  the tuples deleted
+     */
+    public static void tuplesDeleted(int tableId, List<Tuple> tuples) {
+        TableStats stats = statsOf(tableId);
+        if (stats != null)
+            stats.removeTuples(tuples);
+    }
+
+    /**
+     * Compute the statistics of a table again in the background if too many
+     * of its tuples were inserted or deleted since they were computed (see
+     * {@link #isStale}). The statistics are read from the table's file, so
+     * this is called once the modifications are committed.
+     *
+     * @param tableId the table
+     * @return the refresh, or null if the statistics are up to date or
+     * already being refreshed
+     */
+    public static Future<?> refreshIfStale(int tableId) {
+        TableStats stats = statsOf(tableId);
+        if (stats == null || !stats.startRefresh())
+            return null;
+        String name = Database.getCatalog().getTableName(tableId);
+        return refresher.submit(() -> {
+            try {
+                statsMap.replace(name, stats, new TableStats(tableId, stats.ioCostPerPage));
+                saveStatistics();
+            } finally {
+                stats.endRefresh();
+            }
+        });
+    }
+
+    // the statistics in the map of a table of the catalog
+    private static TableStats statsOf(int tableId) {
+        String name;
+        try {
+            name = Database.getCatalog().getTableName(tableId);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        TableStats stats = statsMap.get(name);
+        return stats != null && stats.tableid == tableId ? stats : null;
     }
 
     /**
@@ -68,7 +278,7 @@ public class TableStats {
      * 100, though our tests assume that you have at least 100 bins in your
      * histograms.
      */
-    static final int NUM_HIST_BINS = 100;
+    public static final int NUM_HIST_BINS = 100;
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
@@ -79,15 +289,19 @@ public class TableStats {
      * The cost per page of IO. This doesn't differentiate between
      * sequential-scan IO and disk seeks.
      */
-    private int tableid;
-    private final TransactionId td;
-    private DbFile file;
-    private int ioCostPerPage;
-    private int ntups = 0;
-    private TupleDesc tupleDesc;
-    private int[] min;
-    private int[] max;
-    private List<Object> histograms=new ArrayList<>();
+    private final int tableid;
+    private final DbFile file;
+    private final int ioCostPerPage;
+    // the estimated number of tuples, which is fractional when sampled
+    private double ntups = 0;
+    private final TupleDesc tupleDesc;
+    // the histogram of each field, an AdaptiveIntHistogram or a StringHistogram
+    private final List<Object> histograms = new ArrayList<>();
+    // the number of tuples when the statistics were computed, and the number
+    // inserted or deleted since
+    private int baseTuples;
+    private int modifications = 0;
+    private boolean refreshing = false;
 
 
     public TableStats(int tableid, int ioCostPerPage) {
@@ -101,60 +315,262 @@ public class TableStats {
         // some code goes here
         this.tableid = tableid;
         this.ioCostPerPage = ioCostPerPage;
-        td = new TransactionId();
         file = Database.getCatalog().getDatabaseFile(tableid);
-        DbFileIterator it = file.iterator(td);
-        tupleDesc=file.getTupleDesc();
-        int numfields = tupleDesc.numFields();
-        min=new int[numfields];
-        max=new int[numfields];
+        tupleDesc = file.getTupleDesc();
+        for (int i = 0; i < tupleDesc.numFields(); i++) {
+            if (tupleDesc.getFieldType(i) == Type.INT_TYPE)
+                histograms.add(new AdaptiveIntHistogram(NUM_HIST_BINS));
+            else
+                histograms.add(new StringHistogram(NUM_HIST_BINS));
+        }
         try {
-            it.open();
-            while (it.hasNext()) {
-                Tuple t = it.next();
-                Iterator<Field> fields = t.fields();
-                int index=0;
-                while (fields.hasNext()) {
-                    Field next = fields.next();
-                    if(tupleDesc.getFieldType(index)==Type.INT_TYPE){
-                        IntField f= (IntField) next;
-                        min[index]=Math.min(min[index],f.getValue());
-                        max[index]=Math.max(max[index],f.getValue());
-                    }
-                    index++;
-                }
-                ntups++;
-            }
-            it.rewind();
-            for(int i=0;i<numfields;i++){
-                if(tupleDesc.getFieldType(i)==Type.INT_TYPE){
-                    histograms.add(new IntHistogram(NUM_HIST_BINS,min[i],max[i]));
-                }else{
-                    histograms.add(new StringHistogram(NUM_HIST_BINS));
-                }
-            }
-            while (it.hasNext()) {
-                Tuple t = it.next();
-                Iterator<Field> fields = t.fields();
-                int index=0;
-                while (fields.hasNext()) {
-                    Field next = fields.next();
-                    if(tupleDesc.getFieldType(index)==Type.INT_TYPE){
-                        IntField f= (IntField) next;
-                        IntHistogram hist= (IntHistogram) histograms.get(index);
-                        hist.addValue(f.getValue());
-                    }else{
-                        StringField f= (StringField) next;
-                        StringHistogram hist= (StringHistogram) histograms.get(index);
-                        hist.addValue(f.getValue());
-                    }
-                    index++;
-                }
-            }
-            it.close();
+            if (file instanceof HeapFile)
+                scanSample((HeapFile) file);
+            else
+                scanAll();
         } catch (Exception e) {
             e.printStackTrace();
         }
+        baseTuples = totalTuples();
+    }
+
+    /**
+     * Create a new TableStats object from statistics collected while the
+     * table was written, without scanning it.
+     *
+     * @param tableid       The table the statistics are of
+     * @param ioCostPerPage The cost per page of IO
+     * @param ntups         The number of tuples of the table
+     * @param histograms    The histogram of each field, an
+     *                      AdaptiveIntHistogram or a StringHistogram
+     *                      depending on its type
+     * @see simpledb.storage.HeapFileLoader#getHistograms
+     */
+    public TableStats(int tableid, int ioCostPerPage, int ntups, List<Object> histograms) {
+        this.tableid = tableid;
+        this.ioCostPerPage = ioCostPerPage;
+        file = Database.getCatalog().getDatabaseFile(tableid);
+        tupleDesc = file.getTupleDesc();
+        if (histograms.size() != tupleDesc.numFields())
+            throw new IllegalArgumentException("need a histogram for each field");
+        for (int i = 0; i < histograms.size(); i++) {
+            Class<?> expected = tupleDesc.getFieldType(i) == Type.INT_TYPE
+                    ? AdaptiveIntHistogram.class : StringHistogram.class;
+            if (!expected.isInstance(histograms.get(i)))
+                throw new IllegalArgumentException("field " + i + " needs a " + expected.getSimpleName());
+        }
+        this.ntups = ntups;
+        this.histograms.addAll(histograms);
+        this.baseTuples = ntups;
+    }
+
+    /**
+     * Read the statistics of the table with the specified name saved by
+     * {@link #write}.
+     *
+     * @return the statistics, or null if the table is no longer in the
+     * catalog or has changed since
+     */
+    private static TableStats read(DataInputStream in, String name) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        int tableid;
+        try {
+            tableid = Database.getCatalog().getTableId(name);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableid);
+        TupleDesc td = dbFile.getTupleDesc();
+        DataInputStream table = new DataInputStream(new ByteArrayInputStream(data));
+        int ioCostPerPage = table.readInt();
+        File f = tableFile(dbFile);
+        if (f == null || f.length() != table.readLong() || f.lastModified() != table.readLong())
+            return null;
+        if (table.readInt() != td.numFields())
+            return null;
+        List<Object> histograms = new ArrayList<>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (table.readInt() != td.getFieldType(i).ordinal())
+                return null;
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                histograms.add(AdaptiveIntHistogram.read(table));
+            else
+                histograms.add(StringHistogram.read(table));
+        }
+        TableStats s = new TableStats(tableid, ioCostPerPage, 0, histograms);
+        s.ntups = table.readDouble();
+        s.baseTuples = table.readInt();
+        s.modifications = table.readInt();
+        return s;
+    }
+
+    /**
+     * Write the statistics to a stream, to be read back by {@link #read}.
+     */
+    private synchronized void write(DataOutputStream out) throws IOException {
+        File f = tableFile(file);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream table = new DataOutputStream(bytes);
+        table.writeInt(ioCostPerPage);
+        table.writeLong(f.length());
+        table.writeLong(f.lastModified());
+        table.writeInt(tupleDesc.numFields());
+        for (int i = 0; i < tupleDesc.numFields(); i++) {
+            table.writeInt(tupleDesc.getFieldType(i).ordinal());
+            if (tupleDesc.getFieldType(i) == Type.INT_TYPE)
+                ((AdaptiveIntHistogram) histograms.get(i)).write(table);
+            else
+                ((StringHistogram) histograms.get(i)).write(table);
+        }
+        table.writeDouble(ntups);
+        table.writeInt(baseTuples);
+        table.writeInt(modifications);
+        table.flush();
+        // the statistics of each table are prefixed with their length, so
+        // that those of a table that was dropped can be skipped
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    // the file of a table, if its statistics can be saved
+    private static File tableFile(DbFile file) {
+        if (file instanceof HeapFile)
+            return ((HeapFile) file).getFile();
+        if (file instanceof BTreeFile)
+            return ((BTreeFile) file).getFile();
+        return null;
+    }
+
+    /**
+     * Choose the pages of a file to sample.
+     *
+     * @param numPages the number of pages of the file
+     * @param rate     the fraction of the pages to choose
+     * @param random   the source of randomness
+     * @return the numbers of the pages chosen, in increasing order
+     */
+    static int[] samplePages(int numPages, double rate, Random random) {
+        int k = rate >= 1 ? numPages
+                : (int) Math.min(numPages, Math.max(MIN_SAMPLE_PAGES, Math.ceil(rate * numPages)));
+        // reservoir sampling of k of the pages, which are then read in file
+        // order
+        int[] sample = new int[k];
+        for (int p = 0; p < numPages; p++) {
+            if (p < k) {
+                sample[p] = p;
+            } else {
+                int j = random.nextInt(p + 1);
+                if (j < k)
+                    sample[j] = p;
+            }
+        }
+        Arrays.sort(sample);
+        return sample;
+    }
+
+    /**
+     * Build the statistics from a sample of the pages of a heap file, each
+     * tuple standing for as many tuples as there are pages per page sampled.
+     * The pages are read from the file rather than through the buffer pool,
+     * so that the statistics need no locks and do not evict the pages
+     * queries are using.
+     */
+    private void scanSample(HeapFile hf) {
+        int numPages = hf.numPages();
+        int[] pages = samplePages(numPages, sampleRate, new Random());
+        double weight = pages.length == 0 ? 1 : (double) numPages / pages.length;
+        for (int p : pages) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(tableid, p));
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext())
+                addTuple(it.next(), weight);
+        }
+    }
+
+    /**
+     * Build the statistics from all the tuples of the file.
+     */
+    private void scanAll() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = file.iterator(tid);
+        try {
+            it.open();
+            while (it.hasNext())
+                addTuple(it.next(), 1);
+        } finally {
+            it.close();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    private void addTuple(Tuple t, double weight) {
+        for (int i = 0; i < tupleDesc.numFields(); i++) {
+            if (tupleDesc.getFieldType(i) == Type.INT_TYPE)
+                ((AdaptiveIntHistogram) histograms.get(i)).addValue(((IntField) t.getField(i)).getValue(), weight);
+            else
+                ((StringHistogram) histograms.get(i)).addValue(((StringField) t.getField(i)).getValue(), weight);
+        }
+        ntups += weight;
+    }
+
+    private void removeTuple(Tuple t) {
+        for (int i = 0; i < tupleDesc.numFields(); i++) {
+            if (tupleDesc.getFieldType(i) == Type.INT_TYPE)
+                ((AdaptiveIntHistogram) histograms.get(i)).removeValue(((IntField) t.getField(i)).getValue(), 1);
+            else
+                ((StringHistogram) histograms.get(i)).removeValue(((StringField) t.getField(i)).getValue(), 1);
+        }
+        ntups = Math.max(0, ntups - 1);
+    }
+
+    /**
+     * Add tuples inserted into the table to the statistics.
+     */
+    public synchronized void addTuples(List<Tuple> tuples) {
+        for (Tuple t : tuples)
+            addTuple(t, 1);
+        modifications += tuples.size();
+    }
+
+    /**
+     * Remove tuples deleted from the table from the statistics.
+     */
+    public synchronized void removeTuples(List<Tuple> tuples) {
+        for (Tuple t : tuples)
+            removeTuple(t);
+        modifications += tuples.size();
+    }
+
+    /**
+     * @return the number of tuples inserted into or deleted from the table
+     * since the statistics were computed
+     */
+    public synchronized int getModifications() {
+        return modifications;
+    }
+
+    /**
+     * @return true if more than REFRESH_FRACTION of the tuples of the table,
+     * and at least MIN_REFRESH_MODIFICATIONS tuples, were inserted or
+     * deleted since the statistics were computed. The histograms are
+     * updated as tuples are, but tuples of transactions that abort are
+     * never taken out again, and the range of the values of a histogram
+     * only grows, so they drift from the table.
+     */
+    public synchronized boolean isStale() {
+        return modifications >= Math.max(MIN_REFRESH_MODIFICATIONS, REFRESH_FRACTION * baseTuples);
+    }
+
+    private synchronized boolean startRefresh() {
+        if (refreshing || !isStale())
+            return false;
+        refreshing = true;
+        return true;
+    }
+
+    private synchronized void endRefresh() {
+        refreshing = false;
     }
 
     /**
@@ -182,7 +598,7 @@ public class TableStats {
      * @return The estimated cardinality of the scan with the specified
      * selectivityFactor
      */
-    public int estimateTableCardinality(double selectivityFactor) {
+    public synchronized int estimateTableCardinality(double selectivityFactor) {
         // some code goes here
         return (int)Math.round(totalTuples() * selectivityFactor);
     }
@@ -211,12 +627,11 @@ public class TableStats {
      * @return The estimated selectivity (fraction of tuples that satisfy) the
      * predicate
      */
-    public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+    public synchronized double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
         Object o=histograms.get(field);
         if(tupleDesc.getFieldType(field)==Type.INT_TYPE){
-            IntHistogram hist= (IntHistogram) o;
-            System.out.println(hist.toString());
+            AdaptiveIntHistogram hist= (AdaptiveIntHistogram) o;
             IntField f= (IntField) constant;
             return hist.estimateSelectivity(op,f.getValue());
         }else{
@@ -229,9 +644,9 @@ public class TableStats {
     /**
      * return the total number of tuples in this table
      */
-    public int totalTuples() {
+    public synchronized int totalTuples() {
         // some code goes here
-        return ntups;
+        return (int) Math.round(ntups);
     }
 
 }
@@ -4,14 +4,27 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Permissions;
+import simpledb.index.CoveringIndex;
+import simpledb.optimizer.TableStats;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -44,6 +57,12 @@ public class BufferPool {
     private final ConcurrentHashMap<PageId, Page> pageStore;
     private int age;
     private PageLockManager lockManager;
+    // reads pages ahead of sequential scans, see prefetchPages
+    private final ExecutorService prefetcher;
+    // the number of times each table has been modified, by table id, see getTableVersion
+    private final ConcurrentHashMap<Integer, AtomicLong> tableVersions = new ConcurrentHashMap<>();
+    // the tables each running transaction has modified
+    private final ConcurrentHashMap<TransactionId, Set<Integer>> writtenTables = new ConcurrentHashMap<>();
 
     private class Lock {
         TransactionId tid;
@@ -167,6 +186,11 @@ public class BufferPool {
         pageAge = new ConcurrentHashMap<PageId, Integer>();
         age = 0;
         lockManager = new PageLockManager();
+        prefetcher = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "BufferPool-prefetch");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     public static int getPageSize() {
@@ -238,19 +262,63 @@ public class BufferPool {
             lockAcquired = lockManager.acquireLock(pid, tid, lockType);
         }
 
-        if (!pageStore.containsKey(pid)) {
-            int tabId = pid.getTableId();
-            DbFile file = Database.getCatalog().getDatabaseFile(tabId);
-            Page page = file.readPage(pid);
+        Page page = pageStore.get(pid);
+        if (page == null) {
+            page = loadPage(pid);
+        }
+        return page;
+    }
 
-            if (pageStore.size() == numPages) {
-                evictPage();
-            }
-            pageStore.put(pid, page);
-            pageAge.put(pid, age++);
+    /**
+     * Read a page from disk into the buffer pool if it is not cached yet.
+     * Synchronized so that a page is never read twice and a prefetched copy
+     * can not replace one that a transaction already got.
+     */
+    private synchronized Page loadPage(PageId pid) throws DbException {
+        Page page = pageStore.get(pid);
+        if (page != null) {
             return page;
         }
-        return pageStore.get(pid);
+        int tabId = pid.getTableId();
+        DbFile file = Database.getCatalog().getDatabaseFile(tabId);
+        page = file.readPage(pid);
+
+        if (pageStore.size() == numPages) {
+            evictPage();
+        }
+        pageStore.put(pid, page);
+        pageAge.put(pid, age++);
+        return page;
+    }
+
+    /**
+     * Asynchronously read the given pages into the buffer pool, so that a scan
+     * which is about to request them does not have to wait for the disk.
+     * <p>
+     * No locks are acquired: the pages are only cached, and a transaction still
+     * has to lock them through getPage before using them. Pages which are
+     * already cached are skipped, and prefetching stops when no clean page
+     * can be evicted to make room.
+     *
+     * @param pids the pages to read, in the order they will be requested
+     */
+    public void prefetchPages(List<PageId> pids) {
+        if (pids.isEmpty()) {
+            return;
+        }
+        prefetcher.execute(() -> {
+            for (PageId pid : pids) {
+                if (pageStore.containsKey(pid)) {
+                    continue;
+                }
+                try {
+                    loadPage(pid);
+                } catch (DbException | RuntimeException e) {
+                    // the buffer pool is full of dirty pages or the page is gone; it is only a hint
+                    return;
+                }
+            }
+        });
     }
 
     /**
@@ -340,6 +408,12 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        // the changes of the transaction are now committed or undone
+        Set<Integer> written = writtenTables.remove(tid);
+        if (written != null) {
+            for (int tableId : written)
+                tableModified(tableId);
+        }
         if (commit) {
             try {
                 flushPages(tid);
@@ -348,12 +422,35 @@ public class BufferPool {
             }
         } else {
 //            restorePages(tid);
+            forgetFreeSpace(tid);
         }
 
         for (PageId pid : lockManager.lockMap.keySet()) {
             if (holdsLock(tid, pid))
                 unsafeReleasePage(tid, pid);
         }
+        // the statistics of the tables are read from disk, so they are
+        // refreshed once the changes are there
+        if (written != null) {
+            for (int tableId : written)
+                TableStats.refreshIfStale(tableId);
+        }
+    }
+
+    /**
+     * Mark the number of empty slots of the heap file pages a transaction
+     * modified as unknown in the free space maps of their files, as aborting
+     * the transaction undoes the tuples it inserted and deleted. The map takes
+     * the pages to have room until an insert looks at them again.
+     */
+    private synchronized void forgetFreeSpace(TransactionId tid) {
+        for (Page page : pageStore.values()) {
+            if (page.isDirty() != tid)
+                continue;
+            DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+            if (file instanceof HeapFile)
+                ((HeapFile) file).getFreeSpaceMap().update(page.getId().getPageNumber(), FreeSpaceMap.UNKNOWN);
+        }
     }
 
     private synchronized void restorePages(TransactionId tid) {
@@ -377,6 +474,7 @@ public class BufferPool {
     public synchronized void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        Set<Integer> tables = new HashSet<>();
         for (PageId pid : pageStore.keySet()) {
             Page page = pageStore.get(pid);
             //如果放到if内，test会不通过，因为调用FlushAllPages刷新后，flushPage会将page.isDirty
@@ -385,8 +483,22 @@ public class BufferPool {
             page.setBeforeImage();
             if (page.isDirty() == tid) {
                 flushPage(pid);
+                tables.add(pid.getTableId());
             }
         }
+        flushFreeSpace(tables);
+    }
+
+    /**
+     * Write the free space map entries of the heap file pages just written
+     * to the side files of the specified tables, once per table.
+     */
+    private void flushFreeSpace(Set<Integer> tableIds) throws IOException {
+        for (int tableId : tableIds) {
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            if (file instanceof HeapFile)
+                ((HeapFile) file).getFreeSpaceMap().flush();
+        }
     }
 
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
@@ -394,7 +506,11 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        tableModified(tid, tableId);
         updateBufferPool(f.insertTuple(tid, t), tid);
+        for (CoveringIndex index : Database.getCatalog().getIndexes(tableId))
+            index.insertTuple(tid, t);
+        TableStats.tuplesInserted(tableId, Collections.singletonList(t));
     }
 
     /**
@@ -414,10 +530,101 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile f = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
 //        System.out.println("delete Tuple: "+t.toString());
+        tableModified(tid, tableId);
         List<Page> list=f.deleteTuple(tid,t);
         updateBufferPool(list, tid);
+        for (CoveringIndex index : Database.getCatalog().getIndexes(tableId))
+            index.deleteTuple(tid, t);
+        TableStats.tuplesDeleted(tableId, Collections.singletonList(t));
+    }
+
+    /**
+     * Add tuples to the specified table on behalf of transaction tid, as
+     * {@link #insertTuple} does for one tuple. The file inserts the tuples a
+     * page at a time (see {@link DbFile#insertTuples}), and each page that is
+     * modified is marked dirty and added to the cache once.
+     *
+     * @param tid     the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples  the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        if (tuples.isEmpty())
+            return;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        tableModified(tid, tableId);
+        updateBufferPool(f.insertTuples(tid, tuples), tid);
+        for (CoveringIndex index : Database.getCatalog().getIndexes(tableId)) {
+            for (Tuple t : tuples)
+                index.insertTuple(tid, t);
+        }
+        TableStats.tuplesInserted(tableId, tuples);
+    }
+
+    /**
+     * Remove tuples from their tables on behalf of transaction tid, as
+     * {@link #deleteTuple} does for one tuple. The tuples of each table are
+     * deleted together (see {@link DbFile#deleteTuples}), and each page that
+     * is modified is marked dirty and added to the cache once.
+     *
+     * @param tid    the transaction deleting the tuples
+     * @param tuples the tuples to delete
+     */
+    public void deleteTuples(TransactionId tid, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        Map<Integer, List<Tuple>> byTable = new LinkedHashMap<>();
+        for (Tuple t : tuples)
+            byTable.computeIfAbsent(t.getRecordId().getPageId().getTableId(), id -> new ArrayList<>()).add(t);
+        for (Map.Entry<Integer, List<Tuple>> e : byTable.entrySet()) {
+            int tableId = e.getKey();
+            DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+            tableModified(tid, tableId);
+            updateBufferPool(f.deleteTuples(tid, e.getValue()), tid);
+            for (CoveringIndex index : Database.getCatalog().getIndexes(tableId)) {
+                for (Tuple t : e.getValue())
+                    index.deleteTuple(tid, t);
+            }
+            TableStats.tuplesDeleted(tableId, e.getValue());
+        }
+    }
+
+    /**
+     * Return the modification counter of a table, which is incremented each
+     * time a tuple is inserted into or deleted from the table through the
+     * buffer pool, and when a transaction that modified the table commits or
+     * aborts. Results computed from a table remain valid as long as its
+     * counter does not change (see {@link simpledb.execution.ResultCache}).
+     *
+     * @param tableId the table
+     * @return the number of modifications of the table so far
+     */
+    public long getTableVersion(int tableId) {
+        AtomicLong version = tableVersions.get(tableId);
+        return version == null ? 0 : version.get();
+    }
+
+    /**
+     * @return true if a running transaction has modified the specified table
+     */
+    public boolean hasUncommittedWrites(int tableId) {
+        for (Set<Integer> written : writtenTables.values()) {
+            if (written.contains(tableId))
+                return true;
+        }
+        return false;
+    }
+
+    private void tableModified(int tableId) {
+        tableVersions.computeIfAbsent(tableId, id -> new AtomicLong()).incrementAndGet();
+    }
+
+    private void tableModified(TransactionId tid, int tableId) {
+        writtenTables.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(tableId);
+        tableModified(tableId);
     }
 
     private void updateBufferPool(List<Page> pagelist, TransactionId tid) throws DbException {
@@ -438,9 +645,13 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
+        Set<Integer> tables = new HashSet<>();
         for (Page p : pageStore.values()) {
+            if (p.isDirty() != null)
+                tables.add(p.getId().getTableId());
             flushPage(p.getId());
         }
+        flushFreeSpace(tables);
     }
 
     /**
@@ -455,6 +666,7 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         pageStore.remove(pid);
+        pageAge.remove(pid);
     }
 
     /**
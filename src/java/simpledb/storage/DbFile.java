@@ -64,6 +64,48 @@ public interface DbFile {
     List<Page> deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts the specified tuples into the file on behalf of transaction, as
+     * {@link #insertTuple} does for one tuple. The default inserts the tuples
+     * one at a time.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add
+     * @return The pages that were modified, each once
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    default List<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        Map<PageId, Page> pages = new LinkedHashMap<>();
+        for (Tuple t : tuples) {
+            for (Page p : insertTuple(tid, t))
+                pages.put(p.getId(), p);
+        }
+        return new ArrayList<>(pages.values());
+    }
+
+    /**
+     * Removes the specified tuples from the file on behalf of the specified
+     * transaction, as {@link #deleteTuple} does for one tuple. The default
+     * deletes the tuples one at a time.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to delete
+     * @return The pages that were modified, each once
+     * @throws DbException if a tuple cannot be deleted or is not a member
+     *   of the file
+     */
+    default List<Page> deleteTuples(TransactionId tid, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        Map<PageId, Page> pages = new LinkedHashMap<>();
+        for (Tuple t : tuples) {
+            for (Page p : deleteTuple(tid, t))
+                pages.put(p.getId(), p);
+        }
+        return new ArrayList<>(pages.values());
+    }
+
     /**
      * Returns an iterator over all the tuples stored in this DbFile. The
      * iterator must use {@link BufferPool#getPage}, rather than
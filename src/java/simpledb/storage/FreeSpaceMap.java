@@ -0,0 +1,253 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * FreeSpaceMap tracks the number of empty slots of each page of a
+ * {@link HeapFile}, so that an insert goes straight to a page with room
+ * instead of fetching the pages of the file in turn until it finds one.
+ * <p>
+ * The map is kept in a small side file next to the heap file, named after
+ * it with the suffix ".fsm", which holds the number of empty slots of each
+ * page as it was last written to disk. The side file is read the first time
+ * the map is used. The entries of the pages written to disk are kept until
+ * {@link #flush}, which the BufferPool calls once it has written the pages
+ * of a transaction, so that the side file is written once per commit rather
+ * than once per page. The side file of a heap file in the temporary
+ * directory is deleted when the JVM exits, like the heap files the tests
+ * create there.
+ * <p>
+ * The map is approximate: a page that has not been looked at since the side
+ * file was written is taken to have room, and the file checks the page it
+ * is sent to and corrects the map if it is full. A side file that covers
+ * more pages than the heap file has is left over from an earlier file of
+ * the same name, and is ignored.
+ */
+public class FreeSpaceMap {
+
+    /**
+     * The number of empty slots of a page that has not been looked at
+     */
+    public static final int UNKNOWN = -1;
+
+    /**
+     * The suffix of the name of the side file of a heap file
+     */
+    public static final String SUFFIX = ".fsm";
+
+    private static final int MAGIC = 0x46534d31;
+    // the magic number, followed by an unsigned short per page with the
+    // number of its empty slots, or 0xFFFF if it is not known
+    private static final int HEADER_SIZE = 4;
+    private static final int ENTRY_SIZE = 2;
+    private static final int UNKNOWN_ENTRY = 0xFFFF;
+
+    private final File heapFile;
+    private final File file;
+    private boolean loaded = false;
+    // the number of pages the side file has an entry for
+    private int persistedPages = 0;
+    // the number of empty slots of the pages written to disk since the
+    // last flush, by page number
+    private final TreeMap<Integer, Integer> unsaved = new TreeMap<>();
+
+    // the number of empty slots of each page, or UNKNOWN
+    private int[] free = new int[0];
+    // the pages that may have an empty slot: those with a count above zero
+    // and those whose count is UNKNOWN
+    private final BitSet candidates = new BitSet();
+    private int numPages = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param heapFile the file of the heap file the map is for
+     */
+    public FreeSpaceMap(File heapFile) {
+        this.heapFile = heapFile;
+        this.file = new File(heapFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * @return the side file the map is kept in
+     */
+    public File getFile() {
+        return file;
+    }
+
+    // read the side file the first time the map is used
+    private void load() {
+        if (loaded)
+            return;
+        loaded = true;
+        int heapPages = (int) (heapFile.length() / BufferPool.getPageSize());
+        if (!file.exists())
+            return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int pages = (int) ((file.length() - HEADER_SIZE) / ENTRY_SIZE);
+            if (file.length() < HEADER_SIZE || in.readInt() != MAGIC || pages > heapPages)
+                return;
+            ensurePages(pages);
+            for (int p = 0; p < pages; p++) {
+                int entry = in.readUnsignedShort();
+                set(p, entry == UNKNOWN_ENTRY ? UNKNOWN : entry);
+            }
+            persistedPages = pages;
+        } catch (IOException e) {
+            // the map is only a hint, so start over without the side file
+            persistedPages = 0;
+        }
+    }
+
+    private void set(int page, int freeSlots) {
+        free[page] = freeSlots;
+        candidates.set(page, freeSlots != 0);
+    }
+
+    /**
+     * Grow the map to the specified number of pages. The pages added are
+     * taken to have room until they are looked at.
+     *
+     * @param pages the number of pages of the file
+     */
+    public synchronized void ensurePages(int pages) {
+        load();
+        if (pages <= numPages)
+            return;
+        if (pages > free.length) {
+            int old = free.length;
+            free = Arrays.copyOf(free, Math.max(pages, old * 2));
+            Arrays.fill(free, old, free.length, UNKNOWN);
+        }
+        candidates.set(numPages, pages);
+        numPages = pages;
+    }
+
+    /**
+     * @return the number of pages in the map
+     */
+    public synchronized int numPages() {
+        load();
+        return numPages;
+    }
+
+    /**
+     * Find a page that may have an empty slot.
+     *
+     * @param from the first page to consider
+     * @return the lowest page at or after from that may have room, or -1 if
+     * every page is known to be full
+     */
+    public synchronized int findPage(int from) {
+        load();
+        int p = candidates.nextSetBit(from);
+        return p >= 0 && p < numPages ? p : -1;
+    }
+
+    /**
+     * Record the number of empty slots of a page, growing the map if needed.
+     *
+     * @param page      the page number
+     * @param freeSlots the number of empty slots of the page
+     */
+    public synchronized void update(int page, int freeSlots) {
+        ensurePages(page + 1);
+        set(page, freeSlots);
+    }
+
+    /**
+     * Record the number of empty slots of pages that have been written to
+     * disk, in the map. Their entries are written to the side file by the
+     * next {@link #flush}.
+     *
+     * @param first     the first page written
+     * @param count     the number of pages written
+     * @param freeSlots the number of empty slots of each of the pages
+     */
+    public synchronized void written(int first, int count, int freeSlots) {
+        ensurePages(first + count);
+        for (int p = first; p < first + count; p++) {
+            set(p, freeSlots);
+            unsaved.put(p, freeSlots);
+        }
+    }
+
+    /**
+     * Write the entries of the pages written since the last flush to the
+     * side file, with a single open of the file and a write per run of
+     * consecutive pages.
+     *
+     * @throws IOException if the side file cannot be written
+     */
+    public synchronized void flush() throws IOException {
+        if (unsaved.isEmpty())
+            return;
+        load();
+        boolean created = !file.exists();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // a side file that was ignored is written again from the start
+            if (persistedPages == 0) {
+                raf.setLength(0);
+                raf.writeInt(MAGIC);
+            }
+            int onDisk = persistedPages;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            // the run of entries in bytes is [start, end)
+            int start = -1, end = -1;
+            for (Map.Entry<Integer, Integer> e : unsaved.entrySet()) {
+                int page = e.getKey();
+                // pages past the end of the side file can be filled in, those
+                // before it hold entries that must be kept
+                if (start >= 0 && page != end && end < onDisk) {
+                    writeRun(raf, start, bytes);
+                    start = -1;
+                }
+                if (start < 0)
+                    start = end = Math.min(page, Math.max(onDisk, end));
+                // pages between the end of the side file and a page written
+                // have not been looked at
+                for (; end < page; end++)
+                    out.writeShort(UNKNOWN_ENTRY);
+                out.writeShort(Math.min(e.getValue(), UNKNOWN_ENTRY - 1));
+                end++;
+            }
+            writeRun(raf, start, bytes);
+            persistedPages = Math.max(persistedPages, end);
+        }
+        unsaved.clear();
+        if (created && isTemporary())
+            file.deleteOnExit();
+    }
+
+    private static void writeRun(RandomAccessFile raf, int start, ByteArrayOutputStream bytes) throws IOException {
+        raf.seek(HEADER_SIZE + (long) start * ENTRY_SIZE);
+        raf.write(bytes.toByteArray());
+        bytes.reset();
+    }
+
+    /**
+     * @return true if the heap file is in the temporary directory
+     */
+    private boolean isTemporary() {
+        try {
+            File dir = heapFile.getCanonicalFile().getParentFile();
+            return dir != null && dir.equals(new File(System.getProperty("java.io.tmpdir")).getCanonicalFile());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of empty slots of a page, or UNKNOWN if the page
+     * has not been looked at
+     */
+    public synchronized int getFreeSlots(int page) {
+        load();
+        return page < numPages ? free[page] : UNKNOWN;
+    }
+}
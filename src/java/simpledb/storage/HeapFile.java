@@ -7,7 +7,6 @@ import simpledb.common.Permissions;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
-import sun.misc.JavaNioAccess;
 
 import java.io.*;
 import java.util.*;
@@ -33,10 +32,19 @@ public class HeapFile implements DbFile {
      */
     private File f;
     private TupleDesc td;
+    // the number of empty slots of each page, to find a page with room to insert into
+    private final FreeSpaceMap freeSpace;
+
+    /**
+     * The largest number of empty pages appended to the file at once when
+     * every page is full
+     */
+    public static final int MAX_EXTENSION_PAGES = 64;
 
     public HeapFile(File f, TupleDesc td) {
         this.f = f;
         this.td = td;
+        this.freeSpace = new FreeSpaceMap(f);
     }
 
 
@@ -112,6 +120,36 @@ public class HeapFile implements DbFile {
         raf.seek(offset);
         raf.write(page.getPageData(),0,BufferPool.getPageSize());
         raf.close();
+        if (page instanceof HeapPage)
+            freeSpace.written(page.getId().getPageNumber(), 1, ((HeapPage) page).getNumEmptySlots());
+    }
+
+    /**
+     * @return the number of tuple slots of a page of this file
+     */
+    private int slotsPerPage() {
+        return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+    }
+
+    /**
+     * Append empty pages to the end of the file with a single write: enough
+     * for the specified number of tuples, and for a large file at least a
+     * sixteenth of its size so that a growing file is extended a few times,
+     * but no more than MAX_EXTENSION_PAGES.
+     *
+     * @param tuples the number of tuples that need room
+     */
+    private synchronized void extend(int tuples) throws IOException {
+        int slots = slotsPerPage();
+        int first = numPages();
+        int pages = Math.max((tuples + slots - 1) / slots, first / 16);
+        pages = Math.max(1, Math.min(MAX_EXTENSION_PAGES, pages));
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.seek((long) first * BufferPool.getPageSize());
+        raf.write(new byte[pages * BufferPool.getPageSize()]);
+        raf.close();
+        freeSpace.written(first, pages, slots);
+        freeSpace.flush();
     }
 
     /**
@@ -156,57 +194,104 @@ public class HeapFile implements DbFile {
 //        return new ArrayList<>(Arrays.asList(page));
 //        // not necessary for lab1
 //    }
-// see DbFile.java for javadocs
-public List<Page> insertTuple(TransactionId tid, Tuple t)
-        throws DbException, IOException, TransactionAbortedException {
-    // some code goes here
-    HeapPage page  = null;
-
-    // find a non full page
-    for(int i=0;i<numPages();++i){
-        HeapPageId pid = new HeapPageId(getId(),i);
-        page = (HeapPage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
-        if(page.getNumEmptySlots()!=0){
-            break;
-        }
-        else{
-            Database.getBufferPool().unsafeReleasePage(tid,pid);
-        }
+    // see DbFile.java for javadocs
+    public List<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        return insertTuples(tid, Collections.singletonList(t));
     }
 
-    // if not exist an empty slot, create a new page to store
-    if(page == null || page.getNumEmptySlots() == 0){
-        HeapPageId pid = new HeapPageId(getId(),numPages());
-        byte[] data = HeapPage.createEmptyPageData();
-        HeapPage heapPage = new HeapPage(pid,data);
-        writePage(heapPage);
-        page = (HeapPage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
+    /**
+     * Inserts the specified tuples into the file. Each page with room that is
+     * fetched is filled with as many of the tuples as fit before moving on to
+     * the next, which is found through the free space map of the file, so each
+     * modified page is fetched and returned once.
+     *
+     * @see DbFile#insertTuples
+     */
+    @Override
+    public List<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        List<Page> res = new ArrayList<>();
+        int next = 0;
+        while (next < tuples.size()) {
+            HeapPage page = pageWithRoom(tid, tuples.size() - next);
+            int n = Math.min(page.getNumEmptySlots(), tuples.size() - next);
+            for (int i = 0; i < n; i++)
+                page.insertTuple(tuples.get(next++));
+            freeSpace.update(page.getId().getPageNumber(), page.getNumEmptySlots());
+            res.add(page);
+        }
+        return res;
     }
 
-    page.insertTuple(t);
-
-    List<Page> res = new ArrayList<>();
-    res.add(page);
-    return res;
-}
+    /**
+     * Fetch a page with an empty slot with READ_WRITE permission, extending
+     * the file if every page is full. Pages the free space map wrongly takes
+     * to have room are released again, unless the transaction held a lock on
+     * them before.
+     *
+     * @param tuples the number of tuples that need room, to extend the file by
+     */
+    private HeapPage pageWithRoom(TransactionId tid, int tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        while (true) {
+            freeSpace.ensurePages(numPages());
+            for (int p = freeSpace.findPage(0); p >= 0; p = freeSpace.findPage(p + 1)) {
+                HeapPageId pid = new HeapPageId(getId(), p);
+                boolean held = Database.getBufferPool().holdsLock(tid, pid);
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+                freeSpace.update(p, page.getNumEmptySlots());
+                if (page.getNumEmptySlots() > 0)
+                    return page;
+                if (!held)
+                    Database.getBufferPool().unsafeReleasePage(tid, pid);
+            }
 
+            // every page is full, so append empty pages to store the tuples
+            extend(tuples);
+        }
+    }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
-        // some code goes here
-        RecordId rid = t.getRecordId();
-        PageId pid = rid.getPageId();
+        return deleteTuples(tid, Collections.singletonList(t));
+    }
 
-        // delete tuple and mark page as dirty
-        HeapPage page =  (HeapPage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
-        page.deleteTuple(t);
+    /**
+     * Deletes the specified tuples from the file, fetching each page they are
+     * stored on once.
+     *
+     * @see DbFile#deleteTuples
+     */
+    @Override
+    public ArrayList<Page> deleteTuples(TransactionId tid, List<Tuple> tuples) throws DbException,
+            TransactionAbortedException {
+        Map<PageId, HeapPage> pages = new LinkedHashMap<>();
+        for (Tuple t : tuples) {
+            RecordId rid = t.getRecordId();
+            if (rid == null || rid.getPageId().getTableId() != getId())
+                throw new DbException("tuple is not a member of this file");
+            HeapPage page = pages.get(rid.getPageId());
+            if (page == null) {
+                page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+                pages.put(rid.getPageId(), page);
+            }
+            page.deleteTuple(t);
+        }
+        for (HeapPage page : pages.values())
+            freeSpace.update(page.getId().getPageNumber(), page.getNumEmptySlots());
+        return new ArrayList<>(pages.values());
+    }
 
-        // return res
-        ArrayList<Page> res = new ArrayList<>();
-        res.add(page);
-        return res;
+    /**
+     * @return the free space map of this file, covering all of its pages
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        freeSpace.ensurePages(numPages());
+        return freeSpace;
     }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(final TransactionId tid){
         DbFileIterator dbFileIterator=new DbfileIteratorImpl(tid);
@@ -221,18 +306,19 @@ public List<Page> insertTuple(TransactionId tid, Tuple t)
         }
         @Override
         public void open() throws DbException, TransactionAbortedException {
+            curPageNo=0;
             refreshIterator();
         }
 
         @Override
         public boolean hasNext() throws DbException, TransactionAbortedException {
-            if(curPageIterator==null || numPages()<0) return false;
-            if(curPageNo<numPages()){
-                while(!curPageIterator.hasNext()&&curPageNo<numPages()-1){
-                    curPageNo++;
-                    refreshIterator();
-                }
-                return curPageIterator.hasNext();
+            if(curPageIterator==null) return false;
+            // only look up the file length when the current page is exhausted
+            if(curPageIterator.hasNext()) return true;
+            while(curPageNo<numPages()-1){
+                curPageNo++;
+                refreshIterator();
+                if(curPageIterator.hasNext()) return true;
             }
             return false;
         }
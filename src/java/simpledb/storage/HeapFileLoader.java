@@ -0,0 +1,437 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+import simpledb.optimizer.AdaptiveIntHistogram;
+import simpledb.optimizer.StringHistogram;
+import simpledb.optimizer.TableStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * HeapFileLoader converts a delimited text file into a heap file in the
+ * format written by {@link HeapFileEncoder}, for inputs too large to be
+ * parsed on a single thread.
+ * <p>
+ * The input is read through a FileChannel in chunks of whole lines, about
+ * chunkBytes each, and the chunks are parsed into records on a pool of
+ * worker threads. The records of the chunks are laid out on pages in input
+ * order and the pages written to the output file through a FileChannel, a
+ * batch of pages at a time, so that the output does not depend on the
+ * number of threads. Only a bounded number of chunks is in memory at once.
+ * <p>
+ * The loader can also build the histograms of each field while it loads,
+ * so that the statistics of the table do not need a scan of it (see
+ * {@link TableStats#TableStats(int, int, int, List)}). Each worker builds
+ * the histograms of its chunk as it parses it, and the histograms of the
+ * chunks are merged at the end.
+ * <p>
+ * Input lines hold one value per field, separated by the field separator.
+ * Values are trimmed of ASCII spaces and control characters, empty lines
+ * are skipped, and strings longer than Type.STRING_LEN bytes are truncated.
+ * The bytes of the input are stored as they are, so strings are read back
+ * in the default charset.
+ */
+public class HeapFileLoader {
+
+    /**
+     * The default size of the chunks the input is parsed in
+     */
+    public static final int DEFAULT_CHUNK_BYTES = 4 << 20;
+
+    // the number of pages written to the output at once
+    private static final int PAGES_PER_WRITE = 64;
+
+    private static final ThreadFactory threadFactory = r -> {
+        Thread t = new Thread(r, "HeapFileLoader-worker");
+        t.setDaemon(true);
+        return t;
+    };
+
+    private final Type[] types;
+    private final byte separator;
+    private final int pageSize;
+    // the offset of each field in a record
+    private final int[] offsets;
+    private final int recordSize;
+    private final int slotsPerPage;
+    private final int headerSize;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int chunkBytes = DEFAULT_CHUNK_BYTES;
+    private boolean collectStats = false;
+
+    // the results of the last load
+    private int numTuples = 0;
+    private int numPages = 0;
+    private List<Object> histograms = null;
+
+    /**
+     * Constructor.
+     *
+     * @param types          the types of the fields of each input line
+     * @param fieldSeparator the character separating the fields of a line
+     * @param pageSize       the number of bytes per page of the output file
+     */
+    public HeapFileLoader(Type[] types, char fieldSeparator, int pageSize) {
+        if (types.length == 0)
+            throw new IllegalArgumentException("need at least one field");
+        if (fieldSeparator > 0x7f || fieldSeparator == '\n')
+            throw new IllegalArgumentException("unsupported field separator '" + fieldSeparator + "'");
+        this.types = types.clone();
+        this.separator = (byte) fieldSeparator;
+        this.pageSize = pageSize;
+        this.offsets = new int[types.length];
+        int size = 0;
+        for (int i = 0; i < types.length; i++) {
+            offsets[i] = size;
+            size += types[i].getLen();
+        }
+        this.recordSize = size;
+        this.slotsPerPage = (pageSize * 8) / (recordSize * 8 + 1);
+        this.headerSize = (int) Math.ceil(slotsPerPage / 8.0);
+    }
+
+    /**
+     * Set the number of threads that parse the input.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("need at least one thread");
+        this.threads = threads;
+    }
+
+    /**
+     * Set the number of bytes of input parsed by a thread at a time. A line
+     * longer than this is parsed on its own.
+     */
+    public void setChunkBytes(int chunkBytes) {
+        if (chunkBytes < 1)
+            throw new IllegalArgumentException("chunks must not be empty");
+        this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * Set whether to build the histograms of the fields during the load.
+     */
+    public void setCollectStats(boolean collectStats) {
+        this.collectStats = collectStats;
+    }
+
+    /**
+     * @return the number of tuples written by the last load
+     */
+    public int getNumTuples() {
+        return numTuples;
+    }
+
+    /**
+     * @return the number of pages written by the last load
+     */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the histogram of each field from the last load, an
+     * AdaptiveIntHistogram or a StringHistogram depending on its type, or null if
+     * statistics were not collected
+     */
+    public List<Object> getHistograms() {
+        return histograms;
+    }
+
+    /**
+     * Convert the input text file into a heap file. An empty input gives a
+     * file with one empty page.
+     *
+     * @param inFile  the input file to read data from
+     * @param outFile the output file to write data to
+     * @throws IOException if the input/output file can't be opened or a
+     *                     malformed input line is encountered
+     */
+    public void load(File inFile, File outFile) throws IOException {
+        numTuples = 0;
+        numPages = 0;
+        histograms = null;
+        List<Chunk> stats = new ArrayList<>();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, threadFactory);
+        try (FileChannel in = FileChannel.open(inFile.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            PageWriter writer = new PageWriter(out);
+            ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>();
+            byte[] carry = new byte[0];
+            boolean eof = false;
+            while (!eof) {
+                byte[] buf = Arrays.copyOf(carry, carry.length + chunkBytes);
+                ByteBuffer bb = ByteBuffer.wrap(buf, carry.length, chunkBytes);
+                while (bb.hasRemaining()) {
+                    if (in.read(bb) < 0) {
+                        eof = true;
+                        break;
+                    }
+                }
+                int len = bb.position();
+                // parse up to the end of the last complete line, and carry
+                // the rest over to the next chunk
+                int end = len;
+                if (!eof) {
+                    while (end > 0 && buf[end - 1] != '\n')
+                        end--;
+                }
+                carry = Arrays.copyOfRange(buf, end, len);
+                if (end == 0)
+                    continue;
+                int chunkEnd = end;
+                pending.add(workers.submit(() -> parse(buf, chunkEnd)));
+                // bound the number of chunks in memory
+                while (pending.size() > threads * 2)
+                    writeChunk(writer, pending.poll(), stats);
+            }
+            while (!pending.isEmpty())
+                writeChunk(writer, pending.poll(), stats);
+            writer.finish();
+        } finally {
+            workers.shutdownNow();
+        }
+        // a free space map left over from an earlier file of the same name
+        // does not describe this one
+        new File(outFile.getPath() + FreeSpaceMap.SUFFIX).delete();
+        if (collectStats)
+            histograms = mergeStats(stats);
+    }
+
+    private void writeChunk(PageWriter writer, Future<Chunk> future, List<Chunk> stats) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while loading");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("failed to parse input: " + e.getCause(), e.getCause());
+        }
+        writer.add(chunk);
+        numTuples += chunk.count;
+        // the records are on disk, only the statistics are needed from now on
+        chunk.records = null;
+        if (collectStats)
+            stats.add(chunk);
+    }
+
+    /**
+     * The records parsed from a chunk of the input, and the statistics of
+     * their fields
+     */
+    private static class Chunk {
+        byte[] records;
+        int count = 0;
+        // the histogram of each field
+        AdaptiveIntHistogram[] ints;
+        StringHistogram[] strings;
+    }
+
+    /**
+     * Parse the lines of buf[0, end) into records.
+     */
+    private Chunk parse(byte[] buf, int end) throws IOException {
+        Chunk chunk = new Chunk();
+        // grown as needed, as the records may be larger than their text
+        byte[] records = new byte[Math.max(recordSize, end)];
+        if (collectStats) {
+            chunk.ints = new AdaptiveIntHistogram[types.length];
+            chunk.strings = new StringHistogram[types.length];
+            for (int f = 0; f < types.length; f++) {
+                if (types[f] == Type.INT_TYPE)
+                    chunk.ints[f] = new AdaptiveIntHistogram(TableStats.NUM_HIST_BINS);
+                else
+                    chunk.strings[f] = new StringHistogram(TableStats.NUM_HIST_BINS);
+            }
+        }
+        int pos = 0;
+        while (pos < end) {
+            int lineEnd = pos;
+            while (lineEnd < end && buf[lineEnd] != '\n')
+                lineEnd++;
+            int next = lineEnd + 1;
+            // ignore Windows/Notepad special line endings
+            while (lineEnd > pos && buf[lineEnd - 1] == '\r')
+                lineEnd--;
+            if (lineEnd == pos) {
+                pos = next;
+                continue;
+            }
+            int record = chunk.count * recordSize;
+            if (record + recordSize > records.length)
+                records = Arrays.copyOf(records, Math.max(records.length * 2, record + recordSize));
+            int field = 0;
+            int start = pos;
+            for (int i = pos; i <= lineEnd; i++) {
+                if (i < lineEnd && buf[i] != separator)
+                    continue;
+                if (field == types.length)
+                    throw new IOException("malformed line, more than " + types.length + " fields: "
+                            + line(buf, pos, lineEnd));
+                encode(chunk, field, buf, start, i, records, record + offsets[field]);
+                field++;
+                start = i + 1;
+            }
+            if (field < types.length)
+                throw new IOException("malformed line, fewer than " + types.length + " fields: "
+                        + line(buf, pos, lineEnd));
+            chunk.count++;
+            pos = next;
+        }
+        chunk.records = records;
+        return chunk;
+    }
+
+    private static String line(byte[] buf, int from, int to) {
+        return new String(buf, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Encode the value in buf[from, to) of a field into records at off.
+     */
+    private void encode(Chunk chunk, int field, byte[] buf, int from, int to, byte[] records, int off)
+            throws IOException {
+        // bytes are signed, and those of non-ASCII characters are not spaces
+        while (from < to && (buf[from] & 0xff) <= ' ')
+            from++;
+        while (to > from && (buf[to - 1] & 0xff) <= ' ')
+            to--;
+        if (types[field] == Type.INT_TYPE) {
+            int v = parseInt(buf, from, to);
+            writeInt(records, off, v);
+            if (collectStats)
+                chunk.ints[field].addValue(v);
+        } else {
+            int len = Math.min(to - from, Type.STRING_LEN);
+            writeInt(records, off, len);
+            // the padding after the string is already zero
+            System.arraycopy(buf, from, records, off + 4, len);
+            if (collectStats)
+                chunk.strings[field].addValue(new String(buf, from, len));
+        }
+    }
+
+    private static int parseInt(byte[] buf, int from, int to) throws IOException {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        long v = 0;
+        if (i == to || to - i > 10)
+            throw new IOException("malformed INT_TYPE value '" + line(buf, from, to) + "'");
+        for (; i < to; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9)
+                throw new IOException("malformed INT_TYPE value '" + line(buf, from, to) + "'");
+            v = v * 10 + d;
+        }
+        v = negative ? -v : v;
+        if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE)
+            throw new IOException("INT_TYPE value out of range '" + line(buf, from, to) + "'");
+        return (int) v;
+    }
+
+    private static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    /**
+     * Merge the histograms of the chunks into the histograms of the file.
+     */
+    private List<Object> mergeStats(List<Chunk> chunks) {
+        List<Object> result = new ArrayList<>();
+        for (int f = 0; f < types.length; f++) {
+            if (types[f] == Type.INT_TYPE) {
+                AdaptiveIntHistogram hist = new AdaptiveIntHistogram(TableStats.NUM_HIST_BINS);
+                for (Chunk chunk : chunks)
+                    hist.merge(chunk.ints[f]);
+                result.add(hist);
+            } else {
+                StringHistogram hist = new StringHistogram(TableStats.NUM_HIST_BINS);
+                for (Chunk chunk : chunks)
+                    hist.merge(chunk.strings[f]);
+                result.add(hist);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Lays records out on pages, in the order they are added, and writes
+     * the pages to the output a batch at a time.
+     */
+    private class PageWriter {
+        private final FileChannel out;
+        private final ByteBuffer pages = ByteBuffer.allocate(pageSize * PAGES_PER_WRITE);
+        // the number of records on the page being filled, which starts at
+        // the position of the buffer
+        private int slot = 0;
+
+        PageWriter(FileChannel out) {
+            this.out = out;
+        }
+
+        void add(Chunk chunk) throws IOException {
+            byte[] page = pages.array();
+            int r = 0;
+            while (r < chunk.count) {
+                if (slot == slotsPerPage)
+                    finishPage();
+                int n = Math.min(slotsPerPage - slot, chunk.count - r);
+                int start = pages.position();
+                System.arraycopy(chunk.records, r * recordSize, page,
+                        start + headerSize + slot * recordSize, n * recordSize);
+                for (int i = slot; i < slot + n; i++)
+                    page[start + i / 8] |= (byte) (1 << (i % 8));
+                slot += n;
+                r += n;
+            }
+        }
+
+        private void finishPage() throws IOException {
+            pages.position(pages.position() + pageSize);
+            slot = 0;
+            numPages++;
+            if (!pages.hasRemaining())
+                flush();
+        }
+
+        private void flush() throws IOException {
+            pages.flip();
+            while (pages.hasRemaining())
+                out.write(pages);
+            pages.clear();
+            Arrays.fill(pages.array(), (byte) 0);
+        }
+
+        /**
+         * Write the last page, or an empty page if there were no records.
+         */
+        void finish() throws IOException {
+            if (slot > 0 || numPages == 0)
+                finishPage();
+            flush();
+        }
+    }
+}
@@ -1,11 +1,12 @@
 package simpledb.storage;
 
-import com.sun.deploy.panel.ITreeNode;
-import com.sun.org.apache.regexp.internal.RE;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Catalog;
+import simpledb.execution.RuntimeFilter;
+import simpledb.execution.TupleBatch;
+import simpledb.execution.TupleFilter;
 import simpledb.transaction.TransactionId;
 
 import java.util.*;
@@ -30,6 +31,10 @@ public class HeapPage implements Page {
     private final Byte oldDataLock = (byte) 0;
 
     TransactionId tidDirty;
+    // the number of empty slots, and the lowest slot that may be empty, so that
+    // filling a page does not search the header from the first slot each time
+    private int numEmpty;
+    private int freeHint = 0;
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -57,6 +62,10 @@ public class HeapPage implements Page {
         header = new byte[getHeaderSize()];
         for (int i = 0; i < header.length; i++)
             header[i] = dis.readByte();
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i))
+                numEmpty++;
+        }
 
         tuples = new Tuple[numSlots];
         try {
@@ -259,7 +268,7 @@ public class HeapPage implements Page {
         // not necessary for lab1
         RecordId rid = t.getRecordId();
         int tupleNum=rid.getTupleNumber();
-        if (this.pid != rid.getPageId() || !isSlotUsed(tupleNum)) {
+        if (!this.pid.equals(rid.getPageId()) || !isSlotUsed(tupleNum)) {
             throw new DbException("the tuple doesn't match with the page");
         }
         markSlotUsed(tupleNum,false);
@@ -280,7 +289,15 @@ public class HeapPage implements Page {
                 || !t.getTupleDesc().equals(td)){
             throw new DbException("tuple is not in right form of the page is full");
         }
-        int tupleNum= numSlots-getNumEmptySlots();
+        int tupleNum = freeHint;
+        while (isSlotUsed(tupleNum)) {
+            // skip the header bytes whose slots are all used
+            if (tupleNum % 8 == 0 && header[tupleNum / 8] == (byte) 0xFF)
+                tupleNum += 8;
+            else
+                tupleNum++;
+        }
+        freeHint = tupleNum + 1;
         RecordId rid=new RecordId(pid,tupleNum);
         t.setRecordId(rid);
         tuples[tupleNum]=t;
@@ -312,11 +329,7 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int num = 0;
-        for (int i = 0; i < numSlots; i++) {
-            if (isSlotUsed(i)) num++;
-        }
-        return numSlots - num;
+        return numEmpty;
     }
 
     /**
@@ -337,12 +350,54 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         int index = i / 8;
+        if (isSlotUsed(i) == value)
+            return;
         if (value) header[index] |= (1 << (i % 8));
         else header[index] &= (~(1 << (i % 8)));
+        numEmpty += value ? -1 : 1;
+        if (!value && i < freeHint)
+            freeHint = i;
     }
     public static void main(String[] args){
         System.out.println(Integer.toBinaryString(~(1<<2)));
     }
+    /**
+     * Append the tuples of this page that pass a filter to a batch, starting
+     * at the specified slot, until the batch is full. The filter is applied
+     * to the tuples stored in the page, and only the specified fields of the
+     * tuples that pass are copied into the batch, so scans do not copy the
+     * tuples they filter out or the fields they do not need.
+     *
+     * @param slot    the first slot to look at
+     * @param filter  the predicates over the fields of the table
+     * @param runtime filters on join keys over the fields of the table, which
+     *                the tuples must also pass
+     * @param fields  the fields of the table to copy, or null for all of them
+     * @param batch   the batch to append the tuples to
+     * @return the slot to continue from, or -1 if the rest of the page was scanned
+     */
+    public int scan(int slot, TupleFilter filter, RuntimeFilter[] runtime, int[] fields, TupleBatch batch) {
+        next:
+        for (; slot < numSlots; slot++) {
+            if (batch.isFull())
+                return slot;
+            if (!isSlotUsed(slot))
+                continue;
+            Tuple t = tuples[slot];
+            if (!filter.filter(t))
+                continue;
+            for (RuntimeFilter f : runtime) {
+                if (!f.filter(t))
+                    continue next;
+            }
+            if (fields == null)
+                batch.addTuple(t);
+            else
+                batch.addTuple(t, fields);
+        }
+        return -1;
+    }
+
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
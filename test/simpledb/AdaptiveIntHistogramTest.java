@@ -0,0 +1,116 @@
+package simpledb;
+
+import simpledb.execution.Predicate.Op;
+import simpledb.optimizer.AdaptiveIntHistogram;
+import simpledb.storage.IntField;
+
+import java.io.*;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class AdaptiveIntHistogramTest {
+
+    /**
+     * @return the fraction of values that satisfy op v
+     */
+    private static double fraction(int[] values, Op op, int v) {
+        int n = 0;
+        for (int x : values) {
+            if (new IntField(x).compare(op, new IntField(v)))
+                n++;
+        }
+        return (double) n / values.length;
+    }
+
+    /**
+     * A histogram over fewer values than it has buckets is exact, whatever
+     * the order the values come in.
+     */
+    @Test
+    public void smallRangeIsExact() {
+        AdaptiveIntHistogram h = new AdaptiveIntHistogram(100);
+        int[] values = new int[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i * 37) % 50 - 20;
+            h.addValue(values[i]);
+        }
+        assertEquals(-20, h.getMin());
+        assertEquals(29, h.getMax());
+        for (int v = -25; v < 35; v++) {
+            for (Op op : new Op[]{Op.EQUALS, Op.NOT_EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ,
+                    Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ})
+                assertEquals(op + " " + v, fraction(values, op, v), h.estimateSelectivity(op, v), 1e-9);
+        }
+    }
+
+    /**
+     * The buckets widen as the range of the values grows, down to negative
+     * values and up to the whole range of ints.
+     */
+    @Test
+    public void growsWithRange() {
+        AdaptiveIntHistogram h = new AdaptiveIntHistogram(100);
+        Random r = new Random(3);
+        int[] values = new int[20000];
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (int i = 0; i < values.length; i++) {
+            // values from a small range first, then from all ints
+            values[i] = i < 1000 ? r.nextInt(100) : r.nextInt();
+            h.addValue(values[i]);
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+        }
+        assertEquals(min, h.getMin());
+        assertEquals(max, h.getMax());
+        for (int v : new int[]{Integer.MIN_VALUE, -1 << 30, -12345678, 1 << 29, Integer.MAX_VALUE}) {
+            assertEquals(fraction(values, Op.LESS_THAN, v), h.estimateSelectivity(Op.LESS_THAN, v), 0.02);
+            assertEquals(fraction(values, Op.GREATER_THAN_OR_EQ, v),
+                    h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, v), 0.02);
+        }
+    }
+
+    /**
+     * Merged histograms, weights, removals and a histogram read back from
+     * disk give the estimates of a single histogram of the same values.
+     */
+    @Test
+    public void mergeRemoveAndPersist() throws IOException {
+        AdaptiveIntHistogram all = new AdaptiveIntHistogram(100);
+        AdaptiveIntHistogram narrow = new AdaptiveIntHistogram(100);
+        AdaptiveIntHistogram wide = new AdaptiveIntHistogram(100);
+        for (int v = 0; v < 50; v++) {
+            narrow.addValue(v);
+            all.addValue(v);
+        }
+        for (int v = -100000; v < 100000; v += 7) {
+            wide.addValue(v, 2);
+            all.addValue(v);
+            all.addValue(v);
+        }
+        narrow.merge(wide);
+        assertEquals(all.getCount(), narrow.getCount(), 1e-9);
+        for (int v : new int[]{-50000, 0, 25, 60000})
+            assertEquals(all.estimateSelectivity(Op.LESS_THAN, v), narrow.estimateSelectivity(Op.LESS_THAN, v), 1e-9);
+
+        all.removeValue(3, 1);
+        assertEquals(narrow.getCount() - 1, all.getCount(), 1e-9);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        all.write(new DataOutputStream(bytes));
+        AdaptiveIntHistogram read = AdaptiveIntHistogram.read(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(all.toString(), read.toString());
+        assertEquals(0.0, new AdaptiveIntHistogram(10).estimateSelectivity(Op.EQUALS, 1), 0.0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(AdaptiveIntHistogramTest.class);
+    }
+}
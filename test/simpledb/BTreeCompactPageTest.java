@@ -0,0 +1,203 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCompactPageTest extends SimpleDbTestBase {
+	private static final TupleDesc STRING_KEY_TD = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+
+	private File file;
+	private BTreeFile bf;
+	private TransactionId tid;
+
+	/**
+	 * Set up a string keyed B+ tree with small pages so that it grows several levels.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		Database.resetBufferPool(1000);
+		file = File.createTempFile("compact", ".dat");
+		file.deleteOnExit();
+		file.delete();
+		bf = new BTreeFile(file, 0, STRING_KEY_TD);
+		Database.getCatalog().addTable(bf);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private static String key(int i) {
+		return "customer-" + String.format("%06d", i);
+	}
+
+	private Tuple tuple(int i) {
+		Tuple t = new Tuple(STRING_KEY_TD);
+		t.setField(0, new StringField(key(i), Type.STRING_LEN));
+		t.setField(1, new IntField(i));
+		return t;
+	}
+
+	private void insert(List<Integer> values) throws Exception {
+		for (int v : values) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(v));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+	}
+
+	private List<Integer> scan() throws Exception {
+		List<Integer> values = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		Field prev = null;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			assertTrue(prev == null || prev.compare(Op.LESS_THAN_OR_EQ, t.getField(0)));
+			prev = t.getField(0);
+			values.add(((IntField) t.getField(1)).getValue());
+		}
+		it.close();
+		return values;
+	}
+
+	/**
+	 * New string keyed files use the compact format, which fits more entries per internal page.
+	 */
+	@Test
+	public void compactFormatByDefault() throws Exception {
+		assertEquals(BTreePage.FORMAT_COMPACT, bf.getPageFormat());
+		insert(Collections.singletonList(1));
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), simpledb.common.Permissions.READ_ONLY);
+		assertEquals(BTreePage.FORMAT_COMPACT, rootPtr.getFormat());
+
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage compact = new BTreeInternalPage(pid, BTreePage.createEmptyPageData(), 0,
+				BTreePage.FORMAT_COMPACT);
+		BTreeInternalPage fixed = new BTreeInternalPage(pid, BTreePage.createEmptyPageData(), 0);
+		assertTrue(compact.getMaxEntries() > 10 * fixed.getMaxEntries());
+	}
+
+	/**
+	 * Entries survive a round trip through the compact on-disk layout.
+	 */
+	@Test
+	public void pageRoundTrip() throws Exception {
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreePage.createEmptyPageData(), 0,
+				BTreePage.FORMAT_COMPACT);
+		int numEntries = 0;
+		for (int i = 0; page.hasSpaceFor(new StringField(key(i), Type.STRING_LEN)); i++) {
+			BTreeEntry e = new BTreeEntry(new StringField(key(i), Type.STRING_LEN),
+					new BTreePageId(bf.getId(), i + 2, BTreePageId.LEAF),
+					new BTreePageId(bf.getId(), i + 3, BTreePageId.LEAF));
+			page.insertEntry(e);
+			numEntries++;
+		}
+		// keys share a 10 character prefix, so each entry only stores its suffix
+		assertTrue(numEntries > (1024 - 100) / (2 + 4 + 1 + 6));
+
+		BTreeInternalPage read = new BTreeInternalPage(pid, page.getPageData(), 0, BTreePage.FORMAT_COMPACT);
+		assertEquals(numEntries, read.getNumEntries());
+		Iterator<BTreeEntry> expected = page.iterator();
+		Iterator<BTreeEntry> actual = read.iterator();
+		while (expected.hasNext()) {
+			BTreeEntry e = expected.next();
+			BTreeEntry a = actual.next();
+			assertEquals(e.getKey(), a.getKey());
+			assertEquals(e.getLeftChild(), a.getLeftChild());
+			assertEquals(e.getRightChild(), a.getRightChild());
+		}
+		assertFalse(actual.hasNext());
+	}
+
+	/**
+	 * Insert and delete enough string keys to split and merge internal pages.
+	 */
+	@Test
+	public void insertAndDelete() throws Exception {
+		List<Integer> values = new ArrayList<>();
+		for (int i = 0; i < 3000; i++)
+			values.add(i);
+		Collections.shuffle(values, new Random(6830));
+		for (int i = 0; i < values.size(); i += 500)
+			insert(values.subList(i, i + 500));
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		List<Integer> scanned = scan();
+		assertEquals(values.size(), scanned.size());
+		for (int i = 0; i < scanned.size(); i++)
+			assertEquals(i, (int) scanned.get(i));
+
+		// delete two thirds of the keys
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		List<Tuple> toDelete = new ArrayList<>();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (((IntField) t.getField(1)).getValue() % 3 != 0)
+				toDelete.add(t);
+		}
+		it.close();
+		for (Tuple t : toDelete)
+			Database.getBufferPool().deleteTuple(tid, t);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		scanned = scan();
+		assertEquals(1000, scanned.size());
+		for (int i = 0; i < scanned.size(); i++)
+			assertEquals(3 * i, (int) scanned.get(i));
+
+		// the file is read back with the compact format
+		Database.getBufferPool().transactionComplete(tid);
+		Database.getBufferPool().flushAllPages();
+		Database.reset();
+		Database.resetBufferPool(1000);
+		bf = new BTreeFile(file, 0, STRING_KEY_TD, BTreePage.FORMAT_FIXED_WIDTH);
+		Database.getCatalog().addTable(bf);
+		tid = new TransactionId();
+		assertEquals(BTreePage.FORMAT_COMPACT, bf.getPageFormat());
+		assertEquals(1000, scan().size());
+	}
+
+	/**
+	 * Files written by the encoder keep the fixed-width format.
+	 */
+	@Test
+	public void legacyFileFormat() throws Exception {
+		BTreeFile legacy = BTreeUtility.createRandomBTreeFile(2, 1000, null, null, 0);
+		assertEquals(BTreePage.FORMAT_FIXED_WIDTH, legacy.getPageFormat());
+		BTreeChecker.checkRep(legacy, tid, new HashMap<>(), true);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompactPageTest.class);
+	}
+}
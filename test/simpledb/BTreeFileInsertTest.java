@@ -176,6 +176,86 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	/**
+	 * Freed pages are handed out again lowest first, also after the free page map
+	 * has been rebuilt from the header pages of a reopened file.
+	 */
+	@Test
+	public void testFreePageMap() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 10);
+
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		for (int i = 9; i >= 3; i -= 2)
+			empty.setEmptyPage(tid, dirtypages, i);
+		// the first header page was appended to the file
+		assertEquals(11, empty.numPages());
+		assertEquals(3, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(5, empty.getEmptyPageNo(tid, dirtypages));
+
+		for (Page p : dirtypages.values())
+			empty.writePage(p);
+		Database.reset();
+		empty = BTreeUtility.openBTreeFile(2, emptyFile, 0);
+		tid = new TransactionId();
+		dirtypages = new HashMap<>();
+		assertEquals(7, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(9, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(12, empty.getEmptyPageNo(tid, dirtypages));
+	}
+
+	/**
+	 * A file that grows several pages at a time reuses the extra pages for later splits.
+	 */
+	@Test
+	public void testBatchedExtension() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		empty.setExtensionBatchSize(16);
+
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		int first = empty.getEmptyPageNo(tid, dirtypages);
+		int pages = empty.numPages();
+		// the header page recording the other new pages is one of them
+		for (int i = 1; i < 15; i++)
+			assertEquals(first + i + 1, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(pages, empty.numPages());
+		empty.getEmptyPageNo(tid, dirtypages);
+		assertEquals(pages + 16, empty.numPages());
+		for (Page p : dirtypages.values())
+			Database.getBufferPool().discardPage(p.getId());
+
+		// inserting through the buffer pool keeps the tree consistent
+		File bigFile = File.createTempFile("big", ".dat");
+		bigFile.deleteOnExit();
+		BTreeFile big = BTreeUtility.createEmptyBTreeFile(bigFile.getAbsolutePath(), 2, 0);
+		big.setExtensionBatchSize(16);
+		Database.getCatalog().addTable(big);
+		for (int i = 0; i < 20000; i++) {
+			Database.getBufferPool().insertTuple(tid, big.getId(), BTreeUtility.getBTreeTuple(i, 2));
+			if (i % 1000 == 999) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		assertTrue(big.numPages() > 17);
+		assertEquals(0, (big.numPages() - 1) % 16);
+		BTreeChecker.checkRep(big, tid, new HashMap<>(), true);
+		DbFileIterator it = big.iterator(tid);
+		it.open();
+		int count = 0;
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(20000, count);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
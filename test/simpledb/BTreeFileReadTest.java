@@ -207,6 +207,52 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * Unit test for BTreeFile.rangeIterator()
+	 */
+	@Test public void rangeIterator() throws Exception {
+		// keys run from 1 to 5000
+		BTreeFile bigFile = BTreeUtility.createBTreeFile(2, 5000, null, null, 0);
+		Field lower = new IntField(100);
+		Field upper = new IntField(200);
+
+		assertEquals(101, countRange(bigFile.rangeIterator(tid, lower, true, upper, true), lower, upper));
+		assertEquals(99, countRange(bigFile.rangeIterator(tid, lower, false, upper, false), lower, upper));
+		assertEquals(100, countRange(bigFile.rangeIterator(tid, lower, true, upper, false), lower, upper));
+		assertEquals(99, countRange(bigFile.rangeIterator(tid, null, false, lower, false), null, lower));
+		assertEquals(4800, countRange(bigFile.rangeIterator(tid, upper, false, null, false, 0), upper, null));
+
+		// the scan stops at the upper bound instead of reading the rest of the leaves
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		assertEquals(101, countRange(bigFile.rangeIterator(tid, lower, true, upper, true), lower, upper));
+		int lockedLeaves = 0;
+		for (int i = 1; i <= bigFile.numPages(); i++) {
+			if (Database.getBufferPool().holdsLock(tid, new BTreePageId(bigFile.getId(), i, BTreePageId.LEAF)))
+				lockedLeaves++;
+		}
+		assertTrue(lockedLeaves <= 2);
+
+		// an empty range
+		assertEquals(0, countRange(bigFile.rangeIterator(tid, upper, true, lower, true), null, null));
+	}
+
+	private int countRange(DbFileIterator it, Field lower, Field upper) throws Exception {
+		it.open();
+		int count = 0;
+		Field prev = null;
+		while (it.hasNext()) {
+			Field key = it.next().getField(0);
+			assertTrue(lower == null || key.compare(Op.GREATER_THAN_OR_EQ, lower));
+			assertTrue(upper == null || key.compare(Op.LESS_THAN_OR_EQ, upper));
+			assertTrue(prev == null || prev.compare(Op.LESS_THAN_OR_EQ, key));
+			prev = key;
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,186 @@
+package simpledb;
+
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BatchExecutionTest extends SimpleDbTestBase {
+    private List<List<Integer>> tuples1;
+    private List<List<Integer>> tuples2;
+    private HeapFile table1;
+    private HeapFile table2;
+    private TransactionId tid;
+
+    /**
+     * Create two three column tables with small value ranges, so that joins
+     * produce several batches of output.
+     */
+    @Before
+    public void createTables() throws Exception {
+        tuples1 = new ArrayList<>();
+        tuples2 = new ArrayList<>();
+        table1 = SystemTestUtil.createRandomHeapFile(3, 3000, 50, null, tuples1);
+        table2 = SystemTestUtil.createRandomHeapFile(3, 200, 50, null, tuples2);
+        tid = new TransactionId();
+    }
+
+    /**
+     * Read all batches of an operator, checking that each has a selected row
+     */
+    private static List<List<Integer>> drainBatches(OpIterator op) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        op.open();
+        TupleBatch batch;
+        while ((batch = op.nextBatch()) != null) {
+            assertTrue(batch.numSelected() > 0);
+            assertTrue(batch.numSelected() <= batch.capacity());
+            for (int i = 0; i < batch.numSelected(); i++)
+                result.add(SystemTestUtil.tupleToList(batch.getTuple(batch.selected(i))));
+        }
+        op.close();
+        return result;
+    }
+
+    private static void assertSameRows(List<List<Integer>> expected, List<List<Integer>> actual) {
+        Comparator<List<Integer>> order = (a, b) -> {
+            for (int i = 0; i < a.size(); i++) {
+                int c = Integer.compare(a.get(i), b.get(i));
+                if (c != 0)
+                    return c;
+            }
+            return 0;
+        };
+        expected = new ArrayList<>(expected);
+        actual = new ArrayList<>(actual);
+        expected.sort(order);
+        actual.sort(order);
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * A scan, filter and projection return the same rows in batches as one at a time.
+     */
+    @Test
+    public void scanFilterProject() throws Exception {
+        assertSameRows(tuples1, drainBatches(new SeqScan(tid, table1.getId(), "t")));
+
+        Filter filter = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(20)),
+                new SeqScan(tid, table1.getId(), "t"));
+        Project project = new Project(Arrays.asList(2, 0), new Type[]{Type.INT_TYPE, Type.INT_TYPE}, filter);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> row : tuples1) {
+            if (row.get(1) < 20)
+                expected.add(Arrays.asList(row.get(2), row.get(0)));
+        }
+        assertSameRows(expected, drainBatches(project));
+    }
+
+    private List<List<Integer>> expectedJoin(Predicate.Op op) {
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> row1 : tuples1) {
+            for (List<Integer> row2 : tuples2) {
+                if (Predicate.compare(row1.get(0), op, row2.get(0))) {
+                    List<Integer> row = new ArrayList<>(row1);
+                    row.addAll(row2);
+                    expected.add(row);
+                }
+            }
+        }
+        return expected;
+    }
+
+    /**
+     * Nested loop and hash joins return the same rows in batches as expected,
+     * including when the output of a pair of input batches spans several batches.
+     */
+    @Test
+    public void joins() throws Exception {
+        JoinPredicate eq = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        assertSameRows(expectedJoin(Predicate.Op.EQUALS), drainBatches(
+                new Join(eq, new SeqScan(tid, table1.getId(), "a"), new SeqScan(tid, table2.getId(), "b"))));
+        assertSameRows(expectedJoin(Predicate.Op.EQUALS), drainBatches(
+                new HashEquiJoin(eq, new SeqScan(tid, table1.getId(), "a"), new SeqScan(tid, table2.getId(), "b"))));
+
+        JoinPredicate lt = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+        assertSameRows(expectedJoin(Predicate.Op.LESS_THAN), drainBatches(
+                new Join(lt, new SeqScan(tid, table1.getId(), "a"), new SeqScan(tid, table2.getId(), "b"))));
+    }
+
+    /**
+     * Aggregates merged from batches match aggregates computed over the rows.
+     */
+    @Test
+    public void aggregates() throws Exception {
+        for (Aggregator.Op op : new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.MAX,
+                Aggregator.Op.AVG, Aggregator.Op.COUNT}) {
+            Map<Integer, List<Integer>> groups = new HashMap<>();
+            List<Integer> all = new ArrayList<>();
+            for (List<Integer> row : tuples1) {
+                groups.computeIfAbsent(row.get(0), k -> new ArrayList<>()).add(row.get(1));
+                all.add(row.get(1));
+            }
+            List<List<Integer>> expected = new ArrayList<>();
+            for (Map.Entry<Integer, List<Integer>> e : groups.entrySet())
+                expected.add(Arrays.asList(e.getKey(), aggregate(op, e.getValue())));
+            assertSameRows(expected, drainBatches(new Aggregate(new SeqScan(tid, table1.getId(), "t"), 1, 0, op)));
+            assertSameRows(Collections.singletonList(Collections.singletonList(aggregate(op, all))),
+                    drainBatches(new Aggregate(new SeqScan(tid, table1.getId(), "t"), 1, Aggregator.NO_GROUPING, op)));
+        }
+    }
+
+    private static int aggregate(Aggregator.Op op, List<Integer> values) {
+        int sum = 0;
+        for (int v : values)
+            sum += v;
+        switch (op) {
+            case SUM:
+                return sum;
+            case MIN:
+                return Collections.min(values);
+            case MAX:
+                return Collections.max(values);
+            case AVG:
+                return sum / values.size();
+            default:
+                return values.size();
+        }
+    }
+
+    /**
+     * Operators without a batch implementation are read through the default
+     * row adapter, and batch operators above them still work.
+     */
+    @Test
+    public void rowAdapter() throws Exception {
+        OrderBy orderBy = new OrderBy(0, true, new SeqScan(tid, table2.getId(), "t"));
+        Filter filter = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(25)), orderBy);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> row : tuples2) {
+            if (row.get(0) >= 25)
+                expected.add(row);
+        }
+        List<List<Integer>> actual = drainBatches(filter);
+        assertSameRows(expected, actual);
+        for (int i = 1; i < actual.size(); i++)
+            assertTrue(actual.get(i - 1).get(0) <= actual.get(i).get(0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BatchExecutionTest.class);
+    }
+}
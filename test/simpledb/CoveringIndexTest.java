@@ -0,0 +1,183 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.index.CoveringIndex;
+import simpledb.index.IndexOnlyScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class CoveringIndexTest extends SimpleDbTestBase {
+	private static final int ROWS = 1000;
+
+	private List<List<Integer>> tuples;
+	private HeapFile table;
+	private CoveringIndex index;
+	private TransactionId tid;
+
+	/**
+	 * Set up a three column table with a covering index keyed on c1 that includes c2.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tuples = new ArrayList<>();
+		table = SystemTestUtil.createRandomHeapFile(3, ROWS, 1000, null, tuples, "c");
+		Database.getCatalog().addTable(table, "t");
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		f.delete();
+		index = new CoveringIndex("t_c1", table.getId(), "c1", new String[]{"c2"}, f);
+		Database.getCatalog().addIndex(index);
+		tid = new TransactionId();
+		index.build(tid);
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private List<List<Integer>> project(List<List<Integer>> rows) {
+		List<List<Integer>> result = new ArrayList<>();
+		for (List<Integer> row : rows)
+			result.add(Arrays.asList(row.get(1), row.get(2)));
+		return result;
+	}
+
+	/**
+	 * An index-only scan returns the key and included fields of every tuple, in key order.
+	 */
+	@Test
+	public void scan() throws Exception {
+		IndexOnlyScan scan = new IndexOnlyScan(tid, index, "t", null);
+		assertEquals("t.c1", scan.getTupleDesc().getFieldName(0));
+		assertEquals("t.c2", scan.getTupleDesc().getFieldName(1));
+		SystemTestUtil.matchTuples(scan, project(tuples));
+
+		scan.open();
+		int prev = Integer.MIN_VALUE;
+		while (scan.hasNext()) {
+			int key = ((IntField) scan.next().getField(0)).getValue();
+			assertTrue(prev <= key);
+			prev = key;
+		}
+		scan.close();
+	}
+
+	/**
+	 * Opening the scan with a predicate returns only the matching entries.
+	 */
+	@Test
+	public void scanWithPredicate() throws Exception {
+		IndexOnlyScan scan = new IndexOnlyScan(tid, index, "t", null);
+		List<List<Integer>> expected = new ArrayList<>();
+		for (List<Integer> row : project(tuples)) {
+			if (row.get(0) < 300)
+				expected.add(row);
+		}
+		IndexPredicate ipred = new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(300));
+		scan.open(ipred);
+		List<List<Integer>> actual = new ArrayList<>();
+		while (scan.hasNext())
+			actual.add(SystemTestUtil.tupleToList(scan.next()));
+		scan.rewind(ipred);
+		int count = 0;
+		while (scan.hasNext()) {
+			scan.next();
+			count++;
+		}
+		scan.close();
+		Collections.sort(expected, Comparator.comparing((List<Integer> l) -> l.get(0)).thenComparing(l -> l.get(1)));
+		Collections.sort(actual, Comparator.comparing((List<Integer> l) -> l.get(0)).thenComparing(l -> l.get(1)));
+		assertEquals(expected, actual);
+		assertEquals(expected.size(), count);
+	}
+
+	/**
+	 * Inserts into and deletes from the base table are applied to the index.
+	 */
+	@Test
+	public void maintainedByBufferPool() throws Exception {
+		Tuple t = new Tuple(table.getTupleDesc());
+		t.setField(0, new IntField(1));
+		t.setField(1, new IntField(5000));
+		t.setField(2, new IntField(6000));
+		Database.getBufferPool().insertTuple(tid, table.getId(), t);
+		tuples.add(Arrays.asList(1, 5000, 6000));
+		SystemTestUtil.matchTuples(new IndexOnlyScan(tid, index, "t", null), project(tuples));
+
+		DbFileIterator it = table.iterator(tid);
+		it.open();
+		List<Tuple> toDelete = new ArrayList<>();
+		while (it.hasNext()) {
+			Tuple next = it.next();
+			if (((IntField) next.getField(1)).getValue() % 2 == 0)
+				toDelete.add(next);
+		}
+		it.close();
+		for (Tuple next : toDelete)
+			Database.getBufferPool().deleteTuple(tid, next);
+		tuples.removeIf(row -> row.get(1) % 2 == 0);
+		SystemTestUtil.matchTuples(new IndexOnlyScan(tid, index, "t", null), project(tuples));
+	}
+
+	private OpIterator scanOf(OpIterator plan) {
+		while (plan instanceof Operator)
+			plan = ((Operator) plan).getChildren()[0];
+		return plan;
+	}
+
+	/**
+	 * The planner reads from the index when it covers every field of the query.
+	 */
+	@Test
+	public void plannerChoosesCoveringIndex() throws Exception {
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("t", new TableStats(table.getId(), 1000));
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(table.getId(), "t");
+		lp.addFilter("t.c1", Predicate.Op.GREATER_THAN_OR_EQ, "500");
+		lp.addProjectField("t.c2", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(scanOf(plan) instanceof IndexOnlyScan);
+		List<List<Integer>> expected = new ArrayList<>();
+		for (List<Integer> row : tuples) {
+			if (row.get(1) >= 500)
+				expected.add(Collections.singletonList(row.get(2)));
+		}
+		SystemTestUtil.matchTuples(plan, expected);
+
+		lp = new LogicalPlan();
+		lp.addScan(table.getId(), "t");
+		lp.addFilter("t.c1", Predicate.Op.GREATER_THAN_OR_EQ, "500");
+		lp.addProjectField("t.c0", null);
+		assertTrue(scanOf(lp.physicalPlan(tid, stats, false)) instanceof SeqScan);
+
+		lp = new LogicalPlan();
+		lp.addScan(table.getId(), "t");
+		lp.addProjectField("*", null);
+		assertTrue(scanOf(lp.physicalPlan(tid, stats, false)) instanceof SeqScan);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(CoveringIndexTest.class);
+	}
+}
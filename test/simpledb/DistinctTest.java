@@ -0,0 +1,82 @@
+package simpledb;
+
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class DistinctTest extends SimpleDbTestBase {
+
+    /**
+     * @return the distinct rows of the specified fields, in order of first appearance
+     */
+    private static List<List<Integer>> distinct(List<List<Integer>> tuples, int... fields) {
+        Set<List<Integer>> rows = new LinkedHashSet<>();
+        for (List<Integer> row : tuples) {
+            List<Integer> projected = new ArrayList<>();
+            for (int f : fields)
+                projected.add(row.get(f));
+            rows.add(projected);
+        }
+        return new ArrayList<>(rows);
+    }
+
+    /**
+     * Distinct tuples that fit in memory are returned as they are first read,
+     * for a single INT_TYPE field and for several fields.
+     */
+    @Test
+    public void inMemory() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 5000, 20, null, tuples);
+        TransactionId tid = new TransactionId();
+
+        Distinct one = new Distinct(new SeqScan(tid, table.getId(), "t", new Predicate[0], new int[]{1}));
+        one.open();
+        assertEquals(distinct(tuples, 1), SystemTestUtil.readAll(one));
+        one.rewind();
+        assertEquals(distinct(tuples, 1), SystemTestUtil.readAll(one));
+        one.close();
+        assertEquals(0, one.getSpilledPartitions());
+
+        Distinct two = new Distinct(new SeqScan(tid, table.getId(), "t", new Predicate[0], new int[]{0, 2}));
+        two.open();
+        assertEquals(distinct(tuples, 0, 2), SystemTestUtil.readAll(two));
+        two.close();
+    }
+
+    /**
+     * Distinct tuples beyond the memory budget are spilled and deduplicated
+     * afterwards, with the same result.
+     */
+    @Test
+    public void spill() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 20000, 3000, null, tuples);
+        TransactionId tid = new TransactionId();
+
+        for (int[] fields : new int[][]{{0}, {0, 1}}) {
+            Distinct distinct = new Distinct(new SeqScan(tid, table.getId(), "t", new Predicate[0], fields));
+            distinct.setMemoryBudget(100L * distinct.getTupleDesc().getSize());
+            SystemTestUtil.matchTuples(distinct, distinct(tuples, fields));
+            assertTrue(distinct.getSpilledPartitions() > 0);
+            assertTrue(distinct.getSpilledTuples() > 0);
+            assertTrue(distinct.getSpilledBytes() > 0);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DistinctTest.class);
+    }
+}
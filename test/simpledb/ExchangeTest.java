@@ -0,0 +1,246 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+    /**
+     * Filters over MorselScans sharing the morsels of a table return each
+     * tuple of the table once, and can be rewound.
+     */
+    @Test
+    public void parallelScan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 20000, 1000, null, tuples);
+        assertTrue(table.numPages() > 8);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> row : tuples)
+            if (row.get(1) < 500)
+                expected.add(row);
+        SystemTestUtil.sorted(expected);
+
+        TransactionId tid = new TransactionId();
+        Morsels morsels = new Morsels(table.getId(), 2);
+        OpIterator[] pipelines = new OpIterator[4];
+        for (int i = 0; i < pipelines.length; i++)
+            pipelines[i] = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(500)),
+                    new MorselScan(tid, morsels, "t"));
+        Exchange op = new Exchange(pipelines);
+        op.open();
+        assertEquals(expected, SystemTestUtil.sorted(SystemTestUtil.readAll(op)));
+        op.rewind();
+        List<List<Integer>> batched = new ArrayList<>();
+        TupleBatch batch;
+        while ((batch = op.nextBatch()) != null)
+            for (int i = 0; i < batch.numSelected(); i++)
+                batched.add(SystemTestUtil.tupleToList(batch.getTuple(batch.selected(i))));
+        assertEquals(expected, SystemTestUtil.sorted(batched));
+        op.close();
+    }
+
+    /**
+     * HashProbes over MorselScans sharing the morsels of a table, under an
+     * Exchange, return the same tuples as a HashEquiJoin, and the build side
+     * is read once each time they are opened.
+     */
+    @Test
+    public void parallelProbe() throws Exception {
+        HeapFile probeTable = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null, null);
+        assertTrue(probeTable.numPages() > 8);
+        HeapFile buildTable = SystemTestUtil.createRandomHeapFile(2, 300, 1000, null, null);
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+
+        HashEquiJoin serial = new HashEquiJoin(p, new SeqScan(tid, buildTable.getId(), "b"),
+                new SeqScan(tid, probeTable.getId(), "p"));
+        serial.open();
+        List<List<Integer>> expected = SystemTestUtil.sorted(SystemTestUtil.readAll(serial));
+        serial.close();
+        assertFalse(expected.isEmpty());
+
+        int[] opens = new int[1];
+        OpIterator buildSide = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)),
+                new SeqScan(tid, buildTable.getId(), "b")) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void open() throws DbException, TransactionAbortedException {
+                opens[0]++;
+                super.open();
+            }
+        };
+        SharedHashBuild build = new SharedHashBuild(buildSide, 0, Type.INT_TYPE);
+        Morsels morsels = new Morsels(probeTable.getId(), 2);
+        OpIterator[] probes = new OpIterator[4];
+        for (int i = 0; i < probes.length; i++)
+            probes[i] = new HashProbe(p, build, new MorselScan(tid, morsels, "p"));
+        Exchange op = new Exchange(probes);
+        op.open();
+        assertEquals(expected, SystemTestUtil.sorted(SystemTestUtil.readAll(op)));
+        assertEquals(1, opens[0]);
+        op.rewind();
+        assertEquals(expected, SystemTestUtil.sorted(SystemTestUtil.readAll(op)));
+        assertEquals(2, opens[0]);
+        op.close();
+    }
+
+    /**
+     * An exception thrown by a child on a worker is rethrown to the consumer.
+     */
+    @Test(expected = DbException.class)
+    public void failure() throws Exception {
+        OpIterator failing = new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(1)),
+                TestUtil.createTupleList(1, new int[]{1, 2, 3})) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public TupleBatch nextBatch() throws DbException {
+                throw new DbException("failed");
+            }
+        };
+        Exchange op = new Exchange(new OpIterator[]{failing, TestUtil.createTupleList(1, new int[]{4})});
+        op.open();
+        try {
+            while (op.hasNext())
+                op.next();
+        } finally {
+            op.close();
+        }
+    }
+
+    /**
+     * The planner scans large tables in parallel, and computes aggregates
+     * over a single table as partial aggregates on each worker.
+     */
+    @Test
+    public void planner() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(3, 90000, 100, null, tuples);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(3, "c"));
+        Database.getCatalog().addTable(table, "par");
+        assertTrue(table.numPages() >= 4 * LogicalPlan.PARALLEL_PAGES);
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("par", new TableStats(table.getId(), 1000));
+        TransactionId tid = new TransactionId();
+
+        int maxParallelism = LogicalPlan.getMaxParallelism();
+        try {
+            LogicalPlan.setMaxParallelism(4);
+            LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                    "SELECT t.c0, COUNT(t.c1), AVG(t.c1), MAX(t.c2) FROM par t WHERE t.c2 > 10 GROUP BY t.c0;");
+            OpIterator plan = lp.physicalPlan(tid, stats, false);
+            Aggregate agg = (Aggregate) ((Operator) plan).getChildren()[0];
+            Exchange exchange = (Exchange) agg.getChildren()[0];
+            assertEquals(4, exchange.getParallelism());
+            assertTrue(exchange.getChildren()[0] instanceof HashAggregate);
+
+            Map<Integer, long[]> groups = new HashMap<>();
+            for (List<Integer> row : tuples) {
+                if (row.get(2) <= 10)
+                    continue;
+                long[] g = groups.computeIfAbsent(row.get(0), k -> new long[]{0, 0, Integer.MIN_VALUE});
+                g[0]++;
+                g[1] += row.get(1);
+                g[2] = Math.max(g[2], row.get(2));
+            }
+            List<List<Integer>> expected = new ArrayList<>();
+            for (Map.Entry<Integer, long[]> e : groups.entrySet()) {
+                long[] g = e.getValue();
+                expected.add(Arrays.asList(e.getKey(), (int) g[0], (int) (g[1] / g[0]), (int) g[2]));
+            }
+            plan.open();
+            assertEquals(SystemTestUtil.sorted(expected), SystemTestUtil.sorted(SystemTestUtil.readAll(plan)));
+            plan.close();
+
+            // small tables are scanned serially
+            LogicalPlan.setMaxParallelism(1);
+            plan = new Parser().generateLogicalPlan(tid, "SELECT * FROM par t WHERE t.c2 > 10;")
+                    .physicalPlan(tid, stats, false);
+            assertTrue(((Operator) plan).getChildren()[0] instanceof SeqScan);
+        } finally {
+            LogicalPlan.setMaxParallelism(maxParallelism);
+        }
+    }
+
+    /**
+     * The planner probes the hash table of a small build side on each
+     * pipeline of a parallel scan of the probe side, and aggregates the
+     * output of the join on each worker.
+     */
+    @Test
+    public void plannerJoin() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(3, 90000, 1000, null, tuples);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(3, "c"));
+        Database.getCatalog().addTable(table, "probe");
+        assertTrue(table.numPages() >= 4 * LogicalPlan.PARALLEL_PAGES);
+        List<List<Integer>> smallTuples = new ArrayList<>();
+        f = SystemTestUtil.createRandomHeapFileUnopened(2, 100, 1000, null, smallTuples);
+        HeapFile small = new HeapFile(f, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(small, "build");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("probe", new TableStats(table.getId(), 1000));
+        stats.put("build", new TableStats(small.getId(), 1000));
+        TransactionId tid = new TransactionId();
+
+        int maxParallelism = LogicalPlan.getMaxParallelism();
+        try {
+            LogicalPlan.setMaxParallelism(4);
+            LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                    "SELECT b.c1, COUNT(p.c1) FROM probe p, build b WHERE b.c0 = p.c0 GROUP BY b.c1;");
+            OpIterator plan = lp.physicalPlan(tid, stats, false);
+            Aggregate agg = (Aggregate) ((Operator) plan).getChildren()[0];
+            Exchange exchange = (Exchange) agg.getChildren()[0];
+            assertEquals(4, exchange.getParallelism());
+            HashAggregate partial = (HashAggregate) exchange.getChildren()[0];
+            HashProbe probe = (HashProbe) partial.getChildren()[0];
+            MorselScan scan = (MorselScan) probe.getChildren()[1];
+            assertEquals(1, scan.getRuntimeFilters().length);
+
+            Map<Integer, Integer> matches = new HashMap<>();
+            for (List<Integer> row : tuples)
+                matches.merge(row.get(0), 1, Integer::sum);
+            Map<Integer, Integer> counts = new HashMap<>();
+            for (List<Integer> row : smallTuples) {
+                Integer n = matches.get(row.get(0));
+                if (n != null)
+                    counts.merge(row.get(1), n, Integer::sum);
+            }
+            List<List<Integer>> expected = new ArrayList<>();
+            for (Map.Entry<Integer, Integer> e : counts.entrySet())
+                expected.add(Arrays.asList(e.getKey(), e.getValue()));
+            plan.open();
+            assertEquals(SystemTestUtil.sorted(expected), SystemTestUtil.sorted(SystemTestUtil.readAll(plan)));
+            plan.close();
+        } finally {
+            LogicalPlan.setMaxParallelism(maxParallelism);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
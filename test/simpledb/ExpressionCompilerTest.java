@@ -0,0 +1,150 @@
+package simpledb;
+
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ExpressionCompilerTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE});
+
+    private static TupleBatch batch(int rows) {
+        Random random = new Random(42);
+        TupleBatch batch = new TupleBatch(TD, rows);
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(random.nextInt(100)));
+            t.setField(1, new StringField("s" + random.nextInt(100), Type.STRING_LEN));
+            t.setField(2, new IntField(random.nextInt(100)));
+            batch.addTuple(t);
+        }
+        return batch;
+    }
+
+    private static List<Integer> selected(TupleBatch batch) {
+        List<Integer> rows = new ArrayList<>();
+        for (int i = 0; i < batch.numSelected(); i++)
+            rows.add(batch.selected(i));
+        return rows;
+    }
+
+    /**
+     * A compiled conjunction selects the same tuples and rows as the
+     * interpreted predicates, for every operator and both field types.
+     */
+    @Test
+    public void filters() {
+        for (Predicate.Op op : Predicate.Op.values()) {
+            Predicate[] preds = new Predicate[]{
+                    new Predicate(0, op, new IntField(50)),
+                    new Predicate(1, op, new StringField("s4", Type.STRING_LEN)),
+                    new Predicate(2, Predicate.Op.NOT_EQUALS, new IntField(7))};
+            TupleFilter compiled = ExpressionCompiler.compile(preds, TD);
+            TupleFilter interpreted = ExpressionCompiler.interpret(preds);
+            assertTrue(compiled instanceof ExpressionCompiler.CompiledFilter);
+
+            TupleBatch expected = batch(1000);
+            TupleBatch actual = batch(1000);
+            interpreted.filter(expected);
+            compiled.filter(actual);
+            assertEquals(op.toString(), selected(expected), selected(actual));
+            for (int row = 0; row < 1000; row++) {
+                Tuple t = actual.getTuple(row);
+                assertEquals(interpreted.filter(t), compiled.filter(t));
+            }
+        }
+
+        // the same shape with other constants reuses the compiled class
+        TupleFilter a = ExpressionCompiler.compile(new Predicate[]{
+                new Predicate(2, Predicate.Op.LESS_THAN, new IntField(3))}, TD);
+        TupleFilter b = ExpressionCompiler.compile(new Predicate[]{
+                new Predicate(2, Predicate.Op.LESS_THAN, new IntField(30))}, TD);
+        assertSame(a.getClass(), b.getClass());
+        TupleBatch batch = batch(1000);
+        b.filter(batch);
+        for (int i = 0; i < batch.numSelected(); i++)
+            assertTrue(batch.getInt(2, batch.selected(i)) < 30);
+
+        // a constant of the wrong type is left to the interpreter
+        assertFalse(ExpressionCompiler.compile(new Predicate[]{
+                new Predicate(0, Predicate.Op.EQUALS, new StringField("x", Type.STRING_LEN))}, TD)
+                instanceof ExpressionCompiler.CompiledFilter);
+    }
+
+    /**
+     * A compiled join predicate agrees with JoinPredicate on every pair.
+     */
+    @Test
+    public void joinPredicates() {
+        TupleBatch b1 = batch(100);
+        TupleBatch b2 = batch(100);
+        for (Predicate.Op op : Predicate.Op.values()) {
+            for (int field : new int[]{0, 1}) {
+                JoinPredicate p = new JoinPredicate(field, op, field);
+                ExpressionCompiler.CompiledJoinPredicate compiled = ExpressionCompiler.compile(p, TD, TD);
+                assertNotNull(compiled);
+                for (int r1 = 0; r1 < 100; r1++)
+                    for (int r2 = 0; r2 < 100; r2++)
+                        assertEquals(p.filter(b1, r1, b2, r2), compiled.filter(b1, r1, b2, r2));
+            }
+        }
+    }
+
+    /**
+     * Scans return the same tuples with compiled predicates, and nothing is
+     * compiled while compilation is disabled.
+     */
+    @Test
+    public void scan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 5000, 100, null, tuples);
+        Predicate[] preds = new Predicate[]{
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(25)),
+                new Predicate(2, Predicate.Op.LESS_THAN, new IntField(75))};
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> row : tuples)
+            if (row.get(0) >= 25 && row.get(2) < 75)
+                expected.add(row.subList(1, 2));
+
+        MorselScan scan = new MorselScan(new TransactionId(), new Morsels(table.getId()), "t",
+                preds, new int[]{1});
+        scan.compilePredicates();
+        assertTrue(scan.isCompiled());
+        scan.open();
+        List<List<Integer>> actual = new ArrayList<>();
+        while (scan.hasNext())
+            actual.add(SystemTestUtil.tupleToList(scan.next()));
+        scan.close();
+        assertEquals(expected, actual);
+
+        ExpressionCompiler.setEnabled(false);
+        try {
+            scan.compilePredicates();
+            assertFalse(scan.isCompiled());
+        } finally {
+            ExpressionCompiler.setEnabled(true);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExpressionCompilerTest.class);
+    }
+}
@@ -0,0 +1,178 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HashAggregateTest extends SimpleDbTestBase {
+
+    private static final Aggregator.Op[] OPS = new Aggregator.Op[]{Aggregator.Op.COUNT,
+            Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.MIN, Aggregator.Op.MAX};
+
+    /**
+     * @return the groups of the rows on fields 0 and 1, each followed by the
+     * count, sum, avg, min and max of field 2, sorted
+     */
+    private static List<List<Integer>> expected(List<List<Integer>> tuples) {
+        Map<List<Integer>, long[]> groups = new HashMap<>();
+        for (List<Integer> row : tuples) {
+            long[] agg = groups.computeIfAbsent(row.subList(0, 2),
+                    k -> new long[]{0, 0, Integer.MAX_VALUE, Integer.MIN_VALUE});
+            int val = row.get(2);
+            agg[0]++;
+            agg[1] += val;
+            agg[2] = Math.min(agg[2], val);
+            agg[3] = Math.max(agg[3], val);
+        }
+        List<List<Integer>> result = new ArrayList<>();
+        for (Map.Entry<List<Integer>, long[]> e : groups.entrySet()) {
+            long[] agg = e.getValue();
+            List<Integer> row = new ArrayList<>(e.getKey());
+            row.addAll(Arrays.asList((int) agg[0], (int) agg[1], (int) (agg[1] / agg[0]), (int) agg[2], (int) agg[3]));
+            result.add(row);
+        }
+        return SystemTestUtil.sorted(result);
+    }
+
+    private static HashAggregate aggregate(TransactionId tid, HeapFile table) {
+        return new HashAggregate(new SeqScan(tid, table.getId(), "t"), new int[]{0, 1},
+                new int[]{2, 2, 2, 2, 2}, OPS);
+    }
+
+    /**
+     * Several aggregates over a group key of two fields, in memory.
+     */
+    @Test
+    public void multipleAggregates() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 5000, 20, null, tuples);
+        HashAggregate op = aggregate(new TransactionId(), table);
+        assertEquals(7, op.getTupleDesc().numFields());
+        op.open();
+        assertEquals(expected(tuples), SystemTestUtil.sorted(SystemTestUtil.readAll(op)));
+        assertEquals(0, op.getSpilledPartitions());
+        op.close();
+
+        // no grouping
+        op = new HashAggregate(new SeqScan(new TransactionId(), table.getId(), "t"), new int[0],
+                new int[]{2, 0}, new Aggregator.Op[]{Aggregator.Op.COUNT, Aggregator.Op.MAX});
+        op.open();
+        int max = 0;
+        for (List<Integer> row : tuples)
+            max = Math.max(max, row.get(0));
+        assertEquals(Collections.singletonList(Arrays.asList(5000, max)), SystemTestUtil.readAll(op));
+        op.close();
+    }
+
+    /**
+     * More groups than fit in the memory budget are spilled and aggregated
+     * from the spill files, and the result can be rewound.
+     */
+    @Test
+    public void spill() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 20000, 200, null, tuples);
+        List<List<Integer>> expected = expected(tuples);
+        HashAggregate op = aggregate(new TransactionId(), table);
+        // room for 100 groups, so that most partitions spill again
+        op.setMemoryBudget(100L * 5 * 4);
+        op.open();
+        assertEquals(expected, SystemTestUtil.sorted(SystemTestUtil.readAll(op)));
+        assertTrue(op.getSpilledPartitions() > HashAggregate.NUM_PARTITIONS);
+        assertTrue(op.getSpilledTuples() > 0);
+        op.rewind();
+        assertEquals(expected, SystemTestUtil.sorted(SystemTestUtil.readAll(op)));
+        op.close();
+
+        // Aggregate spills through its HashAggregate
+        Aggregate agg = new Aggregate(new SeqScan(new TransactionId(), table.getId(), "t"), 2, 0,
+                Aggregator.Op.SUM);
+        agg.setMemoryBudget(10L * 2 * 4);
+        agg.open();
+        List<List<Integer>> groups = SystemTestUtil.sorted(SystemTestUtil.readAll(agg));
+        agg.close();
+        int total = 0;
+        for (List<Integer> row : groups)
+            total += row.get(1);
+        int expectedTotal = 0;
+        Set<Integer> keys = new HashSet<>();
+        for (List<Integer> row : tuples) {
+            expectedTotal += row.get(2);
+            keys.add(row.get(0));
+        }
+        assertEquals(keys.size(), groups.size());
+        assertEquals(expectedTotal, total);
+    }
+
+    /**
+     * The planner computes several aggregates over several group by fields
+     * with one Aggregate, and projects them in the order of the select list.
+     */
+    @Test
+    public void planner() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(3, 3000, 10, null, tuples);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(3, "c"));
+        Database.getCatalog().addTable(table, "agg");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("agg", new TableStats(table.getId(), 1000));
+        TransactionId tid = new TransactionId();
+
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT MAX(t.c2), t.c1, COUNT(*), t.c0, SUM(t.c2), AVG(t.c2), MIN(t.c2) FROM agg t GROUP BY t.c0, t.c1;");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        Aggregate agg = (Aggregate) ((Operator) plan).getChildren()[0];
+        assertArrayEquals(new int[]{0, 1}, agg.groupFields());
+        assertEquals(5, agg.aggregateFields().length);
+
+        // reorder the expected rows to the select list
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> row : expected(tuples))
+            expected.add(Arrays.asList(row.get(6), row.get(1), row.get(2), row.get(0), row.get(3), row.get(4), row.get(5)));
+        plan.open();
+        assertEquals(SystemTestUtil.sorted(expected), SystemTestUtil.sorted(SystemTestUtil.readAll(plan)));
+        plan.close();
+
+        // without grouping, every aggregate is computed in the same pass
+        lp = new Parser().generateLogicalPlan(tid, "SELECT COUNT(*), MIN(t.c1), SUM(t.c1) FROM agg t;");
+        plan = lp.physicalPlan(tid, stats, false);
+        int min = Integer.MAX_VALUE, sum = 0;
+        for (List<Integer> row : tuples) {
+            min = Math.min(min, row.get(1));
+            sum += row.get(1);
+        }
+        plan.open();
+        assertEquals(Collections.singletonList(Arrays.asList(3000, min, sum)), SystemTestUtil.readAll(plan));
+        plan.close();
+    }
+
+    /**
+     * Only COUNT is supported over strings.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void sumOfStrings() {
+        OpIterator child = TestUtil.createTupleList(2, new Object[]{1, "a", 2, "b"});
+        new HashAggregate(child, new int[]{0}, new int[]{1}, new Aggregator.Op[]{Aggregator.Op.SUM});
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashAggregateTest.class);
+    }
+}
@@ -0,0 +1,161 @@
+package simpledb;
+
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+    private List<List<Integer>> tuples1;
+    private List<List<Integer>> tuples2;
+    private HeapFile table1;
+    private HeapFile table2;
+    private TransactionId tid;
+
+    @Before
+    public void createTables() throws Exception {
+        tuples1 = new ArrayList<>();
+        tuples2 = new ArrayList<>();
+        table1 = SystemTestUtil.createRandomHeapFile(2, 5000, 2000, null, tuples1);
+        table2 = SystemTestUtil.createRandomHeapFile(2, 3000, 2000, null, tuples2);
+        tid = new TransactionId();
+    }
+
+    private HashEquiJoin join(HeapFile t1, HeapFile t2) {
+        return new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, t1.getId(), "a"), new SeqScan(tid, t2.getId(), "b"));
+    }
+
+    private static List<List<Integer>> expected(List<List<Integer>> left, List<List<Integer>> right) {
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> row1 : left) {
+            for (List<Integer> row2 : right) {
+                if (row1.get(0).equals(row2.get(0))) {
+                    List<Integer> row = new ArrayList<>(row1);
+                    row.addAll(row2);
+                    expected.add(row);
+                }
+            }
+        }
+        return expected;
+    }
+
+    /**
+     * A build side that fits in memory is not spilled.
+     */
+    @Test
+    public void inMemory() throws Exception {
+        HashEquiJoin join = join(table1, table2);
+        SystemTestUtil.matchTuples(join, expected(tuples1, tuples2));
+        assertEquals(0, join.getSpilledPartitions());
+        assertEquals(0, join.getSpilledBuildTuples());
+    }
+
+    /**
+     * A build side larger than the memory budget is partitioned; the spilled
+     * partitions are joined from their spill files with the same result.
+     */
+    @Test
+    public void spill() throws Exception {
+        HashEquiJoin join = join(table1, table2);
+        join.setMemoryBudget(1000L * table1.getTupleDesc().getSize());
+        SystemTestUtil.matchTuples(join, expected(tuples1, tuples2));
+        assertTrue(join.getSpilledPartitions() > 0);
+        assertTrue(join.getSpilledPartitions() <= HashEquiJoin.NUM_PARTITIONS);
+        // every build tuple is spilled at most once
+        assertTrue(join.getSpilledBuildTuples() > 0);
+        assertTrue(join.getSpilledBuildTuples() <= tuples1.size());
+        assertTrue(join.getSpilledProbeTuples() <= tuples2.size());
+        assertTrue(join.getSpilledBytes() > 0);
+
+        // the join can be rewound and run again
+        join.open();
+        join.rewind();
+        int count = 0;
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        join.close();
+        assertEquals(expected(tuples1, tuples2).size(), count);
+    }
+
+    /**
+     * A partition that does not fit in memory on its own is joined in chunks.
+     */
+    @Test
+    public void skewedPartition() throws Exception {
+        Map<Integer, Integer> sameKey = new HashMap<>();
+        sameKey.put(0, 7);
+        List<List<Integer>> skewed = new ArrayList<>();
+        HeapFile skewedTable = SystemTestUtil.createRandomHeapFile(2, 3000, sameKey, skewed);
+        List<List<Integer>> probe = new ArrayList<>();
+        HeapFile probeTable = SystemTestUtil.createRandomHeapFile(2, 20, sameKey, probe);
+
+        HashEquiJoin join = join(skewedTable, probeTable);
+        join.setMemoryBudget(500L * skewedTable.getTupleDesc().getSize());
+        SystemTestUtil.matchTuples(join, expected(skewed, probe));
+        assertEquals(1, join.getSpilledPartitions());
+        assertEquals(3000, join.getSpilledBuildTuples());
+    }
+
+    /**
+     * A Bloom filter never misses a key it holds, and reports few keys it
+     * does not hold.
+     */
+    @Test
+    public void bloomFilter() {
+        BloomFilter bloom = new BloomFilter(1000);
+        for (int key = 0; key < 1000; key++)
+            bloom.add(BloomFilter.hash(key));
+        for (int key = 0; key < 1000; key++)
+            assertTrue(bloom.mightContain(BloomFilter.hash(key)));
+        int falsePositives = 0;
+        for (int key = 1000; key < 11000; key++)
+            if (bloom.mightContain(BloomFilter.hash(key)))
+                falsePositives++;
+        assertTrue(falsePositives < 500);
+    }
+
+    /**
+     * The scan of the probe side drops most tuples with the Bloom filter of
+     * a small build side, with the same result. The filter is sized for the
+     * estimated size of the build side.
+     */
+    @Test
+    public void runtimeFilter() throws Exception {
+        List<List<Integer>> small = new ArrayList<>();
+        HeapFile smallTable = SystemTestUtil.createRandomHeapFile(2, 50, 2000, null, small);
+        SeqScan probe = new SeqScan(tid, table2.getId(), "b");
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, smallTable.getId(), "a"), probe);
+        RuntimeFilter filter = new RuntimeFilter(0);
+        probe.addRuntimeFilter(filter);
+        join.addRuntimeFilter(filter);
+        join.setBuildEstimate(50);
+
+        join.open();
+        assertTrue(join.hasNext());
+        assertEquals(512, filter.get().size());
+        join.close();
+        SystemTestUtil.matchTuples(join, expected(small, tuples2));
+        assertNull(filter.get());
+        assertTrue(filter.getDropped() > tuples2.size() / 2);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
@@ -0,0 +1,252 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.index.HashFile;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HashFileTest extends SimpleDbTestBase {
+	private File file;
+	private HashFile hf;
+
+	/**
+	 * Create an empty hash file on small pages, so that buckets split often.
+	 */
+	@Before
+	public void createFile() throws Exception {
+		BufferPool.setPageSize(512);
+		file = File.createTempFile("hash", ".dat");
+		file.deleteOnExit();
+		file.delete();
+		hf = new HashFile(file, 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(hf, "h");
+	}
+
+	@After
+	public void tearDown() {
+		BufferPool.resetPageSize();
+	}
+
+	private static Tuple tuple(int key, int value) {
+		Tuple t = new Tuple(Utility.getTupleDesc(2));
+		t.setField(0, new IntField(key));
+		t.setField(1, new IntField(value));
+		return t;
+	}
+
+	/**
+	 * Insert (i % keys, i) for i in [0, n), committing every 40 tuples.
+	 */
+	private void insert(int n, int keys) throws Exception {
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < n; i++) {
+			Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(i % keys, i));
+			if (i % 40 == 39) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private List<Tuple> lookup(TransactionId tid, int key) throws Exception {
+		DbFileIterator it = hf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+		List<Tuple> result = new ArrayList<>();
+		it.open();
+		while (it.hasNext())
+			result.add(it.next());
+		it.close();
+		return result;
+	}
+
+	private int count(DbFileIterator it) throws Exception {
+		int count = 0;
+		it.open();
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
+	/**
+	 * Equality lookups find exactly the tuples with the key, and a scan finds them all.
+	 */
+	@Test
+	public void insertAndLookup() throws Exception {
+		insert(3000, 1000);
+		TransactionId tid = new TransactionId();
+		for (int key = 0; key < 1000; key += 7) {
+			List<Tuple> found = lookup(tid, key);
+			assertEquals(3, found.size());
+			for (Tuple t : found)
+				assertEquals(key, ((IntField) t.getField(0)).getValue());
+		}
+		assertEquals(0, lookup(tid, 5000).size());
+		assertEquals(3000, count(hf.iterator(tid)));
+		assertEquals(300, count(hf.indexIterator(tid, new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(100)))));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Deleted tuples are no longer returned, and their slots are reused.
+	 */
+	@Test
+	public void delete() throws Exception {
+		insert(1000, 500);
+		TransactionId tid = new TransactionId();
+		for (int key = 0; key < 500; key += 2) {
+			for (Tuple t : lookup(tid, key))
+				Database.getBufferPool().deleteTuple(tid, t);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		assertEquals(0, lookup(tid, 10).size());
+		assertEquals(2, lookup(tid, 11).size());
+		assertEquals(500, count(hf.iterator(tid)));
+		Database.getBufferPool().transactionComplete(tid);
+
+		int pages = hf.numPages();
+		insert(100, 500);
+		assertEquals(pages, hf.numPages());
+	}
+
+	/**
+	 * Tuples with the same key cannot be split apart, so they go on overflow pages.
+	 */
+	@Test
+	public void overflowChain() throws Exception {
+		insert(500, 1);
+		insert(20, 20);
+		TransactionId tid = new TransactionId();
+		assertEquals(501, lookup(tid, 0).size());
+		assertEquals(1, lookup(tid, 3).size());
+		assertEquals(520, count(hf.iterator(tid)));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * The index survives being flushed and read back from disk.
+	 */
+	@Test
+	public void reopen() throws Exception {
+		insert(2000, 2000);
+		Database.getBufferPool().flushAllPages();
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		HashFile reopened = new HashFile(file, 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(reopened, "h");
+		hf = reopened;
+
+		TransactionId tid = new TransactionId();
+		assertEquals(1, lookup(tid, 1234).size());
+		assertEquals(2000, count(hf.iterator(tid)));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Concurrent inserters that split the same buckets see a consistent index.
+	 */
+	@Test
+	public void concurrentInserts() throws Exception {
+		final int perThread = 100;
+		List<Thread> threads = new ArrayList<>();
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+		Random random = new Random();
+		for (int n = 0; n < 2; n++) {
+			final int base = n * perThread;
+			Thread thread = new Thread(() -> {
+				try {
+					for (int i = 0; i < perThread; i++) {
+						while (true) {
+							TransactionId tid = new TransactionId();
+							try {
+								Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(base + i, i));
+								Database.getBufferPool().transactionComplete(tid);
+								break;
+							} catch (TransactionAbortedException e) {
+								Database.getBufferPool().transactionComplete(tid, false);
+								// back off so that the other transaction can finish its split
+								Thread.sleep(random.nextInt(100));
+							}
+						}
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(Collections.emptyList(), errors);
+
+		TransactionId tid = new TransactionId();
+		assertEquals(2 * perThread, count(hf.iterator(tid)));
+		for (int key = 0; key < 2 * perThread; key += 13)
+			assertEquals(1, lookup(tid, key).size());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Two threads inserting a tuple per transaction split buckets without
+	 * waiting for each other's lock on the header, so no transaction aborts.
+	 */
+	@Test
+	public void concurrentSplitsDoNotAbort() throws Exception {
+		final int perThread = 300;
+		List<Thread> threads = new ArrayList<>();
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+		for (int n = 0; n < 2; n++) {
+			final int base = n * perThread;
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < perThread; i++) {
+					TransactionId tid = new TransactionId();
+					try {
+						Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(base + i, i));
+						Database.getBufferPool().transactionComplete(tid);
+					} catch (Throwable e) {
+						errors.add(e);
+						Database.getBufferPool().transactionComplete(tid, false);
+						return;
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(Collections.emptyList(), errors);
+
+		TransactionId tid = new TransactionId();
+		assertEquals(2 * perThread, count(hf.iterator(tid)));
+		// the buckets split many times
+		assertTrue(hf.numPages() > 10);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashFileTest.class);
+	}
+}
@@ -0,0 +1,201 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.Predicate;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HeapFileLoaderTest extends SimpleDbTestBase {
+
+    private static File writeInput(String text) throws IOException {
+        File in = File.createTempFile("loader", ".txt");
+        in.deleteOnExit();
+        try (Writer w = new FileWriter(in)) {
+            w.write(text);
+        }
+        return in;
+    }
+
+    private static File tempOutput() throws IOException {
+        File out = File.createTempFile("loader", ".dat");
+        out.deleteOnExit();
+        return out;
+    }
+
+    /**
+     * Chunks parsed on several threads are written in input order, and pages
+     * are filled across chunk boundaries.
+     */
+    @Test
+    public void loadsInParallel() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        Random r = new Random(7);
+        for (int i = 0; i < 5000; i++) {
+            tuples.add(Arrays.asList(i, r.nextInt() / 2, -r.nextInt(100)));
+            text.append(i).append(", ").append(tuples.get(i).get(1)).append(',').append(tuples.get(i).get(2));
+            // a last line without a newline, and empty lines, are allowed
+            if (i < 4999)
+                text.append(i % 1000 == 0 ? "\r\n\n" : "\n");
+        }
+        File out = tempOutput();
+        HeapFileLoader loader = new HeapFileLoader(new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE},
+                ',', BufferPool.getPageSize());
+        loader.setThreads(4);
+        loader.setChunkBytes(1000);
+        loader.load(writeInput(text.toString()), out);
+
+        assertEquals(5000, loader.getNumTuples());
+        int slots = BufferPool.getPageSize() * 8 / (12 * 8 + 1);
+        assertEquals((5000 + slots - 1) / slots, loader.getNumPages());
+        assertEquals((long) loader.getNumPages() * BufferPool.getPageSize(), out.length());
+
+        HeapFile f = Utility.openHeapFile(3, out);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        for (List<Integer> t : tuples) {
+            assertTrue(it.hasNext());
+            assertEquals(t, SystemTestUtil.tupleToList(it.next()));
+        }
+        assertFalse(it.hasNext());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Strings are trimmed and truncated, and an empty input gives one empty
+     * page.
+     */
+    @Test
+    public void stringsAndEmptyInput() throws Exception {
+        char[] longString = new char[Type.STRING_LEN + 10];
+        Arrays.fill(longString, 'x');
+        File out = tempOutput();
+        Type[] types = {Type.STRING_TYPE, Type.INT_TYPE};
+        HeapFileLoader loader = new HeapFileLoader(types, '|', BufferPool.getPageSize());
+        loader.load(writeInput(" ab |1\n" + new String(longString) + "|2\n"), out);
+
+        HeapFile f = new HeapFile(out, new TupleDesc(types));
+        Database.getCatalog().addTable(f, "strings");
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        assertEquals(new StringField("ab", Type.STRING_LEN), it.next().getField(0));
+        assertEquals(Type.STRING_LEN, ((StringField) it.next().getField(0)).getValue().length());
+        assertFalse(it.hasNext());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        loader.load(writeInput(""), out);
+        assertEquals(0, loader.getNumTuples());
+        assertEquals(BufferPool.getPageSize(), out.length());
+    }
+
+    /**
+     * Strings with non-ASCII characters at either end keep them, and are
+     * stored as the bytes of the input.
+     */
+    @Test
+    public void nonAsciiStrings() throws Exception {
+        File in = File.createTempFile("loader", ".txt");
+        in.deleteOnExit();
+        String[] values = {"caf\u00e9", "\u00e9t\u00e9", " \u00f1 ", "\u00e9"};
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(in), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < values.length; i++)
+                w.write(i + "," + values[i] + "\n");
+        }
+        File out = tempOutput();
+        Type[] types = {Type.INT_TYPE, Type.STRING_TYPE};
+        HeapFileLoader loader = new HeapFileLoader(types, ',', BufferPool.getPageSize());
+        loader.setCollectStats(true);
+        loader.load(in, out);
+
+        HeapFile f = new HeapFile(out, new TupleDesc(types));
+        Database.getCatalog().addTable(f, "nonascii");
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        for (String v : values) {
+            String expected = new String(v.trim().getBytes(StandardCharsets.UTF_8));
+            assertEquals(new StringField(expected, Type.STRING_LEN), it.next().getField(1));
+        }
+        assertFalse(it.hasNext());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Lines with a malformed int or the wrong number of fields fail the load.
+     */
+    @Test
+    public void malformedLines() throws Exception {
+        HeapFileLoader loader = new HeapFileLoader(new Type[]{Type.INT_TYPE, Type.INT_TYPE},
+                ',', BufferPool.getPageSize());
+        for (String text : new String[]{"1,2\n3,x\n", "1,2\n3\n", "1,2,3\n", "1,99999999999\n"}) {
+            try {
+                loader.load(writeInput(text), tempOutput());
+                fail("expected IOException for " + text);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * The histograms collected during a load give the estimates of the
+     * histograms built by scanning the table.
+     */
+    @Test
+    public void collectsStats() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File scanned = SystemTestUtil.createRandomHeapFileUnopened(3, 10000, 1000, null, tuples);
+        StringBuilder text = new StringBuilder();
+        for (List<Integer> t : tuples)
+            text.append(t.get(0)).append(',').append(t.get(1)).append(',').append(t.get(2)).append('\n');
+        File out = tempOutput();
+        HeapFileLoader loader = new HeapFileLoader(new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE},
+                ',', BufferPool.getPageSize());
+        loader.setThreads(3);
+        loader.setChunkBytes(4096);
+        loader.setCollectStats(true);
+        loader.load(writeInput(text.toString()), out);
+
+        Database.getCatalog().addTable(Utility.openHeapFile(3, scanned), "scanned");
+        Database.getCatalog().addTable(Utility.openHeapFile(3, out), "loaded");
+        TableStats expected = new TableStats(Database.getCatalog().getTableId("scanned"), 1000);
+        TableStats loaded = new TableStats(Database.getCatalog().getTableId("loaded"), 1000,
+                loader.getNumTuples(), loader.getHistograms());
+        assertEquals(expected.totalTuples(), loaded.totalTuples());
+        assertEquals(expected.estimateScanCost(), loaded.estimateScanCost(), 0.0);
+        for (int field = 0; field < 3; field++) {
+            for (int v : new int[]{-5, 0, 100, 500, 999, 1200}) {
+                for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                        Predicate.Op.GREATER_THAN_OR_EQ}) {
+                    assertEquals(expected.estimateSelectivity(field, op, new IntField(v)),
+                            loaded.estimateSelectivity(field, op, new IntField(v)), 0.01);
+                }
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileLoaderTest.class);
+    }
+}
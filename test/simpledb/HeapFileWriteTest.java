@@ -12,7 +12,12 @@ import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -50,6 +55,135 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuples() and deleteTuples(): tuples fill a
+     * page before moving to the next, and the free space map sends new
+     * tuples to the page that tuples were deleted from.
+     */
+    @Test public void insertAndDeleteTuples() throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 1200; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        List<Page> pages = empty.insertTuples(tid, tuples);
+        assertEquals(3, pages.size());
+        assertEquals(3, empty.numPages());
+        FreeSpaceMap fsm = empty.getFreeSpaceMap();
+        assertEquals(0, fsm.getFreeSlots(0));
+        assertEquals(0, fsm.getFreeSlots(1));
+        assertEquals(3 * 504 - 1200, fsm.getFreeSlots(2));
+
+        pages = empty.deleteTuples(tid, tuples.subList(100, 110));
+        assertEquals(1, pages.size());
+        assertEquals(10, fsm.getFreeSlots(0));
+        assertEquals(0, fsm.findPage(0));
+
+        List<Tuple> more = new ArrayList<>();
+        for (int i = 0; i < 10; ++i)
+            more.add(Utility.getHeapTuple(i, 2));
+        pages = empty.insertTuples(tid, more);
+        assertEquals(1, pages.size());
+        assertEquals(0, pages.get(0).getId().getPageNumber());
+        assertEquals(2, fsm.findPage(0));
+
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(1200, count);
+    }
+
+    /**
+     * Aborting a transaction forgets the free space of the pages it filled,
+     * so that inserts look at them again.
+     */
+    @Test public void abortForgetsFreeSpace() throws Exception {
+        TransactionId aborted = new TransactionId();
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 600; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().insertTuples(aborted, empty.getId(), tuples);
+        FreeSpaceMap fsm = empty.getFreeSpaceMap();
+        assertEquals(0, fsm.getFreeSlots(0));
+
+        Database.getBufferPool().transactionComplete(aborted, false);
+        assertEquals(FreeSpaceMap.UNKNOWN, fsm.getFreeSlots(0));
+        assertEquals(FreeSpaceMap.UNKNOWN, fsm.getFreeSlots(1));
+        assertEquals(0, fsm.findPage(0));
+    }
+
+    /**
+     * The free space map is kept in a side file, which is written when the
+     * map is flushed rather than as each page is, and a side file that
+     * covers more pages than the heap file is ignored.
+     */
+    @Test public void freeSpaceMapPersisted() throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 600; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        // the pages the tuples need are appended at once
+        for (Page p : empty.insertTuples(tid, tuples))
+            empty.writePage(p);
+        assertEquals(2, empty.numPages());
+        // the side file still holds the pages as they were appended
+        FreeSpaceMap fsm = new HeapFile(empty.getFile(), empty.getTupleDesc()).getFreeSpaceMap();
+        assertEquals(504, fsm.getFreeSlots(0));
+        empty.getFreeSpaceMap().flush();
+
+        fsm = new HeapFile(empty.getFile(), empty.getTupleDesc()).getFreeSpaceMap();
+        assertTrue(fsm.getFile().exists());
+        assertEquals(2, fsm.numPages());
+        assertEquals(0, fsm.getFreeSlots(0));
+        assertEquals(2 * 504 - 600, fsm.getFreeSlots(1));
+        assertEquals(1, fsm.findPage(0));
+
+        File other = File.createTempFile("other", ".dat");
+        other.deleteOnExit();
+        File otherMap = new File(other.getPath() + FreeSpaceMap.SUFFIX);
+        otherMap.deleteOnExit();
+        Files.copy(fsm.getFile().toPath(), otherMap.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        fsm = new HeapFile(other, empty.getTupleDesc()).getFreeSpaceMap();
+        assertEquals(0, fsm.numPages());
+        assertEquals(-1, fsm.findPage(0));
+    }
+
+    /**
+     * Committing a transaction writes the free space of the pages it
+     * modified to the side file.
+     */
+    @Test public void freeSpaceMapFlushedAtCommit() throws Exception {
+        TransactionId committed = new TransactionId();
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 600; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().insertTuples(committed, empty.getId(), tuples);
+        Database.getBufferPool().transactionComplete(committed);
+
+        FreeSpaceMap fsm = new HeapFile(empty.getFile(), empty.getTupleDesc()).getFreeSpaceMap();
+        assertEquals(0, fsm.getFreeSlots(0));
+        assertEquals(2 * 504 - 600, fsm.getFreeSlots(1));
+    }
+
+    /**
+     * A full file is extended by a sixteenth of its size at once.
+     */
+    @Test public void bulkExtension() throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 32 * 504; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        empty.insertTuples(tid, tuples);
+        assertEquals(32, empty.numPages());
+        assertEquals(-1, empty.getFreeSpaceMap().findPage(0));
+
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(34, empty.numPages());
+        assertEquals(503, empty.getFreeSpaceMap().getFreeSlots(32));
+        assertEquals(504, empty.getFreeSpaceMap().getFreeSlots(33));
+    }
+
     @Test
     public void testAlternateEmptyAndFullPagesThenIterate() throws Exception {
         // Create HeapFile/Table
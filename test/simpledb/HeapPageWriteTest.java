@@ -132,6 +132,36 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * A tuple inserted after a delete takes the freed slot rather than
+     * overwriting a tuple in use.
+     */
+    @Test public void insertReusesDeletedSlot() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        int free = page.getNumEmptySlots();
+        Tuple[] tuples = new Tuple[5];
+        for (int i = 0; i < tuples.length; i++) {
+            tuples[i] = Utility.getHeapTuple(i, 2);
+            page.insertTuple(tuples[i]);
+            assertEquals(i, tuples[i].getRecordId().getTupleNumber());
+        }
+        page.deleteTuple(tuples[1]);
+        assertEquals(free - 4, page.getNumEmptySlots());
+
+        Tuple t = Utility.getHeapTuple(9, 2);
+        page.insertTuple(t);
+        assertEquals(1, t.getRecordId().getTupleNumber());
+        assertEquals(free - 5, page.getNumEmptySlots());
+        page.insertTuple(Utility.getHeapTuple(10, 2));
+        Iterator<Tuple> it = page.iterator();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        assertEquals(6, count);
+    }
+
     /**
      * JUnit suite target
      */
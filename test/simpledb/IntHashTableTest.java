@@ -0,0 +1,85 @@
+package simpledb;
+
+import simpledb.execution.IntHashTable;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class IntHashTableTest extends SimpleDbTestBase {
+
+    /**
+     * Keys can be added, looked up and replaced.
+     */
+    @Test
+    public void putAndGet() {
+        IntHashTable table = new IntHashTable();
+        assertEquals(IntHashTable.NOT_FOUND, table.get(42));
+        assertEquals(IntHashTable.NOT_FOUND, table.put(42, 7));
+        assertEquals(7, table.get(42));
+        assertEquals(7, table.put(42, 8));
+        assertEquals(8, table.get(42));
+        assertEquals(8, table.putIfAbsent(42, 9));
+        assertEquals(8, table.get(42));
+        assertEquals(IntHashTable.NOT_FOUND, table.putIfAbsent(0, 0));
+        assertEquals(0, table.get(0));
+        assertEquals(2, table.size());
+    }
+
+    /**
+     * The table grows past its initial capacity and agrees with a HashMap,
+     * including for negative keys and keys that differ only in high bits.
+     */
+    @Test
+    public void grow() {
+        IntHashTable table = new IntHashTable();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random rand = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            int key = (i % 3 == 0) ? i << 16 : rand.nextInt();
+            int value = rand.nextInt(Integer.MAX_VALUE);
+            Integer prev = expected.put(key, value);
+            assertEquals(prev == null ? IntHashTable.NOT_FOUND : prev, table.put(key, value));
+        }
+        assertEquals(expected.size(), table.size());
+        for (Map.Entry<Integer, Integer> e : expected.entrySet())
+            assertEquals((int) e.getValue(), table.get(e.getKey()));
+        for (int i = 0; i < 1000; i++) {
+            int key = rand.nextInt();
+            if (!expected.containsKey(key))
+                assertEquals(IntHashTable.NOT_FOUND, table.get(key));
+        }
+    }
+
+    /**
+     * Cleared tables are empty and can be filled again.
+     */
+    @Test
+    public void clear() {
+        IntHashTable table = new IntHashTable(100);
+        for (int i = 0; i < 100; i++)
+            table.put(i, i);
+        table.clear();
+        assertEquals(0, table.size());
+        for (int i = 0; i < 100; i++)
+            assertEquals(IntHashTable.NOT_FOUND, table.get(i));
+        table.put(5, 1);
+        assertEquals(1, table.get(5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeValue() {
+        new IntHashTable().put(1, -2);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntHashTableTest.class);
+    }
+}
@@ -214,6 +214,30 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertEquals(Boolean.TRUE, ret[0]);
     }
 
+    /**
+     * Each predicate is costed with the operator the planner builds for it:
+     * a hash join for equality, a sort-merge join for a range predicate
+     * unless a nested-loop join costs less, and a nested-loop join otherwise.
+     */
+    @Test
+    public void operatorCostTest() throws ParsingException, IOException {
+        TransactionId tid = new TransactionId();
+        JoinOptimizer jo = new JoinOptimizer(new Parser().generateLogicalPlan(tid, "SELECT * FROM "
+                + tableName1 + " t1, " + tableName2 + " t2 WHERE t1.c1 = t2.c2;"), new ArrayList<>());
+        Map<Predicate.Op, Double> big = new HashMap<>();
+        Map<Predicate.Op, Double> small = new HashMap<>();
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.NOT_EQUALS}) {
+            LogicalJoinNode j = new LogicalJoinNode(tableName1, tableName2, "1", "2", op);
+            big.put(op, jo.estimateJoinCost(j, 100000, 100000, 1000, 1000));
+            small.put(op, jo.estimateJoinCost(j, 1, 1000000, 10, 10000));
+        }
+        Assert.assertTrue(big.get(Predicate.Op.EQUALS) < big.get(Predicate.Op.LESS_THAN));
+        Assert.assertTrue(big.get(Predicate.Op.LESS_THAN) < big.get(Predicate.Op.NOT_EQUALS));
+        // a single outer tuple is cheaper to join with a nested loop than by sorting
+        Assert.assertEquals(small.get(Predicate.Op.NOT_EQUALS), small.get(Predicate.Op.LESS_THAN), 0.0);
+    }
+
     /**
      * Verify that the join cardinalities produced by estimateJoinCardinality()
      * are reasonable
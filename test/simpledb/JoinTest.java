@@ -1,5 +1,8 @@
 package simpledb;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -13,9 +16,13 @@ import simpledb.execution.Join;
 import simpledb.execution.JoinPredicate;
 import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
 
 public class JoinTest extends SimpleDbTestBase {
 
@@ -112,6 +119,39 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for the block nested-loop join: child2 is scanned once per
+   * block of child1 that fits in the memory budget
+   */
+  @Test public void blockJoin() throws Exception {
+    List<List<Integer>> tuples1 = new ArrayList<>();
+    List<List<Integer>> tuples2 = new ArrayList<>();
+    HeapFile table1 = SystemTestUtil.createRandomHeapFile(2, 3000, 100, null, tuples1);
+    HeapFile table2 = SystemTestUtil.createRandomHeapFile(2, 50, 100, null, tuples2);
+    List<List<Integer>> expected = new ArrayList<>();
+    for (List<Integer> row1 : tuples1) {
+      for (List<Integer> row2 : tuples2) {
+        if (row1.get(0).equals(row2.get(0))) {
+          List<Integer> row = new ArrayList<>(row1);
+          row.addAll(row2);
+          expected.add(row);
+        }
+      }
+    }
+
+    TransactionId tid = new TransactionId();
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    Join op = new Join(pred, new SeqScan(tid, table1.getId(), "a"), new SeqScan(tid, table2.getId(), "b"));
+    SystemTestUtil.matchTuples(op, expected);
+    assertEquals(1, op.getInnerScans());
+
+    op = new Join(pred, new SeqScan(tid, table1.getId(), "a"), new SeqScan(tid, table2.getId(), "b"));
+    op.setMemoryBudget(2048L * table1.getTupleDesc().getSize());
+    SystemTestUtil.matchTuples(op, expected);
+    // blocks are made of whole batches of child1
+    assertEquals(2, op.getInnerScans());
+  }
+
   /**
    * JUnit suite target
    */
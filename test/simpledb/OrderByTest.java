@@ -0,0 +1,129 @@
+package simpledb;
+
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class OrderByTest extends SimpleDbTestBase {
+    private List<List<Integer>> tuples;
+    private HeapFile table;
+    private TransactionId tid;
+
+    @Before
+    public void createTable() throws Exception {
+        tuples = new ArrayList<>();
+        table = SystemTestUtil.createRandomHeapFile(3, 3000, 50, null, tuples);
+        tid = new TransactionId();
+    }
+
+    private OrderBy orderBy(int[] fields, boolean[] asc) {
+        return new OrderBy(fields, asc, new SeqScan(tid, table.getId(), "t"));
+    }
+
+    /**
+     * Check that rows are sorted on the given fields, and hold the same
+     * rows as the table
+     */
+    private void assertSorted(List<List<Integer>> rows, int[] fields, boolean[] asc) {
+        assertEquals(tuples.size(), rows.size());
+        for (int i = 1; i < rows.size(); i++) {
+            for (int f = 0; f < fields.length; f++) {
+                int c = Integer.compare(rows.get(i - 1).get(fields[f]), rows.get(i).get(fields[f]));
+                if (!asc[f])
+                    c = -c;
+                assertTrue("rows " + (i - 1) + " and " + i + " are out of order", c <= 0);
+                if (c < 0)
+                    break;
+            }
+        }
+        Comparator<List<Integer>> all = (a, b) -> {
+            for (int i = 0; i < a.size(); i++) {
+                int c = Integer.compare(a.get(i), b.get(i));
+                if (c != 0)
+                    return c;
+            }
+            return 0;
+        };
+        List<List<Integer>> expected = new ArrayList<>(tuples);
+        List<List<Integer>> actual = new ArrayList<>(rows);
+        expected.sort(all);
+        actual.sort(all);
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * A child that fits in memory is sorted without spilling, on several fields.
+     */
+    @Test
+    public void inMemory() throws Exception {
+        int[] fields = {1, 2, 0};
+        boolean[] asc = {true, false, true};
+        OrderBy op = orderBy(fields, asc);
+        op.open();
+        assertSorted(SystemTestUtil.readAll(op), fields, asc);
+        assertEquals(0, op.getSpilledRuns());
+
+        op.rewind();
+        assertSorted(SystemTestUtil.readAll(op), fields, asc);
+        op.close();
+    }
+
+    /**
+     * A child larger than the memory budget is sorted in runs that are merged.
+     */
+    @Test
+    public void spill() throws Exception {
+        int[] fields = {0, 1};
+        boolean[] asc = {false, true};
+        OrderBy op = orderBy(fields, asc);
+        op.setMemoryBudget(500L * table.getTupleDesc().getSize());
+        op.open();
+        assertSorted(SystemTestUtil.readAll(op), fields, asc);
+        assertEquals(6, op.getSpilledRuns());
+        assertEquals(0, op.getMergePasses());
+        assertTrue(op.getSpilledBytes() > 0);
+
+        op.rewind();
+        assertSorted(SystemTestUtil.readAll(op), fields, asc);
+        op.close();
+    }
+
+    /**
+     * More runs than can be merged at once are merged in several passes.
+     */
+    @Test
+    public void multiPassMerge() throws Exception {
+        int[] fields = {2};
+        boolean[] asc = {true};
+        OrderBy op = orderBy(fields, asc);
+        op.setMemoryBudget(20L * table.getTupleDesc().getSize());
+        op.open();
+        List<List<Integer>> rows = new ArrayList<>();
+        TupleBatch batch;
+        while ((batch = op.nextBatch()) != null) {
+            for (int i = 0; i < batch.numSelected(); i++)
+                rows.add(SystemTestUtil.tupleToList(batch.getTuple(batch.selected(i))));
+        }
+        op.close();
+        assertSorted(rows, fields, asc);
+        assertTrue(op.getMergePasses() > 0);
+        assertEquals(150 + op.getMergePasses(), op.getSpilledRuns());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
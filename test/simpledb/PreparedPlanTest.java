@@ -0,0 +1,184 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.Query;
+import simpledb.optimizer.PreparedPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileLoader;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PreparedPlanTest extends SimpleDbTestBase {
+
+    private static final String QUERY = "SELECT a.a0, b.b1, c.c1 FROM pa a, pb b, pc c "
+            + "WHERE a.a0 = b.b0 AND b.b1 = c.c0 AND a.a1 < ? AND c.c1 = ?;";
+
+    private List<List<Integer>> tuplesA, tuplesB, tuplesC;
+    private final TransactionId tid = new TransactionId();
+
+    @Before
+    public void setUp() throws Exception {
+        Database.getCatalog().addTable(new HeapFile(
+                SystemTestUtil.createRandomHeapFileUnopened(2, 300, 20, null, tuplesA = new ArrayList<>()),
+                Utility.getTupleDesc(2, "a")), "pa");
+        Database.getCatalog().addTable(new HeapFile(
+                SystemTestUtil.createRandomHeapFileUnopened(2, 200, 20, null, tuplesB = new ArrayList<>()),
+                Utility.getTupleDesc(2, "b")), "pb");
+        Database.getCatalog().addTable(new HeapFile(
+                SystemTestUtil.createRandomHeapFileUnopened(2, 100, 20, null, tuplesC = new ArrayList<>()),
+                Utility.getTupleDesc(2, "c")), "pc");
+        for (String name : new String[]{"pa", "pb", "pc"})
+            TableStats.setTableStats(name, new TableStats(Database.getCatalog().getTableId(name), 1000));
+    }
+
+    /**
+     * @return the result of QUERY with the specified parameters
+     */
+    private List<List<Integer>> expected(int maxA1, int c1) {
+        List<List<Integer>> result = new ArrayList<>();
+        for (List<Integer> a : tuplesA) {
+            if (a.get(1) >= maxA1)
+                continue;
+            for (List<Integer> b : tuplesB) {
+                if (!a.get(0).equals(b.get(0)))
+                    continue;
+                for (List<Integer> c : tuplesC) {
+                    if (b.get(1).equals(c.get(0)) && c.get(1) == c1)
+                        result.add(Arrays.asList(a.get(0), b.get(1), c.get(1)));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parameters are the ? outside quoted strings, marked with a prefix that
+     * is not in the statement, and EXECUTE takes integers and quoted strings
+     * as their values.
+     */
+    @Test
+    public void parameters() throws Exception {
+        assertEquals("SELECT * FROM t WHERE t.a = '#1' AND t.s = '?' AND t.b < '#2';",
+                Parser.markParameters("SELECT * FROM t WHERE t.a = ? AND t.s = '?' AND t.b < ?;", "#"));
+        assertEquals("?param", Parser.parameterMarker("SELECT * FROM t WHERE t.a = ?;"));
+        assertEquals("?param__", Parser.parameterMarker("SELECT * FROM t WHERE t.s = '?param_1';"));
+        assertEquals(Arrays.asList("1", "-2", "a, b"), Parser.parseParameters(" 1, -2 ,'a, b'"));
+        assertEquals(Collections.emptyList(), Parser.parseParameters(null));
+        try {
+            Parser.parseParameters("1, x");
+            fail("expected ParsingException");
+        } catch (ParsingException ignored) {
+        }
+    }
+
+    /**
+     * A prepared statement gives the same results as the query with its
+     * constants in place, and orders its joins once.
+     */
+    @Test
+    public void reusesJoinOrder() throws Exception {
+        PreparedPlan plan = new Parser().handlePrepareStatement("q", QUERY);
+        assertEquals(2, plan.numParameters());
+        Map<String, TableStats> stats = TableStats.getStatsMap();
+
+        for (int[] values : new int[][]{{10, 3}, {30, 7}, {5, 15}}) {
+            Query q = plan.bind(tid, Arrays.asList(String.valueOf(values[0]), String.valueOf(values[1])),
+                    stats, false);
+            SystemTestUtil.matchTuples(q.getPhysicalPlan(), expected(values[0], values[1]));
+        }
+        assertEquals(1, plan.getPlanCount());
+        assertEquals(3, plan.getExecutionCount());
+
+        // a small change in the size of a table keeps the join order
+        Map<String, TableStats> changed = new HashMap<>(stats);
+        changed.put("pc", new TableStats(Database.getCatalog().getTableId("pb"), 1000));
+        plan.bind(tid, Arrays.asList("10", "3"), changed, false);
+        assertEquals(1, plan.getPlanCount());
+
+        // a table that grew more than STATS_CHANGE_FACTOR times is planned again
+        changed.put("pc", new TableStats(Database.getCatalog().getTableId("pa"), 1000));
+        Query q = plan.bind(tid, Arrays.asList("10", "3"), changed, false);
+        assertEquals(2, plan.getPlanCount());
+        SystemTestUtil.matchTuples(q.getPhysicalPlan(), expected(10, 3));
+    }
+
+    /**
+     * Parameters must all be bound, to values of the type of their field.
+     */
+    @Test
+    public void invalidBindings() throws Exception {
+        PreparedPlan plan = new Parser().handlePrepareStatement("q", QUERY);
+        Map<String, TableStats> stats = TableStats.getStatsMap();
+        for (List<String> values : Arrays.asList(Collections.singletonList("1"),
+                Arrays.asList("1", "2", "3"), Arrays.asList("1", "x"))) {
+            try {
+                plan.bind(tid, values, stats, false);
+                fail("expected ParsingException for " + values);
+            } catch (ParsingException ignored) {
+            }
+        }
+        try {
+            new Parser().generateParameterizedPlan(tid, QUERY).physicalPlan(tid, stats, false);
+            fail("expected ParsingException");
+        } catch (ParsingException ignored) {
+        }
+        try {
+            new Parser().handlePrepareStatement("s",
+                    "SELECT a.a0 FROM pa a WHERE a.a0 IN (SELECT b.b0 FROM pb b WHERE b.b1 = ?);");
+            fail("expected ParsingException");
+        } catch (ParsingException ignored) {
+        }
+    }
+
+    /**
+     * A quoted constant that looks like a parameter is an ordinary constant,
+     * in a query and in a prepared statement.
+     */
+    @Test
+    public void literalLikeParameter() throws Exception {
+        File in = File.createTempFile("prepared", ".txt");
+        in.deleteOnExit();
+        try (Writer w = new FileWriter(in)) {
+            w.write("?1|1\n?2|2\nx|3\n");
+        }
+        File out = File.createTempFile("prepared", ".dat");
+        out.deleteOnExit();
+        Type[] types = {Type.STRING_TYPE, Type.INT_TYPE};
+        new HeapFileLoader(types, '|', BufferPool.getPageSize()).load(in, out);
+        Database.getCatalog().addTable(new HeapFile(out, new TupleDesc(types, new String[]{"s0", "s1"})), "ps");
+        TableStats.setTableStats("ps", new TableStats(Database.getCatalog().getTableId("ps"), 1000));
+        Map<String, TableStats> stats = TableStats.getStatsMap();
+
+        SystemTestUtil.matchTuples(new Parser().generateLogicalPlan(tid,
+                "SELECT s.s1 FROM ps s WHERE s.s0 = '?1';").physicalPlan(tid, stats, false),
+                Collections.singletonList(Collections.singletonList(1)));
+
+        PreparedPlan plan = new Parser().handlePrepareStatement("s",
+                "SELECT s.s1 FROM ps s WHERE s.s0 = '?2' AND s.s1 < ?;");
+        assertEquals(1, plan.numParameters());
+        SystemTestUtil.matchTuples(plan.bind(tid, Collections.singletonList("5"), stats, false).getPhysicalPlan(),
+                Collections.singletonList(Collections.singletonList(2)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PreparedPlanTest.class);
+    }
+}
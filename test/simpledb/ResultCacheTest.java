@@ -0,0 +1,176 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.*;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ResultCacheTest extends SimpleDbTestBase {
+
+    /**
+     * Run a scan of a table as a query that offers its result to the cache.
+     *
+     * @return the tuples of the table
+     */
+    private static List<List<Integer>> run(ResultCache cache, String sql, HeapFile table) throws Exception {
+        TransactionId tid = new TransactionId();
+        Query q = new Query(new SeqScan(tid, table.getId(), "t"), tid);
+        q.setResultCache(cache, sql);
+        q.start();
+        List<List<Integer>> result = new ArrayList<>();
+        while (q.hasNext())
+            result.add(SystemTestUtil.tupleToList(q.next()));
+        q.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return result;
+    }
+
+    private static List<List<Integer>> toLists(List<Tuple> tuples) {
+        List<List<Integer>> result = new ArrayList<>();
+        for (Tuple t : tuples)
+            result.add(SystemTestUtil.tupleToList(t));
+        return result;
+    }
+
+    /**
+     * Statements that only differ in white space outside quotes or a
+     * trailing semicolon have the same key.
+     */
+    @Test
+    public void normalize() {
+        assertEquals("SELECT * FROM t WHERE t.a = 1",
+                ResultCache.normalize("  SELECT *\n\tFROM t  WHERE t.a = 1 ;\n"));
+        assertEquals("SELECT * FROM t WHERE t.s = 'a  b'",
+                ResultCache.normalize("SELECT * FROM t WHERE t.s = 'a  b';"));
+        assertTrue(ResultCache.isCacheable(" select * from t;"));
+        assertFalse(ResultCache.isCacheable("INSERT INTO t VALUES (1, 2);"));
+    }
+
+    /**
+     * A result read completely is returned until its table is modified, and
+     * is not cached while a modification of the table is uncommitted.
+     */
+    @Test
+    public void invalidatedByWrites() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 1000, null, tuples);
+        ResultCache cache = new ResultCache();
+
+        assertNull(cache.get("SELECT * FROM t;"));
+        assertEquals(tuples, run(cache, "SELECT * FROM t;", table));
+        ResultCache.Result r = cache.get("SELECT *  FROM t");
+        assertNotNull(r);
+        assertEquals(tuples, toLists(r.getTuples()));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        TransactionId writer = new TransactionId();
+        Tuple t = new Tuple(table.getTupleDesc());
+        t.setField(0, new IntField(-1));
+        t.setField(1, new IntField(-1));
+        Database.getBufferPool().insertTuple(writer, table.getId(), t);
+        assertNull(cache.get("SELECT * FROM t;"));
+        assertEquals(0, cache.size());
+
+        // the writer has not committed, so a result that may include its
+        // tuple is not cached
+        ResultCache.Snapshot snapshot = ResultCache.snapshot(new SeqScan(writer, table.getId(), "t"));
+        assertFalse(cache.put("SELECT * FROM t;", table.getTupleDesc(), Collections.singletonList(t), snapshot));
+        assertNull(cache.get("SELECT * FROM t;"));
+
+        Database.getBufferPool().transactionComplete(writer);
+        tuples.add(Arrays.asList(-1, -1));
+        assertEquals(tuples, run(cache, "SELECT * FROM t;", table));
+        assertEquals(tuples, toLists(cache.get("SELECT * FROM t;").getTuples()));
+    }
+
+    /**
+     * Results are evicted in least recently used order once the cached
+     * tuples exceed the memory budget.
+     */
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        ResultCache cache = new ResultCache();
+        List<List<Integer>> result = run(cache, "SELECT * FROM t", table);
+        long size = cache.getBytes();
+        assertTrue(size >= ResultCache.sizeOf(table.getTupleDesc(), result.size()));
+        cache.setMaxBytes(size * 2 + size / 2);
+
+        run(cache, "SELECT * FROM t ", table);
+        assertEquals(1, cache.size());
+        run(cache, "SELECT * FROM  t;", table);
+        assertEquals(1, cache.size());
+
+        run(cache, "select * from t", table);
+        assertEquals(2, cache.size());
+        // use the first result, so that the second is the least recently used
+        assertNotNull(cache.get("SELECT * FROM t"));
+        run(cache, "SELECT t.* FROM t", table);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNotNull(cache.get("SELECT * FROM t"));
+        assertNull(cache.get("select * from t"));
+        assertTrue(cache.getBytes() <= cache.getMaxBytes());
+
+        // a result larger than the whole budget is not cached
+        cache.setMaxBytes(size / 2);
+        assertEquals(0, cache.size());
+        run(cache, "SELECT * FROM t", table);
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * A SELECT in a user transaction is not answered from the cache, so that
+     * it locks the pages it reads until the transaction ends, and its result
+     * is not cached.
+     */
+    @Test
+    public void bypassedInTransactions() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 100, null, null, "c");
+        Database.getCatalog().addTable(table, "rc");
+        TableStats.setTableStats("rc", new TableStats(table.getId(), 1000));
+        ResultCache cache = Database.getResultCache();
+        Parser p = new Parser();
+        p.processNextStatement("SELECT * FROM rc r;");
+        assertEquals(1, cache.size());
+
+        p.processNextStatement("SET TRANSACTION READ WRITE;");
+        p.processNextStatement("SELECT * FROM rc r;");
+        assertEquals(0, cache.getHits());
+        p.processNextStatement("SELECT * FROM rc r WHERE r.c0 > 0;");
+        assertEquals(1, cache.size());
+
+        // the reader keeps its lock on the table, so a writer can not change
+        // it before the reader ends
+        TransactionId writer = new TransactionId();
+        try {
+            Database.getBufferPool().getPage(writer, new HeapPageId(table.getId(), 0), Permissions.READ_WRITE);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException ignored) {
+        }
+        Database.getBufferPool().transactionComplete(writer, false);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ResultCacheTest.class);
+    }
+}
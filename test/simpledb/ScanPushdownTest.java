@@ -0,0 +1,108 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ScanPushdownTest extends SimpleDbTestBase {
+
+    /**
+     * A SeqScan with predicates and fields pushed down returns the fields of
+     * the tuples that pass every predicate, in batches or one at a time.
+     */
+    @Test
+    public void seqScan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(4, 5000, 100, null, tuples);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> row : tuples)
+            if (row.get(0) < 50 && row.get(3) >= 20)
+                expected.add(Arrays.asList(row.get(3), row.get(1)));
+
+        Predicate[] preds = new Predicate[]{
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(50)),
+                new Predicate(3, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(20))};
+        SeqScan scan = new SeqScan(new TransactionId(), table.getId(), "t", preds, new int[]{3, 1});
+        assertEquals(2, scan.getTupleDesc().numFields());
+        assertEquals("t." + table.getTupleDesc().getFieldName(3), scan.getTupleDesc().getFieldName(0));
+        scan.open();
+        assertEquals(expected, SystemTestUtil.readAll(scan));
+        scan.rewind();
+        List<List<Integer>> batched = new ArrayList<>();
+        TupleBatch batch;
+        while ((batch = scan.nextBatch()) != null)
+            for (int i = 0; i < batch.numSelected(); i++)
+                batched.add(SystemTestUtil.tupleToList(batch.getTuple(batch.selected(i))));
+        assertEquals(expected, batched);
+        scan.close();
+    }
+
+    /**
+     * The planner pushes the filters of a table into its scan, which only
+     * returns the fields the rest of the plan uses.
+     */
+    @Test
+    public void planner() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(4, 3000, 100, null, tuples);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(4, "c"));
+        Database.getCatalog().addTable(table, "pushdown");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("pushdown", new TableStats(table.getId(), 1000));
+        TransactionId tid = new TransactionId();
+
+        int maxParallelism = LogicalPlan.getMaxParallelism();
+        try {
+            LogicalPlan.setMaxParallelism(1);
+            OpIterator plan = new Parser().generateLogicalPlan(tid,
+                    "SELECT t.c2 FROM pushdown t WHERE t.c0 > 30 AND t.c3 < 60;")
+                    .physicalPlan(tid, stats, false);
+            SeqScan scan = (SeqScan) ((Operator) plan).getChildren()[0];
+            assertEquals(2, scan.getPredicates().length);
+            assertArrayEquals(new int[]{2}, scan.getFields());
+
+            List<List<Integer>> expected = new ArrayList<>();
+            for (List<Integer> row : tuples)
+                if (row.get(0) > 30 && row.get(3) < 60)
+                    expected.add(Collections.singletonList(row.get(2)));
+            plan.open();
+            assertEquals(expected, SystemTestUtil.readAll(plan));
+            plan.close();
+
+            // COUNT(*) still reads one field
+            plan = new Parser().generateLogicalPlan(tid, "SELECT COUNT(*) FROM pushdown t WHERE t.c1 = 7;")
+                    .physicalPlan(tid, stats, false);
+            int count = 0;
+            for (List<Integer> row : tuples)
+                if (row.get(1) == 7)
+                    count++;
+            plan.open();
+            assertEquals(Collections.singletonList(Collections.singletonList(count)), SystemTestUtil.readAll(plan));
+            plan.close();
+        } finally {
+            LogicalPlan.setMaxParallelism(maxParallelism);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ScanPushdownTest.class);
+    }
+}
@@ -0,0 +1,139 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SemiJoinTest extends SimpleDbTestBase {
+    private List<List<Integer>> tuples1;
+    private List<List<Integer>> tuples2;
+    private HeapFile table1;
+    private HeapFile table2;
+    private TransactionId tid;
+
+    @Before
+    public void createTables() throws Exception {
+        tuples1 = new ArrayList<>();
+        tuples2 = new ArrayList<>();
+        table1 = SystemTestUtil.createRandomHeapFile(2, 5000, 4000, null, tuples1);
+        table2 = SystemTestUtil.createRandomHeapFile(2, 3000, 4000, null, tuples2);
+        tid = new TransactionId();
+    }
+
+    /**
+     * @return the tuples of left whose first field is (or, if anti, is not)
+     * the first field of a tuple of right
+     */
+    private static List<List<Integer>> expected(List<List<Integer>> left, List<List<Integer>> right,
+                                                boolean anti) {
+        Set<Integer> keys = new HashSet<>();
+        for (List<Integer> row : right)
+            keys.add(row.get(0));
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> row : left)
+            if (keys.contains(row.get(0)) != anti)
+                expected.add(row);
+        return expected;
+    }
+
+    private SemiJoin join(boolean anti) {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        SeqScan s1 = new SeqScan(tid, table1.getId(), "a");
+        SeqScan s2 = new SeqScan(tid, table2.getId(), "b");
+        return anti ? new AntiJoin(p, s1, s2) : new SemiJoin(p, s1, s2);
+    }
+
+    /**
+     * Each tuple of child1 is returned once if it matches (or, for an
+     * anti-join, does not match) a tuple of child2, without spilling.
+     */
+    @Test
+    public void inMemory() throws Exception {
+        for (boolean anti : new boolean[]{false, true}) {
+            SemiJoin join = join(anti);
+            assertEquals(table1.getTupleDesc().numFields(), join.getTupleDesc().numFields());
+            SystemTestUtil.matchTuples(join, expected(tuples1, tuples2, anti));
+            assertEquals(0, join.getSpilledPartitions());
+        }
+    }
+
+    /**
+     * Join keys beyond the memory budget are partitioned with child1, and the
+     * partitions joined afterwards with the same result.
+     */
+    @Test
+    public void spill() throws Exception {
+        for (boolean anti : new boolean[]{false, true}) {
+            SemiJoin join = join(anti);
+            join.setMemoryBudget(200L * Integer.BYTES);
+            SystemTestUtil.matchTuples(join, expected(tuples1, tuples2, anti));
+            assertTrue(join.getSpilledPartitions() > 0);
+            assertTrue(join.getSpilledBuildTuples() > 0);
+            assertEquals(tuples1.size(), join.getSpilledProbeTuples());
+            assertTrue(join.getSpilledBytes() > 0);
+        }
+    }
+
+    /**
+     * IN and NOT EXISTS subqueries are planned as semi-joins and anti-joins,
+     * and SELECT DISTINCT removes duplicates from the output.
+     */
+    @Test
+    public void planner() throws Exception {
+        Database.getCatalog().addTable(new HeapFile(
+                SystemTestUtil.createRandomHeapFileUnopened(2, 500, 50, null, tuples1 = new ArrayList<>()),
+                Utility.getTupleDesc(2, "a")), "outer_t");
+        Database.getCatalog().addTable(new HeapFile(
+                SystemTestUtil.createRandomHeapFileUnopened(2, 100, 50, null, tuples2 = new ArrayList<>()),
+                Utility.getTupleDesc(2, "b")), "inner_t");
+        // subqueries are planned with the global statistics
+        for (String name : new String[]{"outer_t", "inner_t"})
+            TableStats.setTableStats(name, new TableStats(Database.getCatalog().getTableId(name), 1000));
+        Map<String, TableStats> stats = TableStats.getStatsMap();
+        List<List<Integer>> filtered = new ArrayList<>();
+        for (List<Integer> row : tuples2)
+            if (row.get(1) < 25)
+                filtered.add(row);
+
+        OpIterator plan = new Parser().generateLogicalPlan(tid,
+                "SELECT o.a0, o.a1 FROM outer_t o WHERE o.a0 IN (SELECT i.b0 FROM inner_t i WHERE i.b1 < 25);")
+                .physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof SemiJoin);
+        SystemTestUtil.matchTuples(plan, expected(tuples1, filtered, false));
+
+        plan = new Parser().generateLogicalPlan(tid,
+                "SELECT o.a0, o.a1 FROM outer_t o WHERE NOT EXISTS "
+                        + "(SELECT i.b1 FROM inner_t i WHERE i.b0 = o.a0 AND i.b1 < 25);")
+                .physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof AntiJoin);
+        SystemTestUtil.matchTuples(plan, expected(tuples1, filtered, true));
+
+        plan = new Parser().generateLogicalPlan(tid, "SELECT DISTINCT o.a1 FROM outer_t o;")
+                .physicalPlan(tid, stats, false);
+        assertTrue(plan instanceof Distinct);
+        Set<List<Integer>> distinct = new HashSet<>();
+        for (List<Integer> row : tuples1)
+            distinct.add(Collections.singletonList(row.get(1)));
+        SystemTestUtil.matchTuples(plan, new ArrayList<>(distinct));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SemiJoinTest.class);
+    }
+}
@@ -0,0 +1,153 @@
+package simpledb;
+
+import simpledb.execution.*;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+    private List<List<Integer>> tuples1;
+    private List<List<Integer>> tuples2;
+    private HeapFile table1;
+    private HeapFile table2;
+    private TransactionId tid;
+
+    /**
+     * Create two tables with a small range of join keys, so that both sides
+     * have many duplicate keys.
+     */
+    @Before
+    public void createTables() throws Exception {
+        tuples1 = new ArrayList<>();
+        tuples2 = new ArrayList<>();
+        table1 = SystemTestUtil.createRandomHeapFile(2, 200, 50, null, tuples1, "c");
+        table2 = SystemTestUtil.createRandomHeapFile(2, 150, 50, null, tuples2, "c");
+        tid = new TransactionId();
+    }
+
+    private List<List<Integer>> expected(Predicate.Op op) {
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> row1 : tuples1) {
+            for (List<Integer> row2 : tuples2) {
+                if (Predicate.compare(row1.get(0), op, row2.get(0))) {
+                    List<Integer> row = new ArrayList<>(row1);
+                    row.addAll(row2);
+                    expected.add(row);
+                }
+            }
+        }
+        return expected;
+    }
+
+    /**
+     * Equality and range joins return the same tuples as a nested loop.
+     */
+    @Test
+    public void join() throws Exception {
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ}) {
+            SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                    new SeqScan(tid, table1.getId(), "a"), new SeqScan(tid, table2.getId(), "b"));
+            SystemTestUtil.matchTuples(join, expected(op));
+        }
+    }
+
+    /**
+     * A range join whose child2 does not fit in the memory budget merges
+     * child1 with each chunk of child2 that does.
+     */
+    @Test
+    public void chunkedRangeJoin() throws Exception {
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ}) {
+            SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                    new SeqScan(tid, table1.getId(), "a"), new SeqScan(tid, table2.getId(), "b"));
+            join.setMemoryBudget(40L * table2.getTupleDesc().getSize());
+            SystemTestUtil.matchTuples(join, expected(op));
+            assertEquals(4, join.getChunks());
+        }
+    }
+
+    /**
+     * Inputs that already come in key order are used as they are.
+     */
+    @Test
+    public void sortedInputs() throws Exception {
+        OrderBy sorted1 = new OrderBy(0, true, new SeqScan(tid, table1.getId(), "a"));
+        Filter sorted2 = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)),
+                new OrderBy(0, true, new SeqScan(tid, table2.getId(), "b")));
+        assertTrue(SortMergeJoin.isSortedOn(sorted1, 0));
+        assertTrue(SortMergeJoin.isSortedOn(sorted2, 0));
+        assertFalse(SortMergeJoin.isSortedOn(sorted1, 1));
+        assertFalse(SortMergeJoin.isSortedOn(new OrderBy(0, false, new SeqScan(tid, table1.getId(), "a")), 0));
+        assertFalse(SortMergeJoin.isSortedOn(new SeqScan(tid, table1.getId(), "a"), 0));
+
+        SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), sorted1, sorted2);
+        SystemTestUtil.matchTuples(join, expected(Predicate.Op.EQUALS));
+
+        // the join can be rewound
+        join.open();
+        join.rewind();
+        int count = 0;
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        join.close();
+        assertEquals(expected(Predicate.Op.EQUALS).size(), count);
+    }
+
+    /**
+     * The planner uses a sort-merge join for range predicates unless a
+     * nested-loop join costs less, and for equality only when both inputs
+     * are sorted on their keys.
+     */
+    @Test
+    public void planner() throws Exception {
+        String field = table1.getTupleDesc().getFieldName(0);
+        LogicalJoinNode lt = new LogicalJoinNode("a", "b", field, field, Predicate.Op.LESS_THAN);
+        assertTrue(JoinOptimizer.instantiateJoin(lt, new SeqScan(tid, table1.getId(), "a"),
+                new SeqScan(tid, table2.getId(), "b")) instanceof SortMergeJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(lt, new SeqScan(tid, table1.getId(), "a"),
+                new SeqScan(tid, table2.getId(), "b"), 200, 150, 100, 100) instanceof SortMergeJoin);
+        // sorting a large child2 costs more than scanning it once for a single tuple
+        assertTrue(JoinOptimizer.instantiateJoin(lt, new SeqScan(tid, table1.getId(), "a"),
+                new SeqScan(tid, table2.getId(), "b"), 1, 1000000, 100, 100000) instanceof Join);
+
+        LogicalJoinNode eq = new LogicalJoinNode("a", "b", field, field, Predicate.Op.EQUALS);
+        assertTrue(JoinOptimizer.instantiateJoin(eq, new SeqScan(tid, table1.getId(), "a"),
+                new SeqScan(tid, table2.getId(), "b")) instanceof HashEquiJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(eq,
+                new OrderBy(0, true, new SeqScan(tid, table1.getId(), "a")),
+                new OrderBy(0, true, new SeqScan(tid, table2.getId(), "b"))) instanceof SortMergeJoin);
+
+        LogicalJoinNode ne = new LogicalJoinNode("a", "b", field, field, Predicate.Op.NOT_EQUALS);
+        assertTrue(JoinOptimizer.instantiateJoin(ne, new SeqScan(tid, table1.getId(), "a"),
+                new SeqScan(tid, table2.getId(), "b")) instanceof Join);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedPredicate() {
+        new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0),
+                new SeqScan(tid, table1.getId(), "a"), new SeqScan(tid, table2.getId(), "b"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
@@ -1,7 +1,9 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.junit.Before;
@@ -15,9 +17,11 @@ import simpledb.optimizer.TableStats;
 import simpledb.storage.Field;
 import simpledb.storage.HeapFile;
 import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 public class TableStatsTest extends SimpleDbTestBase {
 	public static final int IO_COST = 71;
@@ -161,4 +165,94 @@ public class TableStatsTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Statistics from a sample of the pages of a table estimate the number of
+	 * its tuples and the selectivity of predicates over them.
+	 */
+	@Test public void sampledStatisticsTest() {
+		TableStats.setSampleRate(0.2);
+		try {
+			TableStats s = new TableStats(this.tableId, IO_COST);
+			// every page of the table is full, so the estimate is exact
+			Assert.assertEquals(10200, s.totalTuples());
+			for (int col = 0; col < 10; col++) {
+				Assert.assertEquals(1.0/32.0, s.estimateSelectivity(col, Predicate.Op.EQUALS, new IntField(16)), 0.015);
+				Assert.assertEquals(0.5, s.estimateSelectivity(col, Predicate.Op.LESS_THAN, new IntField(16)), 0.1);
+				Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.GREATER_THAN, new IntField(42)), 0.001);
+			}
+		} finally {
+			TableStats.setSampleRate(1.0);
+		}
+	}
+
+	private Tuple tupleOf(int value) {
+		Tuple t = new Tuple(f.getTupleDesc());
+		for (int col = 0; col < 10; col++)
+			t.setField(col, new IntField(value));
+		return t;
+	}
+
+	/**
+	 * The statistics in the shared map follow the tuples inserted and deleted
+	 * through the buffer pool, and are computed again once more than
+	 * REFRESH_FRACTION of the table has changed.
+	 */
+	@Test public void incrementalMaintenanceTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(this.tableName, s);
+		TransactionId tid = new TransactionId();
+		List<Tuple> inserted = new ArrayList<>();
+		for (int i = 0; i < 2100; i++)
+			inserted.add(tupleOf(100));
+		Database.getBufferPool().insertTuples(tid, this.tableId, inserted);
+		Database.getBufferPool().deleteTuples(tid, inserted.subList(0, 100));
+		Assert.assertEquals(12200, s.totalTuples());
+		Assert.assertEquals(2200, s.getModifications());
+		Assert.assertEquals(2000.0 / 12200, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(100)), 0.001);
+		Assert.assertTrue(s.isStale());
+
+		// the commit refreshes the statistics in the background
+		Database.getBufferPool().transactionComplete(tid);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (TableStats.getTableStats(this.tableName) == s && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		TableStats fresh = TableStats.getTableStats(this.tableName);
+		Assert.assertNotSame(s, fresh);
+		Assert.assertEquals(12200, fresh.totalTuples());
+		Assert.assertEquals(0, fresh.getModifications());
+		Assert.assertFalse(fresh.isStale());
+	}
+
+	/**
+	 * Statistics saved next to the catalog are reused as long as the file of
+	 * their table is unchanged.
+	 */
+	@Test public void persistedStatisticsTest() throws Exception {
+		File statsFile = File.createTempFile("catalog", TableStats.STATS_SUFFIX);
+		statsFile.deleteOnExit();
+		Assert.assertTrue(statsFile.delete());
+		try {
+			TableStats.computeStatistics(statsFile);
+			Assert.assertTrue(statsFile.exists());
+			TableStats saved = TableStats.getTableStats(this.tableName);
+			saved.addTuples(Collections.singletonList(tupleOf(5)));
+			TableStats.saveStatistics();
+
+			TableStats.computeStatistics(statsFile);
+			TableStats loaded = TableStats.getTableStats(this.tableName);
+			Assert.assertNotSame(saved, loaded);
+			Assert.assertEquals(1, loaded.getModifications());
+			Assert.assertEquals(saved.totalTuples(), loaded.totalTuples());
+			for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.EQUALS, Predicate.Op.LESS_THAN})
+				Assert.assertEquals(saved.estimateSelectivity(3, op, new IntField(5)),
+						loaded.estimateSelectivity(3, op, new IntField(5)), 1e-9);
+
+			Assert.assertTrue(f.getFile().setLastModified(f.getFile().lastModified() - 10000));
+			TableStats.computeStatistics(statsFile);
+			Assert.assertEquals(0, TableStats.getTableStats(this.tableName).getModifications());
+			Assert.assertEquals(10200, TableStats.getTableStats(this.tableName).totalTuples());
+		} finally {
+			TableStats.computeStatistics(null);
+		}
+	}
 }
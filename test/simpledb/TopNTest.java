@@ -0,0 +1,152 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class TopNTest extends SimpleDbTestBase {
+    private List<List<Integer>> tuples;
+    private HeapFile table;
+    private TransactionId tid;
+
+    @Before
+    public void createTable() throws Exception {
+        tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(3, 5000, 1000, null, tuples);
+        table = new HeapFile(f, Utility.getTupleDesc(3, "c"));
+        Database.getCatalog().addTable(table, "topn");
+        tid = new TransactionId();
+    }
+
+    /**
+     * @return the rows sorted on field 1 descending and then field 0
+     * ascending, and cut to the first n
+     */
+    private List<List<Integer>> expected(int n) {
+        List<List<Integer>> sorted = new ArrayList<>(tuples);
+        sorted.sort((a, b) -> {
+            int c = Integer.compare(b.get(1), a.get(1));
+            return c != 0 ? c : Integer.compare(a.get(0), b.get(0));
+        });
+        return sorted.subList(0, Math.min(n, sorted.size()));
+    }
+
+    private static List<Integer> sortKeys(List<List<Integer>> rows) {
+        List<Integer> keys = new ArrayList<>();
+        for (List<Integer> row : rows) {
+            keys.add(row.get(1));
+            keys.add(row.get(0));
+        }
+        return keys;
+    }
+
+    /**
+     * TopN returns the first n tuples in order, for limits smaller and
+     * larger than a batch and larger than the input.
+     */
+    @Test
+    public void topN() throws Exception {
+        for (int n : new int[]{0, 1, 10, 1500, 6000}) {
+            TopN op = new TopN(new int[]{1, 0}, new boolean[]{false, true}, n,
+                    new SeqScan(tid, table.getId(), "t"));
+            op.open();
+            List<List<Integer>> rows = SystemTestUtil.readAll(op);
+            op.close();
+            // ties on both sort fields may come in either order
+            assertEquals(sortKeys(expected(n)), sortKeys(rows));
+        }
+    }
+
+    /**
+     * TopN can be rewound without reading its child again.
+     */
+    @Test
+    public void rewind() throws Exception {
+        TopN op = new TopN(new int[]{2}, new boolean[]{true}, 50, new SeqScan(tid, table.getId(), "t"));
+        op.open();
+        List<List<Integer>> first = SystemTestUtil.readAll(op);
+        op.rewind();
+        TupleBatch batch = op.nextBatch();
+        assertEquals(50, batch.numSelected());
+        for (int i = 0; i < 50; i++)
+            assertEquals(first.get(i), SystemTestUtil.tupleToList(batch.getTuple(batch.selected(i))));
+        assertNull(op.nextBatch());
+        op.close();
+    }
+
+    /**
+     * Limit stops after n tuples, in batches and one at a time.
+     */
+    @Test
+    public void limit() throws Exception {
+        Limit op = new Limit(1500, new SeqScan(tid, table.getId(), "t"));
+        op.open();
+        assertEquals(tuples.subList(0, 1500), SystemTestUtil.readAll(op));
+        op.close();
+        op = new Limit(0, new SeqScan(tid, table.getId(), "t"));
+        op.open();
+        assertEquals(0, SystemTestUtil.readAll(op).size());
+        op.close();
+
+        op = new Limit(1500, new SeqScan(tid, table.getId(), "t"));
+        op.open();
+        int count = 0;
+        TupleBatch batch;
+        while ((batch = op.nextBatch()) != null)
+            count += batch.numSelected();
+        op.close();
+        assertEquals(1500, count);
+    }
+
+    /**
+     * The planner turns ORDER BY ... LIMIT into TopN, and LIMIT alone into Limit.
+     */
+    @Test
+    public void planner() throws Exception {
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("topn", new TableStats(table.getId(), 1000));
+        Parser p = new Parser();
+
+        LogicalPlan lp = p.generateLogicalPlan(tid,
+                "SELECT * FROM topn t ORDER BY t.c1 DESC, t.c0 LIMIT 20;");
+        assertEquals(20, lp.getLimit());
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+        plan.open();
+        assertEquals(sortKeys(expected(20)), sortKeys(SystemTestUtil.readAll(plan)));
+        plan.close();
+
+        lp = p.generateLogicalPlan(tid, "SELECT * FROM topn t limit 7;");
+        plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof Limit);
+        plan.open();
+        assertEquals(7, SystemTestUtil.readAll(plan).size());
+        plan.close();
+
+        lp = p.generateLogicalPlan(tid, "SELECT * FROM topn t ORDER BY t.c2;");
+        assertEquals(-1, lp.getLimit());
+        assertTrue(((Operator) lp.physicalPlan(tid, stats, false)).getChildren()[0] instanceof OrderBy);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TopNTest.class);
+    }
+}
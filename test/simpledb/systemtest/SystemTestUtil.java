@@ -99,6 +99,34 @@ public class SystemTestUtil {
         return list;
     }
 
+    /**
+     * @return the remaining tuples of an open iterator, as lists of ints
+     */
+    public static List<List<Integer>> readAll(OpIterator iterator)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> result = new ArrayList<>();
+        while (iterator.hasNext())
+            result.add(tupleToList(iterator.next()));
+        return result;
+    }
+
+    /**
+     * Sort rows of ints in place, comparing them field by field.
+     *
+     * @return the rows
+     */
+    public static List<List<Integer>> sorted(List<List<Integer>> rows) {
+        rows.sort((a, b) -> {
+            for (int i = 0; i < a.size(); i++) {
+                int c = Integer.compare(a.get(i), b.get(i));
+                if (c != 0)
+                    return c;
+            }
+            return 0;
+        });
+        return rows;
+    }
+
     public static void matchTuples(DbFile f, List<List<Integer>> tuples)
             throws DbException, TransactionAbortedException {
         TransactionId tid = new TransactionId();